@@ -18,6 +18,9 @@ import org.cloudfoundry.identity.client.token.TokenRequest;
 import org.cloudfoundry.identity.uaa.oauth.token.CompositeAccessToken;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 public interface UaaContext {
 
     /**
@@ -60,5 +63,16 @@ public interface UaaContext {
      */
     RestTemplate getRestTemplate();
 
+    /**
+     * Invokes UAA APIs without blocking the calling thread.
+     * For contexts created by a {@link UaaContextFactory} the call runs on the executor
+     * of the factory and is subject to its timeout.
+     * @param call the call to make with the {@link #getRestTemplate() rest template} of this context
+     * @return a future completed with the result of the call
+     */
+    default <T> CompletableFuture<T> executeAsync(Function<RestTemplate, T> call) {
+        return CompletableFuture.supplyAsync(() -> call.apply(getRestTemplate()));
+    }
+
 
 }
@@ -15,9 +15,15 @@
 package org.cloudfoundry.identity.client;
 
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.cloudfoundry.identity.client.token.GrantType;
 import org.cloudfoundry.identity.client.token.TokenRequest;
 import org.cloudfoundry.identity.uaa.oauth.token.CompositeAccessToken;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
 import org.springframework.security.oauth2.client.OAuth2RestTemplate;
@@ -25,6 +31,7 @@ import org.springframework.security.oauth2.client.resource.BaseOAuth2ProtectedRe
 import org.springframework.security.oauth2.client.resource.OAuth2ProtectedResourceDetails;
 import org.springframework.security.oauth2.client.token.AccessTokenRequest;
 import org.springframework.security.oauth2.client.token.OAuth2AccessTokenSupport;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
 import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeAccessTokenProvider;
 import org.springframework.security.oauth2.client.token.grant.code.AuthorizationCodeResourceDetails;
@@ -39,30 +46,93 @@ import org.springframework.web.client.HttpMessageConverterExtractor;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.Closeable;
 import java.net.URI;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import static org.cloudfoundry.identity.client.token.GrantType.AUTHORIZATION_CODE;
 import static org.cloudfoundry.identity.client.token.GrantType.PASSWORD_WITH_PASSCODE;
 import static org.springframework.security.oauth2.common.AuthenticationScheme.header;
 
-public class UaaContextFactory {
+/**
+ * Creates authenticated {@link UaaContext} objects.
+ * All contexts created by a factory share a pool of keep-alive connections, so a factory
+ * is meant to be created once and reused. With {@link #cacheTokens(boolean)} enabled,
+ * client_credentials and password grants return the same context for the same token request
+ * until the token is about to expire, and tokens in use are renewed in the background
+ * before they expire. The factory should be closed when it is no longer needed.
+ * <p>
+ * {@link #authenticateAsync(TokenRequest)} and {@link UaaContext#executeAsync(java.util.function.Function)}
+ * never block the calling thread. The HTTP calls run on a bounded executor owned by the factory, see
+ * {@link #executor(Executor)}, and concurrent asynchronous requests for equal token requests share one call.
+ */
+public class UaaContextFactory implements Closeable {
+
+    private static final Log logger = LogFactory.getLog(UaaContextFactory.class);
+
+    /**
+     * The converter is thread safe and expensive to create
+     */
+    private static final MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
 
     /**
      * UAA Base URI
      */
     private final URI uaaURI;
 
+    private final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+
+    private final HttpComponentsClientHttpRequestFactory requestFactory;
+
+    private boolean cacheTokens = false;
+
+    private int refreshBeforeExpiry = 30;
+
+    private final ConcurrentMap<List<Object>, CachedContext> contexts = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<List<Object>, CompletableFuture<UaaContext>> inFlight = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<List<Object>, CompletableFuture<UaaContext>> asyncInFlight = new ConcurrentHashMap<>();
+
+    private int maxConnections = 20;
+
+    private Executor executor;
+
+    private ExecutorService defaultExecutor;
+
+    private long asyncTimeout = 0;
+
     /**
      * Instantiates a context factory to authenticate against the UAA
      * @param uaaURI the UAA base URI
      */
     private UaaContextFactory(URI uaaURI) {
         this.uaaURI = uaaURI;
+        connectionManager.setMaxTotal(20);
+        connectionManager.setDefaultMaxPerRoute(20);
+        requestFactory = new HttpComponentsClientHttpRequestFactory(HttpClients.custom().setConnectionManager(connectionManager).build());
     }
 
     private String tokenPath = "/oauth/token";
@@ -97,6 +167,85 @@ public class UaaContextFactory {
         return this;
     }
 
+    /**
+     * Sets the maximum number of pooled connections. If not invoked, the default is 20
+     * @param maxConnections the maximum number of connections to the UAA
+     * @return this mutable object
+     */
+    public UaaContextFactory maxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        return this;
+    }
+
+    /**
+     * Sets the connect timeout. If not invoked, the system default is used
+     * @param connectTimeout the connect timeout in milliseconds
+     * @return this mutable object
+     */
+    public UaaContextFactory connectTimeout(int connectTimeout) {
+        requestFactory.setConnectTimeout(connectTimeout);
+        return this;
+    }
+
+    /**
+     * Sets the read timeout. If not invoked, the system default is used
+     * @param readTimeout the read timeout in milliseconds
+     * @return this mutable object
+     */
+    public UaaContextFactory readTimeout(int readTimeout) {
+        requestFactory.setReadTimeout(readTimeout);
+        return this;
+    }
+
+    /**
+     * Enables caching of client_credentials and password grant contexts. If not invoked, every call to
+     * {@link #authenticate(TokenRequest)} requests a new token.
+     * @param cacheTokens true to reuse contexts for equal token requests
+     * @return this mutable object
+     */
+    public UaaContextFactory cacheTokens(boolean cacheTokens) {
+        this.cacheTokens = cacheTokens;
+        if (!cacheTokens) {
+            contexts.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Sets how long before its expiry a cached token is renewed. If not invoked, the default is 30 seconds
+     * @param seconds the number of seconds before the expiry of a token
+     * @return this mutable object
+     */
+    public UaaContextFactory refreshBeforeExpiry(int seconds) {
+        this.refreshBeforeExpiry = seconds;
+        return this;
+    }
+
+    /**
+     * Sets the executor that runs the HTTP calls of asynchronous operations. If not invoked, a pool with
+     * one daemon thread per pooled connection is created on first use
+     * @param executor the executor for asynchronous operations
+     * @return this mutable object
+     */
+    public UaaContextFactory executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets a timeout for asynchronous operations. A future that does not complete in time completes
+     * with a {@link TimeoutException}; the underlying call is not interrupted, since it may be shared
+     * by other callers. If not invoked, asynchronous operations do not time out
+     * @param timeout the timeout in milliseconds, 0 for none
+     * @return this mutable object
+     */
+    public UaaContextFactory asyncTimeout(long timeout) {
+        this.asyncTimeout = timeout;
+        return this;
+    }
+
     /**
      * Creates a new {@link TokenRequest} object.
      * The object will have the token an authorize endpoints already configured.
@@ -128,6 +277,134 @@ public class UaaContextFactory {
         if (!request.isValid()) {
             throw new IllegalArgumentException("Invalid token request.");
         }
+        if (cacheTokens && isCacheable(request.getGrantType())) {
+            return authenticateCached(request);
+        }
+        return doAuthenticate(request);
+    }
+
+    /**
+     * Asynchronous variant of {@link #authenticate(TokenRequest)}. An invalid request
+     * completes the returned future exceptionally.
+     * @param request - a fully configured token request
+     * @return a future completed with an authenticated UAA context
+     */
+    public CompletableFuture<UaaContext> authenticateAsync(TokenRequest request) {
+        if (request == null || !request.isValid()) {
+            CompletableFuture<UaaContext> result = new CompletableFuture<>();
+            result.completeExceptionally(request == null ?
+                new NullPointerException(TokenRequest.class.getName() + " cannot be null.") :
+                new IllegalArgumentException("Invalid token request."));
+            return result;
+        }
+        if (cacheTokens && isCacheable(request.getGrantType())) {
+            CachedContext cached = contexts.get(getCacheKey(request));
+            if (cached != null && !cached.isExpiring()) {
+                cached.lastAccess = System.currentTimeMillis();
+                return CompletableFuture.completedFuture(cached.context);
+            }
+        }
+        List<Object> key = getCacheKey(request);
+        CompletableFuture<UaaContext> future = new CompletableFuture<>();
+        CompletableFuture<UaaContext> existing = asyncInFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return withTimeout(existing);
+        }
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    UaaContext context = authenticate(request);
+                    asyncInFlight.remove(key, future);
+                    future.complete(context);
+                } catch (RuntimeException e) {
+                    asyncInFlight.remove(key, future);
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            asyncInFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return withTimeout(future);
+    }
+
+    /**
+     * Runs a blocking call on the executor of this factory
+     * @param call the call to run
+     * @return a future completed with the result of the call, subject to the {@link #asyncTimeout(long)}
+     */
+    <T> CompletableFuture<T> supplyAsync(Supplier<T> call) {
+        CompletableFuture<T> future;
+        try {
+            future = CompletableFuture.supplyAsync(call, getExecutor());
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return withTimeout(future);
+    }
+
+    /**
+     * @return a future that completes like the given one, or with a {@link TimeoutException}
+     * if that does not happen within the async timeout
+     */
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            } else {
+                result.complete(value);
+            }
+        });
+        long timeout = asyncTimeout;
+        if (timeout > 0 && !result.isDone()) {
+            ScheduledFuture<?> timer = getScheduler().schedule(
+                () -> result.completeExceptionally(new TimeoutException("UAA request did not complete within " + timeout + "ms")),
+                timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> timer.cancel(false));
+        }
+        return result;
+    }
+
+    private synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            defaultExecutor = Executors.newFixedThreadPool(maxConnections, daemonThreads("uaa-client-async"));
+        }
+        return defaultExecutor;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Stops the background token renewal and asynchronous operations and closes the pooled connections
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            if (defaultExecutor != null) {
+                defaultExecutor.shutdownNow();
+                defaultExecutor = null;
+            }
+        }
+        contexts.clear();
+        connectionManager.shutdown();
+    }
+
+    protected UaaContext doAuthenticate(TokenRequest request) {
         switch (request.getGrantType()) {
             case CLIENT_CREDENTIALS: return authenticateClientCredentials(request);
             case PASSWORD:
@@ -138,6 +415,121 @@ public class UaaContextFactory {
         }
     }
 
+    /**
+     * Grants that can be repeated with the same request. A passcode or an authorization code is used only once.
+     * @param grantType the grant type of a token request
+     * @return true if contexts for the grant type can be cached and renewed
+     */
+    protected boolean isCacheable(GrantType grantType) {
+        return grantType == GrantType.CLIENT_CREDENTIALS || grantType == GrantType.PASSWORD;
+    }
+
+    private UaaContext authenticateCached(TokenRequest request) {
+        List<Object> key = getCacheKey(request);
+        CachedContext cached = contexts.get(key);
+        if (cached != null && !cached.isExpiring()) {
+            cached.lastAccess = System.currentTimeMillis();
+            return cached.context;
+        }
+        return fetch(key, request);
+    }
+
+    /**
+     * Requests a token, unless a request with the same key is already in progress
+     */
+    private UaaContext fetch(List<Object> key, TokenRequest request) {
+        CompletableFuture<UaaContext> future = new CompletableFuture<>();
+        CompletableFuture<UaaContext> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            UaaContext context = doAuthenticate(request);
+            CachedContext cached = new CachedContext(context);
+            contexts.put(key, cached);
+            scheduleRefresh(key, request, cached);
+            future.complete(context);
+            return context;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private void scheduleRefresh(final List<Object> key, final TokenRequest request, final CachedContext cached) {
+        Date expiration = cached.context.getToken().getExpiration();
+        if (expiration == null) {
+            return;
+        }
+        long delay = expiration.getTime() - System.currentTimeMillis() - refreshBeforeExpiry * 1000l;
+        if (delay <= 0) {
+            return;
+        }
+        Runnable renew = () -> {
+            try {
+                fetch(key, request);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to renew token for client " + request.getClientId(), e);
+            }
+        };
+        getScheduler().schedule(() -> {
+            if (contexts.get(key) != cached) {
+                return;
+            }
+            if (cached.lastAccess == cached.created || !key.equals(getCacheKey(request))) {
+                //not used since it was fetched, or the request was modified by the caller
+                contexts.remove(key, cached);
+                return;
+            }
+            //the timer thread only hands off, so that a slow renewal does not delay async timeouts
+            try {
+                getExecutor().execute(renew);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to renew token for client " + request.getClientId(), e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, daemonThreads("uaa-client-timer"));
+            executor.setRemoveOnCancelPolicy(true);
+            scheduler = executor;
+        }
+        return scheduler;
+    }
+
+    private static List<Object> getCacheKey(TokenRequest request) {
+        return Arrays.asList(request.getGrantType(), request.getTokenEndpoint(), request.getClientId(),
+            request.getClientSecret(), request.getUsername(), request.getPassword(), request.getPasscode(),
+            request.getAuthCodeAPIToken(), request.getRedirectUriRedirectUri(),
+            request.getScopes() == null ? null : new TreeSet<>(request.getScopes()), request.wantsIdToken());
+    }
+
+    private class CachedContext {
+        private final UaaContext context;
+        private final long created = System.currentTimeMillis();
+        private volatile long lastAccess = created;
+
+        private CachedContext(UaaContext context) {
+            this.context = context;
+        }
+
+        private boolean isExpiring() {
+            Date expiration = context.getToken().getExpiration();
+            return expiration != null && expiration.getTime() - System.currentTimeMillis() <= refreshBeforeExpiry * 1000l;
+        }
+    }
+
     /**
      * Not yet implemented
      * @param tokenRequest - a configured TokenRequest
@@ -164,11 +556,11 @@ public class UaaContextFactory {
             @Override
             protected ResponseExtractor<OAuth2AccessToken> getResponseExtractor() {
                 getRestTemplate(); // force initialization
-                MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
                 return new HttpMessageConverterExtractor<OAuth2AccessToken>(CompositeAccessToken.class, Arrays.asList(converter));
             }
         };
         enhanceRequestParameters(tokenRequest, provider);
+        provider.setRequestFactory(requestFactory);
         AuthorizationCodeResourceDetails details = new AuthorizationCodeResourceDetails();
         details.setPreEstablishedRedirectUri(tokenRequest.getRedirectUriRedirectUri().toString());
         configureResourceDetails(tokenRequest, details);
@@ -183,9 +575,10 @@ public class UaaContextFactory {
         Map<String, List<String>> headers = (Map<String, List<String>>) oAuth2ClientContext.getAccessTokenRequest().getHeaders();
         headers.put("Authorization", Arrays.asList("bearer " + tokenRequest.getAuthCodeAPIToken()));
         OAuth2RestTemplate template = new OAuth2RestTemplate(details, oAuth2ClientContext);
+        template.setRequestFactory(requestFactory);
         template.setAccessTokenProvider(provider);
         OAuth2AccessToken token = template.getAccessToken();
-        return new UaaContextImpl(tokenRequest, template, (CompositeAccessToken) token);
+        return new UaaContextImpl(tokenRequest, template, (CompositeAccessToken) token, this);
     }
 
 
@@ -199,20 +592,21 @@ public class UaaContextFactory {
             @Override
             protected ResponseExtractor<OAuth2AccessToken> getResponseExtractor() {
                 getRestTemplate(); // force initialization
-                MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
                 return new HttpMessageConverterExtractor<OAuth2AccessToken>(CompositeAccessToken.class, Arrays.asList(converter));
             }
         };
         enhanceRequestParameters(tokenRequest, provider);
+        provider.setRequestFactory(requestFactory);
         ResourceOwnerPasswordResourceDetails details = new ResourceOwnerPasswordResourceDetails();
         configureResourceDetails(tokenRequest, details);
         setUserCredentials(tokenRequest, details);
         setClientCredentials(tokenRequest, details);
         setRequestScopes(tokenRequest, details);
         OAuth2RestTemplate template = new OAuth2RestTemplate(details,new DefaultOAuth2ClientContext());
+        template.setRequestFactory(requestFactory);
         template.setAccessTokenProvider(provider);
         OAuth2AccessToken token = template.getAccessToken();
-        return new UaaContextImpl(tokenRequest, template, (CompositeAccessToken) token);
+        return new UaaContextImpl(tokenRequest, template, (CompositeAccessToken) token, this);
     }
 
     /**
@@ -251,10 +645,14 @@ public class UaaContextFactory {
         configureResourceDetails(request, details);
         setClientCredentials(request, details);
         setRequestScopes(request, details);
+        ClientCredentialsAccessTokenProvider provider = new ClientCredentialsAccessTokenProvider();
+        provider.setRequestFactory(requestFactory);
         OAuth2RestTemplate template = new OAuth2RestTemplate(details,new DefaultOAuth2ClientContext());
+        template.setRequestFactory(requestFactory);
+        template.setAccessTokenProvider(provider);
         OAuth2AccessToken token = template.getAccessToken();
         CompositeAccessToken result = new CompositeAccessToken(token);
-        return new UaaContextImpl(request, template, result);
+        return new UaaContextImpl(request, template, result, this);
     }
 
     /**
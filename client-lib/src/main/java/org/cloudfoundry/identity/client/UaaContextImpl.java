@@ -20,15 +20,24 @@ import org.springframework.security.oauth2.client.OAuth2RestTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 public class UaaContextImpl implements UaaContext {
     private CompositeAccessToken token;
     private TokenRequest request;
     private OAuth2RestTemplate template;
+    private UaaContextFactory factory;
 
     public UaaContextImpl(TokenRequest request, OAuth2RestTemplate template, CompositeAccessToken token) {
+        this(request, template, token, null);
+    }
+
+    UaaContextImpl(TokenRequest request, OAuth2RestTemplate template, CompositeAccessToken token, UaaContextFactory factory) {
         this.request = request;
         this.template = template;
         this.token = token;
+        this.factory = factory;
     }
 
     /**
@@ -78,4 +87,15 @@ public class UaaContextImpl implements UaaContext {
     public CompositeAccessToken getToken() {
         return token;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <T> CompletableFuture<T> executeAsync(Function<RestTemplate, T> call) {
+        if (factory == null) {
+            return UaaContext.super.executeAsync(call);
+        }
+        return factory.supplyAsync(() -> call.apply(template));
+    }
 }
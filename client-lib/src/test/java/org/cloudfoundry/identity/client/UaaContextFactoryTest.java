@@ -0,0 +1,250 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.client;
+
+import com.sun.net.httpserver.HttpServer;
+import org.cloudfoundry.identity.client.token.TokenRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.cloudfoundry.identity.client.token.GrantType.CLIENT_CREDENTIALS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UaaContextFactoryTest {
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor = Executors.newCachedThreadPool();
+
+    private UaaContextFactory factory;
+
+    private AtomicInteger tokenRequests = new AtomicInteger();
+
+    private volatile int expiresIn = 3600;
+
+    private volatile long delay = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverExecutor);
+        server.createContext("/uaa/oauth/token", exchange -> {
+            int count = tokenRequests.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = ("{\"access_token\":\"token-" + count + "\",\"token_type\":\"bearer\",\"expires_in\":" + expiresIn + "}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        factory = UaaContextFactory.factory(new URI("http://localhost:" + server.getAddress().getPort() + "/uaa"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        factory.close();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private TokenRequest clientCredentials() {
+        return factory.tokenRequest()
+            .setGrantType(CLIENT_CREDENTIALS)
+            .setClientId("admin")
+            .setClientSecret("adminsecret")
+            .setScopes(Arrays.asList("uaa.admin", "scim.read"));
+    }
+
+    @Test
+    public void test_tokens_are_not_cached_by_default() throws Exception {
+        assertEquals("token-1", factory.authenticate(clientCredentials()).getToken().getValue());
+        assertEquals("token-2", factory.authenticate(clientCredentials()).getToken().getValue());
+    }
+
+    @Test
+    public void test_equal_token_requests_share_a_context() throws Exception {
+        factory.cacheTokens(true);
+        UaaContext context = factory.authenticate(clientCredentials());
+        assertSame(context, factory.authenticate(clientCredentials()));
+        assertSame(context, factory.authenticate(clientCredentials().setScopes(Arrays.asList("scim.read", "uaa.admin"))));
+        assertEquals(1, tokenRequests.get());
+
+        assertNotSame(context, factory.authenticate(clientCredentials().setScopes(Arrays.asList("uaa.admin"))));
+        assertEquals(2, tokenRequests.get());
+    }
+
+    @Test
+    public void test_expiring_tokens_are_not_reused() throws Exception {
+        factory.cacheTokens(true).refreshBeforeExpiry(30);
+        expiresIn = 10;
+        UaaContext context = factory.authenticate(clientCredentials());
+        assertNotSame(context, factory.authenticate(clientCredentials()));
+        assertEquals(2, tokenRequests.get());
+    }
+
+    @Test
+    public void test_concurrent_token_requests_are_coalesced() throws Exception {
+        factory.cacheTokens(true);
+        delay = 300;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<UaaContext>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> factory.authenticate(clientCredentials())));
+            }
+            for (Future<UaaContext> result : results) {
+                assertEquals("token-1", result.get(5, TimeUnit.SECONDS).getToken().getValue());
+            }
+            assertEquals(1, tokenRequests.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_tokens_in_use_are_renewed_before_expiry() throws Exception {
+        factory.cacheTokens(true).refreshBeforeExpiry(1);
+        expiresIn = 2;
+        factory.authenticate(clientCredentials());
+        Thread.sleep(10);
+        factory.authenticate(clientCredentials());
+        long timeout = System.currentTimeMillis() + 5000;
+        while (tokenRequests.get() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, tokenRequests.get());
+        assertEquals("token-2", factory.authenticate(clientCredentials()).getToken().getValue());
+        assertEquals(2, tokenRequests.get());
+    }
+
+    @Test
+    public void test_unused_tokens_are_not_renewed() throws Exception {
+        factory.cacheTokens(true).refreshBeforeExpiry(1);
+        expiresIn = 2;
+        factory.authenticate(clientCredentials());
+        Thread.sleep(1500);
+        assertEquals(1, tokenRequests.get());
+    }
+
+    @Test
+    public void test_async_token_requests_are_coalesced() throws Exception {
+        delay = 300;
+        List<CompletableFuture<UaaContext>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(factory.authenticateAsync(clientCredentials()));
+        }
+        for (CompletableFuture<UaaContext> result : results) {
+            assertEquals("token-1", result.get(5, TimeUnit.SECONDS).getToken().getValue());
+        }
+        assertEquals(1, tokenRequests.get());
+        assertEquals("token-2", factory.authenticateAsync(clientCredentials()).get(5, TimeUnit.SECONDS).getToken().getValue());
+    }
+
+    @Test
+    public void test_async_token_requests_use_cached_tokens() throws Exception {
+        factory.cacheTokens(true);
+        UaaContext context = factory.authenticate(clientCredentials());
+        CompletableFuture<UaaContext> result = factory.authenticateAsync(clientCredentials());
+        assertTrue(result.isDone());
+        assertSame(context, result.get());
+    }
+
+    @Test
+    public void test_async_operations_time_out() throws Exception {
+        factory.asyncTimeout(100);
+        delay = 1000;
+        try {
+            factory.authenticateAsync(clientCredentials()).get(5, TimeUnit.SECONDS);
+            fail("Token request should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void test_slow_renewal_does_not_delay_async_timeouts() throws Exception {
+        factory.cacheTokens(true).refreshBeforeExpiry(1).asyncTimeout(200);
+        expiresIn = 2;
+        factory.authenticate(clientCredentials());
+        Thread.sleep(10);
+        factory.authenticate(clientCredentials());
+        delay = 3000;
+        long timeout = System.currentTimeMillis() + 5000;
+        while (tokenRequests.get() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertEquals(2, tokenRequests.get());
+        try {
+            factory.authenticateAsync(clientCredentials().setScopes(Arrays.asList("uaa.admin"))).get(1, TimeUnit.SECONDS);
+            fail("Token request should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void test_invalid_async_request_completes_exceptionally() throws Exception {
+        try {
+            factory.authenticateAsync(factory.tokenRequest()).get(5, TimeUnit.SECONDS);
+            fail("Invalid token request should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void test_async_calls_with_context() throws Exception {
+        server.createContext("/uaa/Users", exchange -> {
+            byte[] body = ("{\"authorization\":\"" + exchange.getRequestHeaders().getFirst("Authorization") + "\"}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        String users = "http://localhost:" + server.getAddress().getPort() + "/uaa/Users";
+        String result = factory.authenticateAsync(clientCredentials())
+            .thenCompose(context -> context.executeAsync(template -> template.getForObject(users, String.class)))
+            .get(5, TimeUnit.SECONDS);
+        assertEquals("{\"authorization\":\"bearer token-1\"}", result);
+    }
+}
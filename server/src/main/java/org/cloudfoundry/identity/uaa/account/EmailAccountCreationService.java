@@ -16,6 +16,7 @@ import org.cloudfoundry.identity.uaa.scim.util.ScimUtils;
 import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.WildcardMatcher;
 import org.cloudfoundry.identity.uaa.util.UaaUrlUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.http.HttpStatus;
@@ -32,7 +33,6 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 public class EmailAccountCreationService implements AccountCreationService {
 
@@ -121,8 +121,8 @@ public class EmailAccountCreationService implements AccountCreationService {
                 ClientDetails clientDetails = clientDetailsService.loadClientByClientId(clientId);
                 Set<String> redirectUris = clientDetails.getRegisteredRedirectUri() == null ? Collections.emptySet() :
                         clientDetails.getRegisteredRedirectUri();
-                Set<Pattern> wildcards = UaaStringUtils.constructWildcards(redirectUris);
-                if (UaaStringUtils.matches(wildcards, redirectUri)) {
+                WildcardMatcher wildcards = UaaStringUtils.getWildcardMatcher(redirectUris);
+                if (wildcards.matches(redirectUri)) {
                     redirectLocation = redirectUri;
                 } else if (clientDetails.getAdditionalInformation().get(SIGNUP_REDIRECT_URL) != null) {
                     redirectLocation = (String) clientDetails.getAdditionalInformation().get(SIGNUP_REDIRECT_URL);
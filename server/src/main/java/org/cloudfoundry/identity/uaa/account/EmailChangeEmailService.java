@@ -18,7 +18,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import org.cloudfoundry.identity.uaa.codestore.ExpiringCode;
@@ -31,6 +30,7 @@ import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.WildcardMatcher;
 import org.cloudfoundry.identity.uaa.util.UaaUrlUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -120,8 +120,8 @@ public class EmailChangeEmailService implements ChangeEmailService {
                 ClientDetails clientDetails = clientDetailsService.loadClientByClientId(clientId);
                 Set<String> redirectUris = clientDetails.getRegisteredRedirectUri() == null ? Collections.emptySet() :
                         clientDetails.getRegisteredRedirectUri();
-                Set<Pattern> wildcards = UaaStringUtils.constructWildcards(redirectUris);
-                if (UaaStringUtils.matches(wildcards, redirectUri)) {
+                WildcardMatcher wildcards = UaaStringUtils.getWildcardMatcher(redirectUris);
+                if (wildcards.matches(redirectUri)) {
                     redirectLocation = redirectUri;
                 } else {
                      redirectLocation = (String) clientDetails.getAdditionalInformation().get(CHANGE_EMAIL_REDIRECT_URL);
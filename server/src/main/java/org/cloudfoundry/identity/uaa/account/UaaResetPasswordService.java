@@ -28,6 +28,7 @@ import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.WildcardMatcher;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
@@ -42,7 +43,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
 import static org.springframework.util.StringUtils.isEmpty;
@@ -114,8 +114,8 @@ public class UaaResetPasswordService implements ResetPasswordService, Applicatio
                     ClientDetails clientDetails = clientDetailsService.loadClientByClientId(clientId);
                     Set<String> redirectUris = clientDetails.getRegisteredRedirectUri() == null ? Collections.emptySet() :
                         clientDetails.getRegisteredRedirectUri();
-                    Set<Pattern> wildcards = UaaStringUtils.constructWildcards(redirectUris);
-                    if (UaaStringUtils.matches(wildcards, redirectUri)) {
+                    WildcardMatcher wildcards = UaaStringUtils.getWildcardMatcher(redirectUris);
+                    if (wildcards.matches(redirectUri)) {
                         redirectLocation = redirectUri;
                     }
                 } catch (NoSuchClientException e) {
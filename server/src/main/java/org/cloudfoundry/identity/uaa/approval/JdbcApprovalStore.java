@@ -18,13 +18,19 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.resources.jdbc.SearchQueryConverter;
@@ -32,6 +38,7 @@ import org.cloudfoundry.identity.uaa.resources.jdbc.SearchQueryConverter.Process
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -43,7 +50,9 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.Assert;
 
-public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublisherAware {
+public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublisherAware, ApplicationListener<ApplicationEvent> {
+
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
 
     private final JdbcTemplate jdbcTemplate;
 
@@ -68,6 +77,8 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
+    private static final String GET_USER_CLIENT_AUTHZ_SQL = GET_AUTHZ_SQL + " where user_id=? and client_id=?";
+
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
 
     private static final String EXPIRE_AUTHZ_SQL = String.format("update %s set expiresAt = :expiry", TABLE_NAME);
@@ -75,6 +86,11 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     private boolean handleRevocationsAsExpiry = false;
     private ApplicationEventPublisher applicationEventPublisher;
 
+    private long cacheExpiration = 0;
+    private int cacheMaxEntries = DEFAULT_CACHE_MAX_ENTRIES;
+    private final ConcurrentMap<List<String>, CachedApprovals> cache = new ConcurrentHashMap<>();
+    private final AtomicLong cacheGeneration = new AtomicLong();
+
     public JdbcApprovalStore(JdbcTemplate jdbcTemplate, JdbcPagingListFactory pagingListFactory,
                     SearchQueryConverter queryConverter) {
         Assert.notNull(jdbcTemplate);
@@ -88,6 +104,25 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         this.handleRevocationsAsExpiry = handleRevocationsAsExpiry;
     }
 
+    public long getCacheExpiration() {
+        return cacheExpiration;
+    }
+
+    /**
+     * @param cacheExpiration milliseconds the approvals of a user and client are
+     *            cached for, 0 disables the cache. Changes made through this
+     *            store are visible immediately, changes made by other UAA
+     *            instances, including revocations, once the entry expires.
+     */
+    public void setCacheExpiration(long cacheExpiration) {
+        this.cacheExpiration = cacheExpiration;
+        clearCache();
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
     public boolean refreshApproval(final Approval approval) {
         logger.debug(String.format("refreshing approval: [%s]", approval));
         int refreshed = jdbcTemplate.update(REFRESH_AUTHZ_SQL, new PreparedStatementSetter() {
@@ -127,6 +162,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             });
             if (count==0) throw new EmptyResultDataAccessException("Approval add failed", 1);
         }
+        evict(approval.getUserId(), approval.getClientId());
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         publish(new ApprovalModifiedEvent(approval, authentication));
         return true;
@@ -161,6 +197,10 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         } catch (DataAccessException ex) {
             logger.error("Error expiring approvals, possible invalid filter: " + where, ex);
             throw new IllegalArgumentException("Error revoking approvals");
+        } finally {
+            //any number of users and clients may match the filter. Cleared after the
+            //write so that an entry loaded while the rows were changing is dropped.
+            clearCache();
         }
         return true;
     }
@@ -193,9 +233,52 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         }
     }
 
+    /**
+     * Looks up the approvals of a user for a client by primary key, without the
+     * count query of a filtered search. The list returned must not be modified.
+     */
     @Override
     public List<Approval> getApprovals(String userId, String clientId) {
-        return getApprovals(String.format("user_id eq \"%s\" and client_id eq \"%s\"", userId, clientId));
+        if (cacheExpiration <= 0) {
+            return jdbcTemplate.query(GET_USER_CLIENT_AUTHZ_SQL, rowMapper, userId, clientId);
+        }
+        List<String> key = Arrays.asList(userId, clientId);
+        long now = System.currentTimeMillis();
+        CachedApprovals cached = cache.get(key);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.approvals;
+        }
+        long generation = cacheGeneration.get();
+        List<Approval> approvals = Collections.unmodifiableList(jdbcTemplate.query(GET_USER_CLIENT_AUTHZ_SQL, rowMapper, userId, clientId));
+        if (cache.size() >= cacheMaxEntries) {
+            cache.clear();
+        }
+        //an entry loaded while approvals were changing could be stale
+        if (cacheGeneration.get() == generation) {
+            cache.put(key, new CachedApprovals(approvals, now + cacheExpiration));
+        }
+        return approvals;
+    }
+
+    protected void evict(String userId, String clientId) {
+        cacheGeneration.incrementAndGet();
+        cache.remove(Arrays.asList(userId, clientId));
+    }
+
+    public void clearCache() {
+        cacheGeneration.incrementAndGet();
+        cache.clear();
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ApprovalModifiedEvent) {
+            Approval approval = ((ApprovalModifiedEvent) event).getSource();
+            evict(approval.getUserId(), approval.getClientId());
+        } else if (event instanceof EntityDeletedEvent) {
+            //zones and providers take the approvals of their users with them
+            clearCache();
+        }
     }
 
     @Override
@@ -209,6 +292,16 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         }
     }
 
+    private static class CachedApprovals {
+        private final List<Approval> approvals;
+        private final long expiresAt;
+
+        private CachedApprovals(List<Approval> approvals, long expiresAt) {
+            this.approvals = approvals;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     private static class AuthorizationRowMapper implements RowMapper<Approval> {
 
         @Override
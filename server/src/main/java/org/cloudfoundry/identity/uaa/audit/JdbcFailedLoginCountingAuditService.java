@@ -27,6 +27,8 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
 
     private int saveDataPeriodMillis = 2 * 3600 * 1000; // 2hr
 
+    private boolean purgeExpired = true;
+
     public JdbcFailedLoginCountingAuditService(DataSource dataSource) {
         super(dataSource);
     }
@@ -38,6 +40,14 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
         this.saveDataPeriodMillis = saveDataPeriodMillis;
     }
 
+    /**
+     * @param purgeExpired false if events older than the save data period are
+     *            removed in the background instead of on every failed login
+     */
+    public void setPurgeExpired(boolean purgeExpired) {
+        this.purgeExpired = purgeExpired;
+    }
+
     @Override
     public void log(AuditEvent auditEvent) {
         switch (auditEvent.getType()) {
@@ -46,9 +56,11 @@ public class JdbcFailedLoginCountingAuditService extends JdbcAuditService {
                 getJdbcTemplate().update("delete from sec_audit where principal_id=?", auditEvent.getPrincipalId());
                 break;
             case UserAuthenticationFailure:
-                getJdbcTemplate().update("delete from sec_audit where created < ?",
-                                new Timestamp(System.currentTimeMillis()
-                                                - saveDataPeriodMillis));
+                if (purgeExpired) {
+                    getJdbcTemplate().update("delete from sec_audit where created < ?",
+                                    new Timestamp(System.currentTimeMillis()
+                                                    - saveDataPeriodMillis));
+                }
                 super.log(auditEvent);
                 break;
             default:
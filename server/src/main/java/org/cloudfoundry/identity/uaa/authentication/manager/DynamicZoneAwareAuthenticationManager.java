@@ -12,6 +12,9 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.authentication.manager;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.authentication.AccountNotVerifiedException;
 import org.cloudfoundry.identity.uaa.authentication.AuthenticationPolicyRejectionException;
 import org.cloudfoundry.identity.uaa.authentication.manager.ChainedAuthenticationManager.AuthenticationManagerConfiguration;
@@ -24,25 +27,52 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class DynamicZoneAwareAuthenticationManager implements AuthenticationManager {
+/**
+ * Chains the internal UAA and the zone's LDAP authentication managers.
+ * The assembled chain is cached per zone together with the version and last modified
+ * time of the providers it was built from, and is only rebuilt when an
+ * {@link IdentityProviderModifiedEvent} reports a different provider, when the zone or
+ * provider is deleted, or when the cache expiration has passed. The expiration picks up
+ * provider changes made through other UAA instances, which only publish events locally.
+ * A changed LDAP configuration is loaded in the background so that the first login
+ * after the change does not pay for the LDAP context startup.
+ */
+public class DynamicZoneAwareAuthenticationManager implements AuthenticationManager, ApplicationListener<ApplicationEvent> {
+
+    public static final long DEFAULT_CACHE_EXPIRATION = 30000;
+
+    private static final Log logger = LogFactory.getLog(DynamicZoneAwareAuthenticationManager.class);
 
     private final IdentityProviderProvisioning provisioning;
     private final AuthenticationManager internalUaaAuthenticationManager;
-    private final ConcurrentMap<IdentityZone, DynamicLdapAuthenticationManager> ldapAuthManagers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DynamicLdapAuthenticationManager> ldapAuthManagers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ZoneAuthenticationChain> zoneChains = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
     private final ScimGroupExternalMembershipManager scimGroupExternalMembershipManager;
     private final ScimGroupProvisioning scimGroupProvisioning;
     private final LdapLoginAuthenticationManager ldapLoginAuthenticationManager;
+    private ExecutorService ldapWarmupExecutor;
+    private long cacheExpiration = DEFAULT_CACHE_EXPIRATION;
 
     public DynamicZoneAwareAuthenticationManager(IdentityProviderProvisioning provisioning,
                                                  AuthenticationManager internalUaaAuthenticationManager,
@@ -54,6 +84,28 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
         this.scimGroupExternalMembershipManager = scimGroupExternalMembershipManager;
         this.scimGroupProvisioning = scimGroupProvisioning;
         this.ldapLoginAuthenticationManager = ldapLoginAuthenticationManager;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ldap-warmup-");
+        threadFactory.setDaemon(true);
+        this.ldapWarmupExecutor = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    public void setLdapWarmupExecutor(ExecutorService ldapWarmupExecutor) {
+        ExecutorService previous = this.ldapWarmupExecutor;
+        this.ldapWarmupExecutor = ldapWarmupExecutor;
+        if (previous!=null) {
+            previous.shutdown();
+        }
+    }
+
+    public long getCacheExpiration() {
+        return cacheExpiration;
+    }
+
+    /**
+     * @param cacheExpiration milliseconds a cached chain is used before the providers are read again
+     */
+    public void setCacheExpiration(long cacheExpiration) {
+        this.cacheExpiration = cacheExpiration;
     }
 
     @Override
@@ -64,6 +116,37 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
     }
 
     protected ChainedAuthenticationManager getChainedAuthenticationManager(IdentityZone zone) {
+        long now = System.currentTimeMillis();
+        ZoneAuthenticationChain chain = zoneChains.get(zone.getId());
+        if (chain!=null && !chain.isExpired(now)) {
+            return chain.getManager();
+        }
+        removeExpiredChains(now);
+        long invalidationsBeforeBuild = invalidations.get();
+        chain = buildChain(zone);
+        chain.setExpiresAt(now + cacheExpiration);
+        ZoneAuthenticationChain existing = zoneChains.putIfAbsent(zone.getId(), chain);
+        if (existing!=null && !existing.isExpired(now)) {
+            return existing.getManager();
+        } else if (existing!=null) {
+            zoneChains.replace(zone.getId(), existing, chain);
+        }
+        if (invalidations.get()!=invalidationsBeforeBuild) {
+            //a provider changed while we were reading, don't keep a possibly stale chain around
+            zoneChains.remove(zone.getId(), chain);
+        }
+        return chain.getManager();
+    }
+
+    /**
+     * Chains are only rebuilt on demand, so the chains of zones that are no longer
+     * used, for example deleted through another UAA instance, are dropped here.
+     */
+    protected void removeExpiredChains(long now) {
+        zoneChains.entrySet().removeIf(entry -> entry.getValue().isExpired(now));
+    }
+
+    protected ZoneAuthenticationChain buildChain(IdentityZone zone) {
         IdentityProvider ldapProvider = getProvider(OriginKeys.LDAP, zone);
         IdentityProvider uaaProvider = getProvider(OriginKeys.UAA, zone);
 
@@ -79,7 +162,7 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
             //has LDAP IDP config changed since last time?
             DynamicLdapAuthenticationManager existing = getLdapAuthenticationManager(zone, ldapProvider);
             if (!existing.getDefinition().equals(ldapProvider.getConfig())) {
-                ldapAuthManagers.remove(zone);
+                ldapAuthManagers.remove(zone.getId(), existing);
                 existing.destroy();
             }
             DynamicLdapAuthenticationManager ldapAuthenticationManager = getLdapAuthenticationManager(zone, ldapProvider);
@@ -91,7 +174,81 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
 
         ChainedAuthenticationManager result = new ChainedAuthenticationManager();
         result.setDelegates(delegates.toArray(new AuthenticationManagerConfiguration[delegates.size()]));
-        return result;
+        return new ZoneAuthenticationChain(result, uaaProvider, ldapProvider);
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof IdentityProviderModifiedEvent) {
+            onProviderModified((IdentityProvider)event.getSource());
+        } else if (event instanceof EntityDeletedEvent) {
+            Object deleted = ((EntityDeletedEvent<?>)event).getDeleted();
+            if (deleted instanceof IdentityZone) {
+                removeZone(((IdentityZone)deleted).getId());
+            } else if (deleted instanceof IdentityProvider) {
+                IdentityProvider provider = (IdentityProvider)deleted;
+                if (OriginKeys.UAA.equals(provider.getOriginKey()) || OriginKeys.LDAP.equals(provider.getOriginKey())) {
+                    invalidations.incrementAndGet();
+                    zoneChains.remove(provider.getIdentityZoneId());
+                }
+            }
+        }
+    }
+
+    protected void removeZone(String zoneId) {
+        invalidations.incrementAndGet();
+        zoneChains.remove(zoneId);
+        DynamicLdapAuthenticationManager existing = ldapAuthManagers.remove(zoneId);
+        if (existing!=null) {
+            existing.destroy();
+        }
+    }
+
+    protected void onProviderModified(IdentityProvider provider) {
+        String origin = provider.getOriginKey();
+        if (!OriginKeys.UAA.equals(origin) && !OriginKeys.LDAP.equals(origin)) {
+            return;
+        }
+        String zoneId = provider.getIdentityZoneId();
+        ZoneAuthenticationChain chain = zoneChains.get(zoneId);
+        if (chain!=null && chain.isCurrent(provider)) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        zoneChains.remove(zoneId);
+        if (OriginKeys.LDAP.equals(origin)) {
+            refreshLdapAuthenticationManager(zoneId, provider);
+        }
+    }
+
+    protected void refreshLdapAuthenticationManager(String zoneId, IdentityProvider provider) {
+        LdapIdentityProviderDefinition definition = ObjectUtils.castInstance(provider.getConfig(), LdapIdentityProviderDefinition.class);
+        DynamicLdapAuthenticationManager existing = ldapAuthManagers.get(zoneId);
+        if (existing!=null && provider.isActive() && existing.getDefinition().equals(definition)) {
+            return;
+        }
+        if (existing!=null && ldapAuthManagers.remove(zoneId, existing)) {
+            existing.destroy();
+        }
+        if (!provider.isActive() || definition==null || !definition.isConfigured()) {
+            return;
+        }
+        final DynamicLdapAuthenticationManager ldapMgr = new DynamicLdapAuthenticationManager(definition,
+            scimGroupExternalMembershipManager,
+            scimGroupProvisioning,
+            ldapLoginAuthenticationManager);
+        if (ldapAuthManagers.putIfAbsent(zoneId, ldapMgr)==null) {
+            ldapWarmupExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ldapMgr.getLdapAuthenticationManager();
+                    } catch (Exception e) {
+                        logger.warn("Unable to initialize LDAP authentication manager for zone:"+zoneId, e);
+                    }
+                }
+            });
+        }
     }
 
     protected IdentityProvider getProvider(String origin, IdentityZone zone) {
@@ -109,7 +266,7 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
     }
 
     public DynamicLdapAuthenticationManager getLdapAuthenticationManager(IdentityZone zone, IdentityProvider provider) {
-        DynamicLdapAuthenticationManager ldapMgr = ldapAuthManagers.get(zone);
+        DynamicLdapAuthenticationManager ldapMgr = ldapAuthManagers.get(zone.getId());
         if (ldapMgr!=null) {
             return ldapMgr;
         }
@@ -121,13 +278,77 @@ public class DynamicZoneAwareAuthenticationManager implements AuthenticationMana
             scimGroupExternalMembershipManager,
             scimGroupProvisioning,
             ldapLoginAuthenticationManager);
-        ldapAuthManagers.putIfAbsent(zone, ldapMgr);
-        return ldapAuthManagers.get(zone);
+        ldapAuthManagers.putIfAbsent(zone.getId(), ldapMgr);
+        return ldapAuthManagers.get(zone.getId());
     }
 
     public void destroy() {
-        for (Map.Entry<IdentityZone, DynamicLdapAuthenticationManager> entry : ldapAuthManagers.entrySet()) {
+        ldapWarmupExecutor.shutdownNow();
+        zoneChains.clear();
+        for (Map.Entry<String, DynamicLdapAuthenticationManager> entry : ldapAuthManagers.entrySet()) {
             entry.getValue().destroy();
         }
     }
+
+    protected static class ZoneAuthenticationChain {
+        private final ChainedAuthenticationManager manager;
+        private final ProviderVersion uaaVersion;
+        private final ProviderVersion ldapVersion;
+        private long expiresAt = Long.MAX_VALUE;
+
+        public ZoneAuthenticationChain(ChainedAuthenticationManager manager, IdentityProvider uaaProvider, IdentityProvider ldapProvider) {
+            this.manager = manager;
+            this.uaaVersion = new ProviderVersion(uaaProvider);
+            this.ldapVersion = new ProviderVersion(ldapProvider);
+        }
+
+        public ChainedAuthenticationManager getManager() {
+            return manager;
+        }
+
+        public void setExpiresAt(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        public boolean isCurrent(IdentityProvider provider) {
+            ProviderVersion version = new ProviderVersion(provider);
+            if (OriginKeys.UAA.equals(provider.getOriginKey())) {
+                return uaaVersion.equals(version);
+            } else if (OriginKeys.LDAP.equals(provider.getOriginKey())) {
+                return ldapVersion.equals(version);
+            }
+            return true;
+        }
+    }
+
+    protected static class ProviderVersion {
+        private final String id;
+        private final int version;
+        private final Date lastModified;
+
+        public ProviderVersion(IdentityProvider provider) {
+            this.id = provider.getId();
+            this.version = provider.getVersion();
+            this.lastModified = provider.getLastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ProviderVersion that = (ProviderVersion) o;
+            return version == that.version &&
+                Objects.equals(id, that.id) &&
+                Objects.equals(lastModified, that.lastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, version, lastModified);
+        }
+    }
 }
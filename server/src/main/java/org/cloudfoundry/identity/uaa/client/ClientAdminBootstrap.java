@@ -23,6 +23,7 @@ import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientConstants;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
 import org.springframework.beans.factory.InitializingBean;
@@ -40,6 +41,8 @@ import org.springframework.util.StringUtils;
  */
 public class ClientAdminBootstrap implements InitializingBean {
 
+    public static final String FINGERPRINT_SECTION = "clients";
+
     private static Log logger = LogFactory.getLog(ClientAdminBootstrap.class);
 
     private Map<String, Map<String, Object>> clients = new HashMap<String, Map<String, Object>>();
@@ -54,6 +57,8 @@ public class ClientAdminBootstrap implements InitializingBean {
 
     private final PasswordEncoder passwordEncoder;
 
+    private JdbcBootstrapFingerprintStore fingerprintStore;
+
     public ClientAdminBootstrap(PasswordEncoder passwordEncoder) {
         this.passwordEncoder = passwordEncoder;
     }
@@ -120,6 +125,16 @@ public class ClientAdminBootstrap implements InitializingBean {
         this.clientRegistrationService = clientRegistrationService;
     }
 
+    /**
+     * Optional store of the fingerprints of the clients applied by a previous
+     * bootstrap. Clients whose configuration did not change since are skipped.
+     *
+     * @param fingerprintStore the fingerprintStore to set
+     */
+    public void setFingerprintStore(JdbcBootstrapFingerprintStore fingerprintStore) {
+        this.fingerprintStore = fingerprintStore;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         addHttpsCallbacks();
@@ -139,6 +154,10 @@ public class ClientAdminBootstrap implements InitializingBean {
             if (!autoApproveClients.contains(client.getClientId())) {
                 continue;
             }
+            if (client.getAdditionalInformation() != null &&
+                Boolean.TRUE.equals(client.getAdditionalInformation().get(ClientConstants.AUTO_APPROVE))) {
+                continue;
+            }
             BaseClientDetails base = new BaseClientDetails(client);
             Map<String, Object> info = new HashMap<String, Object>(client.getAdditionalInformation());
             info.put(ClientConstants.AUTO_APPROVE, true);
@@ -194,8 +213,21 @@ public class ClientAdminBootstrap implements InitializingBean {
     }
 
     private void addNewClients() throws Exception {
+        boolean fingerprints = fingerprintStore != null && fingerprintStore.isEnabled();
+        Map<String, String> previous = fingerprints ? fingerprintStore.getFingerprints(FINGERPRINT_SECTION) : Collections.<String, String>emptyMap();
+        Map<String, String> current = new HashMap<>();
         for (String clientId : clients.keySet()) {
             Map<String, Object> map = clients.get(clientId);
+            if (fingerprints) {
+                Map<String, Object> source = new HashMap<>(map);
+                source.put("override", map.get("override") == null ? defaultOverride : map.get("override"));
+                String fingerprint = fingerprintStore.fingerprint(FINGERPRINT_SECTION, clientId, source);
+                current.put(clientId, fingerprint);
+                if (fingerprint.equals(previous.get(clientId))) {
+                    logger.debug("Client configuration unchanged since last bootstrap: " + clientId);
+                    continue;
+                }
+            }
             BaseClientDetails client = new BaseClientDetails(clientId, (String) map.get("resource-ids"),
                             (String) map.get("scope"), (String) map.get("authorized-grant-types"),
                             (String) map.get("authorities"), getRedirectUris(map));
@@ -245,6 +277,9 @@ public class ClientAdminBootstrap implements InitializingBean {
                 }
             }
         }
+        if (fingerprints) {
+            fingerprintStore.updateFingerprints(FINGERPRINT_SECTION, previous, current);
+        }
     }
 
     protected boolean didPasswordChange(String clientId, String rawPassword) {
@@ -49,6 +49,7 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     private AtomicLong lastExpired = new AtomicLong();
     private long expirationInterval = 60 * 1000; // once a minute
+    private boolean purgeExpired = true;
 
     public long getExpirationInterval() {
         return expirationInterval;
@@ -58,6 +59,18 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         this.expirationInterval = expirationInterval;
     }
 
+    public boolean isPurgeExpired() {
+        return purgeExpired;
+    }
+
+    /**
+     * @param purgeExpired false if expired codes are removed in the background
+     *            instead of while generating and retrieving codes
+     */
+    public void setPurgeExpired(boolean purgeExpired) {
+        this.purgeExpired = purgeExpired;
+    }
+
     protected JdbcExpiringCodeStore() {
         // package protected for unit tests only
     }
@@ -145,7 +158,7 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         long now = System.currentTimeMillis();
         long lastCheck = lastExpired.get();
 
-        if ((now - lastCheck) > expirationInterval && lastExpired.compareAndSet(lastCheck, now)) {
+        if (purgeExpired && (now - lastCheck) > expirationInterval && lastExpired.compareAndSet(lastCheck, now)) {
             int count = jdbcTemplate.update(deleteExpired, now);
             logger.debug("Expiring code sweeper complete, deleted " + count + " entries.");
             return count;
@@ -0,0 +1,82 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * A named lease stored in the <code>database_lease</code> table, used to elect
+ * the single UAA instance of a cluster that runs a background job. The holder
+ * renews the lease every time it runs, other instances can only take it over
+ * once it has expired. Instances compare expiry times with their own clocks,
+ * so the lease duration has to be a lot longer than the clock skew between them.
+ */
+public class DatabaseLease {
+
+    public static final String RENEW_LEASE_SQL =
+        "UPDATE database_lease SET lease_owner=?, lease_expires=? WHERE lease_name=? AND (lease_owner=? OR lease_expires<?)";
+    public static final String INSERT_LEASE_SQL =
+        "INSERT INTO database_lease (lease_name, lease_owner, lease_expires) VALUES (?,?,?)";
+    public static final String RELEASE_LEASE_SQL =
+        "UPDATE database_lease SET lease_expires=0 WHERE lease_name=? AND lease_owner=?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final String name;
+    private final String owner;
+
+    public DatabaseLease(JdbcTemplate jdbcTemplate, String name) {
+        this(jdbcTemplate, name, ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID());
+    }
+
+    public DatabaseLease(JdbcTemplate jdbcTemplate, String name, String owner) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.name = name;
+        this.owner = owner;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Acquires or renews the lease.
+     *
+     * @return true if this instance holds the lease for the given duration
+     */
+    public boolean acquire(long duration) {
+        long now = System.currentTimeMillis();
+        if (jdbcTemplate.update(RENEW_LEASE_SQL, owner, now + duration, name, owner, now) == 1) {
+            return true;
+        }
+        try {
+            return jdbcTemplate.update(INSERT_LEASE_SQL, name, owner, now + duration) == 1;
+        } catch (DataIntegrityViolationException x) {
+            //held by another instance
+            return false;
+        }
+    }
+
+    public void release() {
+        jdbcTemplate.update(RELEASE_LEASE_SQL, name, owner);
+    }
+}
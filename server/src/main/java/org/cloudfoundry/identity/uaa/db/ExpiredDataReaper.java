@@ -0,0 +1,249 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes expired rows from the expiring tables in the background. Only the
+ * instance holding the reaper's {@link DatabaseLease} deletes anything, rows
+ * are deleted in chunks of {@link #setChunkSize(int)} rows with a pause between
+ * chunks, and a run stops after {@link #setMaxChunksPerRun(int)} chunks per table
+ * so that a backlog is worked off over several runs.
+ */
+@ManagedResource
+public class ExpiredDataReaper {
+
+    public static final String LEASE_NAME = "expired_data_reaper";
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final JdbcTemplate jdbcTemplate;
+    private final LimitSqlAdapter limitSqlAdapter;
+    private final List<ExpiringTable> tables;
+    private final DatabaseLease lease;
+    private final Map<String, AtomicLong> rowsReaped = new LinkedHashMap<>();
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong leaderRuns = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private long interval = 60 * 1000;
+    private long leaseDuration = 0;
+    private int chunkSize = 500;
+    private int maxChunksPerRun = 100;
+    private long pauseBetweenChunks = 100;
+    private volatile long lastRunRows = 0;
+    private Timer timer;
+
+    public ExpiredDataReaper(JdbcTemplate jdbcTemplate, LimitSqlAdapter limitSqlAdapter, List<ExpiringTable> tables) {
+        this(jdbcTemplate, limitSqlAdapter, tables, new DatabaseLease(jdbcTemplate, LEASE_NAME));
+    }
+
+    public ExpiredDataReaper(JdbcTemplate jdbcTemplate, LimitSqlAdapter limitSqlAdapter, List<ExpiringTable> tables, DatabaseLease lease) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.limitSqlAdapter = limitSqlAdapter;
+        this.tables = tables;
+        this.lease = lease;
+        for (ExpiringTable table : tables) {
+            rowsReaped.put(table.toString(), new AtomicLong());
+        }
+    }
+
+    /**
+     * Runs the reaper once if this instance holds, or can take over, the lease.
+     *
+     * @return the number of rows deleted
+     */
+    public long reap() {
+        runs.incrementAndGet();
+        if (!lease.acquire(getLeaseDuration())) {
+            logger.debug("Expired data reaper lease is held by another instance.");
+            return 0;
+        }
+        leaderRuns.incrementAndGet();
+        long total = 0;
+        for (ExpiringTable table : tables) {
+            try {
+                total += reap(table);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception x) {
+                failures.incrementAndGet();
+                logger.error("Unable to remove expired rows from " + table + ":", x);
+            }
+        }
+        lastRunRows = total;
+        return total;
+    }
+
+    protected long reap(ExpiringTable table) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (int chunk = 0; chunk < maxChunksPerRun; chunk++) {
+            int deleted = table.reapChunk(jdbcTemplate, limitSqlAdapter, now, chunkSize);
+            total += deleted;
+            rowsReaped.get(table.toString()).addAndGet(deleted);
+            if (deleted < chunkSize) {
+                break;
+            }
+            if (pauseBetweenChunks > 0) {
+                Thread.sleep(pauseBetweenChunks);
+            }
+        }
+        logger.debug("Expired data reaper removed " + total + " rows from " + table);
+        return total;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (interval > 0 && timer == null) {
+            timer = new Timer(getClass().getSimpleName(), true);
+            timer.schedule(new ReaperTask(), interval, interval);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+            try {
+                lease.release();
+            } catch (Exception x) {
+                logger.debug("Unable to release the expired data reaper lease:", x);
+            }
+        }
+    }
+
+    private class ReaperTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                reap();
+            } catch (Exception x) {
+                failures.incrementAndGet();
+                logger.error("Expired data reaper failed:", x);
+            }
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Rows Reaped Count")
+    public long getRowsReapedCount() {
+        long total = 0;
+        for (AtomicLong count : rowsReaped.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @ManagedAttribute(description = "Rows reaped per table and expiry column")
+    public Map<String, Long> getRowsReaped() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : rowsReaped.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Rows Reaped In Last Run")
+    public long getLastRunRows() {
+        return lastRunRows;
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Reaper Run Count")
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Reaper Runs Holding The Lease Count")
+    public long getLeaderRunCount() {
+        return leaderRuns.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Reaper Failure Count")
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public List<ExpiringTable> getTables() {
+        return tables;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @param interval milliseconds between runs, the reaper is not scheduled if
+     *            this is not positive
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration > 0 ? leaseDuration : 3 * interval;
+    }
+
+    /**
+     * @param leaseDuration how long the lease is held after a run, three times
+     *            the interval if not set
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getMaxChunksPerRun() {
+        return maxChunksPerRun;
+    }
+
+    public void setMaxChunksPerRun(int maxChunksPerRun) {
+        this.maxChunksPerRun = maxChunksPerRun;
+    }
+
+    public long getPauseBetweenChunks() {
+        return pauseBetweenChunks;
+    }
+
+    public void setPauseBetweenChunks(long pauseBetweenChunks) {
+        this.pauseBetweenChunks = pauseBetweenChunks;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * A table holding rows that expire on the value of a single column, either a
+ * timestamp or a number of milliseconds since the epoch. Expired rows are
+ * deleted in chunks: the expiry of the n-th oldest expired row is looked up
+ * first and only the rows up to that expiry are deleted, so that a delete
+ * never locks more than about one chunk of the index.
+ */
+public class ExpiringTable {
+
+    private final String tableName;
+    private final String expiryColumn;
+    private final boolean epochMillis;
+    private long retention = 0;
+    private String filter;
+
+    public ExpiringTable(String tableName, String expiryColumn, boolean epochMillis) {
+        this.tableName = tableName;
+        this.expiryColumn = expiryColumn;
+        this.epochMillis = epochMillis;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getExpiryColumn() {
+        return expiryColumn;
+    }
+
+    public boolean isEpochMillis() {
+        return epochMillis;
+    }
+
+    public long getRetention() {
+        return retention;
+    }
+
+    /**
+     * @param retention how many milliseconds rows are kept after the value of
+     *            the expiry column has passed
+     */
+    public void setRetention(long retention) {
+        this.retention = retention;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @param filter an additional SQL condition rows must match to be reaped
+     */
+    public void setFilter(String filter) {
+        this.filter = filter;
+    }
+
+    protected Object getCutoff(long now) {
+        long cutoff = now - retention;
+        return epochMillis ? (Object) cutoff : new Timestamp(cutoff);
+    }
+
+    protected String getCondition() {
+        String condition = expiryColumn + " < ?";
+        return filter == null ? condition : filter + " AND " + condition;
+    }
+
+    /**
+     * Deletes at most about one chunk of expired rows.
+     *
+     * @return the number of rows deleted, a value lower than the chunk size
+     *         means there is nothing left to delete
+     */
+    public int reapChunk(JdbcTemplate jdbcTemplate, LimitSqlAdapter limitSqlAdapter, long now, int chunkSize) {
+        Object cutoff = getCutoff(now);
+        String condition = getCondition();
+        String boundQuery = limitSqlAdapter.getLimitSql(
+            "SELECT " + expiryColumn + " FROM " + tableName + " WHERE " + condition + " ORDER BY " + expiryColumn,
+            chunkSize - 1,
+            1);
+        List<Object> bound = jdbcTemplate.query(boundQuery, new RowMapper<Object>() {
+            @Override
+            public Object mapRow(ResultSet rs, int rowNum) throws SQLException {
+                return rs.getObject(1);
+            }
+        }, cutoff);
+        if (bound.isEmpty()) {
+            //less than a chunk left
+            return jdbcTemplate.update("DELETE FROM " + tableName + " WHERE " + condition, cutoff);
+        }
+        //rows sharing the expiry of the bound are deleted together
+        return jdbcTemplate.update(
+            "DELETE FROM " + tableName + " WHERE " + condition + " AND " + expiryColumn + " <= ?",
+            cutoff,
+            bound.get(0));
+    }
+
+    @Override
+    public String toString() {
+        return tableName + "." + expiryColumn;
+    }
+}
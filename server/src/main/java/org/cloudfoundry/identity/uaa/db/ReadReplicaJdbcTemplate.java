@@ -0,0 +1,111 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.support.KeyHolder;
+
+import javax.sql.DataSource;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * JdbcTemplate that runs its queries as reads of a {@link ReadReplicaRoutingDataSource}
+ * and records its updates as writes. All query and update methods of
+ * {@link JdbcTemplate} end up in the methods overridden here. With any other
+ * data source it behaves like a plain JdbcTemplate.
+ */
+public class ReadReplicaJdbcTemplate extends JdbcTemplate {
+
+    public ReadReplicaJdbcTemplate() {
+    }
+
+    public ReadReplicaJdbcTemplate(DataSource dataSource) {
+        super(dataSource);
+    }
+
+    private <T> T read(Supplier<T> operation) {
+        DataSource dataSource = getDataSource();
+        if (dataSource instanceof ReadReplicaRoutingDataSource) {
+            return ((ReadReplicaRoutingDataSource) dataSource).read(operation);
+        }
+        return operation.get();
+    }
+
+    private <T> T write(Supplier<T> operation) {
+        try {
+            return operation.get();
+        } finally {
+            DataSource dataSource = getDataSource();
+            if (dataSource instanceof ReadReplicaRoutingDataSource) {
+                ((ReadReplicaRoutingDataSource) dataSource).recordWrite();
+            }
+        }
+    }
+
+    @Override
+    public <T> T query(String sql, ResultSetExtractor<T> rse) throws DataAccessException {
+        return read(() -> super.query(sql, rse));
+    }
+
+    @Override
+    public <T> T query(PreparedStatementCreator psc, PreparedStatementSetter pss, ResultSetExtractor<T> rse) throws DataAccessException {
+        return read(() -> super.query(psc, pss, rse));
+    }
+
+    @Override
+    public void execute(String sql) throws DataAccessException {
+        write(() -> {
+            super.execute(sql);
+            return null;
+        });
+    }
+
+    @Override
+    public int update(String sql) throws DataAccessException {
+        return write(() -> super.update(sql));
+    }
+
+    @Override
+    protected int update(PreparedStatementCreator psc, PreparedStatementSetter pss) throws DataAccessException {
+        return write(() -> super.update(psc, pss));
+    }
+
+    @Override
+    public int update(PreparedStatementCreator psc, KeyHolder generatedKeyHolder) throws DataAccessException {
+        return write(() -> super.update(psc, generatedKeyHolder));
+    }
+
+    @Override
+    public int[] batchUpdate(String... sql) throws DataAccessException {
+        return write(() -> super.batchUpdate(sql));
+    }
+
+    @Override
+    public int[] batchUpdate(String sql, BatchPreparedStatementSetter pss) throws DataAccessException {
+        return write(() -> super.batchUpdate(sql, pss));
+    }
+
+    @Override
+    public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize, ParameterizedPreparedStatementSetter<T> pss) throws DataAccessException {
+        return write(() -> super.batchUpdate(sql, batchArgs, batchSize, pss));
+    }
+}
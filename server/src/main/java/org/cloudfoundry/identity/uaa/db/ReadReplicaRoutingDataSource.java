@@ -0,0 +1,188 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.core.InfrastructureProxy;
+import org.springframework.dao.NonTransientDataAccessResourceException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Data source that hands out connections to a read replica for operations run
+ * through {@link #read(Supplier)} and connections to the primary otherwise.
+ * <p>
+ * Reads stay on the primary for the read-your-writes window after a write was
+ * recorded in the same identity zone, while a transaction is active and for the
+ * retry interval after the replica failed. A read that fails on the replica
+ * because of a connection or resource problem is repeated on the primary.
+ * <p>
+ * Transaction synchronization sees this data source as the primary, so a
+ * transaction started on the primary is joined by the operations run through a
+ * template using this data source.
+ */
+public class ReadReplicaRoutingDataSource extends AbstractDataSource implements InfrastructureProxy {
+
+    public static final long DEFAULT_READ_YOUR_WRITES_WINDOW = 1000;
+    public static final long DEFAULT_RETRY_INTERVAL = 30000;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private final DataSource primary;
+    private final DataSource replica;
+
+    private boolean enabled = false;
+    private long readYourWritesWindow = DEFAULT_READ_YOUR_WRITES_WINDOW;
+    private long retryInterval = DEFAULT_RETRY_INTERVAL;
+
+    private final ThreadLocal<Boolean> reading = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> replicaUsed = new ThreadLocal<>();
+    private final ConcurrentMap<String, Long> lastWrites = new ConcurrentHashMap<>();
+    private volatile long replicaFailedAt = 0;
+
+    public ReadReplicaRoutingDataSource(DataSource primary, DataSource replica) {
+        this.primary = primary;
+        this.replica = replica;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Milliseconds after a write in a zone during which reads in that zone use the primary.
+     */
+    public void setReadYourWritesWindow(long readYourWritesWindow) {
+        this.readYourWritesWindow = readYourWritesWindow;
+    }
+
+    /**
+     * Milliseconds after a replica failure during which all reads use the primary.
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public DataSource getReplica() {
+        return replica;
+    }
+
+    public <T> T read(Supplier<T> operation) {
+        if (!enabled || reading.get() != null) {
+            return operation.get();
+        }
+        reading.set(Boolean.TRUE);
+        try {
+            return operation.get();
+        } catch (NonTransientDataAccessResourceException | TransientDataAccessResourceException | RecoverableDataAccessException e) {
+            if (replicaUsed.get() == null) {
+                throw e;
+            }
+            replicaFailed(e);
+            reading.remove();
+            return operation.get();
+        } finally {
+            reading.remove();
+            replicaUsed.remove();
+        }
+    }
+
+    public void recordWrite() {
+        if (enabled) {
+            lastWrites.put(IdentityZoneHolder.get().getId(), System.currentTimeMillis());
+        }
+    }
+
+    public boolean isReplicaAvailable() {
+        return enabled && System.currentTimeMillis() - replicaFailedAt >= retryInterval;
+    }
+
+    protected void replicaFailed(Exception e) {
+        logger.warn("Read replica failed, using the primary for the next " + retryInterval + "ms.", e);
+        replicaFailedAt = System.currentTimeMillis();
+    }
+
+    private boolean isReplicaRead() {
+        return reading.get() != null &&
+            isReplicaAvailable() &&
+            !TransactionSynchronizationManager.isSynchronizationActive() &&
+            !isWithinReadYourWritesWindow();
+    }
+
+    private boolean isWithinReadYourWritesWindow() {
+        String zoneId = IdentityZoneHolder.get().getId();
+        Long lastWrite = lastWrites.get(zoneId);
+        if (lastWrite == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastWrite < readYourWritesWindow) {
+            return true;
+        }
+        lastWrites.remove(zoneId, lastWrite);
+        return false;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (isReplicaRead()) {
+            try {
+                Connection connection = replica.getConnection();
+                replicaUsed.set(Boolean.TRUE);
+                return connection;
+            } catch (SQLException e) {
+                replicaFailed(e);
+            }
+        }
+        return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (isReplicaRead()) {
+            try {
+                Connection connection = replica.getConnection(username, password);
+                replicaUsed.set(Boolean.TRUE);
+                return connection;
+            } catch (SQLException e) {
+                replicaFailed(e);
+            }
+        }
+        return primary.getConnection(username, password);
+    }
+
+    @Override
+    public Object getWrappedObject() {
+        return primary;
+    }
+}
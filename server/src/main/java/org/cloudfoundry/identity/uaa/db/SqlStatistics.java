@@ -0,0 +1,250 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * Execution statistics per SQL statement, recorded by the {@link SqlStatisticsInterceptor}
+ * of the connection pools. Statements are grouped by their normalized SQL: literals
+ * are replaced by <code>?</code>, <code>IN</code> lists are collapsed and white space
+ * is folded. Executions slower than the threshold are logged with masked bind parameters.
+ * <p>
+ * The pools instantiate their interceptors themselves, so there is a single shared
+ * instance, see {@link #getInstance()}.
+ */
+@ManagedResource
+public class SqlStatistics {
+
+    public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 1000;
+    public static final int DEFAULT_MAX_STATEMENTS = 1000;
+    public static final String OTHER_STATEMENTS = "(other)";
+
+    /**
+     * Upper bounds in milliseconds of the latency histogram buckets, the last bucket is unbounded.
+     */
+    public static final long[] LATENCY_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    private static final SqlStatistics instance = new SqlStatistics();
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private volatile boolean enabled = false;
+    private volatile long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+    private volatile int maxStatements = DEFAULT_MAX_STATEMENTS;
+
+    private final ConcurrentMap<String, String> normalized = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, StatementStatistics> statements = new ConcurrentHashMap<>();
+    private final AtomicLong slowQueryCount = new AtomicLong();
+
+    public static SqlStatistics getInstance() {
+        return instance;
+    }
+
+    @ManagedAttribute
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    /**
+     * Executions taking at least this many milliseconds are logged, 0 or less disables the log.
+     */
+    @ManagedAttribute
+    public void setSlowQueryThreshold(long slowQueryThreshold) {
+        this.slowQueryThreshold = slowQueryThreshold;
+    }
+
+    /**
+     * Statements beyond this number of distinct normalized statements are counted as {@link #OTHER_STATEMENTS}.
+     */
+    public void setMaxStatements(int maxStatements) {
+        this.maxStatements = maxStatements;
+    }
+
+    public void recordExecution(String sql, long nanos, long rows, boolean failed, List<Object> parameters) {
+        String statement = normalize(sql);
+        StatementStatistics statistics = getStatementStatistics(statement);
+        statistics.record(nanos, rows, failed);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        if (slowQueryThreshold > 0 && millis >= slowQueryThreshold) {
+            slowQueryCount.incrementAndGet();
+            logger.warn("Slow query (" + millis + "ms" + (failed ? ", failed" : "") + "): " + statement + " parameters:" + maskParameters(parameters));
+        }
+    }
+
+    public void recordRows(String sql, long rows) {
+        getStatementStatistics(normalize(sql)).rows.addAndGet(rows);
+    }
+
+    private StatementStatistics getStatementStatistics(String statement) {
+        StatementStatistics statistics = statements.get(statement);
+        if (statistics == null) {
+            if (statements.size() >= maxStatements) {
+                statement = OTHER_STATEMENTS;
+            }
+            statistics = statements.computeIfAbsent(statement, k -> new StatementStatistics());
+        }
+        return statistics;
+    }
+
+    public String normalize(String sql) {
+        if (sql == null) {
+            return OTHER_STATEMENTS;
+        }
+        String result = normalized.get(sql);
+        if (result == null) {
+            result = STRING_LITERAL.matcher(sql).replaceAll("?");
+            result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+            result = IN_LIST.matcher(result).replaceAll("in (?)");
+            result = WHITESPACE.matcher(result).replaceAll(" ").trim();
+            if (normalized.size() >= maxStatements * 10) {
+                normalized.clear();
+            }
+            normalized.put(sql, result);
+        }
+        return result;
+    }
+
+    /**
+     * Bind parameters are logged by type only, with the length of strings and binary values.
+     */
+    protected static String maskParameters(List<Object> parameters) {
+        List<String> masked = new ArrayList<>();
+        if (parameters != null) {
+            for (Object parameter : parameters) {
+                if (parameter == null) {
+                    masked.add("null");
+                } else if (parameter instanceof CharSequence) {
+                    masked.add(parameter.getClass().getSimpleName() + "(" + ((CharSequence) parameter).length() + ")");
+                } else if (parameter instanceof byte[]) {
+                    masked.add("byte[" + ((byte[]) parameter).length + "]");
+                } else {
+                    masked.add(parameter.getClass().getSimpleName());
+                }
+            }
+        }
+        return masked.toString();
+    }
+
+    /**
+     * The statistics of every statement, the statements with the highest total time first.
+     */
+    @ManagedAttribute(description = "Statistics per normalized SQL statement")
+    public List<Map<String, Object>> getStatementStatistics() {
+        List<Map.Entry<String, StatementStatistics>> entries = new ArrayList<>(statements.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, StatementStatistics> e) -> e.getValue().totalNanos.get()).reversed());
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map.Entry<String, StatementStatistics> entry : entries) {
+            result.add(entry.getValue().toMap(entry.getKey()));
+        }
+        return result;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Distinct SQL Statements")
+    public int getStatementCount() {
+        return statements.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Slow Query Count")
+    public long getSlowQueryCount() {
+        return slowQueryCount.get();
+    }
+
+    @ManagedOperation(description = "Clears the recorded statistics")
+    public void reset() {
+        statements.clear();
+        normalized.clear();
+        slowQueryCount.set(0);
+    }
+
+    private static class StatementStatistics {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+        void record(long nanos, long rows, boolean failed) {
+            count.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            if (rows > 0) {
+                this.rows.addAndGet(rows);
+            }
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && millis >= LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+            histogram.incrementAndGet(bucket);
+        }
+
+        Map<String, Object> toMap(String statement) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            long executions = count.get();
+            result.put("statement", statement);
+            result.put("count", executions);
+            result.put("errors", errors.get());
+            result.put("rows", rows.get());
+            result.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos.get()));
+            result.put("averageMillis", executions == 0 ? 0.0 : totalNanos.get() / 1000000.0 / executions);
+            result.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                buckets.put("<" + LATENCY_BUCKETS[i] + "ms", histogram.get(i));
+            }
+            buckets.put(">=" + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1] + "ms", histogram.get(LATENCY_BUCKETS.length));
+            result.put("latency", buckets);
+            return result;
+        }
+    }
+}
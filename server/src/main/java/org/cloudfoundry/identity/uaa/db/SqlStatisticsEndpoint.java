@@ -0,0 +1,55 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposes the {@link SqlStatistics} to administrators.
+ */
+@Controller
+public class SqlStatisticsEndpoint {
+
+    private final SqlStatistics statistics;
+
+    public SqlStatisticsEndpoint(SqlStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @RequestMapping(value = "/sql_statistics", method = RequestMethod.GET)
+    @ResponseBody
+    public Map<String, Object> getStatistics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", statistics.isEnabled());
+        result.put("slowQueryThreshold", statistics.getSlowQueryThreshold());
+        result.put("slowQueryCount", statistics.getSlowQueryCount());
+        result.put("statements", statistics.getStatementStatistics());
+        return result;
+    }
+
+    @RequestMapping(value = "/sql_statistics", method = RequestMethod.DELETE)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void reset() {
+        statistics.reset();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.tomcat.jdbc.pool.interceptor.AbstractCreateStatementInterceptor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Connection pool interceptor timing every statement executed on the pool and
+ * recording it in {@link SqlStatistics#getInstance()}, together with the number of
+ * rows read or updated and whether it failed. Install it with the
+ * <code>jdbcInterceptors</code> property of the Tomcat connection pool.
+ * Statements are only instrumented while the statistics are enabled.
+ */
+public class SqlStatisticsInterceptor extends AbstractCreateStatementInterceptor {
+
+    private final SqlStatistics statistics;
+
+    public SqlStatisticsInterceptor() {
+        this(SqlStatistics.getInstance());
+    }
+
+    public SqlStatisticsInterceptor(SqlStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    @Override
+    public Object createStatement(Object proxy, Method method, Object[] args, Object statement, long time) {
+        if (!statistics.isEnabled()) {
+            return statement;
+        }
+        String sql = compare(CREATE_STATEMENT, method) ? null : (String) args[0];
+        return Proxy.newProxyInstance(
+            SqlStatisticsInterceptor.class.getClassLoader(),
+            new Class[] {method.getReturnType()},
+            new StatementHandler(statement, sql)
+        );
+    }
+
+    @Override
+    public void closeInvoked() {
+    }
+
+    private static Object invokeDelegate(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final Object delegate;
+        private final String sql;
+        private List<Object> parameters = new ArrayList<>();
+
+        StatementHandler(Object delegate, String sql) {
+            this.delegate = delegate;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (isExecute(method, false)) {
+                return execute(method, args);
+            }
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                setParameter((Integer) args[0], name.equals("setNull") ? null : args[1]);
+            } else if (name.equals("clearParameters")) {
+                parameters = new ArrayList<>();
+            } else if (name.equals("getResultSet")) {
+                Object resultSet = invokeDelegate(delegate, method, args);
+                return resultSet == null ? null : countRows((ResultSet) resultSet, sql);
+            }
+            return invokeDelegate(delegate, method, args);
+        }
+
+        private void setParameter(int index, Object value) {
+            while (parameters.size() < index) {
+                parameters.add(null);
+            }
+            parameters.set(index - 1, value);
+        }
+
+        private Object execute(Method method, Object[] args) throws Throwable {
+            String executed = sql != null ? sql : (args != null && args.length > 0 ? (String) args[0] : null);
+            long start = System.nanoTime();
+            boolean failed = false;
+            long rows = 0;
+            try {
+                Object result = invokeDelegate(delegate, method, args);
+                if (result instanceof ResultSet) {
+                    return countRows((ResultSet) result, executed);
+                } else if (result instanceof Integer) {
+                    rows = (Integer) result;
+                } else if (result instanceof int[]) {
+                    for (int count : (int[]) result) {
+                        rows += Math.max(count, 0);
+                    }
+                }
+                return result;
+            } catch (Throwable t) {
+                failed = true;
+                throw t;
+            } finally {
+                statistics.recordExecution(executed, System.nanoTime() - start, rows, failed, Collections.unmodifiableList(parameters));
+            }
+        }
+
+        private ResultSet countRows(ResultSet resultSet, String sql) {
+            return (ResultSet) Proxy.newProxyInstance(
+                SqlStatisticsInterceptor.class.getClassLoader(),
+                new Class[] {ResultSet.class},
+                new ResultSetHandler(resultSet, sql)
+            );
+        }
+    }
+
+    private class ResultSetHandler implements InvocationHandler {
+        private final ResultSet delegate;
+        private final String sql;
+        private long rows = 0;
+        private boolean recorded = false;
+
+        ResultSetHandler(ResultSet delegate, String sql) {
+            this.delegate = delegate;
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = invokeDelegate(delegate, method, args);
+            if (method.getName().equals("next")) {
+                if (Boolean.TRUE.equals(result)) {
+                    rows++;
+                } else {
+                    record();
+                }
+            } else if (compare(CLOSE_VAL, method)) {
+                record();
+            }
+            return result;
+        }
+
+        private void record() {
+            if (!recorded) {
+                recorded = true;
+                statistics.recordRows(sql, rows);
+            }
+        }
+    }
+}
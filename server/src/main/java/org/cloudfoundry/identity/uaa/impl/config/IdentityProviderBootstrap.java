@@ -35,8 +35,10 @@ import org.springframework.core.env.Environment;
 import org.springframework.dao.EmptyResultDataAccessException;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +48,8 @@ import static org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinit
 import static org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinition.LDAP_PROPERTY_TYPES;
 
 public class IdentityProviderBootstrap implements InitializingBean {
+    public static final String FINGERPRINT_SECTION = "identity_providers";
+
     private IdentityProviderProvisioning provisioning;
     private List<IdentityProvider> providers = new LinkedList<>();
     private SamlIdentityProviderConfigurator configurator;
@@ -55,6 +59,7 @@ public class IdentityProviderBootstrap implements InitializingBean {
     private PasswordPolicy defaultPasswordPolicy;
     private LockoutPolicy defaultLockoutPolicy;
     private boolean disableInternalUserManagement;
+    private JdbcBootstrapFingerprintStore fingerprintStore;
 
     public IdentityProviderBootstrap(IdentityProviderProvisioning provisioning, Environment environment) {
         if (provisioning==null) {
@@ -173,7 +178,17 @@ public class IdentityProviderBootstrap implements InitializingBean {
         //deactivate all providers that are no longer present
         deactivateUnusedProviders(zoneId);
 
+        boolean fingerprints = fingerprintStore != null && fingerprintStore.isEnabled();
+        Map<String, String> previous = fingerprints ? fingerprintStore.getFingerprints(FINGERPRINT_SECTION) : Collections.<String, String>emptyMap();
+        Map<String, String> current = new HashMap<>();
         for (IdentityProvider provider: providers) {
+            if (fingerprints) {
+                String fingerprint = fingerprintStore.fingerprint(FINGERPRINT_SECTION, provider.getOriginKey(), getFingerprintSource(provider));
+                current.put(provider.getOriginKey(), fingerprint);
+                if (fingerprint.equals(previous.get(provider.getOriginKey()))) {
+                    continue;
+                }
+            }
             IdentityProvider existing = null;
             try {
                 existing = provisioning.retrieveByOrigin(provider.getOriginKey(), zoneId);
@@ -190,7 +205,34 @@ public class IdentityProviderBootstrap implements InitializingBean {
                 provisioning.update(provider);
             }
         }
-        updateDefaultZoneUaaIDP();
+        if (fingerprints) {
+            String fingerprint = fingerprintStore.fingerprint(FINGERPRINT_SECTION, OriginKeys.UAA, getDefaultZoneUaaIDPFingerprintSource());
+            current.put(OriginKeys.UAA, fingerprint);
+            if (!fingerprint.equals(previous.get(OriginKeys.UAA))) {
+                updateDefaultZoneUaaIDP();
+            }
+            fingerprintStore.updateFingerprints(FINGERPRINT_SECTION, previous, current);
+        } else {
+            updateDefaultZoneUaaIDP();
+        }
+    }
+
+    private Map<String, Object> getFingerprintSource(IdentityProvider provider) {
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put("type", provider.getType());
+        source.put("name", provider.getName());
+        source.put("active", provider.isActive());
+        source.put("config", provider.getConfig());
+        return source;
+    }
+
+    private Map<String, Object> getDefaultZoneUaaIDPFingerprintSource() {
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put("passwordPolicy", defaultPasswordPolicy);
+        source.put("lockoutPolicy", defaultLockoutPolicy);
+        source.put("disableInternalUserManagement", disableInternalUserManagement);
+        source.put("disableInternalAuth", environment.getProperty("disableInternalAuth"));
+        return source;
     }
 
     private void deactivateUnusedProviders(String zoneId) {
@@ -228,6 +270,14 @@ public class IdentityProviderBootstrap implements InitializingBean {
         return false;
     }
 
+    /**
+     * Optional store of the fingerprints of the providers applied by a previous
+     * bootstrap. Providers whose configuration did not change since are skipped.
+     */
+    public void setFingerprintStore(JdbcBootstrapFingerprintStore fingerprintStore) {
+        this.fingerprintStore = fingerprintStore;
+    }
+
     public void setDefaultPasswordPolicy(PasswordPolicy defaultPasswordPolicy) {
         this.defaultPasswordPolicy = defaultPasswordPolicy;
     }
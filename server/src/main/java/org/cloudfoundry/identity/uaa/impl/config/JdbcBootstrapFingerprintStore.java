@@ -0,0 +1,234 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.impl.config;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import org.springframework.util.StringUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Remembers a fingerprint of every item a bootstrap bean applied to the
+ * database, so that a restart with unchanged configuration can skip the
+ * items that are already in place.
+ * <p>
+ * A fingerprint is derived from a canonical JSON form of the item (map keys
+ * and set elements sorted). Bootstrap items carry passwords and client
+ * secrets, so the digest is an HMAC keyed with a secret from the configuration.
+ * The key is never stored in the database, so the fingerprints cannot be used
+ * to guess the secrets offline. Without a key the store is disabled.
+ * <p>
+ * Items changed or deleted through the API after they were bootstrapped are
+ * not restored until their configuration changes, which is why the store
+ * can be disabled. A disabled store reports no fingerprints and records
+ * nothing.
+ */
+public class JdbcBootstrapFingerprintStore {
+
+    public static final String SELECT_FINGERPRINTS_SQL = "select item, fingerprint from bootstrap_fingerprint where section=?";
+
+    public static final String DELETE_FINGERPRINT_SQL = "delete from bootstrap_fingerprint where section=? and item=?";
+
+    public static final String INSERT_FINGERPRINT_SQL = "insert into bootstrap_fingerprint (section, item, fingerprint, lastmodified) values (?,?,?,?)";
+
+    public static final String UPDATE_FINGERPRINT_SQL = "update bootstrap_fingerprint set fingerprint=?, lastmodified=? where section=? and item=?";
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Log logger = LogFactory.getLog(JdbcBootstrapFingerprintStore.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private boolean enabled = true;
+
+    private SecretKeySpec key;
+
+    public JdbcBootstrapFingerprintStore(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @return true if the store is enabled and has a key
+     */
+    public boolean isEnabled() {
+        return enabled && key != null;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param key the secret the fingerprints are keyed with, it has to be the same on
+     *            every instance and must not be stored in the database
+     */
+    public void setKey(String key) {
+        this.key = StringUtils.hasText(key) ? new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), ALGORITHM) : null;
+    }
+
+    /**
+     * @return the fingerprints recorded for the section, keyed by item
+     */
+    public Map<String, String> getFingerprints(String section) {
+        final Map<String, String> result = new HashMap<>();
+        if (!isEnabled()) {
+            return result;
+        }
+        jdbcTemplate.query(SELECT_FINGERPRINTS_SQL, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                result.put(rs.getString(1), rs.getString(2));
+            }
+        }, section);
+        return result;
+    }
+
+    /**
+     * Records the fingerprints of a section. Only the rows that differ from
+     * <code>previous</code> are written, in one batch of deletes and one batch
+     * of inserts. Instances starting at the same time may record the same
+     * rows, in which case the rows are written one by one. A failure is logged
+     * and never fails the bootstrap, the items are applied again next time.
+     *
+     * @param previous the fingerprints returned by {@link #getFingerprints(String)}
+     * @param current the fingerprints of the items that were applied
+     */
+    public void updateFingerprints(final String section, Map<String, String> previous, Map<String, String> current) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<Object[]> deletes = new ArrayList<>();
+        List<Object[]> inserts = new ArrayList<>();
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        for (Map.Entry<String, String> entry : previous.entrySet()) {
+            if (!entry.getValue().equals(current.get(entry.getKey()))) {
+                deletes.add(new Object[] {section, entry.getKey()});
+            }
+        }
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+                inserts.add(new Object[] {section, entry.getKey(), entry.getValue(), now});
+            }
+        }
+        try {
+            if (!deletes.isEmpty()) {
+                jdbcTemplate.batchUpdate(DELETE_FINGERPRINT_SQL, deletes);
+            }
+            if (!inserts.isEmpty()) {
+                try {
+                    jdbcTemplate.batchUpdate(INSERT_FINGERPRINT_SQL, inserts);
+                } catch (DataIntegrityViolationException e) {
+                    logger.debug("Bootstrap section " + section + ": fingerprints recorded concurrently, writing them one by one.");
+                    for (Object[] insert : inserts) {
+                        upsert(insert);
+                    }
+                }
+            }
+        } catch (DataAccessException e) {
+            logger.warn("Unable to record bootstrap fingerprints for section " + section, e);
+            return;
+        }
+        logger.debug("Bootstrap section " + section + ": " + inserts.size() + " fingerprints recorded, " + deletes.size() + " replaced or removed.");
+    }
+
+    protected void upsert(Object[] insert) {
+        if (jdbcTemplate.update(UPDATE_FINGERPRINT_SQL, insert[2], insert[3], insert[0], insert[1]) > 0) {
+            return;
+        }
+        try {
+            jdbcTemplate.update(INSERT_FINGERPRINT_SQL, insert);
+        } catch (DuplicateKeyException e) {
+            //inserted by another instance after our update, which recorded the same configuration
+        }
+    }
+
+    /**
+     * @return a hex encoded HMAC of the section, the item key and the item
+     */
+    public String fingerprint(String section, String item, Object value) {
+        if (key == null) {
+            throw new IllegalStateException("No key configured to fingerprint bootstrap items with.");
+        }
+        String canonical = section + "/" + item + "\n" + JsonUtils.writeValueAsString(canonicalize(value));
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            byte[] digest = mac.doFinal(canonical.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to fingerprint bootstrap item " + section + "/" + item, e);
+        }
+    }
+
+    protected static Object canonicalize(Object value) {
+        if (value == null || value instanceof String || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Map) {
+            Map<String, Object> result = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                result.put(String.valueOf(entry.getKey()), canonicalize(entry.getValue()));
+            }
+            return result;
+        }
+        if (value instanceof Collection) {
+            List<Object> result = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                result.add(canonicalize(element));
+            }
+            if (value instanceof Set) {
+                Map<String, Object> sorted = new TreeMap<>();
+                for (Object element : result) {
+                    sorted.put(JsonUtils.writeValueAsString(element), element);
+                }
+                return new ArrayList<>(sorted.values());
+            }
+            return result;
+        }
+        if (value instanceof Object[]) {
+            List<Object> result = new ArrayList<>();
+            for (Object element : (Object[]) value) {
+                result.add(canonicalize(element));
+            }
+            return result;
+        }
+        return canonicalize(JsonUtils.convertValue(value, Map.class));
+    }
+}
@@ -5,15 +5,17 @@ import org.cloudfoundry.identity.uaa.codestore.ExpiringCodeStore;
 import org.cloudfoundry.identity.uaa.error.UaaException;
 import org.cloudfoundry.identity.uaa.scim.ScimUser;
 import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
-import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConflictException;
 import org.cloudfoundry.identity.uaa.util.DomainFilter;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaUrlUtils;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
@@ -29,23 +31,34 @@ import org.springframework.web.bind.annotation.RequestParam;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.ORIGIN;
 import static org.springframework.security.oauth2.common.util.OAuth2Utils.CLIENT_ID;
 import static org.springframework.security.oauth2.common.util.OAuth2Utils.REDIRECT_URI;
 
 @Controller
-public class InvitationsEndpoint {
+public class InvitationsEndpoint implements DisposableBean {
 
     public static final int INVITATION_EXPIRY_DAYS = 7;
+    public static final int DEFAULT_QUERY_BATCH_SIZE = 50;
 
     private ScimUserProvisioning users;
     private IdentityProviderProvisioning providers;
     private ClientDetailsService clients;
     private ExpiringCodeStore expiringCodeStore;
+    private ExecutorService executor;
+    private int queryBatchSize = DEFAULT_QUERY_BATCH_SIZE;
 
     public InvitationsEndpoint(ScimUserProvisioning users,
                                IdentityProviderProvisioning providers,
@@ -55,6 +68,21 @@ public class InvitationsEndpoint {
         this.providers = providers;
         this.clients = clients;
         this.expiringCodeStore = expiringCodeStore;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("invitations-");
+        threadFactory.setDaemon(true);
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threadFactory);
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        ExecutorService previous = this.executor;
+        this.executor = executor;
+        if (previous!=null) {
+            previous.shutdown();
+        }
+    }
+
+    public void setQueryBatchSize(int queryBatchSize) {
+        this.queryBatchSize = queryBatchSize;
     }
 
     @RequestMapping(value = "/invite_users", method = RequestMethod.POST, consumes = "application/json")
@@ -71,64 +99,173 @@ public class InvitationsEndpoint {
             }
         }
 
-        InvitationsResponse invitationsResponse = new InvitationsResponse();
-
         DomainFilter filter = new DomainFilter();
         List<IdentityProvider> activeProviders = providers.retrieveActive(IdentityZoneHolder.get().getId());
         ClientDetails client = clients.loadClientByClientId(clientId);
+        List<Invite> invites = new ArrayList<>();
         for (String email : invitations.getEmails()) {
+            Invite invite = new Invite(email);
+            invites.add(invite);
             try {
                 List<IdentityProvider> providers = filter.filter(activeProviders, client, email);
                 if (providers.size() == 1) {
-                    ScimUser user = findOrCreateUser(email, providers.get(0).getOriginKey());
+                    invite.origin = providers.get(0).getOriginKey();
+                } else if (providers.size() == 0) {
+                    invite.fail("provider.non-existent", "No authentication provider found.");
+                } else {
+                    invite.fail("provider.ambiguous", "Multiple authentication providers found.");
+                }
+            } catch (UaaException uaae) {
+                invite.fail("invitation.exception", uaae.getMessage());
+            }
+        }
+        resolveUsers(invites);
 
-                    String accountsUrl = UaaUrlUtils.getUaaUrl("/invitations/accept");
+        InvitationsResponse invitationsResponse = new InvitationsResponse();
+        String accountsUrl = UaaUrlUtils.getUaaUrl("/invitations/accept");
+        for (Invite invite : invites) {
+            if (invite.failure != null) {
+                invitationsResponse.getFailedInvites().add(invite.failure);
+                continue;
+            }
+            ScimUser user = invite.user;
+            Map<String, String> data = new HashMap<>();
+            data.put(InvitationConstants.USER_ID, user.getId());
+            data.put(InvitationConstants.EMAIL, user.getPrimaryEmail());
+            data.put(CLIENT_ID, clientId);
+            data.put(REDIRECT_URI, redirectUri);
+            data.put(ORIGIN, user.getOrigin());
+            Timestamp expiry = new Timestamp(System.currentTimeMillis() + (INVITATION_EXPIRY_DAYS * 24 * 60 * 60 * 1000));
+            ExpiringCode code = expiringCodeStore.generateCode(JsonUtils.writeValueAsString(data), expiry, null);
+
+            String invitationLink = accountsUrl + "?code=" + code.getCode();
+            try {
+                URL inviteLink = new URL(invitationLink);
+                invitationsResponse.getNewInvites().add(InvitationsResponse.success(user.getPrimaryEmail(), user.getId(), user.getOrigin(), inviteLink));
+            } catch (MalformedURLException mue) {
+                invitationsResponse.getFailedInvites().add(InvitationsResponse.failure(invite.email, "invitation.exception.url", String.format("Malformed url", invitationLink)));
+            }
+        }
+        return new ResponseEntity<>(invitationsResponse, HttpStatus.OK);
+    }
+
+    /**
+     * Looks up the existing users of all invites with a few queries per origin
+     * and creates the missing ones in parallel, the password hash of a new user
+     * being the expensive part of an invitation.
+     */
+    protected void resolveUsers(List<Invite> invites) {
+        Map<String, Set<String>> emailsByOrigin = new LinkedHashMap<>();
+        for (Invite invite : invites) {
+            if (invite.failure == null) {
+                emailsByOrigin.computeIfAbsent(invite.origin, k -> new LinkedHashSet<>()).add(invite.getNormalizedEmail());
+            }
+        }
 
-                    Map<String, String> data = new HashMap<>();
-                    data.put(InvitationConstants.USER_ID, user.getId());
-                    data.put(InvitationConstants.EMAIL, user.getPrimaryEmail());
-                    data.put(CLIENT_ID, clientId);
-                    data.put(REDIRECT_URI, redirectUri);
-                    data.put(ORIGIN, user.getOrigin());
-                    Timestamp expiry = new Timestamp(System.currentTimeMillis() + (INVITATION_EXPIRY_DAYS * 24 * 60 * 60 * 1000));
-                    ExpiringCode code = expiringCodeStore.generateCode(JsonUtils.writeValueAsString(data), expiry, null);
+        Map<String, List<ScimUser>> existing = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : emailsByOrigin.entrySet()) {
+            String origin = entry.getKey();
+            List<String> emails = new ArrayList<>(entry.getValue());
+            for (int i = 0; i < emails.size(); i += queryBatchSize) {
+                for (ScimUser user : users.query(getUserFilter(origin, emails.subList(i, Math.min(emails.size(), i + queryBatchSize))))) {
+                    String email = user.getPrimaryEmail() == null ? null : user.getPrimaryEmail().toLowerCase();
+                    existing.computeIfAbsent(getUserKey(origin, email), k -> new ArrayList<>()).add(user);
+                }
+            }
+        }
 
-                    String invitationLink = accountsUrl + "?code=" + code.getCode();
+        IdentityZone zone = IdentityZoneHolder.get();
+        Map<String, Future<ScimUser>> created = new HashMap<>();
+        for (Invite invite : invites) {
+            if (invite.failure != null) {
+                continue;
+            }
+            String key = getUserKey(invite.origin, invite.getNormalizedEmail());
+            List<ScimUser> matches = existing.get(key);
+            if (matches == null && !created.containsKey(key)) {
+                String email = invite.getNormalizedEmail();
+                String origin = invite.origin;
+                created.put(key, executor.submit(() -> {
+                    IdentityZoneHolder.set(zone);
                     try {
-                        URL inviteLink = new URL(invitationLink);
-                        invitationsResponse.getNewInvites().add(InvitationsResponse.success(user.getPrimaryEmail(), user.getId(), user.getOrigin(), inviteLink));
-                    } catch (MalformedURLException mue) {
-                        invitationsResponse.getFailedInvites().add(InvitationsResponse.failure(email, "invitation.exception.url", String.format("Malformed url", invitationLink)));
+                        return createUser(email, origin);
+                    } finally {
+                        IdentityZoneHolder.clear();
                     }
-                } else if (providers.size() == 0) {
-                    invitationsResponse.getFailedInvites().add(InvitationsResponse.failure(email, "provider.non-existent", "No authentication provider found."));
+                }));
+            } else if (matches != null && matches.size() == 1) {
+                invite.user = matches.get(0);
+            } else if (matches != null) {
+                invite.fail("user.ambiguous", "Multiple users with the same origin matched to the email address.");
+            }
+        }
+
+        for (Invite invite : invites) {
+            if (invite.failure != null || invite.user != null) {
+                continue;
+            }
+            try {
+                invite.user = created.get(getUserKey(invite.origin, invite.getNormalizedEmail())).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UaaException) {
+                    invite.fail("invitation.exception", e.getCause().getMessage());
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 } else {
-                    invitationsResponse.getFailedInvites().add(InvitationsResponse.failure(email, "provider.ambiguous", "Multiple authentication providers found."));
+                    throw new IllegalStateException(e.getCause());
                 }
-            } catch (ScimResourceConflictException x) {
-                invitationsResponse.getFailedInvites().add(InvitationsResponse.failure(email, "user.ambiguous", "Multiple users with the same origin matched to the email address."));
-            } catch (UaaException uaae) {
-                invitationsResponse.getFailedInvites().add(InvitationsResponse.failure(email, "invitation.exception", uaae.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while creating invited users", e);
             }
         }
-        return new ResponseEntity<>(invitationsResponse, HttpStatus.OK);
     }
 
-    protected ScimUser findOrCreateUser(String email, String origin) {
-        email = email.trim().toLowerCase();
-        List<ScimUser> results = users.query(String.format("email eq \"%s\" and origin eq \"%s\"", email, origin));
-        if (results == null || results.size() == 0) {
-            ScimUser user = new ScimUser(null, email, "", "");
-            user.setPrimaryEmail(email.toLowerCase());
-            user.setOrigin(origin);
-            user.setVerified(false);
-            user.setActive(true);
-            return users.createUser(user, new RandomValueStringGenerator(12).generate());
-        } else if (results.size() == 1) {
-            return results.get(0);
-        } else {
-            throw new ScimResourceConflictException(String.format("Ambiguous users found for email:%s with origin:%s", email, origin));
+    protected ScimUser createUser(String email, String origin) {
+        ScimUser user = new ScimUser(null, email, "", "");
+        user.setPrimaryEmail(email.toLowerCase());
+        user.setOrigin(origin);
+        user.setVerified(false);
+        user.setActive(true);
+        return users.createUser(user, new RandomValueStringGenerator(12).generate());
+    }
+
+    private static String getUserFilter(String origin, List<String> emails) {
+        StringBuilder filter = new StringBuilder(String.format("origin eq \"%s\" and (", origin));
+        for (int i = 0; i < emails.size(); i++) {
+            if (i > 0) {
+                filter.append(" or ");
+            }
+            filter.append(String.format("email eq \"%s\"", emails.get(i)));
         }
+        return filter.append(")").toString();
+    }
+
+    private static String getUserKey(String origin, String email) {
+        return origin + "/" + email;
     }
 
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    protected static class Invite {
+        private final String email;
+        private String origin;
+        private ScimUser user;
+        private InvitationsResponse.Invitee failure;
+
+        Invite(String email) {
+            this.email = email;
+        }
+
+        String getNormalizedEmail() {
+            return email.trim().toLowerCase();
+        }
+
+        void fail(String errorCode, String errorMessage) {
+            failure = InvitationsResponse.failure(email, errorCode, errorMessage);
+        }
+    }
 }
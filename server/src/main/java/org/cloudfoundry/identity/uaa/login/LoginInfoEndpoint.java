@@ -26,6 +26,7 @@ import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.provider.saml.SamlRedirectUtils;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.core.io.support.PropertiesLoaderUtils;
 import org.springframework.http.HttpStatus;
@@ -59,6 +60,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -67,7 +69,10 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Controller that sends login info (e.g. prompts) to clients wishing to
@@ -117,12 +122,16 @@ public class LoginInfoEndpoint {
     private boolean selfServiceLinksEnabled = true;
     private boolean disableInternalUserManagement;
 
+    private final ConcurrentMap<String, ZoneLoginModel> zoneModels = new ConcurrentHashMap<>();
+
     public void setSelfServiceLinksEnabled(boolean selfServiceLinksEnabled) {
         this.selfServiceLinksEnabled = selfServiceLinksEnabled;
+        zoneModels.clear();
     }
 
     public void setDisableInternalUserManagement(boolean disableInternalUserManagement) {
         this.disableInternalUserManagement = disableInternalUserManagement;
+        zoneModels.clear();
     }
 
     public void setExpiringCodeStore(ExpiringCodeStore expiringCodeStore) {
@@ -139,6 +148,7 @@ public class LoginInfoEndpoint {
 
     public void setIdpDefinitions(SamlIdentityProviderConfigurator idpDefinitions) {
         this.idpDefinitions = idpDefinitions;
+        zoneModels.clear();
     }
 
     public AuthenticationManager getAuthenticationManager() {
@@ -153,6 +163,7 @@ public class LoginInfoEndpoint {
 
     public void setEntityID(String entityID) {
         this.entityID = entityID;
+        zoneModels.clear();
     }
 
     public LoginInfoEndpoint() {
@@ -175,6 +186,7 @@ public class LoginInfoEndpoint {
 
     public void setPrompts(List<Prompt> prompts) {
         this.prompts = prompts;
+        zoneModels.clear();
     }
 
     public List<Prompt> getPrompts() {
@@ -218,18 +230,70 @@ public class LoginInfoEndpoint {
         HttpSession session = request != null ? request.getSession(false) : null;
         List<String> allowedIdps = getAllowedIdps(session);
 
-        List<SamlIdentityProviderDefinition> idps = getSamlIdentityProviderDefinitions(allowedIdps);
+        ZoneLoginModel zoneModel = getZoneLoginModel();
+        LoginModel loginModel = zoneModel.getLoginModel(allowedIdps);
 
-        boolean fieldUsernameShow = true;
+        if (loginModel.redirectUrl!=null) {
+            return "redirect:" + loginModel.redirectUrl;
+        }
+        if (jsonResponse) {
+            model.addAttribute(IDP_DEFINITIONS, loginModel.idpDefinitionsForJson);
+            model.addAttribute(LINKS, zoneModel.jsonLinks);
+        } else {
+            model.addAttribute(LINK_CREATE_ACCOUNT_SHOW, loginModel.linkCreateAccountShow);
+            model.addAttribute(FIELD_USERNAME_SHOW, loginModel.fieldUsernameShow);
+            model.addAttribute(IDP_DEFINITIONS, loginModel.idps);
+            model.addAttribute(LINKS, zoneModel.htmlLinks);
+        }
+        setCommitInfo(model);
+        model.addAttribute(ZONE_NAME, zoneModel.zoneName);
+
+        // Entity ID to start the discovery
+        model.addAttribute(ENTITY_ID, zoneModel.zonifiedEntityID);
+        if (loginModel.showSamlLoginLinks) {
+            model.addAttribute(SHOW_SAML_LOGIN_LINKS, true);
+        }
+        model.addAttribute("prompts", loginModel.getPrompts(excludedPrompts));
+
+        if (principal == null) {
+            return "login";
+        }
+        return "home";
+    }
+
+    /**
+     * Returns the login page model of the current zone, rebuilding it when the zone
+     * or the SAML provider definitions changed since it was computed.
+     */
+    protected ZoneLoginModel getZoneLoginModel() {
+        IdentityZone zone = IdentityZoneHolder.get();
+        long revision = idpDefinitions.getRevision();
+        ZoneLoginModel zoneModel = zoneModels.get(zone.getId());
+        if (zoneModel==null || !zoneModel.isCurrent(zone, revision)) {
+            Map<String, Object> htmlLinks = (Map<String, Object>) getLinksInfo();
+            Map<String, Object> jsonLinks = new HashMap<>(htmlLinks);
+            for (String attribute : UI_ONLY_ATTRIBUTES) {
+                jsonLinks.remove(attribute);
+            }
+            zoneModel = new ZoneLoginModel(zone, revision, getZonifiedEntityId(), htmlLinks, jsonLinks);
+            zoneModels.put(zone.getId(), zoneModel);
+        }
+        return zoneModel;
+    }
 
+    protected LoginModel buildLoginModel(List<String> allowedIdps, ZoneLoginModel zoneModel) {
+        LoginModel result = new LoginModel();
+        result.idps = Collections.unmodifiableList(new ArrayList<>(getSamlIdentityProviderDefinitions(allowedIdps)));
+
+        boolean fieldUsernameShow = true;
         if (allowedIdps==null ||
             allowedIdps.contains(OriginKeys.LDAP) ||
             allowedIdps.contains(OriginKeys.UAA) ||
             allowedIdps.contains(OriginKeys.KEYSTONE)) {
             fieldUsernameShow = true;
-        } else if (idps!=null && idps.size()==1) {
-            String url = SamlRedirectUtils.getIdpRedirectUrl(idps.get(0), entityID);
-            return "redirect:" + url;
+        } else if (result.idps.size()==1) {
+            result.redirectUrl = SamlRedirectUtils.getIdpRedirectUrl(result.idps.get(0), entityID);
+            return result;
         } else {
             fieldUsernameShow = false;
         }
@@ -237,54 +301,26 @@ public class LoginInfoEndpoint {
         if (fieldUsernameShow && (allowedIdps!=null && !allowedIdps.contains(OriginKeys.UAA))) {
             linkCreateAccountShow = false;
         }
-        String zonifiedEntityID = getZonifiedEntityId();
-        Map links = getLinksInfo();
-        if (jsonResponse) {
-            for (String attribute : UI_ONLY_ATTRIBUTES) {
-                links.remove(attribute);
-            }
-            Map<String,String> idpDefinitionsForJson = new HashMap<>();
-            if (idps!=null) {
-                for (SamlIdentityProviderDefinition def : idps) {
-                    String idpUrl = links.get("login") +
-                        String.format("/saml/discovery?returnIDParam=idp&entityID=%s&idp=%s&isPassive=true",
-                                      zonifiedEntityID,
-                                      def.getIdpEntityAlias());
-                    idpDefinitionsForJson.put(def.getIdpEntityAlias(), idpUrl);
-                }
-                model.addAttribute(IDP_DEFINITIONS, idpDefinitionsForJson);
-            }
-        } else {
-            model.addAttribute(LINK_CREATE_ACCOUNT_SHOW, linkCreateAccountShow);
-            model.addAttribute(FIELD_USERNAME_SHOW, fieldUsernameShow);
-            model.addAttribute(IDP_DEFINITIONS, idps);
+        result.fieldUsernameShow = fieldUsernameShow;
+        result.linkCreateAccountShow = linkCreateAccountShow;
+
+        Map<String,String> idpDefinitionsForJson = new HashMap<>();
+        for (SamlIdentityProviderDefinition def : result.idps) {
+            String idpUrl = zoneModel.jsonLinks.get("login") +
+                String.format("/saml/discovery?returnIDParam=idp&entityID=%s&idp=%s&isPassive=true",
+                              zoneModel.zonifiedEntityID,
+                              def.getIdpEntityAlias());
+            idpDefinitionsForJson.put(def.getIdpEntityAlias(), idpUrl);
         }
-        model.addAttribute(LINKS, links);
-        setCommitInfo(model);
-        model.addAttribute(ZONE_NAME, IdentityZoneHolder.get().getName());
+        result.idpDefinitionsForJson = Collections.unmodifiableMap(idpDefinitionsForJson);
 
-        // Entity ID to start the discovery
-        model.addAttribute(ENTITY_ID, zonifiedEntityID);
-        boolean noSamlIdpsPresent = true;
-        for (SamlIdentityProviderDefinition idp : idps) {
+        for (SamlIdentityProviderDefinition idp : result.idps) {
             if(idp.isShowSamlLink()) {
-                model.addAttribute(SHOW_SAML_LOGIN_LINKS, true);
-                noSamlIdpsPresent = false;
+                result.showSamlLoginLinks = true;
                 break;
             }
         }
-        //make the list writeable
-        excludedPrompts = new LinkedList<>(excludedPrompts);
-        if (noSamlIdpsPresent) {
-            excludedPrompts.add(PASSCODE);
-        }
-
-        populatePrompts(model, excludedPrompts, jsonResponse);
-
-        if (principal == null) {
-            return "login";
-        }
-        return "home";
+        return result;
     }
 
     protected List<SamlIdentityProviderDefinition> getSamlIdentityProviderDefinitions(List<String> allowedIdps) {
@@ -329,13 +365,17 @@ public class LoginInfoEndpoint {
 
 
     public void populatePrompts(Model model, List<String> exclude, boolean jsonResponse) {
+        model.addAttribute("prompts", getPromptsMap(exclude));
+    }
+
+    protected Map<String, String[]> getPromptsMap(List<String> exclude) {
         Map<String, String[]> map = new LinkedHashMap<>();
         for (Prompt prompt : getPrompts()) {
             if (!exclude.contains(prompt.getName())) {
                 map.put(prompt.getName(), prompt.getDetails());
             }
         }
-        model.addAttribute("prompts", map);
+        return map;
     }
 
     @RequestMapping(value = "/autologin", method = RequestMethod.POST)
@@ -468,6 +508,7 @@ public class LoginInfoEndpoint {
 
     public void setUaaBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        zoneModels.clear();
         try {
             URI uri = new URI(baseUrl);
             setUaaHost(uri.getHost());
@@ -486,6 +527,7 @@ public class LoginInfoEndpoint {
 
     public void setLinks(Map<String, String> links) {
         this.links = links;
+        zoneModels.clear();
     }
 
     public String getBaseUrl() {
@@ -494,6 +536,7 @@ public class LoginInfoEndpoint {
 
     public void setBaseUrl(String baseUrl) {
         this.baseUrl = baseUrl;
+        zoneModels.clear();
     }
 
     protected String getUaaBaseUrl() {
@@ -529,6 +572,76 @@ public class LoginInfoEndpoint {
         this.clientDetailsService = clientDetailsService;
     }
 
+    /**
+     * Immutable login page model of a zone. Variants for clients that restrict
+     * the allowed identity providers are derived lazily and memoized.
+     */
+    protected class ZoneLoginModel {
+        private final String zoneName;
+        private final String subdomain;
+        private final long revision;
+        private final String zonifiedEntityID;
+        private final Map<String, Object> htmlLinks;
+        private final Map<String, Object> jsonLinks;
+        private volatile LoginModel defaultModel;
+        private final ConcurrentMap<List<String>, LoginModel> clientModels = new ConcurrentHashMap<>();
+
+        protected ZoneLoginModel(IdentityZone zone, long revision, String zonifiedEntityID, Map<String, Object> htmlLinks, Map<String, Object> jsonLinks) {
+            this.zoneName = zone.getName();
+            this.subdomain = zone.getSubdomain();
+            this.revision = revision;
+            this.zonifiedEntityID = zonifiedEntityID;
+            this.htmlLinks = Collections.unmodifiableMap(htmlLinks);
+            this.jsonLinks = Collections.unmodifiableMap(jsonLinks);
+        }
+
+        protected boolean isCurrent(IdentityZone zone, long revision) {
+            return this.revision == revision &&
+                Objects.equals(zoneName, zone.getName()) &&
+                Objects.equals(subdomain, zone.getSubdomain());
+        }
+
+        protected LoginModel getLoginModel(List<String> allowedIdps) {
+            if (allowedIdps==null) {
+                LoginModel result = defaultModel;
+                if (result==null) {
+                    result = defaultModel = buildLoginModel(null, this);
+                }
+                return result;
+            }
+            List<String> key = Collections.unmodifiableList(new ArrayList<>(allowedIdps));
+            LoginModel result = clientModels.get(key);
+            if (result==null) {
+                result = buildLoginModel(key, this);
+                clientModels.putIfAbsent(key, result);
+            }
+            return result;
+        }
+    }
+
+    protected class LoginModel {
+        private List<SamlIdentityProviderDefinition> idps;
+        private String redirectUrl;
+        private boolean fieldUsernameShow;
+        private boolean linkCreateAccountShow;
+        private boolean showSamlLoginLinks;
+        private Map<String, String> idpDefinitionsForJson;
+        private final ConcurrentMap<List<String>, Map<String, String[]>> prompts = new ConcurrentHashMap<>();
+
+        protected Map<String, String[]> getPrompts(List<String> excludedPrompts) {
+            Map<String, String[]> result = prompts.get(excludedPrompts);
+            if (result==null) {
+                List<String> exclude = new LinkedList<>(excludedPrompts);
+                if (!showSamlLoginLinks) {
+                    exclude.add(PASSCODE);
+                }
+                result = Collections.unmodifiableMap(getPromptsMap(exclude));
+                prompts.putIfAbsent(new ArrayList<>(excludedPrompts), result);
+            }
+            return result;
+        }
+    }
+
     @ResponseStatus(value = HttpStatus.FORBIDDEN, reason = "Unknown authentication token type, unable to derive user ID.")
     public static final class UnknownPrincipalException extends RuntimeException {}
 
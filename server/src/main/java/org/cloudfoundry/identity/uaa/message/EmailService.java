@@ -19,6 +19,7 @@ public class EmailService implements MessageService {
     private final Log logger = LogFactory.getLog(getClass());
 
     private JavaMailSender mailSender;
+    private MailDeliveryQueue deliveryQueue;
     private final String loginUrl;
     private final String brand;
 
@@ -36,6 +37,17 @@ public class EmailService implements MessageService {
         this.mailSender = mailSender;
     }
 
+    public MailDeliveryQueue getDeliveryQueue() {
+        return deliveryQueue;
+    }
+
+    /**
+     * Messages are handed to the queue instead of being sent on the request thread.
+     */
+    public void setDeliveryQueue(MailDeliveryQueue deliveryQueue) {
+        this.deliveryQueue = deliveryQueue;
+    }
+
     private Address[] getSenderAddresses() throws AddressException, UnsupportedEncodingException {
         String host = UriComponentsBuilder.fromHttpUrl(loginUrl).build().getHost();
         String name = null;
@@ -61,6 +73,10 @@ public class EmailService implements MessageService {
             logger.error("Exception raised while sending message to " + email, e);
         }
 
-        mailSender.send(message);
+        if (deliveryQueue != null) {
+            deliveryQueue.submit(mailSender, message);
+        } else {
+            mailSender.send(message);
+        }
     }
 }
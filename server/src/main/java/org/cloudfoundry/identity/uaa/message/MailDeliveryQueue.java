@@ -0,0 +1,287 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.message;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of outgoing mail, delivered by a small pool of worker threads.
+ * <p>
+ * A worker hands all queued messages for the same sender, up to the batch size,
+ * to a single {@link JavaMailSender#send(MimeMessage[])} call so that the SMTP
+ * connection is reused across them. Messages that fail are retried with an
+ * exponential backoff. When the queue is full the message is sent on the
+ * calling thread, and when the queue is disabled every message is.
+ */
+@ManagedResource
+public class MailDeliveryQueue implements DisposableBean {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int DEFAULT_WORKERS = 2;
+    public static final int DEFAULT_BATCH_SIZE = 20;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_BACKOFF = 1000;
+
+    private final Log logger = LogFactory.getLog(getClass());
+
+    private boolean enabled = false;
+    private int capacity = DEFAULT_CAPACITY;
+    private int workers = DEFAULT_WORKERS;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryBackoff = DEFAULT_RETRY_BACKOFF;
+
+    private volatile BlockingQueue<Delivery> queue;
+    private ExecutorService workerExecutor;
+    private ScheduledExecutorService retryExecutor;
+    private volatile boolean shutdown;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setRetryBackoff(long retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    public void submit(JavaMailSender sender, MimeMessage message) {
+        if (!enabled) {
+            sender.send(message);
+            return;
+        }
+        Delivery delivery = new Delivery(sender, message);
+        if (!getQueue().offer(delivery)) {
+            overflowCount.incrementAndGet();
+            logger.warn("Mail delivery queue is full, sending message on the calling thread.");
+            sender.send(message);
+            delivered(delivery);
+        }
+    }
+
+    private BlockingQueue<Delivery> getQueue() {
+        if (queue == null) {
+            synchronized (this) {
+                if (queue == null) {
+                    CustomizableThreadFactory workerFactory = new CustomizableThreadFactory("mail-delivery-");
+                    workerFactory.setDaemon(true);
+                    workerExecutor = Executors.newFixedThreadPool(workers, workerFactory);
+                    CustomizableThreadFactory retryFactory = new CustomizableThreadFactory("mail-delivery-retry-");
+                    retryFactory.setDaemon(true);
+                    retryExecutor = Executors.newSingleThreadScheduledExecutor(retryFactory);
+                    BlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<>(capacity);
+                    for (int i = 0; i < workers; i++) {
+                        workerExecutor.execute(() -> work(deliveries));
+                    }
+                    queue = deliveries;
+                }
+            }
+        }
+        return queue;
+    }
+
+    private void work(BlockingQueue<Delivery> deliveries) {
+        List<Delivery> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(deliveries.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            deliveries.drainTo(batch, batchSize - 1);
+            try {
+                deliver(batch);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while delivering mail.", e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void deliver(List<Delivery> batch) {
+        Map<JavaMailSender, List<Delivery>> bySender = new IdentityHashMap<>();
+        for (Delivery delivery : batch) {
+            bySender.computeIfAbsent(delivery.sender, k -> new ArrayList<>()).add(delivery);
+        }
+        for (Map.Entry<JavaMailSender, List<Delivery>> entry : bySender.entrySet()) {
+            deliver(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void deliver(JavaMailSender sender, List<Delivery> deliveries) {
+        MimeMessage[] messages = new MimeMessage[deliveries.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = deliveries.get(i).message;
+        }
+        try {
+            sender.send(messages);
+            for (Delivery delivery : deliveries) {
+                delivered(delivery);
+            }
+        } catch (MailSendException e) {
+            Map<Object, Exception> failed = e.getFailedMessages();
+            for (Delivery delivery : deliveries) {
+                if (failed.isEmpty() || failed.containsKey(delivery.message)) {
+                    retry(delivery, failed.isEmpty() ? e : failed.get(delivery.message));
+                } else {
+                    delivered(delivery);
+                }
+            }
+        } catch (MailException e) {
+            for (Delivery delivery : deliveries) {
+                retry(delivery, e);
+            }
+        }
+    }
+
+    private void retry(Delivery delivery, Exception cause) {
+        if (++delivery.attempts >= maxAttempts || shutdown) {
+            failedCount.incrementAndGet();
+            logger.error("Unable to deliver mail after " + delivery.attempts + " attempts.", cause);
+            return;
+        }
+        retryCount.incrementAndGet();
+        long delay = retryBackoff << (delivery.attempts - 1);
+        logger.debug("Mail delivery failed, retrying in " + delay + "ms.", cause);
+        retryExecutor.schedule(() -> {
+            if (!queue.offer(delivery)) {
+                failedCount.incrementAndGet();
+                logger.error("Mail delivery queue is full, dropping message after " + delivery.attempts + " attempts.", cause);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void delivered(Delivery delivery) {
+        sentCount.incrementAndGet();
+        long latency = System.currentTimeMillis() - delivery.queuedAt;
+        totalLatency.addAndGet(latency);
+        maxLatency.accumulateAndGet(latency, Math::max);
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Queued Messages")
+    public int getQueueDepth() {
+        BlockingQueue<Delivery> deliveries = queue;
+        return deliveries == null ? 0 : deliveries.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Sent Message Count")
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Failed Message Count")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Retried Delivery Count")
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Messages Sent On The Calling Thread Due To A Full Queue")
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Average Delivery Latency (ms)")
+    public long getAverageLatency() {
+        long sent = sentCount.get();
+        return sent == 0 ? 0 : totalLatency.get() / sent;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Maximum Delivery Latency (ms)")
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    @Override
+    public void destroy() {
+        BlockingQueue<Delivery> deliveries = queue;
+        if (deliveries == null) {
+            return;
+        }
+        shutdown = true;
+        workerExecutor.shutdownNow();
+        retryExecutor.shutdownNow();
+        List<Delivery> remaining = new ArrayList<>();
+        deliveries.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            logger.info("Delivering " + remaining.size() + " queued messages before shutdown.");
+            deliver(remaining);
+        }
+    }
+
+    private static class Delivery {
+        private final JavaMailSender sender;
+        private final MimeMessage message;
+        private final long queuedAt = System.currentTimeMillis();
+        private int attempts;
+
+        Delivery(JavaMailSender sender, MimeMessage message) {
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.code.AuthorizationCodeServices;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.Serializable;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Authorization code services that keep the codes in a pluggable store.
+ * <p>
+ * This class generates the codes, serializes the authentication and enforces
+ * the expiration, subclasses only store, remove and expire the serialized codes.
+ * Expired codes are removed inline, at most once per expiration period, unless
+ * an {@link #setExpirationSweepInterval(long) expiration sweep interval} is set,
+ * in which case they are removed by a background timer.
+ */
+public abstract class AbstractUaaTokenStore implements AuthorizationCodeServices {
+    public static final long EXPIRATION_TIME = 5*60*1000;
+    public static final long LEGACY_CODE_EXPIRATION_TIME = 3*24*60*60*1000;
+    public static final String USER_AUTHENTICATION_UAA_AUTHENTICATION = "userAuthentication.uaaAuthentication";
+    public static final String USER_AUTHENTICATION_UAA_PRINCIPAL = "userAuthentication.uaaPrincipal";
+    public static final String USER_AUTHENTICATION_AUTHORITIES = "userAuthentication.authorities";
+    public static final String OAUTH2_REQUEST_PARAMETERS = "oauth2Request.requestParameters";
+    public static final String OAUTH2_REQUEST_CLIENT_ID = "oauth2Request.clientId";
+    public static final String OAUTH2_REQUEST_AUTHORITIES = "oauth2Request.authorities";
+    public static final String OAUTH2_REQUEST_APPROVED = "oauth2Request.approved";
+    public static final String OAUTH2_REQUEST_SCOPE = "oauth2Request.scope";
+    public static final String OAUTH2_REQUEST_RESOURCE_IDS = "oauth2Request.resourceIds";
+    public static final String OAUTH2_REQUEST_REDIRECT_URI = "oauth2Request.redirectUri";
+    public static final String OAUTH2_REQUEST_RESPONSE_TYPES = "oauth2Request.responseTypes";
+
+    protected final Log logger = LogFactory.getLog(getClass());
+
+    private final long expirationTime;
+    private final RandomValueStringGenerator generator = new RandomValueStringGenerator();
+    private final AtomicLong lastClean = new AtomicLong(0);
+    private long expirationSweepInterval = 0;
+    private boolean purgeExpired = true;
+    private final CompactAuthenticationSerializer compactSerializer = new CompactAuthenticationSerializer();
+    private boolean compactSerialization = true;
+    private Timer timer;
+
+    protected AbstractUaaTokenStore(long expirationTime) {
+        this.expirationTime = expirationTime;
+    }
+
+    /**
+     * Stores a new code.
+     * @throws DataIntegrityViolationException if the code is already in use
+     */
+    protected abstract void storeCode(String code, String userId, String clientId, long expiresAt, byte[] authentication);
+
+    /**
+     * Removes a code from the store.
+     * @return the removed code, or <code>null</code> if it doesn't exist
+     */
+    protected abstract TokenCode removeCode(String code);
+
+    /**
+     * Removes all expired codes from the store.
+     * @return the number of codes removed
+     */
+    public abstract int removeExpiredCodes();
+
+    @Override
+    public String createAuthorizationCode(OAuth2Authentication authentication) {
+        final int max_tries = 3;
+        performExpirationClean();
+        String userId = authentication.getUserAuthentication()==null ? null : ((UaaPrincipal)authentication.getUserAuthentication().getPrincipal()).getId();
+        String clientId = authentication.getOAuth2Request().getClientId();
+        byte[] data = serializeOauth2Authentication(authentication);
+        int tries = 0;
+        while ((tries++)<=max_tries) {
+            try {
+                String code = generator.generate();
+                long expiresAt = System.currentTimeMillis()+getExpirationTime();
+                storeCode(code, userId, clientId, expiresAt, data);
+                return code;
+            } catch (DataIntegrityViolationException exists) {
+                if (tries>=max_tries) throw exists;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
+        performExpirationClean();
+        TokenCode tokenCode = removeCode(code);
+        if (tokenCode != null) {
+            if (tokenCode.isExpired()) {
+                logger.debug("[oauth_code] Found code, but it expired:"+tokenCode);
+                throw new InvalidGrantException("Authorization code expired: " + code);
+            } else if (tokenCode.getExpiresAt() == 0) {
+                return SerializationUtils.deserialize(tokenCode.getAuthentication());
+            } else {
+                return deserializeOauth2Authentication(tokenCode.getAuthentication());
+            }
+        }
+        throw new InvalidGrantException("Invalid authorization code: " + code);
+    }
+
+    protected byte[] serializeOauth2Authentication(OAuth2Authentication auth2Authentication) {
+        //currently not serializing any of the
+        //Map<String, Serializable > extensionProperties
+        if (auth2Authentication.getOAuth2Request().getExtensions() != null && auth2Authentication.getOAuth2Request().getExtensions().size()>0) {
+            logger.warn("[oauth_code] Unable to serialize extensions:"+auth2Authentication.getOAuth2Request().getExtensions());
+        }
+        if (compactSerialization && CompactAuthenticationSerializer.canSerialize(auth2Authentication)) {
+            return compactSerializer.serialize(auth2Authentication);
+        }
+        return serializeOauth2AuthenticationAsJson(auth2Authentication);
+    }
+
+    protected byte[] serializeOauth2AuthenticationAsJson(OAuth2Authentication auth2Authentication) {
+        Authentication userAuthentication = auth2Authentication.getUserAuthentication();
+        HashMap<String, Object> data = new HashMap<>();
+        if (userAuthentication!=null) {
+            if (userAuthentication instanceof UaaAuthentication) {
+                data.put(USER_AUTHENTICATION_UAA_AUTHENTICATION, JsonUtils.writeValueAsString(userAuthentication));
+            } else {
+                data.put(USER_AUTHENTICATION_UAA_PRINCIPAL, JsonUtils.writeValueAsString(userAuthentication.getPrincipal()));
+                data.put(USER_AUTHENTICATION_AUTHORITIES, UaaStringUtils.getStringsFromAuthorities(userAuthentication.getAuthorities()));
+            }
+        }
+        data.put(OAUTH2_REQUEST_PARAMETERS, auth2Authentication.getOAuth2Request().getRequestParameters());
+        data.put(OAUTH2_REQUEST_CLIENT_ID, auth2Authentication.getOAuth2Request().getClientId());
+        data.put(OAUTH2_REQUEST_AUTHORITIES, UaaStringUtils.getStringsFromAuthorities(auth2Authentication.getOAuth2Request().getAuthorities()));
+        data.put(OAUTH2_REQUEST_APPROVED, auth2Authentication.getOAuth2Request().isApproved());
+        data.put(OAUTH2_REQUEST_SCOPE, auth2Authentication.getOAuth2Request().getScope());
+        data.put(OAUTH2_REQUEST_RESOURCE_IDS, auth2Authentication.getOAuth2Request().getResourceIds());
+        data.put(OAUTH2_REQUEST_REDIRECT_URI, auth2Authentication.getOAuth2Request().getRedirectUri());
+        data.put(OAUTH2_REQUEST_RESPONSE_TYPES, auth2Authentication.getOAuth2Request().getResponseTypes());
+        return JsonUtils.writeValueAsBytes(data);
+    }
+
+    /**
+     * Reads both the compact binary format and the JSON format.
+     */
+    protected OAuth2Authentication deserializeOauth2Authentication(byte[] data) {
+        if (CompactAuthenticationSerializer.isCompact(data)) {
+            return compactSerializer.deserialize(data);
+        }
+        Map<String,Object> map = JsonUtils.readValue(data, new TypeReference<Map<String,Object>>() {});
+        Authentication userAuthentication = null;
+        if (map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION) != null) {
+            userAuthentication = JsonUtils.readValue((String)map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION), UaaAuthentication.class);
+        }
+        else if (map.get(USER_AUTHENTICATION_UAA_PRINCIPAL)!=null) {
+            UaaPrincipal principal = JsonUtils.readValue((String)map.get(USER_AUTHENTICATION_UAA_PRINCIPAL), UaaPrincipal.class);
+            Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings((Collection<String>) map.get(USER_AUTHENTICATION_AUTHORITIES));
+            userAuthentication = new UaaAuthentication(principal, (List<? extends GrantedAuthority>) authorities, UaaAuthenticationDetails.UNKNOWN);
+        }
+
+        Map<String,String> requestParameters = (Map<String, String>) map.get(OAUTH2_REQUEST_PARAMETERS);
+        String clientId = (String) map.get(OAUTH2_REQUEST_CLIENT_ID);
+        Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings((Collection<String>) map.get(OAUTH2_REQUEST_AUTHORITIES));
+        boolean approved = (boolean) map.get(OAUTH2_REQUEST_APPROVED);
+        Collection<String> scope = (Collection<String>) map.get(OAUTH2_REQUEST_SCOPE);
+        Collection<String> resourceIds = (Collection<String>) map.get(OAUTH2_REQUEST_RESOURCE_IDS);
+        String redirectUri = (String) map.get(OAUTH2_REQUEST_REDIRECT_URI);
+        Collection<String> responseTypes = (Collection<String>) map.get(OAUTH2_REQUEST_RESPONSE_TYPES);
+
+        OAuth2Request request = new OAuth2Request(
+            requestParameters,
+            clientId,
+            authorities,
+            approved,
+            new HashSet<>(scope),
+            new HashSet<>(resourceIds),
+            redirectUri,
+            new HashSet<>(responseTypes),
+            new HashMap<String,Serializable>()
+        );
+
+        return new OAuth2Authentication(request, userAuthentication);
+    }
+
+    protected void performExpirationClean() {
+        if (!purgeExpired || expirationSweepInterval > 0) {
+            //expired codes are removed by the timer
+            return;
+        }
+        long last = lastClean.get();
+        //check if we should expire again
+        if ((System.currentTimeMillis()-last) > getExpirationTime()) {
+            //avoid concurrent deletes from the same UAA - performance improvement
+            if (lastClean.compareAndSet(last, last+getExpirationTime())) {
+                removeExpiredCodes();
+            }
+        }
+    }
+
+    @PostConstruct
+    public void startExpirationSweep() {
+        if (purgeExpired && expirationSweepInterval > 0 && timer == null) {
+            timer = new Timer(getClass().getSimpleName() + ".ExpirationSweep", true);
+            timer.schedule(new ExpirationSweepTask(), expirationSweepInterval, expirationSweepInterval);
+        }
+    }
+
+    @PreDestroy
+    public void stopExpirationSweep() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private class ExpirationSweepTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                removeExpiredCodes();
+            } catch (Exception x) {
+                logger.error("[oauth_code] Unable to remove expired codes:", x);
+            }
+        }
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public long getExpirationSweepInterval() {
+        return expirationSweepInterval;
+    }
+
+    /**
+     * If set to a positive number of milliseconds, expired codes are removed by a
+     * background timer at this interval instead of on the request thread.
+     */
+    public void setExpirationSweepInterval(long expirationSweepInterval) {
+        this.expirationSweepInterval = expirationSweepInterval;
+    }
+
+    public boolean isPurgeExpired() {
+        return purgeExpired;
+    }
+
+    /**
+     * @param purgeExpired false if expired codes are removed by another component,
+     *            neither the request threads nor the sweep timer remove them then
+     */
+    public void setPurgeExpired(boolean purgeExpired) {
+        this.purgeExpired = purgeExpired;
+    }
+
+    public boolean isCompactSerialization() {
+        return compactSerialization;
+    }
+
+    /**
+     * Whether new codes are stored in the compact binary format or in JSON. Both
+     * formats are always readable, JSON is only needed while UAA instances that
+     * can't read the binary format share the store.
+     */
+    public void setCompactSerialization(boolean compactSerialization) {
+        this.compactSerialization = compactSerialization;
+    }
+
+    public TokenCode createTokenCode(String code, String userId, String clientId, long expiresAt, Timestamp created, byte[] authentication) {
+        return new TokenCode(code,userId,clientId,expiresAt,created,authentication);
+    }
+
+    protected class TokenCode {
+        private final String code;
+        private final String userId;
+        private final String clientId;
+        private final long expiresAt;
+        private final Timestamp created;
+        private final byte[] authentication;
+
+
+        public TokenCode(String code, String userId, String clientId, long expiresAt, Timestamp created, byte[] authentication) {
+            this.code = code;
+            this.userId = userId;
+            this.clientId = clientId;
+            this.expiresAt = expiresAt;
+            this.created = created;
+            this.authentication = authentication;
+        }
+
+        public byte[] getAuthentication() {
+            return authentication;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public Timestamp getCreated() {
+            return created;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public boolean isExpired() {
+            if (getExpiresAt()==0) {
+                return new Timestamp(System.currentTimeMillis()-getExpirationTime()).after(getCreated());
+            } else {
+                return getExpiresAt() < System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "TokenCode{" +
+                ", code='" + code + '\'' +
+                ", userId='" + userId + '\'' +
+                ", clientId='" + clientId + '\'' +
+                ", expiresAt=" + expiresAt +
+                ", created=" + created +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned binary encoding of the authentication stored with an authorization code.
+ * <p>
+ * A document starts with {@link #MAGIC} and a version byte, so it can never be
+ * mistaken for the JSON or Java serialized formats. Strings are length prefixed
+ * UTF-8 and are written once per document, repeated strings are written as a
+ * reference to the first occurrence. Common scope, authority and parameter names
+ * are pre-registered in a dictionary that is fixed per version.
+ * <p>
+ * Only authentications that the JSON format can represent are supported, see
+ * {@link #canSerialize(OAuth2Authentication)}.
+ */
+public class CompactAuthenticationSerializer {
+
+    public static final byte[] MAGIC = new byte[] {(byte) 0xCA, (byte) 0x55};
+    public static final byte VERSION_1 = 1;
+
+    private static final byte NO_USER = 0;
+    private static final byte UAA_AUTHENTICATION = 1;
+    private static final byte PRINCIPAL_AND_AUTHORITIES = 2;
+
+    private static final int NULL_STRING = 0;
+    private static final int NEW_STRING = 1;
+    private static final int STRING_REFERENCE = 2;
+
+    /**
+     * Strings known to both sides for version 1. This list must never change,
+     * a new dictionary requires a new version.
+     */
+    private static final List<String> DICTIONARY_V1 = Collections.unmodifiableList(Arrays.asList(
+        "openid", "profile", "roles", "user_attributes", "email", "phone",
+        "uaa.user", "uaa.admin", "uaa.none", "uaa.resource", "uaa.offline_token",
+        "scim.read", "scim.write", "scim.me", "scim.userids", "scim.create", "scim.invite",
+        "password.write", "oauth.approvals", "oauth.login", "approvals.me",
+        "clients.read", "clients.write", "clients.secret", "clients.admin",
+        "cloud_controller.read", "cloud_controller.write", "cloud_controller.admin",
+        "zones.read", "zones.write", "idps.read", "idps.write",
+        "client_id", "response_type", "redirect_uri", "scope", "state", "grant_type", "nonce",
+        "code", "token", "id_token", "authorization_code", "password", "client_credentials",
+        "implicit", "refresh_token", "user_id", "login_hint",
+        "uaa", "ldap", "saml", "keystone", "login-server", "unknown"
+    ));
+
+    public static boolean isCompact(byte[] data) {
+        return data != null && data.length > 2 && data[0] == MAGIC[0] && data[1] == MAGIC[1];
+    }
+
+    /**
+     * @return true if the user authentication, if any, has a {@link UaaPrincipal}
+     */
+    public static boolean canSerialize(OAuth2Authentication authentication) {
+        Authentication user = authentication.getUserAuthentication();
+        return user == null || user instanceof UaaAuthentication || user.getPrincipal() instanceof UaaPrincipal;
+    }
+
+    public byte[] serialize(OAuth2Authentication authentication) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            Writer out = new Writer(bytes);
+            out.write(MAGIC);
+            out.writeByte(VERSION_1);
+
+            OAuth2Request request = authentication.getOAuth2Request();
+            out.writeBoolean(request.isApproved());
+            out.writeStringMap(request.getRequestParameters());
+            out.writeString(request.getClientId());
+            out.writeStrings(UaaStringUtils.getStringsFromAuthorities(request.getAuthorities()));
+            out.writeStrings(request.getScope());
+            out.writeStrings(request.getResourceIds());
+            out.writeString(request.getRedirectUri());
+            out.writeStrings(request.getResponseTypes());
+
+            Authentication user = authentication.getUserAuthentication();
+            if (user == null) {
+                out.writeByte(NO_USER);
+            } else if (user instanceof UaaAuthentication) {
+                UaaAuthentication uaaAuthentication = (UaaAuthentication) user;
+                out.writeByte(UAA_AUTHENTICATION);
+                out.writePrincipal(uaaAuthentication.getPrincipal());
+                out.writeStrings(UaaStringUtils.getStringsFromAuthorities(uaaAuthentication.getAuthorities()));
+                out.writeStrings(uaaAuthentication.getExternalGroups());
+                out.writeLong(uaaAuthentication.getExpiresAt());
+                out.writeLong(uaaAuthentication.getAuthenticatedTime());
+                out.writeBoolean(uaaAuthentication.isAuthenticated());
+                Map<String, List<String>> attributes = uaaAuthentication.getUserAttributesAsMap();
+                out.writeVarInt(attributes.size());
+                for (Map.Entry<String, List<String>> entry : attributes.entrySet()) {
+                    out.writeString(entry.getKey());
+                    out.writeStrings(entry.getValue());
+                }
+                if (uaaAuthentication.getDetails() instanceof UaaAuthenticationDetails) {
+                    UaaAuthenticationDetails details = (UaaAuthenticationDetails) uaaAuthentication.getDetails();
+                    out.writeBoolean(true);
+                    out.writeBoolean(details.isAddNew());
+                    out.writeString(details.getClientId());
+                    out.writeString(details.getOrigin());
+                    out.writeString(details.getSessionId());
+                } else {
+                    out.writeBoolean(false);
+                }
+            } else {
+                out.writeByte(PRINCIPAL_AND_AUTHORITIES);
+                out.writePrincipal((UaaPrincipal) user.getPrincipal());
+                out.writeStrings(UaaStringUtils.getStringsFromAuthorities(user.getAuthorities()));
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize authentication", e);
+        }
+    }
+
+    public OAuth2Authentication deserialize(byte[] data) {
+        if (!isCompact(data)) {
+            throw new IllegalArgumentException("Not a compact authentication document");
+        }
+        try {
+            Reader in = new Reader(new ByteArrayInputStream(data, MAGIC.length, data.length - MAGIC.length));
+            byte version = in.readByte();
+            if (version != VERSION_1) {
+                throw new IllegalArgumentException("Unsupported compact authentication version: " + version);
+            }
+            boolean approved = in.readBoolean();
+            Map<String, String> requestParameters = in.readStringMap();
+            String clientId = in.readString();
+            Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(in.readStrings());
+            Set<String> scope = in.readStrings();
+            Set<String> resourceIds = in.readStrings();
+            String redirectUri = in.readString();
+            Set<String> responseTypes = in.readStrings();
+            OAuth2Request request = new OAuth2Request(
+                requestParameters,
+                clientId,
+                authorities,
+                approved,
+                scope,
+                resourceIds,
+                redirectUri,
+                responseTypes,
+                new HashMap<String, Serializable>()
+            );
+
+            Authentication userAuthentication = null;
+            byte type = in.readByte();
+            if (type == UAA_AUTHENTICATION) {
+                UaaPrincipal principal = in.readPrincipal();
+                List<? extends GrantedAuthority> userAuthorities = UaaStringUtils.getAuthoritiesFromStrings(in.readStrings());
+                Set<String> externalGroups = in.readStrings();
+                long expiresAt = in.readLong();
+                long authenticatedTime = in.readLong();
+                boolean authenticated = in.readBoolean();
+                int attributeCount = in.readVarInt();
+                Map<String, List<String>> userAttributes = new HashMap<>();
+                for (int i = 0; i < attributeCount; i++) {
+                    String name = in.readString();
+                    userAttributes.put(name, new ArrayList<>(in.readStringList()));
+                }
+                UaaAuthenticationDetails details = null;
+                if (in.readBoolean()) {
+                    boolean addNew = in.readBoolean();
+                    String detailsClientId = in.readString();
+                    String origin = in.readString();
+                    String sessionId = in.readString();
+                    details = new UaaAuthenticationDetails(addNew, detailsClientId, origin, sessionId);
+                }
+                userAuthentication = new UaaAuthentication(principal, null, userAuthorities, externalGroups, userAttributes, details, authenticated, authenticatedTime, expiresAt);
+            } else if (type == PRINCIPAL_AND_AUTHORITIES) {
+                UaaPrincipal principal = in.readPrincipal();
+                List<? extends GrantedAuthority> userAuthorities = UaaStringUtils.getAuthoritiesFromStrings(in.readStrings());
+                userAuthentication = new UaaAuthentication(principal, userAuthorities, UaaAuthenticationDetails.UNKNOWN);
+            } else if (type != NO_USER) {
+                throw new IllegalArgumentException("Unknown user authentication type: " + type);
+            }
+            return new OAuth2Authentication(request, userAuthentication);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to deserialize authentication", e);
+        }
+    }
+
+    private static class Writer extends DataOutputStream {
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(ByteArrayOutputStream out) {
+            super(out);
+            for (String s : DICTIONARY_V1) {
+                strings.put(s, strings.size());
+            }
+        }
+
+        void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(NULL_STRING);
+                return;
+            }
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeVarInt(STRING_REFERENCE + index);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(NEW_STRING);
+            writeVarInt(bytes.length);
+            write(bytes);
+        }
+
+        void writeStrings(Collection<String> values) throws IOException {
+            if (values == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(values.size());
+            for (String s : values) {
+                writeString(s);
+            }
+        }
+
+        void writeStringMap(Map<String, String> map) throws IOException {
+            writeVarInt(map == null ? 0 : map.size());
+            if (map != null) {
+                for (Map.Entry<String, String> entry : map.entrySet()) {
+                    writeString(entry.getKey());
+                    writeString(entry.getValue());
+                }
+            }
+        }
+
+        void writePrincipal(UaaPrincipal principal) throws IOException {
+            writeString(principal.getId());
+            writeString(principal.getName());
+            writeString(principal.getEmail());
+            writeString(principal.getOrigin());
+            writeString(principal.getExternalId());
+            writeString(principal.getZoneId());
+        }
+    }
+
+    private static class Reader extends DataInputStream {
+        private final List<String> strings = new ArrayList<>(DICTIONARY_V1);
+
+        Reader(ByteArrayInputStream in) {
+            super(in);
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed variable length integer");
+        }
+
+        String readString() throws IOException {
+            int tag = readVarInt();
+            if (tag == NULL_STRING) {
+                return null;
+            } else if (tag == NEW_STRING) {
+                byte[] bytes = new byte[readVarInt()];
+                readFully(bytes);
+                String s = new String(bytes, StandardCharsets.UTF_8);
+                strings.add(s);
+                return s;
+            }
+            int index = tag - STRING_REFERENCE;
+            if (index >= strings.size()) {
+                throw new IOException("Invalid string reference: " + index);
+            }
+            return strings.get(index);
+        }
+
+        List<String> readStringList() throws IOException {
+            int size = readVarInt();
+            List<String> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(readString());
+            }
+            return result;
+        }
+
+        Set<String> readStrings() throws IOException {
+            return new HashSet<>(readStringList());
+        }
+
+        Map<String, String> readStringMap() throws IOException {
+            int size = readVarInt();
+            Map<String, String> result = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                String key = readString();
+                result.put(key, readString());
+            }
+            return result;
+        }
+
+        UaaPrincipal readPrincipal() throws IOException {
+            return new UaaPrincipal(readString(), readString(), readString(), readString(), readString(), readString());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Authorization code services that keep the codes in memory. Codes are only
+ * visible to the UAA instance that issued them, so this store is meant for
+ * single node deployments or deployments with sticky sessions.
+ * <p>
+ * Expiration is tracked in a timer wheel: every code is added to the slot of
+ * the tick it expires in, and a sweep only visits the slots of the ticks that
+ * have passed since the previous sweep.
+ */
+public class InMemoryUaaTokenStore extends AbstractUaaTokenStore {
+
+    public static final long DEFAULT_TICK = 1000;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final ConcurrentMap<String, TokenCode> codes = new ConcurrentHashMap<>();
+    private final Set<String>[] wheel;
+    private final long tick;
+    private long lastSweptTick;
+
+    public InMemoryUaaTokenStore() {
+        this(EXPIRATION_TIME);
+    }
+
+    public InMemoryUaaTokenStore(long expirationTime) {
+        this(expirationTime, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public InMemoryUaaTokenStore(long expirationTime, long tick, int wheelSize) {
+        super(expirationTime);
+        this.tick = tick;
+        this.wheel = new Set[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = ConcurrentHashMap.newKeySet();
+        }
+        this.lastSweptTick = System.currentTimeMillis() / tick - 1;
+    }
+
+    @Override
+    protected void storeCode(String code, String userId, String clientId, long expiresAt, byte[] authentication) {
+        TokenCode tokenCode = createTokenCode(code, userId, clientId, expiresAt, new Timestamp(System.currentTimeMillis()), authentication);
+        if (codes.putIfAbsent(code, tokenCode) != null) {
+            throw new DataIntegrityViolationException("[oauth_code] Duplicate code: " + code);
+        }
+        getSlot(expiresAt).add(code);
+    }
+
+    @Override
+    protected TokenCode removeCode(String code) {
+        TokenCode tokenCode = codes.remove(code);
+        if (tokenCode != null) {
+            getSlot(tokenCode.getExpiresAt()).remove(code);
+        }
+        return tokenCode;
+    }
+
+    @Override
+    public synchronized int removeExpiredCodes() {
+        //only ticks that have fully passed, the current one may hold live codes
+        long currentTick = System.currentTimeMillis() / tick;
+        long from = Math.max(lastSweptTick + 1, currentTick - wheel.length);
+        int removed = 0;
+        for (long t = from; t < currentTick; t++) {
+            Iterator<String> slot = wheel[(int) (t % wheel.length)].iterator();
+            while (slot.hasNext()) {
+                String code = slot.next();
+                TokenCode tokenCode = codes.get(code);
+                if (tokenCode == null) {
+                    slot.remove();
+                } else if (tokenCode.isExpired()) {
+                    //codes that expire in a later rotation of the wheel stay in the slot
+                    slot.remove();
+                    if (codes.remove(code, tokenCode)) {
+                        removed++;
+                    }
+                }
+            }
+        }
+        lastSweptTick = currentTick - 1;
+        logger.debug("[oauth_code] Removed " + removed + " expired in memory entries.");
+        return removed;
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    private Set<String> getSlot(long expiresAt) {
+        return wheel[(int) ((expiresAt / tick) % wheel.length)];
+    }
+}
@@ -14,27 +14,47 @@ package org.cloudfoundry.identity.uaa.oauth;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.codec.Codecs;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
 import org.springframework.security.oauth2.common.OAuth2AccessToken;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
@@ -54,14 +74,31 @@ import org.springframework.web.client.RestTemplate;
  * If the endpoint returns a 400 response, this indicates that the token is
  * invalid.
  *
+ * With local verification enabled the token keys are fetched from the
+ * /token_keys endpoint and cached by key id, and tokens are verified without
+ * a call to the UAA: signature, expiry and, when configured, issuer and
+ * audience. The keys are refreshed periodically and when a token refers to a
+ * key id that is not cached. Tokens carrying a revocation signature can still
+ * be sent to /check_token, see {@link #setCheckRevocableTokens(boolean)}.
+ *
+ * Requests go through a pool of keep-alive connections. Concurrent requests
+ * for the same token share a single call to /check_token, and successful
+ * results can be cached for a short time, see {@link #setCacheExpiration(long)}.
+ *
  * @author Dave Syer
  * @author Luke Taylor
  *
  */
-public class RemoteTokenServices implements ResourceServerTokenServices {
+public class RemoteTokenServices implements ResourceServerTokenServices, DisposableBean {
+
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
 
     protected final Log logger = LogFactory.getLog(getClass());
 
+    private final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+
+    private final HttpComponentsClientHttpRequestFactory requestFactory;
+
     private RestOperations restTemplate;
 
     private String checkTokenEndpointUrl;
@@ -72,8 +109,44 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
 
     private boolean storeClaims = false;
 
+    private boolean localVerification = false;
+
+    private String tokenKeysEndpointUrl;
+
+    private String issuer;
+
+    private String audience;
+
+    private boolean checkRevocableTokens = false;
+
+    private long tokenKeysRefreshInterval = 10 * 60 * 1000;
+
+    private long tokenKeysMinRefreshInterval = 30 * 1000;
+
+    private long tokenKeysFailureBackoff = 5 * 1000;
+
+    private volatile Map<String, SignatureVerifier> verifiers = Collections.emptyMap();
+
+    private volatile long tokenKeysFetchedAt = 0;
+
+    private volatile long tokenKeysFailedAt = 0;
+
+    private long cacheExpiration = 0;
+
+    private int cacheMaxEntries = DEFAULT_CACHE_MAX_ENTRIES;
+
+    private final ConcurrentMap<String, CachedResult> cache = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<Map<String, Object>>> inFlight = new ConcurrentHashMap<>();
+
     public RemoteTokenServices() {
-        restTemplate = new RestTemplate();
+        //all requests go to the same UAA
+        connectionManager.setMaxTotal(20);
+        connectionManager.setDefaultMaxPerRoute(20);
+        requestFactory = new HttpComponentsClientHttpRequestFactory(HttpClients.custom().setConnectionManager(connectionManager).build());
+        requestFactory.setConnectTimeout(10000);
+        requestFactory.setReadTimeout(10000);
+        restTemplate = new RestTemplate(requestFactory);
         ((RestTemplate) restTemplate).setErrorHandler(new DefaultResponseErrorHandler() {
             @Override
             // Ignore 400
@@ -114,19 +187,205 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         this.clientSecret = clientSecret;
     }
 
+    /**
+     * @param maxConnections the maximum number of pooled connections to the UAA (default 20),
+     *                       not used with a custom rest template
+     */
+    public void setMaxConnections(int maxConnections) {
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+    }
+
+    /**
+     * @param connectTimeout the connect timeout in milliseconds (default 10000), not used with a custom rest template
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        requestFactory.setConnectTimeout(connectTimeout);
+    }
+
+    /**
+     * @param readTimeout the read timeout in milliseconds (default 10000), not used with a custom rest template
+     */
+    public void setReadTimeout(int readTimeout) {
+        requestFactory.setReadTimeout(readTimeout);
+    }
+
+    /**
+     * Successful /check_token results are cached for this long, and never
+     * beyond the expiry of the token. A revoked token is accepted until its
+     * cache entry expires.
+     * @param cacheExpiration milliseconds to cache results, 0 (the default) disables the cache
+     */
+    public void setCacheExpiration(long cacheExpiration) {
+        this.cacheExpiration = cacheExpiration;
+        cache.clear();
+    }
+
+    /**
+     * @param cacheMaxEntries the number of results above which the cache is emptied (default 10000)
+     */
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    public boolean isLocalVerification() {
+        return localVerification;
+    }
+
+    /**
+     * Set to true to verify JWT access tokens with the keys published by the
+     * UAA instead of calling /check_token for every token.
+     * @param localVerification true to verify tokens locally (default false)
+     */
+    public void setLocalVerification(boolean localVerification) {
+        this.localVerification = localVerification;
+    }
+
+    /**
+     * @param tokenKeysEndpointUrl the /token_keys endpoint, by default derived from the check token endpoint
+     */
+    public void setTokenKeysEndpointUrl(String tokenKeysEndpointUrl) {
+        this.tokenKeysEndpointUrl = tokenKeysEndpointUrl;
+    }
+
+    /**
+     * @param issuer the expected <code>iss</code> claim of locally verified tokens, not checked if null
+     */
+    public void setIssuer(String issuer) {
+        this.issuer = issuer;
+    }
+
+    /**
+     * @param audience a value the <code>aud</code> claim of locally verified tokens must contain, not checked if null
+     */
+    public void setAudience(String audience) {
+        this.audience = audience;
+    }
+
+    /**
+     * Tokens with a revocation signature are invalidated by the UAA when the
+     * user or the client changes their secret, which a resource server can not
+     * detect on its own.
+     * @param checkRevocableTokens true to send revocable tokens to /check_token after local verification
+     */
+    public void setCheckRevocableTokens(boolean checkRevocableTokens) {
+        this.checkRevocableTokens = checkRevocableTokens;
+    }
+
+    /**
+     * @param tokenKeysRefreshInterval milliseconds after which the cached token keys are fetched again
+     */
+    public void setTokenKeysRefreshInterval(long tokenKeysRefreshInterval) {
+        this.tokenKeysRefreshInterval = tokenKeysRefreshInterval;
+    }
+
+    /**
+     * @param tokenKeysMinRefreshInterval minimum milliseconds between two fetches of the token keys, so that
+     *                                    tokens with unknown key ids can not flood the UAA
+     */
+    public void setTokenKeysMinRefreshInterval(long tokenKeysMinRefreshInterval) {
+        this.tokenKeysMinRefreshInterval = tokenKeysMinRefreshInterval;
+    }
+
+    /**
+     * @param tokenKeysFailureBackoff milliseconds during which tokens are rejected without another fetch after
+     *                                the token keys could not be fetched and none are cached
+     */
+    public void setTokenKeysFailureBackoff(long tokenKeysFailureBackoff) {
+        this.tokenKeysFailureBackoff = tokenKeysFailureBackoff;
+    }
+
     @Override
     public OAuth2Authentication loadAuthentication(String accessToken) throws AuthenticationException {
+        if (localVerification) {
+            Map<String, Object> claims = verifyLocally(accessToken);
+            if (!checkRevocableTokens || !claims.containsKey(ClaimConstants.REVOCATION_SIGNATURE)) {
+                return getAuthentication(claims);
+            }
+        }
 
-        MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
-        formData.add("token", accessToken);
-        HttpHeaders headers = new HttpHeaders();
-        headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
-        Map<String, Object> map = postForMap(checkTokenEndpointUrl, formData, headers);
+        Map<String, Object> map = checkToken(accessToken);
 
         if (map.containsKey("error")) {
             logger.debug("check_token returned error: " + map.get("error"));
             throw new InvalidTokenException(accessToken);
         }
+        return getAuthentication(map);
+    }
+
+    /**
+     * Calls /check_token, unless the result is cached or another thread is
+     * already checking the same token.
+     */
+    private Map<String, Object> checkToken(String accessToken) {
+        String key = digest(accessToken);
+        CachedResult cached = cache.get(key);
+        if (cached != null) {
+            if (cached.expiresAt > System.currentTimeMillis()) {
+                return cached.result;
+            }
+            cache.remove(key, cached);
+        }
+
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        CompletableFuture<Map<String, Object>> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            MultiValueMap<String, String> formData = new LinkedMultiValueMap<String, String>();
+            formData.add("token", accessToken);
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+            Map<String, Object> map = Collections.unmodifiableMap(postForMap(checkTokenEndpointUrl, formData, headers));
+            if (cacheExpiration > 0 && !map.containsKey("error")) {
+                long expiresAt = System.currentTimeMillis() + cacheExpiration;
+                Object exp = map.get(ClaimConstants.EXP);
+                if (exp instanceof Number) {
+                    expiresAt = Math.min(expiresAt, ((Number) exp).longValue() * 1000);
+                }
+                if (cache.size() >= cacheMaxEntries) {
+                    cache.clear();
+                }
+                cache.put(key, new CachedResult(map, expiresAt));
+            }
+            future.complete(map);
+            return map;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static String digest(String accessToken) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes(StandardCharsets.UTF_8));
+            return new String(Base64.encode(digest), StandardCharsets.US_ASCII);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CachedResult {
+        private final Map<String, Object> result;
+        private final long expiresAt;
+
+        private CachedResult(Map<String, Object> result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private OAuth2Authentication getAuthentication(Map<String, Object> map) {
 
         Assert.state(map.containsKey("client_id"), "Client id must be present in response from auth server");
         String remoteClientId = (String) map.get("client_id");
@@ -182,6 +441,141 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         return new OAuth2Authentication(clientAuthentication.createOAuth2Request(), userAuthentication);
     }
 
+    protected Map<String, Object> verifyLocally(String accessToken) {
+        Jwt jwt;
+        String keyId;
+        try {
+            jwt = JwtHelper.decode(accessToken);
+            String header = new String(Codecs.b64UrlDecode(accessToken.substring(0, accessToken.indexOf('.'))), "UTF-8");
+            keyId = (String) JsonUtils.readValue(header, Map.class).get("kid");
+        } catch (RuntimeException | IOException e) {
+            throw new InvalidTokenException("Invalid access token (could not decode)", e);
+        }
+
+        if (!verifySignature(jwt, keyId, false) && !verifySignature(jwt, keyId, true)) {
+            throw new InvalidTokenException("Invalid access token (signature could not be verified)");
+        }
+
+        Map<String, Object> claims;
+        try {
+            claims = JsonUtils.readValue(jwt.getClaims(), Map.class);
+        } catch (JsonUtils.JsonUtilException e) {
+            throw new InvalidTokenException("Invalid access token (claims could not be read)", e);
+        }
+        Object exp = claims.get(ClaimConstants.EXP);
+        if (!(exp instanceof Number) || ((Number) exp).longValue() * 1000 <= System.currentTimeMillis()) {
+            throw new InvalidTokenException("Invalid access token (expired)");
+        }
+        if (issuer != null && !issuer.equals(claims.get(ClaimConstants.ISS))) {
+            throw new InvalidTokenException("Invalid access token (issuer does not match)");
+        }
+        if (audience != null) {
+            Object aud = claims.get(ClaimConstants.AUD);
+            if (!(aud instanceof Collection ? ((Collection<?>) aud).contains(audience) : audience.equals(aud))) {
+                throw new InvalidTokenException("Invalid access token (audience does not match)");
+            }
+        }
+        return claims;
+    }
+
+    private boolean verifySignature(Jwt jwt, String keyId, boolean refresh) {
+        Map<String, SignatureVerifier> current = refresh ? refreshVerifiers(false) : getVerifiers();
+        if (current == null) {
+            //refreshed too recently, possibly by another request
+            current = verifiers;
+        }
+        Collection<SignatureVerifier> candidates;
+        if (keyId != null) {
+            SignatureVerifier verifier = current.get(keyId);
+            candidates = verifier == null ? Collections.<SignatureVerifier>emptySet() : Collections.singleton(verifier);
+        } else {
+            candidates = current.values();
+        }
+        for (SignatureVerifier verifier : candidates) {
+            try {
+                jwt.verifySignature(verifier);
+                return true;
+            } catch (InvalidSignatureException e) {
+                logger.debug("Token signature does not match key: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private Map<String, SignatureVerifier> getVerifiers() {
+        if (System.currentTimeMillis() - tokenKeysFetchedAt > tokenKeysRefreshInterval) {
+            Map<String, SignatureVerifier> refreshed = refreshVerifiers(true);
+            if (refreshed != null) {
+                return refreshed;
+            }
+        }
+        return verifiers;
+    }
+
+    /**
+     * Fetches the token keys unless they were fetched less than the minimum
+     * refresh interval ago.
+     * @param periodic true if called because the keys are due, false if a token did not match the cached keys
+     * @return the new verifiers, or null if the keys were not fetched
+     */
+    private synchronized Map<String, SignatureVerifier> refreshVerifiers(boolean periodic) {
+        long now = System.currentTimeMillis();
+        if (verifiers.isEmpty() && now - tokenKeysFailedAt < tokenKeysFailureBackoff) {
+            throw new InvalidTokenException("Invalid access token (token keys are not available)");
+        }
+        long age = now - tokenKeysFetchedAt;
+        if ((periodic && age <= tokenKeysRefreshInterval) || (!periodic && age < tokenKeysMinRefreshInterval)) {
+            return null;
+        }
+        tokenKeysFetchedAt = now;
+        Map<String, SignatureVerifier> result = new HashMap<>();
+        try {
+            for (Map<String, Object> key : getTokenKeys()) {
+                String value = (String) key.get("value");
+                if (value == null) {
+                    continue;
+                }
+                String keyId = (String) key.get("kid");
+                SignatureVerifier verifier = value.startsWith("-----BEGIN") ? new RsaVerifier(value) : new MacSigner(value);
+                result.put(keyId == null ? "#" + result.size() : keyId, verifier);
+            }
+        } catch (RuntimeException e) {
+            if (!verifiers.isEmpty()) {
+                logger.warn("Unable to refresh token keys, using cached keys: " + e.getMessage());
+                return null;
+            }
+            logger.warn("Unable to fetch token keys: " + e.getMessage());
+            tokenKeysFetchedAt = 0;
+            tokenKeysFailedAt = now;
+            throw new InvalidTokenException("Invalid access token (token keys could not be fetched)", e);
+        }
+        logger.debug("Fetched " + result.size() + " token keys");
+        verifiers = Collections.unmodifiableMap(result);
+        return verifiers;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> getTokenKeys() {
+        String url = tokenKeysEndpointUrl;
+        if (url == null) {
+            Assert.state(checkTokenEndpointUrl != null && checkTokenEndpointUrl.endsWith("/check_token"), "A token keys endpoint is required for local verification");
+            url = checkTokenEndpointUrl.substring(0, checkTokenEndpointUrl.length() - "/check_token".length()) + "/token_keys";
+        }
+        HttpHeaders headers = new HttpHeaders();
+        if (clientId != null) {
+            //shared secrets are only returned to authenticated clients
+            headers.set("Authorization", getAuthorizationHeader(clientId, clientSecret));
+        }
+        Map<String, Object> map = restTemplate.exchange(url, HttpMethod.GET, new HttpEntity<Void>(headers), Map.class).getBody();
+        if (map == null) {
+            return Collections.emptyList();
+        }
+        if (map.get("keys") instanceof Collection) {
+            return new ArrayList<>((Collection<Map<String, Object>>) map.get("keys"));
+        }
+        return Collections.singletonList(map);
+    }
+
     private Authentication getUserAuthentication(Map<String, Object> map, Set<String> scope) {
         String username = (String) map.get("user_name");
         if (username == null) {
@@ -225,6 +619,11 @@ public class RemoteTokenServices implements ResourceServerTokenServices {
         }
     }
 
+    @Override
+    public void destroy() throws Exception {
+        connectionManager.shutdown();
+    }
+
     private Map<String, Object> postForMap(String path, MultiValueMap<String, String> formData, HttpHeaders headers) {
         if (headers.getContentType() == null) {
             headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
@@ -15,9 +15,9 @@ package org.cloudfoundry.identity.uaa.oauth;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.WildcardMatcher;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.common.exceptions.InvalidScopeException;
 import org.springframework.security.oauth2.common.util.OAuth2Utils;
@@ -54,9 +54,9 @@ public class UaaOauth2RequestValidator implements OAuth2RequestValidator {
         }
 
         if (wildCardsAllowed) {
-            Set<Pattern> wildcards = UaaStringUtils.constructWildcards(clientScopes);
+            WildcardMatcher wildcards = UaaStringUtils.getWildcardMatcher(clientScopes);
             for (String scope : requestScopes) {
-                if (!UaaStringUtils.matches(wildcards, scope)) {
+                if (!wildcards.matches(scope)) {
                     throw new InvalidScopeException("Invalid scope: " + scope, clientScopes);
                 }
             }
@@ -31,6 +31,7 @@ import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.util.WildcardMatcher;
 import org.cloudfoundry.identity.uaa.util.UaaTokenUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -86,7 +87,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants.ADDITIONAL_AZ_ATTR;
@@ -975,9 +975,9 @@ public class UaaTokenServices implements AuthorizationServerTokenServices, Resou
         if (authorities != null) {
             ArrayList<String> a = new ArrayList<>();
             a.addAll(authorities);
-            Set<Pattern> wildcards = UaaStringUtils.constructWildcards(authorities);
+            WildcardMatcher wildcards = UaaStringUtils.getWildcardMatcher(authorities);
             scopes.stream().forEach(s -> {
-                if(!authorities.contains(s) && !UaaStringUtils.matches(wildcards, s)) {
+                if(!authorities.contains(s) && !wildcards.matches(s)) {
                     throw new InvalidTokenException("Invalid token (scope " + s +" has been revoked)");
                 }
             });
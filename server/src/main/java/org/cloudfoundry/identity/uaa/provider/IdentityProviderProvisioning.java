@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.provider;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IdentityProviderProvisioning {
@@ -28,5 +29,15 @@ public interface IdentityProviderProvisioning {
 
     IdentityProvider retrieveByOrigin(String origin, String zoneId);
 
+    /**
+     * Returns the providers of the given type, across all identity zones,
+     * whose last modification is strictly after <code>since</code>.
+     */
+    List<IdentityProvider> retrieveModifiedSince(String type, Date since);
+
+    /**
+     * Returns the number of providers of the given type across all identity zones.
+     */
+    int countByType(String type);
 
 }
@@ -20,6 +20,7 @@ import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.ObjectUtils;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
@@ -30,9 +31,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisioning, SystemDeletable {
 
@@ -58,10 +65,22 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     public static final String IDENTITY_PROVIDER_BY_ORIGIN_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where origin_key=? and identity_zone_id=? ";
 
+    public static final String IDENTITY_PROVIDERS_MODIFIED_SINCE_QUERY = "select " + ID_PROVIDER_FIELDS + " from identity_provider " + "where type=? and lastmodified>?";
+
+    public static final String IDENTITY_PROVIDER_COUNT_BY_TYPE_QUERY = "select count(*) from identity_provider where type=?";
+
+    public static final String IDENTITY_PROVIDERS_WATERMARK_QUERY = "select count(*), max(lastmodified), sum(version) from identity_provider where identity_zone_id=?";
+
     protected final JdbcTemplate jdbcTemplate;
 
     private final RowMapper<IdentityProvider> mapper = new IdentityProviderRowMapper();
 
+    private final ConcurrentMap<String, ZoneProviders> zoneProviders = new ConcurrentHashMap<>();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private long cacheExpiration = 0;
+
     public JdbcIdentityProviderProvisioning(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
         this.jdbcTemplate = jdbcTemplate;
@@ -89,8 +108,91 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     @Override
     public IdentityProvider retrieveByOrigin(String origin, String zoneId) {
-        IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
-        return identityProvider;
+        if (cacheExpiration <= 0) {
+            IdentityProvider identityProvider = jdbcTemplate.queryForObject(IDENTITY_PROVIDER_BY_ORIGIN_QUERY, mapper, origin, zoneId);
+            return identityProvider;
+        }
+        IdentityProvider identityProvider = getZoneProviders(zoneId).byOrigin.get(origin);
+        if (identityProvider == null) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return copy(identityProvider);
+    }
+
+    /**
+     * Returns the provider snapshot of a zone. An expired snapshot is only reloaded
+     * when the zone's watermark (provider count, last modification and version sum)
+     * has moved, which also picks up changes made by other servers.
+     */
+    protected ZoneProviders getZoneProviders(String zoneId) {
+        long now = System.currentTimeMillis();
+        ZoneProviders snapshot = zoneProviders.get(zoneId);
+        if (snapshot != null && now < snapshot.expiresAt) {
+            return snapshot;
+        }
+        long invalidation = invalidations.get();
+        String watermark = jdbcTemplate.queryForObject(IDENTITY_PROVIDERS_WATERMARK_QUERY, new WatermarkRowMapper(), zoneId);
+        if (snapshot != null && snapshot.watermark.equals(watermark)) {
+            snapshot.expiresAt = now + cacheExpiration;
+            return snapshot;
+        }
+        Map<String, IdentityProvider> byOrigin = new HashMap<>();
+        for (IdentityProvider provider : jdbcTemplate.query(IDENTITY_PROVIDERS_QUERY, mapper, zoneId)) {
+            byOrigin.put(provider.getOriginKey(), provider);
+        }
+        snapshot = new ZoneProviders(Collections.unmodifiableMap(byOrigin), watermark, now + cacheExpiration);
+        if (invalidation == invalidations.get()) {
+            zoneProviders.put(zoneId, snapshot);
+        }
+        return snapshot;
+    }
+
+    protected void invalidate(String zoneId) {
+        invalidations.incrementAndGet();
+        if (zoneId == null) {
+            zoneProviders.clear();
+        } else {
+            zoneProviders.remove(zoneId);
+        }
+    }
+
+    public void clearCache() {
+        invalidate(null);
+    }
+
+    /**
+     * @param cacheExpiration milliseconds a zone's provider snapshot is served by
+     * {@link #retrieveByOrigin(String, String)} before its watermark is checked again,
+     * zero or less disables the cache
+     */
+    public void setCacheExpiration(long cacheExpiration) {
+        this.cacheExpiration = cacheExpiration;
+        clearCache();
+    }
+
+    protected IdentityProvider copy(IdentityProvider source) {
+        IdentityProvider result = new IdentityProvider();
+        result.setId(source.getId());
+        result.setVersion(source.getVersion());
+        result.setCreated(source.getCreated());
+        result.setLastModified(source.getLastModified());
+        result.setName(source.getName());
+        result.setOriginKey(source.getOriginKey());
+        result.setIdentityZoneId(source.getIdentityZoneId());
+        result.setConfig(source.getConfig());
+        result.setType(source.getType());
+        result.setActive(source.isActive());
+        return result;
+    }
+
+    @Override
+    public List<IdentityProvider> retrieveModifiedSince(String type, Date since) {
+        return jdbcTemplate.query(IDENTITY_PROVIDERS_MODIFIED_SINCE_QUERY, mapper, type, new Timestamp(since.getTime()));
+    }
+
+    @Override
+    public int countByType(String type) {
+        return jdbcTemplate.queryForObject(IDENTITY_PROVIDER_COUNT_BY_TYPE_QUERY, Integer.class, type);
     }
 
     @Override
@@ -116,6 +218,8 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
             });
         } catch (DuplicateKeyException e) {
             throw new IdpAlreadyExistsException(e.getMostSpecificCause().getMessage());
+        } finally {
+            invalidate(identityProvider.getIdentityZoneId());
         }
         return retrieve(id);
     }
@@ -136,6 +240,7 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
             ps.setString(pos++, identityProvider.getId().trim());
             }
         });
+        invalidate(identityProvider.getIdentityZoneId());
         return retrieve(identityProvider.getId());
     }
 
@@ -157,12 +262,20 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
 
     @Override
     public int deleteByIdentityZone(String zoneId) {
-        return jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ZONE_SQL, zoneId);
+        try {
+            return jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ZONE_SQL, zoneId);
+        } finally {
+            invalidate(zoneId);
+        }
     }
 
     @Override
     public int deleteByOrigin(String origin, String zoneId) {
-        return jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ORIGIN_SQL, zoneId, origin);
+        try {
+            return jdbcTemplate.update(DELETE_IDENTITY_PROVIDER_BY_ORIGIN_SQL, zoneId, origin);
+        } finally {
+            invalidate(zoneId);
+        }
     }
 
     @Override
@@ -170,6 +283,26 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
         return logger;
     }
 
+    protected static final class ZoneProviders {
+        private final Map<String, IdentityProvider> byOrigin;
+        private final String watermark;
+        private volatile long expiresAt;
+
+        protected ZoneProviders(Map<String, IdentityProvider> byOrigin, String watermark, long expiresAt) {
+            this.byOrigin = byOrigin;
+            this.watermark = watermark;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class WatermarkRowMapper implements RowMapper<String> {
+        @Override
+        public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+            Timestamp lastModified = rs.getTimestamp(2);
+            return rs.getLong(1) + ":" + (lastModified == null ? 0 : lastModified.getTime()) + ":" + rs.getLong(3);
+        }
+    }
+
     private static final class IdentityProviderRowMapper implements RowMapper<IdentityProvider> {
         @Override
         public IdentityProvider mapRow(ResultSet rs, int rowNum) throws SQLException {
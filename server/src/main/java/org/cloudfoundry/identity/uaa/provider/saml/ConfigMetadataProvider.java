@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.provider.saml;
 
+import org.cloudfoundry.identity.uaa.provider.saml.SamlMetadataRegistry.SharedMetadata;
 import org.opensaml.saml2.metadata.provider.AbstractMetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.xml.XMLObject;
@@ -15,31 +16,51 @@ public class ConfigMetadataProvider extends AbstractMetadataProvider implements
 
     private final Logger log = LoggerFactory.getLogger(ConfigMetadataProvider.class);
 
-    private final String metadata;
+    private final SharedMetadata metadata;
     private final String zoneId;
     private final String alias;
 
     public ConfigMetadataProvider(String zoneId, String alias, String metadata) {
+        this(zoneId, alias, new SharedMetadata(null, metadata));
+    }
+
+    public ConfigMetadataProvider(String zoneId, String alias, SharedMetadata metadata) {
         this.metadata = metadata;
         this.alias = alias;
         this.zoneId = zoneId;
     }
 
     public byte[] fetchMetadata() throws MetadataProviderException {
-        return metadata.getBytes(StandardCharsets.UTF_8);
+        return metadata.getMetadata().getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * Parses the metadata document once; the result is shared, read only, by
+     * every provider created from the same {@link SharedMetadata}.
+     */
     @Override
     public XMLObject doGetMetadata() throws MetadataProviderException {
-
-        InputStream stream = new ByteArrayInputStream(metadata.getBytes(StandardCharsets.UTF_8));
-
-        try {
-            return unmarshallMetadata(stream);
-        } catch (UnmarshallingException e) {
-            log.error("Unable to unmarshall metadata", e);
-            throw new MetadataProviderException(e);
+        XMLObject result = metadata.getParsed();
+        if (result == null) {
+            synchronized (metadata) {
+                result = metadata.getParsed();
+                if (result == null) {
+                    InputStream stream = new ByteArrayInputStream(fetchMetadata());
+                    try {
+                        result = unmarshallMetadata(stream);
+                    } catch (UnmarshallingException e) {
+                        log.error("Unable to unmarshall metadata", e);
+                        throw new MetadataProviderException(e);
+                    }
+                    metadata.setParsed(result);
+                }
+            }
         }
+        return result;
+    }
+
+    public SharedMetadata getSharedMetadata() {
+        return metadata;
     }
 
     @Override
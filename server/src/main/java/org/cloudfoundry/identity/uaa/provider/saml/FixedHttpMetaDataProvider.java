@@ -46,10 +46,18 @@ public class FixedHttpMetaDataProvider extends HTTPMetadataProvider {
     }
 
 
+    /**
+     * Downloads the metadata document. The request is conditional once a document
+     * has been retrieved, and the previously retrieved document is returned
+     * when the server responds with <code>304 Not Modified</code>.
+     */
     @Override
     public byte[] fetchMetadata() throws MetadataProviderException {
-        if (metadata==null) {
-            metadata = super.fetchMetadata();
+        byte[] fetched = super.fetchMetadata();
+        if (fetched!=null) {
+            metadata = fetched;
+        } else if (metadata==null) {
+            throw new MetadataProviderException("No metadata document received from:"+super.getMetadataURI());
         }
         return metadata;
     }
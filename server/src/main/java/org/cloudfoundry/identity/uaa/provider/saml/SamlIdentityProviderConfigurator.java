@@ -12,8 +12,6 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.provider.saml;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.SimpleHttpConnectionManager;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
 import org.apache.commons.logging.Log;
@@ -32,16 +30,15 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.cloudfoundry.identity.uaa.provider.AbstractIdentityProviderDefinition.EMAIL_DOMAIN_ATTR;
 import static org.cloudfoundry.identity.uaa.provider.ExternalIdentityProviderDefinition.ATTRIBUTE_MAPPINGS;
@@ -59,20 +56,11 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     private List<SamlIdentityProviderDefinition> toBeFetchedProviders = new LinkedList<>();
     private HttpClientParams clientParams;
     private BasicParserPool parserPool;
-
-    private Timer dummyTimer = new Timer() {
-        @Override public void cancel() { super.cancel(); }
-        @Override public int purge() {return 0; }
-        @Override public void schedule(TimerTask task, long delay) {}
-        @Override public void schedule(TimerTask task, long delay, long period) {}
-        @Override public void schedule(TimerTask task, Date firstTime, long period) {}
-        @Override public void schedule(TimerTask task, Date time) {}
-        @Override public void scheduleAtFixedRate(TimerTask task, long delay, long period) {}
-        @Override public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {}
-    };
+    private SamlMetadataFetcher metadataFetcher;
+    private SamlMetadataRegistry metadataRegistry = new SamlMetadataRegistry();
+    private final AtomicLong revision = new AtomicLong();
 
     public SamlIdentityProviderConfigurator() {
-        dummyTimer.cancel();
     }
 
     public List<SamlIdentityProviderDefinition> getIdentityProviderDefinitions() {
@@ -104,7 +92,7 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     }
 
     protected void parseIdentityProviderDefinitions() {
-        identityProviders.clear();
+        clearIdentityProviders();
         List<SamlIdentityProviderDefinition> providerDefinitions = new LinkedList<>(toBeFetchedProviders);
         if (getLegacyIdpMetaData()!=null) {
             SamlIdentityProviderDefinition def = new SamlIdentityProviderDefinition();
@@ -130,6 +118,7 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
             }
             uniqueAlias.add(alias);
         }
+        prefetchMetadata(providerDefinitions);
         for (SamlIdentityProviderDefinition def : providerDefinitions) {
             try {
                 addSamlIdentityProviderDefinition(def);
@@ -151,6 +140,7 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
      */
     public synchronized ExtendedMetadataDelegate[] addSamlIdentityProviderDefinition(SamlIdentityProviderDefinition providerDefinition) throws MetadataProviderException {
         ExtendedMetadataDelegate added, deleted=null;
+        SamlIdentityProviderDefinition deletedDefinition = null;
         if (providerDefinition==null) {
             throw new NullPointerException();
         }
@@ -163,11 +153,17 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         for (SamlIdentityProviderDefinition def : getIdentityProviderDefinitions()) {
             if (getUniqueAlias(providerDefinition).equals(getUniqueAlias(def))) {
                 deleted = identityProviders.remove(def);
+                deletedDefinition = def;
                 break;
             }
         }
         SamlIdentityProviderDefinition clone = providerDefinition.clone();
-        added = getExtendedMetadataDelegate(clone);
+        try {
+            added = getExtendedMetadataDelegate(clone);
+        } catch (MetadataProviderException | RuntimeException e) {
+            restore(deletedDefinition, deleted);
+            throw e;
+        }
         String entityIDToBeAdded = ((ConfigMetadataProvider)added.getDelegate()).getEntityID();
         boolean entityIDexists = false;
         for (Map.Entry<SamlIdentityProviderDefinition, ExtendedMetadataDelegate> entry : identityProviders.entrySet()) {
@@ -181,15 +177,37 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
             }
         }
         if (entityIDexists) {
+            releaseMetadata(added);
+            restore(deletedDefinition, deleted);
             throw new MetadataProviderException("Duplicate entity ID:"+entityIDToBeAdded);
         }
 
         identityProviders.put(clone, added);
+        revision.incrementAndGet();
+        releaseMetadata(deleted);
+        evictMetadata(deletedDefinition);
         return new ExtendedMetadataDelegate[] {added, deleted};
     }
 
+    /**
+     * Puts back a definition that a rejected update was going to replace, it keeps its metadata reference
+     */
+    private void restore(SamlIdentityProviderDefinition definition, ExtendedMetadataDelegate delegate) {
+        if (delegate != null) {
+            identityProviders.put(definition, delegate);
+        }
+    }
+
     public synchronized ExtendedMetadataDelegate removeIdentityProviderDefinition(SamlIdentityProviderDefinition providerDefinition) {
-        return identityProviders.remove(providerDefinition);
+        ExtendedMetadataDelegate removed = identityProviders.remove(providerDefinition);
+        if (removed!=null) {
+            revision.incrementAndGet();
+        }
+        releaseMetadata(removed);
+        if (removed!=null) {
+            evictMetadata(providerDefinition);
+        }
+        return removed;
 //        for (SamlIdentityProviderDefinition def : identityProviders.keySet()) {
 //            if (getUniqueAlias(providerDefinition).equals(getUniqueAlias(def))) {
 //                return identityProviders.remove(def);
@@ -238,7 +256,8 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
     }
 
     protected ExtendedMetadataDelegate configureXMLMetadata(SamlIdentityProviderDefinition def) {
-        ConfigMetadataProvider configMetadataProvider = new ConfigMetadataProvider(def.getZoneId(), def.getIdpEntityAlias(), def.getMetaDataLocation());
+        SamlMetadataRegistry.SharedMetadata metadata = getMetadataRegistry().acquire(def.getMetaDataLocation());
+        ConfigMetadataProvider configMetadataProvider = new ConfigMetadataProvider(def.getZoneId(), def.getIdpEntityAlias(), metadata);
         configMetadataProvider.setParserPool(getParserPool());
         ExtendedMetadata extendedMetadata = new ExtendedMetadata();
         extendedMetadata.setLocal(false);
@@ -249,32 +268,120 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         return delegate;
     }
 
+    protected void releaseMetadata(ExtendedMetadataDelegate delegate) {
+        if (delegate!=null && delegate.getDelegate() instanceof ConfigMetadataProvider) {
+            getMetadataRegistry().release(((ConfigMetadataProvider) delegate.getDelegate()).getSharedMetadata());
+        }
+    }
+
+    /**
+     * Drops the cached metadata document of a removed definition, unless another
+     * definition downloads the same URL.
+     */
+    protected void evictMetadata(SamlIdentityProviderDefinition removed) {
+        if (removed==null || removed.getType() != SamlIdentityProviderDefinition.MetadataLocation.URL) {
+            return;
+        }
+        try {
+            String url = adjustURIForPort(removed.getMetaDataLocation());
+            Class<? extends ProtocolSocketFactory> socketFactory = getSocketFactory(removed);
+            for (SamlIdentityProviderDefinition def : identityProviders.keySet()) {
+                if (def.getType() == SamlIdentityProviderDefinition.MetadataLocation.URL &&
+                    url.equals(adjustURIForPort(def.getMetaDataLocation())) &&
+                    socketFactory.equals(getSocketFactory(def))) {
+                    return;
+                }
+            }
+            getMetadataFetcher().evict(url, socketFactory);
+        } catch (MetadataProviderException | URISyntaxException e) {
+            logger.debug("Unable to evict metadata for:"+removed.getMetaDataLocation(), e);
+        }
+    }
+
+    protected synchronized void clearIdentityProviders() {
+        for (ExtendedMetadataDelegate delegate : identityProviders.values()) {
+            releaseMetadata(delegate);
+        }
+        identityProviders.clear();
+        revision.incrementAndGet();
+    }
+
+    /**
+     * @return a counter that changes every time a provider definition is added, replaced or removed
+     */
+    public long getRevision() {
+        return revision.get();
+    }
+
     protected ExtendedMetadataDelegate configureURLMetadata(SamlIdentityProviderDefinition def) throws MetadataProviderException {
-        Class<ProtocolSocketFactory> socketFactory = null;
         try {
             def = def.clone();
-            socketFactory = (Class<ProtocolSocketFactory>) Class.forName(def.getSocketFactoryClassName());
-            ExtendedMetadata extendedMetadata = new ExtendedMetadata();
-            extendedMetadata.setAlias(def.getIdpEntityAlias());
-            SimpleHttpConnectionManager connectionManager = new SimpleHttpConnectionManager(true);
-            connectionManager.getParams().setDefaults(getClientParams());
-            HttpClient client = new HttpClient(connectionManager);
-            FixedHttpMetaDataProvider fixedHttpMetaDataProvider = new FixedHttpMetaDataProvider(dummyTimer, client, adjustURIForPort(def.getMetaDataLocation()));
-            fixedHttpMetaDataProvider.setSocketFactory(socketFactory.newInstance());
-            byte[] metadata = fixedHttpMetaDataProvider.fetchMetadata();
+            byte[] metadata = getMetadataFetcher().fetch(adjustURIForPort(def.getMetaDataLocation()), getSocketFactory(def));
             def.setMetaDataLocation(new String(metadata, StandardCharsets.UTF_8));
             return configureXMLMetadata(def);
         } catch (URISyntaxException e) {
             throw new MetadataProviderException("Invalid socket factory(invalid URI):"+def.getMetaDataLocation(), e);
-        } catch (ClassNotFoundException e) {
-            throw new MetadataProviderException("Invalid socket factory:"+def.getSocketFactoryClassName(), e);
-        } catch (InstantiationException e) {
+        } catch (IllegalArgumentException e) {
             throw new MetadataProviderException("Invalid socket factory:"+def.getSocketFactoryClassName(), e);
-        } catch (IllegalAccessException e) {
+        }
+    }
+
+    protected Class<? extends ProtocolSocketFactory> getSocketFactory(SamlIdentityProviderDefinition def) throws MetadataProviderException {
+        try {
+            return (Class<ProtocolSocketFactory>) Class.forName(def.getSocketFactoryClassName());
+        } catch (ClassNotFoundException e) {
             throw new MetadataProviderException("Invalid socket factory:"+def.getSocketFactoryClassName(), e);
         }
     }
 
+    /**
+     * Starts downloading the metadata of all URL based definitions in parallel.
+     * Definitions that fail here are reported when they are added.
+     */
+    public void prefetchMetadata(List<SamlIdentityProviderDefinition> definitions) {
+        Map<Class<? extends ProtocolSocketFactory>, List<String>> urls = new HashMap<>();
+        for (SamlIdentityProviderDefinition def : definitions) {
+            if (def.getType() == SamlIdentityProviderDefinition.MetadataLocation.URL) {
+                try {
+                    Class<? extends ProtocolSocketFactory> socketFactory = getSocketFactory(def);
+                    if (!urls.containsKey(socketFactory)) {
+                        urls.put(socketFactory, new LinkedList<String>());
+                    }
+                    urls.get(socketFactory).add(adjustURIForPort(def.getMetaDataLocation()));
+                } catch (MetadataProviderException | URISyntaxException e) {
+                    logger.debug("Skipping metadata prefetch for:"+def.getMetaDataLocation(), e);
+                }
+            }
+        }
+        for (Map.Entry<Class<? extends ProtocolSocketFactory>, List<String>> entry : urls.entrySet()) {
+            getMetadataFetcher().prefetch(entry.getValue(), entry.getKey());
+        }
+    }
+
+    /**
+     * Returns the URL based definitions whose metadata document has changed since
+     * they were added, for example after a certificate rotation at the IDP.
+     * Revalidation of stale documents is started in the background as a side effect.
+     */
+    public synchronized List<SamlIdentityProviderDefinition> getDefinitionsWithChangedMetadata() {
+        List<SamlIdentityProviderDefinition> result = new LinkedList<>();
+        for (Map.Entry<SamlIdentityProviderDefinition, ExtendedMetadataDelegate> entry : identityProviders.entrySet()) {
+            SamlIdentityProviderDefinition def = entry.getKey();
+            if (def.getType() == SamlIdentityProviderDefinition.MetadataLocation.URL) {
+                try {
+                    byte[] current = getMetadataFetcher().fetch(adjustURIForPort(def.getMetaDataLocation()), getSocketFactory(def));
+                    byte[] applied = ((ConfigMetadataProvider) entry.getValue().getDelegate()).fetchMetadata();
+                    if (!Arrays.equals(current, applied)) {
+                        result.add(def);
+                    }
+                } catch (MetadataProviderException | URISyntaxException e) {
+                    logger.debug("Unable to check metadata for:"+def.getMetaDataLocation(), e);
+                }
+            }
+        }
+        return result;
+    }
+
     protected String adjustURIForPort(String uri) throws URISyntaxException {
         URI metadataURI = new URI(uri);
         if (metadataURI.getPort()<0) {
@@ -289,7 +396,7 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
 
 
     public void setIdentityProviders(Map<String, Map<String, Object>> providers) {
-        identityProviders.clear();
+        clearIdentityProviders();
         if (providers == null) {
             return;
         }
@@ -390,6 +497,27 @@ public class SamlIdentityProviderConfigurator implements InitializingBean {
         this.clientParams = clientParams;
     }
 
+    public SamlMetadataFetcher getMetadataFetcher() {
+        if (metadataFetcher==null) {
+            SamlMetadataFetcher fetcher = new SamlMetadataFetcher();
+            fetcher.setClientParams(getClientParams());
+            metadataFetcher = fetcher;
+        }
+        return metadataFetcher;
+    }
+
+    public void setMetadataFetcher(SamlMetadataFetcher metadataFetcher) {
+        this.metadataFetcher = metadataFetcher;
+    }
+
+    public SamlMetadataRegistry getMetadataRegistry() {
+        return metadataRegistry;
+    }
+
+    public void setMetadataRegistry(SamlMetadataRegistry metadataRegistry) {
+        this.metadataRegistry = metadataRegistry;
+    }
+
     public BasicParserPool getParserPool() {
         return parserPool;
     }
@@ -0,0 +1,328 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.SimpleHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads SAML metadata documents on a bounded pool of background threads.
+ * <p>
+ * Documents are cached per URL, so zones that point at the same URL share a
+ * single download. Once a document is older than <code>maxAge</code> the last
+ * good copy keeps being served while a conditional GET (<code>ETag</code> /
+ * <code>If-Modified-Since</code>) revalidates it in the background. Failed
+ * downloads are retried with an exponential backoff.
+ */
+public class SamlMetadataFetcher implements DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(SamlMetadataFetcher.class);
+
+    private final ConcurrentMap<String, MetadataEntry> entries = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private HttpClientParams clientParams;
+    private long maxAge = 600000l;
+    private long fetchTimeout = 10000l;
+    private long minBackoff = 10000l;
+    private long maxBackoff = 600000l;
+
+    public SamlMetadataFetcher() {
+        this(4, 100);
+    }
+
+    public SamlMetadataFetcher(int maxConcurrentFetches, int maxQueuedFetches) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+            maxConcurrentFetches,
+            maxConcurrentFetches,
+            60,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(maxQueuedFetches),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SamlMetadataFetcher-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        dummyTimer.cancel();
+    }
+
+    /**
+     * Returns the metadata document for the URL. Only blocks, for at most
+     * <code>fetchTimeout</code> milliseconds, when no copy of the document has
+     * been downloaded yet.
+     * @param url the metadata URL, including the port
+     * @param socketFactory the socket factory to download the document with
+     * @return the last good copy of the metadata document
+     * @throws MetadataProviderException if no copy exists and the download fails
+     */
+    public byte[] fetch(String url, Class<? extends ProtocolSocketFactory> socketFactory) throws MetadataProviderException {
+        MetadataEntry entry = getEntry(url, socketFactory);
+        byte[] metadata = entry.metadata;
+        long now = System.currentTimeMillis();
+        if (metadata != null) {
+            if (now - entry.fetchedAt > maxAge && now >= entry.retryAt) {
+                revalidate(entry);
+            }
+            return metadata;
+        }
+        if (now < entry.retryAt) {
+            throw new MetadataProviderException("Metadata fetch for " + url + " failed, next attempt after " + new Date(entry.retryAt), entry.lastError);
+        }
+        Future<byte[]> task = revalidate(entry, true);
+        try {
+            return task.get(fetchTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetadataProviderException("Interrupted while fetching metadata:" + url, e);
+        } catch (CancellationException e) {
+            return download(entry);
+        } catch (TimeoutException e) {
+            throw new MetadataProviderException("Timed out fetching metadata:" + url, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MetadataProviderException) {
+                throw (MetadataProviderException) e.getCause();
+            }
+            throw new MetadataProviderException("Unable to fetch metadata:" + url, e);
+        }
+    }
+
+    /**
+     * Starts downloading, in parallel, the documents that have not been fetched yet,
+     * so that subsequent calls to {@link #fetch(String, Class)} do not wait on each other.
+     * Queueing stops once the fetch queue is full; the remaining documents are downloaded
+     * when they are fetched.
+     */
+    public void prefetch(Collection<String> urls, Class<? extends ProtocolSocketFactory> socketFactory) {
+        for (String url : urls) {
+            if (executor.getQueue().remainingCapacity() == 0) {
+                logger.debug("Metadata fetch queue full, remaining documents are fetched on demand.");
+                return;
+            }
+            MetadataEntry entry = getEntry(url, socketFactory);
+            if (entry.metadata == null && System.currentTimeMillis() >= entry.retryAt) {
+                revalidate(entry, false);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached document of a URL that is no longer used.
+     */
+    public void evict(String url, Class<? extends ProtocolSocketFactory> socketFactory) {
+        entries.remove(getKey(url, socketFactory));
+    }
+
+    protected Future<byte[]> revalidate(MetadataEntry entry) {
+        return revalidate(entry, false);
+    }
+
+    /**
+     * @param runIfRejected true to download on the calling thread when the fetch queue is full
+     * @return the download, or null if it was rejected
+     */
+    protected Future<byte[]> revalidate(final MetadataEntry entry, boolean runIfRejected) {
+        FutureTask<byte[]> task;
+        synchronized (entry) {
+            if (entry.inFlight != null) {
+                return entry.inFlight;
+            }
+            task = new FutureTask<>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    try {
+                        return download(entry);
+                    } finally {
+                        synchronized (entry) {
+                            entry.inFlight = null;
+                        }
+                    }
+                }
+            });
+            entry.inFlight = task;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException x) {
+            if (runIfRejected) {
+                logger.debug("Metadata fetch queue full, fetching on the calling thread:" + entry.url);
+                task.run();
+            } else {
+                logger.warn("Metadata fetch queue full, skipping refresh of:" + entry.url);
+                synchronized (entry) {
+                    entry.inFlight = null;
+                }
+                //callers that picked up this download in the meantime fetch on their own thread
+                task.cancel(false);
+                return null;
+            }
+        }
+        return task;
+    }
+
+    protected byte[] download(MetadataEntry entry) throws MetadataProviderException {
+        try {
+            byte[] metadata = entry.provider.fetchMetadata();
+            if (!Arrays.equals(entry.metadata, metadata)) {
+                logger.debug("Fetched new metadata document from:" + entry.url);
+                entry.metadata = metadata;
+            }
+            entry.fetchedAt = System.currentTimeMillis();
+            entry.failures = 0;
+            entry.retryAt = 0;
+            entry.lastError = null;
+            return entry.metadata;
+        } catch (MetadataProviderException | RuntimeException x) {
+            entry.failures++;
+            entry.retryAt = System.currentTimeMillis() + getBackoff(entry.failures);
+            entry.lastError = x;
+            logger.warn("Unable to fetch metadata from " + entry.url + ", attempt " + entry.failures + ", retrying after " + new Date(entry.retryAt), x);
+            throw x;
+        }
+    }
+
+    protected long getBackoff(int failures) {
+        long backoff = minBackoff << Math.min(failures - 1, 20);
+        return Math.min(backoff, maxBackoff);
+    }
+
+    protected MetadataEntry getEntry(String url, Class<? extends ProtocolSocketFactory> socketFactory) {
+        String key = getKey(url, socketFactory);
+        MetadataEntry entry = entries.get(key);
+        if (entry == null) {
+            MetadataEntry created = new MetadataEntry(url, createProvider(url, socketFactory));
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        return entry;
+    }
+
+    protected FixedHttpMetaDataProvider createProvider(String url, Class<? extends ProtocolSocketFactory> socketFactory) {
+        SimpleHttpConnectionManager connectionManager = new SimpleHttpConnectionManager(true);
+        if (getClientParams() != null) {
+            connectionManager.getParams().setDefaults(getClientParams());
+        }
+        connectionManager.getParams().setConnectionTimeout((int) fetchTimeout);
+        connectionManager.getParams().setSoTimeout((int) fetchTimeout);
+        HttpClient client = new HttpClient(connectionManager);
+        try {
+            FixedHttpMetaDataProvider provider = new FixedHttpMetaDataProvider(dummyTimer, client, url);
+            if (socketFactory != null) {
+                provider.setSocketFactory(socketFactory.newInstance());
+            }
+            return provider;
+        } catch (MetadataProviderException | InstantiationException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Unable to create metadata provider for:" + url, e);
+        }
+    }
+
+    protected String getKey(String url, Class<? extends ProtocolSocketFactory> socketFactory) {
+        return (socketFactory == null ? "" : socketFactory.getName()) + "|" + url;
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    public HttpClientParams getClientParams() {
+        return clientParams;
+    }
+
+    public void setClientParams(HttpClientParams clientParams) {
+        this.clientParams = clientParams;
+    }
+
+    /**
+     * @param maxAge milliseconds after which a downloaded document is revalidated
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param fetchTimeout connect and read timeout, in milliseconds, of a single download
+     */
+    public void setFetchTimeout(long fetchTimeout) {
+        this.fetchTimeout = fetchTimeout;
+    }
+
+    public void setMinBackoff(long minBackoff) {
+        this.minBackoff = minBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    private final Timer dummyTimer = new Timer() {
+        @Override public void cancel() { super.cancel(); }
+        @Override public int purge() {return 0; }
+        @Override public void schedule(TimerTask task, long delay) {}
+        @Override public void schedule(TimerTask task, long delay, long period) {}
+        @Override public void schedule(TimerTask task, Date firstTime, long period) {}
+        @Override public void schedule(TimerTask task, Date time) {}
+        @Override public void scheduleAtFixedRate(TimerTask task, long delay, long period) {}
+        @Override public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {}
+    };
+
+    protected static class MetadataEntry {
+        private final String url;
+        private final FixedHttpMetaDataProvider provider;
+        private volatile byte[] metadata;
+        private volatile long fetchedAt;
+        private volatile long retryAt;
+        private volatile int failures;
+        private volatile Exception lastError;
+        private Future<byte[]> inFlight;
+
+        protected MetadataEntry(String url, FixedHttpMetaDataProvider provider) {
+            this.url = url;
+            this.provider = provider;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import org.opensaml.xml.XMLObject;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns SAML metadata documents by content hash, so that zones trusting the
+ * same IDP share one copy of the document and of its parsed object graph.
+ * <p>
+ * Every {@link #acquire(String)} must be matched by a {@link #release(SharedMetadata)}
+ * once the provider using it is discarded. The parsed metadata is shared and
+ * must be treated as read only.
+ */
+public class SamlMetadataRegistry {
+
+    private final Map<String, SharedMetadata> entries = new HashMap<>();
+
+    public synchronized SharedMetadata acquire(String metadata) {
+        String hash = hash(metadata);
+        SharedMetadata shared = entries.get(hash);
+        if (shared == null) {
+            shared = new SharedMetadata(hash, metadata);
+            entries.put(hash, shared);
+        } else if (!shared.getMetadata().equals(metadata)) {
+            //hash collision, don't share
+            shared = new SharedMetadata(hash, metadata);
+        }
+        shared.references++;
+        return shared;
+    }
+
+    public synchronized void release(SharedMetadata shared) {
+        if (shared == null || shared.references <= 0) {
+            return;
+        }
+        shared.references--;
+        if (shared.references == 0 && entries.get(shared.getHash()) == shared) {
+            entries.remove(shared.getHash());
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    protected String hash(String metadata) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new String(Hex.encode(digest.digest(Utf8.encode(metadata))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class SharedMetadata {
+        private final String hash;
+        private final String metadata;
+        private volatile XMLObject parsed;
+        private volatile int references;
+
+        public SharedMetadata(String hash, String metadata) {
+            this.hash = hash;
+            this.metadata = metadata;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getMetadata() {
+            return metadata;
+        }
+
+        public XMLObject getParsed() {
+            return parsed;
+        }
+
+        public void setParsed(XMLObject parsed) {
+            this.parsed = parsed;
+        }
+
+        public int getReferences() {
+            return references;
+        }
+    }
+}
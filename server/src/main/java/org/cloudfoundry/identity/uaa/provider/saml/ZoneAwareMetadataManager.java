@@ -24,6 +24,7 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneProvisioning;
+import org.cloudfoundry.identity.uaa.zone.ZoneDoesNotExistsException;
 import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
@@ -48,7 +49,10 @@ import org.springframework.security.saml.trust.httpclient.TLSProtocolConfigurer;
 import javax.annotation.PostConstruct;
 import javax.xml.namespace.QName;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -67,6 +71,8 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
     private Map<IdentityZone,ExtensionMetadataManager> metadataManagers;
     private long refreshInterval = 30000l;
     private long lastRefresh = 0;
+    private long modificationOverlap = 60000l;
+    private final Map<String, Integer> knownProviders = new ConcurrentHashMap<>();
     private Timer timer;
     private String beanName = ZoneAwareMetadataManager.class.getName()+"-"+System.identityHashCode(this);
     private ProviderChangedListener providerChangedListener;
@@ -127,32 +133,50 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
 
     protected void refreshAllProviders(boolean ignoreTimestamp) throws MetadataProviderException {
         logger.debug("Running SAML IDP refresh["+getThreadNameAndId()+"] - ignoreTimestamp="+ignoreTimestamp);
+        long started = System.currentTimeMillis();
+        if (ignoreTimestamp || lastRefresh == 0 || providerDao.countByType(OriginKeys.SAML) != knownProviders.size()) {
+            refreshAllZones(ignoreTimestamp);
+        } else {
+            refreshModifiedProviders(new Date(lastRefresh - modificationOverlap));
+        }
+        refreshChangedMetadata();
+        lastRefresh = started;
+    }
+
+    /**
+     * Reconciles every zone against the database. This is the only path that
+     * detects deleted providers and is used on startup, on explicit refresh and
+     * whenever the number of SAML providers in the database no longer matches
+     * the providers we have seen. Unless <code>ignoreTimestamp</code> is set,
+     * only providers that are new or whose version changed are applied again.
+     */
+    protected void refreshAllZones(boolean ignoreTimestamp) throws MetadataProviderException {
+        Map<IdentityZone, List<IdentityProvider>> zoneProviders = new LinkedHashMap<>();
+        List<IdentityProvider> samlProviders = new LinkedList<>();
         for (IdentityZone zone : zoneDao.retrieveAll()) {
+            List<IdentityProvider> providers = providerDao.retrieveAll(false, zone.getId());
+            zoneProviders.put(zone, providers);
+            for (IdentityProvider provider : providers) {
+                if (OriginKeys.SAML.equals(provider.getType()) && (ignoreTimestamp || isModified(provider))) {
+                    samlProviders.add(provider);
+                }
+            }
+        }
+        prefetchMetadata(samlProviders);
+
+        Map<String, Integer> seen = new HashMap<>();
+        for (Map.Entry<IdentityZone, List<IdentityProvider>> entry : zoneProviders.entrySet()) {
+            IdentityZone zone = entry.getKey();
             ExtensionMetadataManager manager = getManager(zone);
             boolean hasChanges = false;
             List<SamlIdentityProviderDefinition> zoneDefinitions = new LinkedList(configurator.getIdentityProviderDefinitionsForZone(zone));
-            for (IdentityProvider provider : providerDao.retrieveAll(false,zone.getId())) {
+            for (IdentityProvider provider : entry.getValue()) {
                 zoneDefinitions.remove(provider.getConfig());
-                if (OriginKeys.SAML.equals(provider.getType()) && (ignoreTimestamp || lastRefresh < provider.getLastModified().getTime())) {
-                    try {
-                        SamlIdentityProviderDefinition definition = (SamlIdentityProviderDefinition)provider.getConfig();
-                        try {
-                            if (provider.isActive()) {
-                                log.info("Adding SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
-                                ExtendedMetadataDelegate[] delegates = configurator.addSamlIdentityProviderDefinition(definition);
-                                if (delegates[1] != null) {
-                                    manager.removeMetadataProvider(delegates[1]);
-                                }
-                                manager.addMetadataProvider(delegates[0]);
-                            } else {
-                                removeSamlProvider(zone, manager, definition);
-                            }
-                            hasChanges = true;
-                        } catch (MetadataProviderException e) {
-                            logger.error("Unable to refresh identity provider:"+definition, e);
-                        }
-                    } catch (JsonUtils.JsonUtilException x) {
-                        logger.error("Unable to load provider:"+provider, x);
+                if (OriginKeys.SAML.equals(provider.getType())) {
+                    if (ignoreTimestamp || isModified(provider)) {
+                        hasChanges |= applyProvider(zone, manager, provider, seen);
+                    } else {
+                        seen.put(provider.getId(), provider.getVersion());
                     }
                 }
             }
@@ -164,7 +188,137 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
                 refreshZoneManager(manager);
             }
         }
-        lastRefresh = System.currentTimeMillis();
+        knownProviders.clear();
+        knownProviders.putAll(seen);
+    }
+
+    /**
+     * Applies only the SAML providers modified since the given watermark, using a
+     * single cross zone query, and refreshes only the zones that were affected.
+     */
+    protected void refreshModifiedProviders(Date since) throws MetadataProviderException {
+        List<IdentityProvider> modified = new LinkedList<>();
+        for (IdentityProvider provider : providerDao.retrieveModifiedSince(OriginKeys.SAML, since)) {
+            if (isModified(provider)) {
+                modified.add(provider);
+            }
+        }
+        prefetchMetadata(modified);
+
+        Map<String, IdentityZone> zones = new HashMap<>();
+        Set<ExtensionMetadataManager> changed = new HashSet<>();
+        for (IdentityProvider provider : modified) {
+            IdentityZone zone = retrieveZone(zones, provider.getIdentityZoneId());
+            if (zone == null) {
+                continue;
+            }
+            ExtensionMetadataManager manager = getManager(zone);
+            if (applyProvider(zone, manager, provider, knownProviders)) {
+                changed.add(manager);
+            }
+        }
+        for (ExtensionMetadataManager manager : changed) {
+            refreshZoneManager(manager);
+        }
+    }
+
+    /**
+     * Re-adds URL based providers whose metadata document changed at the source,
+     * for example because the IDP rotated its signing certificate.
+     */
+    protected void refreshChangedMetadata() throws MetadataProviderException {
+        Map<String, IdentityZone> zones = new HashMap<>();
+        Set<ExtensionMetadataManager> changed = new HashSet<>();
+        for (SamlIdentityProviderDefinition definition : configurator.getDefinitionsWithChangedMetadata()) {
+            IdentityZone zone = retrieveZone(zones, definition.getZoneId());
+            if (zone == null) {
+                continue;
+            }
+            ExtensionMetadataManager manager = getManager(zone);
+            try {
+                log.info("Updating metadata for SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
+                addSamlProvider(manager, definition);
+                changed.add(manager);
+            } catch (MetadataProviderException e) {
+                logger.error("Unable to refresh identity provider:"+definition, e);
+            }
+        }
+        for (ExtensionMetadataManager manager : changed) {
+            refreshZoneManager(manager);
+        }
+    }
+
+    protected IdentityZone retrieveZone(Map<String, IdentityZone> zones, String zoneId) {
+        IdentityZone zone = zones.get(zoneId);
+        if (zone == null) {
+            try {
+                zone = zoneDao.retrieve(zoneId);
+                zones.put(zoneId, zone);
+            } catch (ZoneDoesNotExistsException x) {
+                logger.debug("Skipping SAML IDP for deleted zone[" + zoneId + "]");
+            }
+        }
+        return zone;
+    }
+
+    protected void prefetchMetadata(List<IdentityProvider> providers) {
+        List<SamlIdentityProviderDefinition> definitions = new LinkedList<>();
+        for (IdentityProvider provider : providers) {
+            try {
+                if (provider.isActive()) {
+                    definitions.add((SamlIdentityProviderDefinition) provider.getConfig());
+                }
+            } catch (JsonUtils.JsonUtilException x) {
+                //reported when the provider is applied
+            }
+        }
+        configurator.prefetchMetadata(definitions);
+    }
+
+    /**
+     * @return true if the provider has not been applied yet or its version changed since
+     */
+    protected boolean isModified(IdentityProvider provider) {
+        Integer applied = knownProviders.get(provider.getId());
+        return applied == null || applied != provider.getVersion();
+    }
+
+    /**
+     * Adds or removes the provider and records its version in <code>known</code>.
+     * A provider whose metadata could not be loaded, for example because the
+     * download has not completed yet, is not recorded so that the next refresh
+     * tries it again.
+     * @return true if the zone's metadata manager changed
+     */
+    protected boolean applyProvider(IdentityZone zone, ExtensionMetadataManager manager, IdentityProvider provider, Map<String, Integer> known) {
+        try {
+            SamlIdentityProviderDefinition definition = (SamlIdentityProviderDefinition)provider.getConfig();
+            try {
+                if (provider.isActive()) {
+                    log.info("Adding SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
+                    addSamlProvider(manager, definition);
+                } else {
+                    removeSamlProvider(zone, manager, definition);
+                }
+                known.put(provider.getId(), provider.getVersion());
+                return true;
+            } catch (MetadataProviderException e) {
+                logger.error("Unable to refresh identity provider:"+definition, e);
+            }
+        } catch (JsonUtils.JsonUtilException x) {
+            //retried once the provider is modified
+            known.put(provider.getId(), provider.getVersion());
+            logger.error("Unable to load provider:"+provider, x);
+        }
+        return false;
+    }
+
+    protected void addSamlProvider(ExtensionMetadataManager manager, SamlIdentityProviderDefinition definition) throws MetadataProviderException {
+        ExtendedMetadataDelegate[] delegates = configurator.addSamlIdentityProviderDefinition(definition);
+        if (delegates[1] != null) {
+            manager.removeMetadataProvider(delegates[1]);
+        }
+        manager.addMetadataProvider(delegates[0]);
     }
 
     protected void removeSamlProvider(IdentityZone zone, ExtensionMetadataManager manager, SamlIdentityProviderDefinition definition) {
@@ -330,6 +484,15 @@ public class ZoneAwareMetadataManager extends MetadataManager implements Extende
         this.refreshInterval = refreshCheckInterval;
     }
 
+    /**
+     * How far back, in milliseconds, the periodic refresh looks past the previous
+     * run when querying for modified providers. Covers clock differences between
+     * the servers writing to the identity_provider table.
+     */
+    public void setModificationOverlap(long modificationOverlap) {
+        this.modificationOverlap = modificationOverlap;
+    }
+
     @Override
     public void setKeyManager(KeyManager keyManager) {
         getManager().setKeyManager(keyManager);
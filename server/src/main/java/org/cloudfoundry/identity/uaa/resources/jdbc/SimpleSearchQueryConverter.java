@@ -16,9 +16,14 @@ package org.cloudfoundry.identity.uaa.resources.jdbc;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.unboundid.scim.sdk.SCIMException;
 import com.unboundid.scim.sdk.SCIMFilter;
@@ -31,21 +36,42 @@ import org.springframework.util.StringUtils;
 
 public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
+    public static final int DEFAULT_FILTER_CACHE_SIZE = 1000;
+
     private static Log logger = LogFactory.getLog(SimpleSearchQueryConverter.class);
+    private static final RandomValueStringGenerator prefixGenerator = new RandomValueStringGenerator();
     private AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.<String, String> emptyMap());
 
     private boolean dbCaseInsensitive = false;
 
+    private int filterCacheSize = DEFAULT_FILTER_CACHE_SIZE;
+    private final ConcurrentMap<List<Object>, CompiledFilter> filterCache = new ConcurrentHashMap<>();
+
     public boolean isDbCaseInsensitive() {
         return dbCaseInsensitive;
     }
 
     public void setDbCaseInsensitive(boolean caseInsensitive) {
         this.dbCaseInsensitive = caseInsensitive;
+        filterCache.clear();
+    }
+
+    public int getFilterCacheSize() {
+        return filterCacheSize;
+    }
+
+    /**
+     * @param filterCacheSize the number of filter shapes kept in compiled form,
+     *            0 disables the cache
+     */
+    public void setFilterCacheSize(int filterCacheSize) {
+        this.filterCacheSize = filterCacheSize;
+        filterCache.clear();
     }
 
     public void setAttributeNameMapper(AttributeNameMapper mapper) {
         this.mapper = mapper;
+        filterCache.clear();
     }
 
     @Override
@@ -55,6 +81,16 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     @Override
     public ProcessedFilter convert(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
+        if (filterCacheSize > 0 && StringUtils.hasText(filter)) {
+            ProcessedFilter cached = convertWithCache(filter, sortBy, ascending, mapper);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return parse(filter, sortBy, ascending, mapper);
+    }
+
+    protected ProcessedFilter parse(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
         String paramPrefix = generateParameterPrefix(filter);
         Map<String, Object> values = new HashMap<String, Object>();
         String where = StringUtils.hasText(filter) ? getWhereClause(filter, sortBy, ascending, values, mapper, paramPrefix) : null;
@@ -65,13 +101,93 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
 
     protected String generateParameterPrefix(String filter) {
         while (true) {
-            String s = new RandomValueStringGenerator().generate().toLowerCase();
+            String s = prefixGenerator.generate().toLowerCase();
             if (!filter.contains(s)) {
                 return "__"+s+"_";
             }
         }
     }
 
+    /**
+     * Converts a filter through the compiled form of its shape, the filter with
+     * the values of its quoted strings left out. A shape is parsed once, with
+     * a placeholder in each quoted string, and bound to the values of the
+     * filter on every later call.
+     *
+     * @return null if the filter can't be converted through the cache
+     */
+    protected ProcessedFilter convertWithCache(String filter, String sortBy, boolean ascending, AttributeNameMapper mapper) {
+        List<String> literals = new ArrayList<>();
+        String shape = getShape(filter, literals);
+        if (shape == null) {
+            return null;
+        }
+        List<Object> key = Arrays.asList(shape, sortBy, ascending, mapper);
+        CompiledFilter compiled = filterCache.get(key);
+        if (compiled == null) {
+            compiled = compile(shape, literals.size(), sortBy, ascending, mapper);
+            if (compiled == null) {
+                return null;
+            }
+            if (filterCache.size() >= filterCacheSize) {
+                filterCache.clear();
+            }
+            filterCache.put(key, compiled);
+        }
+        return compiled.bind(literals, generateParameterPrefix(filter));
+    }
+
+    /**
+     * Replaces every quoted string of the filter with an empty one and collects
+     * the strings. Filters with escapes, single quotes (the legacy syntax) or
+     * strings that could be parsed as a timestamp are left to the parser.
+     */
+    protected String getShape(String filter, List<String> literals) {
+        if (filter.indexOf('\\') >= 0 || filter.indexOf('\'') >= 0) {
+            return null;
+        }
+        StringBuilder shape = new StringBuilder(filter.length());
+        int position = 0;
+        while (true) {
+            int start = filter.indexOf('"', position);
+            if (start < 0) {
+                break;
+            }
+            int end = filter.indexOf('"', start + 1);
+            if (end < 0) {
+                return null;
+            }
+            String literal = filter.substring(start + 1, end);
+            if (literal.indexOf('T') >= 0 && literal.indexOf(':') >= 0 && literal.indexOf('Z') >= 0) {
+                return null;
+            }
+            literals.add(literal);
+            shape.append(filter, position, start + 1).append('"');
+            position = end + 1;
+        }
+        return shape.append(filter, position, filter.length()).toString();
+    }
+
+    private CompiledFilter compile(String shape, int literalCount, String sortBy, boolean ascending, AttributeNameMapper mapper) {
+        String placeholder = generateParameterPrefix(shape);
+        StringBuilder filter = new StringBuilder(shape.length() + literalCount * 16);
+        int position = 0;
+        for (int i = 0; i < literalCount; i++) {
+            int start = shape.indexOf('"', position);
+            filter.append(shape, position, start + 1).append(placeholder).append(i).append(placeholder).append('"');
+            position = start + 2;
+        }
+        filter.append(shape, position, shape.length());
+        ProcessedFilter processed;
+        try {
+            processed = parse(filter.toString(), sortBy, ascending, mapper);
+        } catch (IllegalArgumentException x) {
+            //left to the parser, for the error message
+            return null;
+        }
+        return new CompiledFilter(processed, placeholder, literalCount);
+    }
+
     private String getWhereClause(String filter, String sortBy, boolean ascending, Map<String, Object> values, AttributeNameMapper mapper, String paramPrefix) {
 
         try {
@@ -187,6 +303,50 @@ public class SimpleSearchQueryConverter implements SearchQueryConverter {
         }
     }
 
+    /**
+     * The SQL and parameters of a filter shape. Parameters made from a quoted
+     * string are kept as the text around the placeholder of the string.
+     */
+    private static class CompiledFilter {
+        private final String sql;
+        private final String paramPrefix;
+        private final Object[] params;
+        private final int[] literalIndexes;
 
+        private CompiledFilter(ProcessedFilter processed, String placeholder, int literalCount) {
+            this.sql = processed.getSql();
+            this.paramPrefix = processed.getParamPrefix();
+            this.params = new Object[processed.getParams().size()];
+            this.literalIndexes = new int[params.length];
+            for (int i = 0; i < params.length; i++) {
+                Object value = processed.getParams().get(paramPrefix + i);
+                literalIndexes[i] = -1;
+                if (value instanceof String) {
+                    String text = (String) value;
+                    int start = text.indexOf(placeholder);
+                    int end = start < 0 ? -1 : text.indexOf(placeholder, start + placeholder.length());
+                    if (end > 0) {
+                        literalIndexes[i] = Integer.parseInt(text.substring(start + placeholder.length(), end));
+                        value = new String[] {text.substring(0, start), text.substring(end + placeholder.length())};
+                    }
+                }
+                params[i] = value;
+            }
+        }
 
+        private ProcessedFilter bind(List<String> literals, String newPrefix) {
+            Map<String, Object> values = new HashMap<>();
+            for (int i = 0; i < params.length; i++) {
+                Object value = params[i];
+                if (literalIndexes[i] >= 0) {
+                    String[] around = (String[]) value;
+                    value = around[0] + literals.get(literalIndexes[i]) + around[1];
+                }
+                values.put(newPrefix + i, value);
+            }
+            ProcessedFilter processed = new ProcessedFilter(sql.replace(":" + paramPrefix, ":" + newPrefix), values);
+            processed.setParamPrefix(newPrefix);
+            return processed;
+        }
+    }
 }
@@ -12,6 +12,7 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.scim;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
@@ -130,4 +131,19 @@ public interface ScimGroupMembershipManager extends Queryable<ScimGroupMember> {
      */
     Set<ScimGroup> removeMembersByMemberId(String memberId) throws ScimResourceNotFoundException;
 
+    /**
+     * Bring the memberships a user holds through an external identity provider
+     * in line with the groups reported by that provider. Memberships that are
+     * no longer reported are removed and new ones are added, memberships of
+     * any other origin are left alone. Nothing is written if the reported
+     * groups are the same as during the previous synchronization.
+     *
+     * @param memberId id of the user
+     * @param origin origin key of the external identity provider
+     * @param groupNames display names of the groups the user belongs to
+     * @param createGroups true if groups that do not exist yet should be created
+     * @return true if any membership was added or removed
+     */
+    boolean synchronizeExternalMemberships(String memberId, String origin, Collection<String> groupNames, boolean createGroups);
+
 }
@@ -20,6 +20,7 @@ import org.cloudfoundry.identity.uaa.authentication.manager.ExternalGroupAuthori
 import org.cloudfoundry.identity.uaa.authentication.manager.InvitedUserAuthenticatedEvent;
 import org.cloudfoundry.identity.uaa.authentication.manager.NewUserAuthenticatedEvent;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMember;
 import org.cloudfoundry.identity.uaa.scim.ScimGroupMembershipManager;
@@ -41,8 +42,12 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Convenience class for provisioning user accounts from {@link UaaUser}
@@ -53,6 +58,8 @@ import java.util.Set;
  */
 public class ScimUserBootstrap implements InitializingBean, ApplicationListener<AuthEvent> {
 
+    public static final String FINGERPRINT_SECTION = "users";
+
     private static final Log logger = LogFactory.getLog(ScimUserBootstrap.class);
 
     private final ScimUserProvisioning scimUserProvisioning;
@@ -65,6 +72,13 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
     private final Collection<UaaUser> users;
 
+    private JdbcBootstrapFingerprintStore fingerprintStore;
+
+    /**
+     * Groups looked up by display name, only populated while the bootstrap runs
+     */
+    private volatile Map<String, ScimGroup> bootstrapGroups;
+
     /**
      * Flag to indicate that user accounts can be updated as well as created.
      *
@@ -78,6 +92,16 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
         return override;
     }
 
+    /**
+     * Optional store of the fingerprints of the users applied by a previous
+     * bootstrap. Users whose configuration did not change since are skipped.
+     *
+     * @param fingerprintStore the fingerprintStore to set
+     */
+    public void setFingerprintStore(JdbcBootstrapFingerprintStore fingerprintStore) {
+        this.fingerprintStore = fingerprintStore;
+    }
+
     public ScimUserBootstrap(ScimUserProvisioning scimUserProvisioning, ScimGroupProvisioning scimGroupProvisioning,
                     ScimGroupMembershipManager membershipManager, Collection<UaaUser> users) {
         Assert.notNull(scimUserProvisioning, "scimUserProvisioning cannot be null");
@@ -92,9 +116,45 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        for (UaaUser u : users) {
-            addUser(u);
+        boolean fingerprints = fingerprintStore != null && fingerprintStore.isEnabled();
+        Map<String, String> previous = fingerprints ? fingerprintStore.getFingerprints(FINGERPRINT_SECTION) : Collections.<String, String>emptyMap();
+        Map<String, String> current = new HashMap<>();
+        bootstrapGroups = new ConcurrentHashMap<>();
+        try {
+            for (UaaUser u : users) {
+                if (fingerprints) {
+                    String key = (u.getOrigin() == null ? OriginKeys.UAA : u.getOrigin()) + "/" + u.getUsername();
+                    String fingerprint = fingerprintStore.fingerprint(FINGERPRINT_SECTION, key, getFingerprintSource(u));
+                    current.put(key, fingerprint);
+                    if (fingerprint.equals(previous.get(key))) {
+                        logger.debug("User configuration unchanged since last bootstrap: " + key);
+                        continue;
+                    }
+                }
+                addUser(u);
+            }
+        } finally {
+            bootstrapGroups = null;
         }
+        if (fingerprints) {
+            fingerprintStore.updateFingerprints(FINGERPRINT_SECTION, previous, current);
+        }
+    }
+
+    private Map<String, Object> getFingerprintSource(UaaUser user) {
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put("id", user.getId());
+        source.put("username", user.getUsername());
+        source.put("password", user.getPassword());
+        source.put("email", user.getEmail());
+        source.put("givenName", user.getGivenName());
+        source.put("familyName", user.getFamilyName());
+        source.put("phoneNumber", user.getPhoneNumber());
+        source.put("origin", user.getOrigin());
+        source.put("externalId", user.getExternalId());
+        source.put("groups", convertToGroups(user.getAuthorities()));
+        source.put("override", override);
+        return source;
     }
 
     protected ScimUser getScimUser(UaaUser user) {
@@ -182,13 +242,18 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
 
         if (event instanceof ExternalGroupAuthorizationEvent) {
             ExternalGroupAuthorizationEvent exEvent = (ExternalGroupAuthorizationEvent)event;
-            //delete previous membership relation ships
             String origin = exEvent.getUser().getOrigin();
-            if (!OriginKeys.UAA.equals(origin)) {//only delete non UAA relationships
-                membershipManager.delete("member_id eq \""+event.getUser().getId()+"\" and origin eq \""+origin+"\"");
-            }
-            for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
-                addToGroup(exEvent.getUser().getId(), authority.getAuthority(), exEvent.getUser().getOrigin(), exEvent.isAddGroups());
+            if (!OriginKeys.UAA.equals(origin)) {
+                //only replace non UAA relationships, and only those that changed
+                List<String> groupNames = new ArrayList<>();
+                for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
+                    groupNames.add(authority.getAuthority());
+                }
+                membershipManager.synchronizeExternalMemberships(exEvent.getUser().getId(), origin, groupNames, exEvent.isAddGroups());
+            } else {
+                for (GrantedAuthority authority : exEvent.getExternalAuthorities()) {
+                    addToGroup(exEvent.getUser().getId(), authority.getAuthority(), origin, exEvent.isAddGroups());
+                }
             }
             //update the user itself
             if(event.isUserModified()) {
@@ -214,16 +279,22 @@ public class ScimUserBootstrap implements InitializingBean, ApplicationListener<
             return;
         }
         logger.debug("Adding to group: " + gName);
-        List<ScimGroup> g = scimGroupProvisioning.query(String.format("displayName eq \"%s\"", gName));
-        ScimGroup group;
-        if ((g == null || g.isEmpty()) && (!addGroup)) {
-            logger.debug("No group found with name:"+gName+". Group membership will not be added.");
-            return;
-        } else if (g == null || g.isEmpty()) {
-            group = new ScimGroup(null,gName,IdentityZoneHolder.get().getId());
-            group = scimGroupProvisioning.create(group);
-        } else {
-            group = g.get(0);
+        Map<String, ScimGroup> groups = bootstrapGroups;
+        ScimGroup group = groups == null ? null : groups.get(gName);
+        if (group == null) {
+            List<ScimGroup> g = scimGroupProvisioning.query(String.format("displayName eq \"%s\"", gName));
+            if ((g == null || g.isEmpty()) && (!addGroup)) {
+                logger.debug("No group found with name:"+gName+". Group membership will not be added.");
+                return;
+            } else if (g == null || g.isEmpty()) {
+                group = new ScimGroup(null,gName,IdentityZoneHolder.get().getId());
+                group = scimGroupProvisioning.create(group);
+            } else {
+                group = g.get(0);
+            }
+            if (groups != null) {
+                groups.put(gName, group);
+            }
         }
         try {
             ScimGroupMember groupMember = new ScimGroupMember(scimUserId);
@@ -13,6 +13,8 @@
 
 package org.cloudfoundry.identity.uaa.scim.endpoints;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.unboundid.scim.sdk.SCIMException;
 import com.unboundid.scim.sdk.SCIMFilter;
 import org.apache.commons.logging.Log;
@@ -21,6 +23,7 @@ import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.resources.SearchResults;
 import org.cloudfoundry.identity.uaa.scim.ScimCore;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserIdLookup;
 import org.cloudfoundry.identity.uaa.security.DefaultSecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
@@ -28,19 +31,31 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.servlet.View;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -50,6 +65,11 @@ import java.util.stream.Collectors;
  */
 @Controller
 public class UserIdConversionEndpoints implements InitializingBean {
+
+    public static final int DEFAULT_BULK_LIMIT = 1000;
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
     private final Log logger = LogFactory.getLog(getClass());
 
     private SecurityContextAccessor securityContextAccessor = new DefaultSecurityContextAccessor();
@@ -60,6 +80,10 @@ public class UserIdConversionEndpoints implements InitializingBean {
 
     private boolean enabled = true;
 
+    private JdbcScimUserIdLookup userIdLookup;
+
+    private int bulkLimit = DEFAULT_BULK_LIMIT;
+
     public UserIdConversionEndpoints(IdentityProviderProvisioning provisioning) {
         this.provisioning = provisioning;
     }
@@ -87,6 +111,17 @@ public class UserIdConversionEndpoints implements InitializingBean {
         this.enabled = enabled;
     }
 
+    public void setUserIdLookup(JdbcScimUserIdLookup userIdLookup) {
+        this.userIdLookup = userIdLookup;
+    }
+
+    /**
+     * The maximum number of ids and user names accepted by a single bulk lookup.
+     */
+    public void setBulkLimit(int bulkLimit) {
+        this.bulkLimit = bulkLimit;
+    }
+
     @RequestMapping(value = "/ids/Users")
     @ResponseBody
     public SearchResults<?> findUsers(
@@ -117,6 +152,80 @@ public class UserIdConversionEndpoints implements InitializingBean {
         return scimUserEndpoints.findUsers("id,userName,origin", filter, "userName", sortOrder, startIndex, count);
     }
 
+    /**
+     * Resolves the "ids" and "userNames" of the request body to the id, user name,
+     * origin and zone of the matching users. The response is written while the
+     * users are read and is not paged.
+     */
+    @RequestMapping(value = "/ids/Users/bulk", method = RequestMethod.POST, consumes = "application/json")
+    public void findUsersBulk(@RequestBody Map<String, List<String>> body,
+                              @RequestParam(required = false, defaultValue = "false") boolean includeInactive,
+                              HttpServletResponse response) throws IOException {
+        if (!enabled || userIdLookup == null) {
+            logger.warn("Request from user " + securityContextAccessor.getAuthenticationInfo() +
+                            " received at disabled Id translation endpoint for a bulk lookup");
+            throw new ScimException("Illegal operation.", HttpStatus.BAD_REQUEST);
+        }
+        List<String> ids = getValues(body, "ids");
+        List<String> userNames = getValues(body, "userNames");
+        if (ids.isEmpty() && userNames.isEmpty()) {
+            throw new ScimException("'ids' or 'userNames' are required", HttpStatus.BAD_REQUEST);
+        }
+        if (ids.size() + userNames.size() > bulkLimit) {
+            throw new ScimException("A bulk lookup is limited to " + bulkLimit + " ids and user names", HttpStatus.BAD_REQUEST);
+        }
+
+        String zoneId = IdentityZoneHolder.get().getId();
+        List<String> origins = null;
+        if (!includeInactive) {
+            origins = provisioning.retrieveActive(zoneId).stream().map(IdentityProvider::getOriginKey).collect(Collectors.toList());
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        JsonGenerator generator = jsonFactory.createGenerator(response.getOutputStream());
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("resources");
+        Set<String> written = new HashSet<>();
+        Consumer<JdbcScimUserIdLookup.UserId> writer = user -> {
+            if (!written.add(user.getId())) {
+                return;
+            }
+            try {
+                generator.writeStartObject();
+                generator.writeStringField("id", user.getId());
+                generator.writeStringField("userName", user.getUserName());
+                generator.writeStringField("origin", user.getOrigin());
+                generator.writeStringField("zoneId", user.getZoneId());
+                generator.writeEndObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        try {
+            userIdLookup.findByIds(ids, zoneId, origins, writer);
+            userIdLookup.findByUserNames(userNames, zoneId, origins, writer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        generator.writeEndArray();
+        generator.writeNumberField("totalResults", written.size());
+        generator.writeEndObject();
+        generator.flush();
+    }
+
+    private static List<String> getValues(Map<String, List<String>> body, String key) {
+        List<String> values = body == null ? null : body.get(key);
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        for (String value : values) {
+            if (!StringUtils.hasText(value)) {
+                throw new ScimException("'" + key + "' must not contain empty values", HttpStatus.BAD_REQUEST);
+            }
+        }
+        return values;
+    }
+
     @ExceptionHandler
     public View handleException(Exception t, HttpServletRequest request) throws ScimException {
         return scimUserEndpoints.handleException(t, request);
@@ -16,13 +16,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
@@ -38,6 +43,7 @@ import org.cloudfoundry.identity.uaa.scim.ScimUserProvisioning;
 import org.cloudfoundry.identity.uaa.scim.exception.InvalidScimResourceException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
+import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceAlreadyExistsException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceConstraintFailedException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
@@ -48,9 +54,13 @@ import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -86,6 +96,20 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
 
     public static final String DELETE_MEMBER_IN_GROUPS_SQL_GROUP = String.format("delete from %s where member_id in (select id from groups where id=? and identity_zone_id=?)",MEMBERSHIP_TABLE);
 
+    public static final String GET_GROUPS_AND_ORIGINS_BY_MEMBER_SQL = String.format("select group_id, origin from %s where member_id=? and group_id in (select id from groups where identity_zone_id=?)", MEMBERSHIP_TABLE);
+
+    public static final String GET_GROUP_IDS_BY_NAME_SQL = "select id, displayName from groups where identity_zone_id=:zoneId and LOWER(displayName) in (:names)";
+
+    public static final String EXTERNAL_FINGERPRINT_TABLE = "external_group_fingerprint";
+
+    public static final String GET_EXTERNAL_FINGERPRINT_SQL = String.format("select f.fingerprint, f.membership_count, (select count(*) from %s m where m.member_id=f.user_id and m.origin=f.origin) from %s f where f.user_id=? and f.origin=?", MEMBERSHIP_TABLE, EXTERNAL_FINGERPRINT_TABLE);
+
+    public static final String UPDATE_EXTERNAL_FINGERPRINT_SQL = String.format("update %s set fingerprint=?, membership_count=?, lastmodified=? where user_id=? and origin=?", EXTERNAL_FINGERPRINT_TABLE);
+
+    public static final String ADD_EXTERNAL_FINGERPRINT_SQL = String.format("insert into %s (user_id, origin, identity_zone_id, fingerprint, membership_count, lastmodified) values (?,?,?,?,?,?)", EXTERNAL_FINGERPRINT_TABLE);
+
+    public static final String DELETE_EXTERNAL_FINGERPRINT_SQL = String.format("delete from %s where user_id=?", EXTERNAL_FINGERPRINT_TABLE);
+
     private final RowMapper<ScimGroupMember> rowMapper = new ScimGroupMemberRowMapper();
 
     private ScimUserProvisioning userProvisioning;
@@ -409,6 +433,8 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
             }
         });
 
+        jdbcTemplate.update(DELETE_EXTERNAL_FINGERPRINT_SQL, memberId);
+
         int expectedDelete = isUser(memberId) ? groups.size() - getDefaultUserGroups(IdentityZoneHolder.get()).size() : groups.size();
         if (deleted != expectedDelete) {
             throw new IncorrectResultSizeDataAccessException("unexpected number of members removed", expectedDelete,
@@ -418,6 +444,161 @@ public class JdbcScimGroupMembershipManager extends AbstractQueryable<ScimGroupM
         return groups;
     }
 
+    @Override
+    public boolean synchronizeExternalMemberships(final String memberId, final String origin, Collection<String> groupNames, boolean createGroups) {
+        Set<String> names = new TreeSet<>();
+        for (String name : groupNames) {
+            if (StringUtils.hasText(name)) {
+                names.add(name);
+            }
+        }
+        final String fingerprint = getExternalGroupsFingerprint(names, createGroups);
+        if (isExternalGroupsFingerprintCurrent(memberId, origin, fingerprint)) {
+            logger.debug("External groups for member:"+memberId+" and origin:"+origin+" are unchanged.");
+            return false;
+        }
+
+        final String zoneId = IdentityZoneHolder.get().getId();
+        Map<String, String> groupIds = getGroupIdsByName(names, zoneId);
+        boolean allGroupsResolved = true;
+        Set<String> expectedGroupIds = new HashSet<>();
+        for (String name : names) {
+            String groupId = groupIds.get(name.toLowerCase());
+            if (groupId == null && createGroups) {
+                groupId = createGroup(name, zoneId);
+            }
+            if (groupId == null) {
+                logger.debug("No group found with name:"+name+". Group membership will not be added.");
+                allGroupsResolved = false;
+            } else if (!isDefaultGroup(groupId)) {
+                expectedGroupIds.add(groupId);
+            }
+        }
+
+        Set<String> externalGroupIds = new HashSet<>();
+        Set<String> otherGroupIds = new HashSet<>();
+        for (Map<String, Object> row : jdbcTemplate.queryForList(GET_GROUPS_AND_ORIGINS_BY_MEMBER_SQL, memberId, zoneId)) {
+            String groupId = (String) row.get("group_id");
+            if (origin.equals(row.get("origin"))) {
+                externalGroupIds.add(groupId);
+            } else {
+                otherGroupIds.add(groupId);
+            }
+        }
+
+        List<Object[]> deletes = new ArrayList<>();
+        for (String groupId : externalGroupIds) {
+            if (!expectedGroupIds.contains(groupId)) {
+                deletes.add(new Object[] {memberId, groupId, zoneId});
+            }
+        }
+        List<Object[]> inserts = new ArrayList<>();
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        String authorities = StringUtils.collectionToCommaDelimitedString(ScimGroupMember.GROUP_MEMBER);
+        for (String groupId : expectedGroupIds) {
+            if (!externalGroupIds.contains(groupId) && !otherGroupIds.contains(groupId)) {
+                inserts.add(new Object[] {groupId, memberId, ScimGroupMember.Type.USER.toString(), authorities, now, origin});
+            }
+        }
+        logger.debug("Synchronizing external groups for member:"+memberId+" origin:"+origin+" removing:"+deletes.size()+" adding:"+inserts.size());
+        if (!deletes.isEmpty()) {
+            jdbcTemplate.batchUpdate(DELETE_MEMBER_SQL, deletes);
+        }
+        if (!inserts.isEmpty()) {
+            addExternalMemberships(inserts);
+        }
+
+        int membershipCount = externalGroupIds.size() - deletes.size() + inserts.size();
+        //unresolved groups may show up later, so don't let the fingerprint match until they do
+        storeExternalGroupsFingerprint(memberId, origin, zoneId, allGroupsResolved ? fingerprint : null, membershipCount);
+        return !deletes.isEmpty() || !inserts.isEmpty();
+    }
+
+    /**
+     * A concurrent login of the same user may have added some of the memberships already,
+     * in which case the rows are inserted one by one and existing ones are skipped.
+     */
+    protected void addExternalMemberships(List<Object[]> inserts) {
+        try {
+            jdbcTemplate.batchUpdate(ADD_MEMBER_SQL, inserts);
+        } catch (DuplicateKeyException e) {
+            for (Object[] insert : inserts) {
+                try {
+                    jdbcTemplate.update(ADD_MEMBER_SQL, insert);
+                } catch (DuplicateKeyException alreadyAdded) {
+                    logger.debug("Member:"+insert[1]+" is already part of the group:"+insert[0]);
+                }
+            }
+        }
+    }
+
+    protected boolean isExternalGroupsFingerprintCurrent(String memberId, String origin, final String fingerprint) {
+        List<Boolean> current = jdbcTemplate.query(GET_EXTERNAL_FINGERPRINT_SQL, new RowMapper<Boolean>() {
+            @Override
+            public Boolean mapRow(ResultSet rs, int rowNum) throws SQLException {
+                //a membership count that differs means memberships were changed through other means
+                return fingerprint.equals(rs.getString(1)) && rs.getInt(2) == rs.getInt(3);
+            }
+        }, memberId, origin);
+        return !current.isEmpty() && current.get(0);
+    }
+
+    protected void storeExternalGroupsFingerprint(String memberId, String origin, String zoneId, String fingerprint, int membershipCount) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int updated = jdbcTemplate.update(UPDATE_EXTERNAL_FINGERPRINT_SQL, fingerprint, membershipCount, now, memberId, origin);
+        if (updated == 0) {
+            try {
+                jdbcTemplate.update(ADD_EXTERNAL_FINGERPRINT_SQL, memberId, origin, zoneId, fingerprint, membershipCount, now);
+            } catch (DuplicateKeyException e) {
+                jdbcTemplate.update(UPDATE_EXTERNAL_FINGERPRINT_SQL, fingerprint, membershipCount, now, memberId, origin);
+            }
+        }
+    }
+
+    protected String getExternalGroupsFingerprint(Set<String> sortedNames, boolean createGroups) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(Utf8.encode(String.valueOf(createGroups)));
+            for (String name : sortedNames) {
+                digest.update((byte)0);
+                digest.update(Utf8.encode(name));
+            }
+            return new String(Hex.encode(digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Map<String, String> getGroupIdsByName(Set<String> names, String zoneId) {
+        final Map<String, String> result = new HashMap<>();
+        if (names.isEmpty()) {
+            return result;
+        }
+        Set<String> lowerCaseNames = new HashSet<>();
+        for (String name : names) {
+            lowerCaseNames.add(name.toLowerCase());
+        }
+        MapSqlParameterSource params = new MapSqlParameterSource();
+        params.addValue("zoneId", zoneId);
+        params.addValue("names", lowerCaseNames);
+        new NamedParameterJdbcTemplate(jdbcTemplate).query(GET_GROUP_IDS_BY_NAME_SQL, params, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                result.put(rs.getString(2).toLowerCase(), rs.getString(1));
+            }
+        });
+        return result;
+    }
+
+    private String createGroup(String name, String zoneId) {
+        try {
+            return groupProvisioning.create(new ScimGroup(null, name, zoneId)).getId();
+        } catch (ScimResourceAlreadyExistsException e) {
+            //created concurrently
+            return getGroupIdsByName(Collections.singleton(name), zoneId).get(name.toLowerCase());
+        }
+    }
+
     private boolean isUser(String uuid) {
         try {
             userProvisioning.retrieve(uuid);
@@ -0,0 +1,126 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Resolves user ids and user names to the id, user name, origin and zone of
+ * the matching users with chunked <code>IN</code> queries, without the paging
+ * count and the full {@link org.cloudfoundry.identity.uaa.scim.ScimUser} mapping
+ * of a SCIM query. Rows are handed to the caller as they are read.
+ */
+public class JdbcScimUserIdLookup {
+
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    static final String ID_LOOKUP_SQL = "select id,username,origin,identity_zone_id from users where identity_zone_id=? and id in (%s)";
+
+    static final String USERNAME_LOOKUP_SQL = "select id,username,origin,identity_zone_id from users where identity_zone_id=? and lower(username) in (%s)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    public JdbcScimUserIdLookup(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param origins the origins to restrict the result to, or null for all origins
+     */
+    public void findByIds(Collection<String> ids, String zoneId, Collection<String> origins, Consumer<UserId> consumer) {
+        find(ID_LOOKUP_SQL, new ArrayList<>(new LinkedHashSet<>(ids)), zoneId, origins, consumer);
+    }
+
+    /**
+     * User names are compared case insensitive.
+     *
+     * @param origins the origins to restrict the result to, or null for all origins
+     */
+    public void findByUserNames(Collection<String> userNames, String zoneId, Collection<String> origins, Consumer<UserId> consumer) {
+        LinkedHashSet<String> lowerCase = new LinkedHashSet<>();
+        for (String userName : userNames) {
+            lowerCase.add(userName.toLowerCase());
+        }
+        find(USERNAME_LOOKUP_SQL, new ArrayList<>(lowerCase), zoneId, origins, consumer);
+    }
+
+    private void find(String sql, List<String> values, String zoneId, Collection<String> origins, Consumer<UserId> consumer) {
+        if (origins != null && origins.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < values.size(); i += chunkSize) {
+            List<String> chunk = values.subList(i, Math.min(values.size(), i + chunkSize));
+            List<Object> args = new ArrayList<>();
+            args.add(zoneId);
+            args.addAll(chunk);
+            String query = String.format(sql, getPlaceholders(chunk.size()));
+            if (origins != null) {
+                query += " and origin in (" + getPlaceholders(origins.size()) + ")";
+                args.addAll(origins);
+            }
+            jdbcTemplate.query(query, args.toArray(), rs -> {
+                consumer.accept(new UserId(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
+            });
+        }
+    }
+
+    private static String getPlaceholders(int count) {
+        return StringUtils.collectionToCommaDelimitedString(Collections.nCopies(count, "?"));
+    }
+
+    public static class UserId {
+        private final String id;
+        private final String userName;
+        private final String origin;
+        private final String zoneId;
+
+        public UserId(String id, String userName, String origin, String zoneId) {
+            this.id = id;
+            this.userName = userName;
+            this.origin = origin;
+            this.zoneId = zoneId;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getUserName() {
+            return userName;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public String getZoneId() {
+            return zoneId;
+        }
+    }
+}
@@ -30,6 +30,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
@@ -69,6 +71,10 @@ import static org.springframework.http.HttpStatus.METHOD_NOT_ALLOWED;
  * include the "X-Requested-With" header for a whitelist of URIs and origins and
  * only for the HTTP GET method.
  *
+ * Origin, URI and requested header decisions are cached per configuration
+ * in a bounded map, the cache is reset by {@link #initialize()} and whenever
+ * the configuration changes.
+ *
  * The implementation is based on guidance from:
  * http://www.w3.org/TR/cors/
  * https://developer.mozilla.org/en-US/docs/Web/HTTP/Access_control_CORS
@@ -80,6 +86,40 @@ public class CorsFilter extends OncePerRequestFilter {
     public static final String X_REQUESTED_WITH = "X-Requested-With";
     public static final int ACCESS_CONTROL_MAX_AGE_DEFAULT = 1728000;
     public static final String WILDCARD = "*";
+    public static final int DECISION_CACHE_SIZE = 1000;
+
+    /**
+     * Bounded cache of the outcome of a check. The cache is cleared rather
+     * than trimmed when it reaches its maximum size, so that a flood of unique
+     * values can not grow it without limit.
+     */
+    protected static class DecisionCache {
+        private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+        private final int maxSize;
+
+        public DecisionCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public Boolean get(String key) {
+            return decisions.get(key);
+        }
+
+        public void put(String key, boolean decision) {
+            if (decisions.size() >= maxSize) {
+                decisions.clear();
+            }
+            decisions.put(key, decision);
+        }
+
+        public int size() {
+            return decisions.size();
+        }
+
+        public void clear() {
+            decisions.clear();
+        }
+    }
 
     public static class CorsConfiguration {
         /**
@@ -110,6 +150,12 @@ public class CorsFilter extends OncePerRequestFilter {
 
         private int maxAge = ACCESS_CONTROL_MAX_AGE_DEFAULT;
 
+        private final DecisionCache originDecisions = new DecisionCache(DECISION_CACHE_SIZE);
+        private final DecisionCache uriDecisions = new DecisionCache(DECISION_CACHE_SIZE);
+        private final DecisionCache requestHeaderDecisions = new DecisionCache(DECISION_CACHE_SIZE);
+
+        private volatile String allowedMethodsHeader;
+
         public boolean isAllowedCredentials() {
             return allowedCredentials;
         }
@@ -124,6 +170,7 @@ public class CorsFilter extends OncePerRequestFilter {
 
         public void setAllowedHeaders(List<String> allowedHeaders) {
             this.allowedHeaders = allowedHeaders;
+            clearCache();
         }
 
         public List<String> getAllowedMethods() {
@@ -132,6 +179,19 @@ public class CorsFilter extends OncePerRequestFilter {
 
         public void setAllowedMethods(List<String> allowedMethods) {
             this.allowedMethods = allowedMethods;
+            clearCache();
+        }
+
+        /**
+         * @return the value of the Access-Control-Allow-Methods header, built once per configuration
+         */
+        public String getAllowedMethodsHeader() {
+            String result = allowedMethodsHeader;
+            if (result == null) {
+                result = StringUtils.collectionToDelimitedString(allowedMethods, ", ");
+                allowedMethodsHeader = result;
+            }
+            return result;
         }
 
         public List<Pattern> getAllowedOriginPatterns() {
@@ -144,6 +204,7 @@ public class CorsFilter extends OncePerRequestFilter {
 
         public void setAllowedOrigins(List<String> allowedOrigins) {
             this.allowedOrigins = allowedOrigins;
+            clearCache();
         }
 
         public List<Pattern> getAllowedUriPatterns() {
@@ -156,6 +217,7 @@ public class CorsFilter extends OncePerRequestFilter {
 
         public void setAllowedUris(List<String> allowedUris) {
             this.allowedUris = allowedUris;
+            clearCache();
         }
 
         public int getMaxAge() {
@@ -165,6 +227,25 @@ public class CorsFilter extends OncePerRequestFilter {
         public void setMaxAge(int maxAge) {
             this.maxAge = maxAge;
         }
+
+        public DecisionCache getOriginDecisions() {
+            return originDecisions;
+        }
+
+        public DecisionCache getUriDecisions() {
+            return uriDecisions;
+        }
+
+        public DecisionCache getRequestHeaderDecisions() {
+            return requestHeaderDecisions;
+        }
+
+        public void clearCache() {
+            originDecisions.clear();
+            uriDecisions.clear();
+            requestHeaderDecisions.clear();
+            allowedMethodsHeader = null;
+        }
     }
 
     private CorsConfiguration xhrConfiguration = new CorsConfiguration();
@@ -208,6 +289,7 @@ public class CorsFilter extends OncePerRequestFilter {
                     }
                 }
             }
+            configuration.clearCache();
         }
     }
 
@@ -362,7 +444,7 @@ public class CorsFilter extends OncePerRequestFilter {
         }
 
         //add all methods that we allow
-        response.addHeader(ACCESS_CONTROL_ALLOW_METHODS, buildCommaDelimitedString(configuration.getAllowedMethods()));
+        response.addHeader(ACCESS_CONTROL_ALLOW_METHODS, configuration.getAllowedMethodsHeader());
 
         //we require Access-Control-Request-Headers header
         String accessControlRequestHeaders = request.getHeader(ACCESS_CONTROL_REQUEST_HEADERS);
@@ -387,13 +469,20 @@ public class CorsFilter extends OncePerRequestFilter {
     }
 
     protected boolean headersAllowed(final String accessControlRequestHeaders, CorsConfiguration configuration) {
+        Boolean cached = configuration.getRequestHeaderDecisions().get(accessControlRequestHeaders);
+        if (cached != null) {
+            return cached;
+        }
+        boolean allowed = true;
         List<String> headers = splitCommaDelimitedString(accessControlRequestHeaders);
         for (String header : headers) {
             if (!containsIgnoreCase(configuration.getAllowedHeaders(), header)) {
-                return false;
+                allowed = false;
+                break;
             }
         }
-        return true;
+        configuration.getRequestHeaderDecisions().put(accessControlRequestHeaders, allowed);
+        return allowed;
     }
 
     protected boolean isAllowedMethod(final String method, CorsConfiguration configuration) {
@@ -405,26 +494,37 @@ public class CorsFilter extends OncePerRequestFilter {
             return false;
         }
 
-        for (Pattern pattern : configuration.getAllowedUriPatterns()) {
-            // Making sure that the pattern matches
-            if (pattern.matcher(uri).find()) {
-                return true;
-            }
+        if (isAllowed(uri, configuration.getAllowedUriPatterns(), configuration.getUriDecisions())) {
+            return true;
         }
         logger.debug(String.format("The '%s' URI does not allow CORS requests.", uri));
         return false;
     }
 
     protected boolean isAllowedOrigin(final String origin, CorsConfiguration configuration) {
-        for (Pattern pattern : configuration.getAllowedOriginPatterns()) {
-            // Making sure that the pattern matches
-            if (pattern.matcher(origin).find()) {
-                return true;
-            }
+        if (isAllowed(origin, configuration.getAllowedOriginPatterns(), configuration.getOriginDecisions())) {
+            return true;
         }
         logger.debug(String.format("The '%s' origin is not allowed to make CORS requests.",origin));
         return false;
     }
+
+    protected boolean isAllowed(final String value, List<Pattern> patterns, DecisionCache decisions) {
+        Boolean cached = decisions.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        boolean allowed = false;
+        for (Pattern pattern : patterns) {
+            // Making sure that the pattern matches
+            if (pattern.matcher(value).find()) {
+                allowed = true;
+                break;
+            }
+        }
+        decisions.put(value, allowed);
+        return allowed;
+    }
     //----------------REQUEST INFO ----------------------------------------------//
     public String getRequestInfo(HttpServletRequest request) {
         return String.format("URI: %s; Scheme: %s; Host: %s; Port: %s; Origin: %s; Method: %s",
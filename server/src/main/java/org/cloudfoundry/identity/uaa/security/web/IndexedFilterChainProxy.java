@@ -0,0 +1,127 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.security.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.FilterChainProxy;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.firewall.DefaultHttpFirewall;
+import org.springframework.security.web.firewall.FirewalledRequest;
+import org.springframework.security.web.firewall.HttpFirewall;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link FilterChainProxy} that selects the filter chain of a request through a
+ * {@link SecurityFilterChainIndex}. The chains themselves are left untouched and
+ * are still returned by {@link #getFilterChains()}; request processing is otherwise
+ * identical to the superclass.
+ */
+public class IndexedFilterChainProxy extends FilterChainProxy {
+
+    private static final Log logger = LogFactory.getLog(IndexedFilterChainProxy.class);
+
+    //shared with FilterChainProxy so that nested proxies behave the same way
+    private static final String FILTER_APPLIED = FilterChainProxy.class.getName().concat(".APPLIED");
+
+    private final SecurityFilterChainIndex index;
+    private HttpFirewall firewall = new DefaultHttpFirewall();
+
+    public IndexedFilterChainProxy(List<SecurityFilterChain> filterChains) {
+        super(filterChains);
+        this.index = new SecurityFilterChainIndex(filterChains);
+    }
+
+    public SecurityFilterChainIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public void setFirewall(HttpFirewall firewall) {
+        super.setFirewall(firewall);
+        this.firewall = firewall;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        boolean clearContext = request.getAttribute(FILTER_APPLIED) == null;
+        if (clearContext) {
+            try {
+                request.setAttribute(FILTER_APPLIED, Boolean.TRUE);
+                doFilterInternal(request, response, chain);
+            } finally {
+                SecurityContextHolder.clearContext();
+                request.removeAttribute(FILTER_APPLIED);
+            }
+        } else {
+            doFilterInternal(request, response, chain);
+        }
+    }
+
+    protected void doFilterInternal(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        FirewalledRequest firewalledRequest = firewall.getFirewalledRequest((HttpServletRequest) request);
+        HttpServletResponse firewalledResponse = firewall.getFirewalledResponse((HttpServletResponse) response);
+        List<Filter> filters = getFilters(firewalledRequest);
+        if (filters == null || filters.size() == 0) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(firewalledRequest.getRequestURI() + (filters == null ? " has no matching filters" : " has an empty filter list"));
+            }
+            firewalledRequest.reset();
+            chain.doFilter(firewalledRequest, firewalledResponse);
+            return;
+        }
+        new VirtualFilterChain(firewalledRequest, chain, filters).doFilter(firewalledRequest, firewalledResponse);
+    }
+
+    protected List<Filter> getFilters(HttpServletRequest request) {
+        int matched = index.getMatchingChain(request);
+        return matched < 0 ? null : index.getChains().get(matched).getFilters();
+    }
+
+    private static class VirtualFilterChain implements FilterChain {
+        private final FirewalledRequest firewalledRequest;
+        private final FilterChain originalChain;
+        private final List<Filter> additionalFilters;
+        private int currentPosition = 0;
+
+        private VirtualFilterChain(FirewalledRequest firewalledRequest, FilterChain originalChain, List<Filter> additionalFilters) {
+            this.firewalledRequest = firewalledRequest;
+            this.originalChain = originalChain;
+            this.additionalFilters = additionalFilters;
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+            if (currentPosition == additionalFilters.size()) {
+                firewalledRequest.reset();
+                originalChain.doFilter(request, response);
+            } else {
+                currentPosition++;
+                Filter nextFilter = additionalFilters.get(currentPosition - 1);
+                nextFilter.doFilter(request, response, this);
+            }
+        }
+    }
+}
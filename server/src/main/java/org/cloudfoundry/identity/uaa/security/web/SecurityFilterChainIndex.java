@@ -0,0 +1,214 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.security.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.web.DefaultSecurityFilterChain;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.AnyRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Startup time dispatch index over an ordered list of security filter chains.
+ * <p>
+ * Each chain is registered under the literal path prefix its request matcher
+ * requires: the path relative to the context path for {@link UaaRequestMatcher},
+ * or the lower cased text before the first wildcard of an {@link AntPathRequestMatcher}.
+ * A lookup walks the request path through the prefix tries to collect the candidate
+ * chains, drops those bound to another HTTP method and asks the remaining ones,
+ * in declaration order, to match the request, so header and parameter predicates
+ * are still evaluated by the original matcher. Chains with any other kind of
+ * matcher are always candidates.
+ * <p>
+ * In verification mode every lookup is cross checked against a linear scan of the
+ * chains; a mismatch is logged and the linear result is used.
+ */
+public class SecurityFilterChainIndex {
+
+    private static final Log logger = LogFactory.getLog(SecurityFilterChainIndex.class);
+
+    private final List<SecurityFilterChain> chains;
+    private final String[] methods;
+    private final BitSet unindexed = new BitSet();
+    private final PrefixNode uriPrefixes = new PrefixNode();
+    private final PrefixNode pathPrefixes = new PrefixNode();
+    private boolean verify = false;
+
+    public SecurityFilterChainIndex(List<SecurityFilterChain> chains) {
+        this.chains = Collections.unmodifiableList(new ArrayList<>(chains));
+        this.methods = new String[chains.size()];
+        for (int i = 0; i < this.chains.size(); i++) {
+            SecurityFilterChain chain = this.chains.get(i);
+            RequestMatcher matcher = chain instanceof DefaultSecurityFilterChain ? ((DefaultSecurityFilterChain) chain).getRequestMatcher() : null;
+            if (matcher instanceof UaaRequestMatcher) {
+                UaaRequestMatcher uaaMatcher = (UaaRequestMatcher) matcher;
+                uriPrefixes.add(uaaMatcher.getPath(), false, i);
+                methods[i] = uaaMatcher.getMethod() == null ? null : uaaMatcher.getMethod().name();
+            } else if (matcher instanceof AntPathRequestMatcher && getLiteralPrefix(((AntPathRequestMatcher) matcher).getPattern()) != null) {
+                pathPrefixes.add(getLiteralPrefix(((AntPathRequestMatcher) matcher).getPattern()), true, i);
+            } else {
+                if (matcher != null && !(matcher instanceof AnyRequestMatcher)) {
+                    logger.debug("Filter chain " + i + " uses matcher " + matcher + ", it will be evaluated for every request.");
+                }
+                unindexed.set(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the text an Ant pattern requires every matching path to start with, or
+     * <code>null</code> if the pattern can not be indexed. A trailing slash in front of
+     * a <code>**</code> segment is dropped, as <code>/a/**</code> also matches <code>/a</code>.
+     */
+    protected static String getLiteralPrefix(String pattern) {
+        if (pattern == null || !pattern.startsWith("/")) {
+            return null;
+        }
+        int wildcard = pattern.length();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?' || c == '{') {
+                wildcard = i;
+                break;
+            }
+        }
+        String prefix = pattern.substring(0, wildcard);
+        if (pattern.startsWith("**", wildcard) && prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        return prefix;
+    }
+
+    /**
+     * @return the position of the first chain that matches the request, or -1 if none does
+     */
+    public int getMatchingChain(HttpServletRequest request) {
+        int result = lookup(request);
+        if (verify) {
+            int linear = scan(request);
+            if (linear != result) {
+                logger.error("Filter chain index selected chain " + result + " but the linear scan selected chain " + linear +
+                    " for " + request.getMethod() + " " + request.getRequestURI());
+                return linear;
+            }
+        }
+        return result;
+    }
+
+    protected int lookup(HttpServletRequest request) {
+        BitSet candidates = (BitSet) unindexed.clone();
+        if (!pathPrefixes.collect(candidates, true, request.getServletPath(), request.getPathInfo())) {
+            //Ant matchers trim whitespace from path segments, prefixes don't apply
+            return scan(request);
+        }
+        String requestURI = request.getRequestURI();
+        String contextPath = request.getContextPath();
+        if (requestURI != null && contextPath != null && requestURI.startsWith(contextPath)) {
+            uriPrefixes.collect(candidates, false, requestURI.substring(contextPath.length()));
+        }
+        String method = request.getMethod();
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            if (methods[i] != null && !methods[i].equalsIgnoreCase(method)) {
+                continue;
+            }
+            if (chains.get(i).matches(request)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected int scan(HttpServletRequest request) {
+        for (int i = 0; i < chains.size(); i++) {
+            if (chains.get(i).matches(request)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public List<SecurityFilterChain> getChains() {
+        return chains;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    protected static class PrefixNode {
+        private final Map<Character, PrefixNode> children = new HashMap<>();
+        private final BitSet chains = new BitSet();
+
+        protected void add(String prefix, boolean ignoreCase, int chain) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = ignoreCase ? Character.toLowerCase(prefix.charAt(i)) : prefix.charAt(i);
+                PrefixNode child = node.children.get(c);
+                if (child == null) {
+                    child = new PrefixNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.chains.set(chain);
+        }
+
+        /**
+         * Adds the chains of every prefix of the concatenated path parts to the candidates.
+         * @return false if the path contains whitespace, which is only checked when ignoring case
+         */
+        protected boolean collect(BitSet candidates, boolean ignoreCase, String... parts) {
+            PrefixNode node = this;
+            candidates.or(node.chains);
+            for (String part : parts) {
+                if (part == null) {
+                    continue;
+                }
+                for (int i = 0; i < part.length(); i++) {
+                    char c = part.charAt(i);
+                    if (ignoreCase) {
+                        if (Character.isWhitespace(c)) {
+                            return false;
+                        }
+                        c = Character.toLowerCase(c);
+                    }
+                    if (node != null) {
+                        node = node.children.get(c);
+                        if (node != null) {
+                            candidates.or(node.chains);
+                        }
+                    } else if (!ignoreCase) {
+                        return true;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.security.web;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.security.web.FilterChainProxy;
+
+/**
+ * Post processor which replaces the security filter chain proxy with one that
+ * selects the filter chain through a {@link SecurityFilterChainIndex} instead of
+ * asking every chain, in declaration order, whether it matches the request.
+ */
+public class SecurityFilterChainIndexPostProcessor implements BeanPostProcessor {
+
+    private final Log logger = LogFactory.getLog(getClass());
+    private boolean enabled = true;
+    private boolean verify = false;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (enabled && bean instanceof FilterChainProxy && !(bean instanceof IndexedFilterChainProxy)) {
+            IndexedFilterChainProxy result = new IndexedFilterChainProxy(((FilterChainProxy) bean).getFilterChains());
+            result.getIndex().setVerify(verify);
+            result.afterPropertiesSet();
+            logger.info("Indexed " + result.getFilterChains().size() + " security filter chains of " + beanName + (verify ? ", verification enabled" : ""));
+            return result;
+        }
+        return bean;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * If set to true, every lookup is cross checked against a linear scan of the chains.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+}
@@ -54,6 +54,8 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
 
     private Map<String, List<String>> expectedHeaders = new HashMap<String, List<String>>();
 
+    private Map<String, List<MediaType>> expectedMediaTypes = new HashMap<String, List<MediaType>>();
+
     private String name;
 
     public UaaRequestMatcher(String path) {
@@ -106,18 +108,21 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
             logger.debug("["+name+"] Checking match of request : '" + message);
         }
 
-        if (!request.getRequestURI().startsWith(request.getContextPath() + path)) {
+        String requestURI = request.getRequestURI();
+        String contextPath = request.getContextPath();
+        if (!requestURI.startsWith(contextPath) || !requestURI.startsWith(path, contextPath.length())) {
             return false;
         }
 
-        if (method != null && !method.toString().equals(request.getMethod().toUpperCase())) {
+        if (method != null && !method.name().equalsIgnoreCase(request.getMethod())) {
             return false;
         }
 
         for (Entry<String, List<String>> expectedHeaderEntry : expectedHeaders.entrySet()) {
             String requestValue = request.getHeader(expectedHeaderEntry.getKey());
-            if ("accept".equalsIgnoreCase(expectedHeaderEntry.getKey())) {
-                if (!matchesAcceptHeader(requestValue, expectedHeaderEntry.getValue())) {
+            List<MediaType> mediaTypes = expectedMediaTypes.get(expectedHeaderEntry.getKey());
+            if (mediaTypes != null) {
+                if (!matchesAcceptHeader(requestValue, mediaTypes)) {
                     return false;
                 }
             }
@@ -126,9 +131,9 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
             }
         }
 
-        for (String key : parameters.keySet()) {
-            String value = request.getParameter(key);
-            if (value == null || !value.startsWith(parameters.get(key))) {
+        for (Entry<String, String> parameter : parameters.entrySet()) {
+            String value = request.getParameter(parameter.getKey());
+            if (value == null || !value.startsWith(parameter.getValue())) {
                 return false;
             }
         }
@@ -144,7 +149,7 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
             //TODO - Spring Security Oauth2 v2 upgrade - bearer changed capitalization
             if ("bearer ".equalsIgnoreCase(headerValue)) {
                 //case insensitive for Authorization: Bearer match
-                if (requestValue == null || !requestValue.toLowerCase().startsWith(headerValue)) {
+                if (requestValue == null || !requestValue.regionMatches(true, 0, headerValue, 0, headerValue.length())) {
                     return false;
                 }
             } else if (requestValue == null || !requestValue.startsWith(headerValue)) {
@@ -154,15 +159,15 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
         return true;
     }
 
-    private boolean matchesAcceptHeader(String requestValue, List<String> expectedValues) {
+    private boolean matchesAcceptHeader(String requestValue, List<MediaType> expectedValues) {
         // Accept header is not required to be checked!
         if (requestValue == null) {
             return true;
         }
 
         List<MediaType> requestValues = MediaType.parseMediaTypes(requestValue);
-        for (String expectedValue : expectedValues) {
-            if (MediaType.parseMediaType(expectedValue).includes(requestValues.get(0))) {
+        for (MediaType expectedValue : expectedValues) {
+            if (expectedValue.includes(requestValues.get(0))) {
                 return true;
             }
         }
@@ -235,9 +240,27 @@ public final class UaaRequestMatcher implements RequestMatcher, BeanNameAware {
             List<String> expectedValues = new ArrayList<String>();
             expectedValues.addAll(headers.get(headerName));
             expectedHeaders.put(headerName, expectedValues);
+            if ("accept".equalsIgnoreCase(headerName)) {
+                List<MediaType> mediaTypes = new ArrayList<MediaType>();
+                for (String expectedValue : expectedValues) {
+                    mediaTypes.add(MediaType.parseMediaType(expectedValue));
+                }
+                expectedMediaTypes.put(headerName, mediaTypes);
+            }
         }
     }
 
+    /**
+     * @return the path prefix, relative to the context path, of the requests this matcher accepts
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public HttpMethod getMethod() {
+        return method;
+    }
+
     @Override
     public void setBeanName(String name) {
         this.name=name;
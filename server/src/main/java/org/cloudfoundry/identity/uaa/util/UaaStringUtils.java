@@ -37,6 +37,15 @@ import java.util.regex.Pattern;
  */
 public class UaaStringUtils {
 
+    public static final int WILDCARD_MATCHER_CACHE_SIZE = 1000;
+
+    private static final Map<Set<String>, WildcardMatcher> wildcardMatchers = new LinkedHashMap<Set<String>, WildcardMatcher>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Set<String>, WildcardMatcher> eldest) {
+            return size() > WILDCARD_MATCHER_CACHE_SIZE;
+        }
+    };
+
     /**
      * Convert a string from camel case to underscores, also replacing periods
      * with underscores (so for example a fully
@@ -157,6 +166,26 @@ public class UaaStringUtils {
         return wildcards;
     }
 
+    /**
+     * Returns a compiled matcher for the wildcard strings. Matchers are cached by
+     * the content of the collection, the least recently used ones are discarded
+     * once more than {@link #WILDCARD_MATCHER_CACHE_SIZE} sets have been seen.
+     */
+    public static WildcardMatcher getWildcardMatcher(Collection<String> wildcardStrings) {
+        Set<String> key = Collections.unmodifiableSet(new HashSet<>(wildcardStrings));
+        synchronized (wildcardMatchers) {
+            WildcardMatcher matcher = wildcardMatchers.get(key);
+            if (matcher != null) {
+                return matcher;
+            }
+        }
+        WildcardMatcher matcher = new WildcardMatcher(key);
+        synchronized (wildcardMatchers) {
+            wildcardMatchers.put(key, matcher);
+        }
+        return matcher;
+    }
+
     public static boolean matches(Set<Pattern> wildcards, String scope) {
         for (Pattern wildcard : wildcards) {
             if (wildcard.matcher(scope).matches()) {
@@ -27,10 +27,10 @@ public class UaaTokenUtils {
 
     public Set<String> retainAutoApprovedScopes(Collection<String> requestedScopes, Set<String> autoApprovedScopes) {
         HashSet<String> result = new HashSet<>();
-        Set<Pattern> autoApprovedScopePatterns = UaaStringUtils.constructWildcards(autoApprovedScopes);
+        WildcardMatcher autoApprovedScopeMatcher = UaaStringUtils.getWildcardMatcher(autoApprovedScopes);
         // Don't want to approve more than what's requested
         for (String scope : requestedScopes) {
-            if (UaaStringUtils.matches(autoApprovedScopePatterns, scope)) {
+            if (autoApprovedScopeMatcher.matches(scope)) {
                 result.add(scope);
             }
         }
@@ -24,7 +24,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collection;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 public class UaaUrlUtils {
 
@@ -49,8 +48,8 @@ public class UaaUrlUtils {
 
     public static String findMatchingRedirectUri(Collection<String> wildcardUris, String requestedRedirectUri) {
         if (wildcardUris != null) {
-            Set<Pattern> wildcards = UaaStringUtils.constructWildcards(wildcardUris);
-            if (UaaStringUtils.matches(wildcards, requestedRedirectUri)) {
+            WildcardMatcher wildcards = UaaStringUtils.getWildcardMatcher(wildcardUris);
+            if (wildcards.matches(requestedRedirectUri)) {
                 return requestedRedirectUri;
             }
         }
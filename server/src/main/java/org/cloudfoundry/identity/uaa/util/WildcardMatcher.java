@@ -0,0 +1,113 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a set of simple wildcard strings, with the semantics of
+ * {@link UaaStringUtils#constructSimpleWildcardPattern(String)}: a <code>*</code>
+ * matches one or more characters other than a dot or a backslash.
+ * <p>
+ * Strings without a wildcard are matched through a hash lookup and strings with
+ * a single wildcard through a prefix and suffix comparison. Anything else is
+ * matched with the regular expression built by {@link UaaStringUtils}.
+ * Instances are immutable and can be shared, see
+ * {@link UaaStringUtils#getWildcardMatcher(Collection)}.
+ */
+public class WildcardMatcher {
+
+    private final Set<String> literals = new HashSet<>();
+    private final List<String[]> prefixSuffixes = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    public WildcardMatcher(Collection<String> wildcards) {
+        for (String wildcard : wildcards) {
+            if (requiresRegularExpression(wildcard)) {
+                patterns.add(Pattern.compile(UaaStringUtils.constructSimpleWildcardPattern(wildcard)));
+                continue;
+            }
+            int star = wildcard.indexOf('*');
+            if (star < 0) {
+                literals.add(wildcard);
+            } else if (wildcard.indexOf('*', star + 1) < 0) {
+                prefixSuffixes.add(new String[] {wildcard.substring(0, star), wildcard.substring(star + 1)});
+            } else {
+                patterns.add(Pattern.compile(UaaStringUtils.constructSimpleWildcardPattern(wildcard)));
+            }
+        }
+    }
+
+    /**
+     * The characters [ \ ] ^ are not escaped by {@link UaaStringUtils#escapeRegExCharacters(String)}
+     * and keep their regular expression meaning; non ASCII characters are left to the
+     * regular expression engine as well.
+     */
+    private static boolean requiresRegularExpression(String wildcard) {
+        if (wildcard == null) {
+            return true;
+        }
+        for (int i = 0; i < wildcard.length(); i++) {
+            char c = wildcard.charAt(i);
+            if (c == '[' || c == '\\' || c == ']' || c == '^' || c > 127) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean matches(String value) {
+        if (value == null) {
+            return false;
+        }
+        if (literals.contains(value)) {
+            return true;
+        }
+        for (String[] prefixSuffix : prefixSuffixes) {
+            if (matches(prefixSuffix[0], prefixSuffix[1], value)) {
+                return true;
+            }
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(value).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String prefix, String suffix, String value) {
+        int end = value.length() - suffix.length();
+        if (end <= prefix.length() || !value.startsWith(prefix) || !value.endsWith(suffix)) {
+            return false;
+        }
+        for (int i = prefix.length(); i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '.' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return literals.isEmpty() && prefixSuffixes.isEmpty() && patterns.isEmpty();
+    }
+}
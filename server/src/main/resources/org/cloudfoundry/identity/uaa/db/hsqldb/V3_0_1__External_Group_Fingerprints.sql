@@ -0,0 +1,25 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+
+CREATE TABLE external_group_fingerprint (
+  user_id VARCHAR(36) NOT NULL,
+  origin VARCHAR(36) NOT NULL,
+  identity_zone_id VARCHAR(36) NOT NULL,
+  fingerprint VARCHAR(64) NULL,
+  membership_count INTEGER DEFAULT 0 NOT NULL,
+  lastmodified TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+  PRIMARY KEY (user_id, origin)
+);
+
+CREATE INDEX group_membership_member_origin ON group_membership (member_id, origin);
@@ -0,0 +1,25 @@
+--
+-- Cloud Foundry
+-- Copyright (c) [2015] Pivotal Software, Inc. All Rights Reserved.
+--
+-- This product is licensed to you under the Apache License, Version 2.0 (the "License").
+-- You may not use this product except in compliance with the License.
+--
+-- This product includes a number of subcomponents with
+-- separate copyright notices and license terms. Your use of these
+-- subcomponents is subject to the terms and conditions of the
+-- subcomponent's license, as noted in the LICENSE file.
+--
+
+
+CREATE TABLE `external_group_fingerprint` (
+  `user_id` varchar(36) NOT NULL,
+  `origin` varchar(36) NOT NULL,
+  `identity_zone_id` varchar(36) NOT NULL,
+  `fingerprint` varchar(64) NULL,
+  `membership_count` int default 0 not null,
+  `lastmodified` TIMESTAMP default current_timestamp not null,
+  PRIMARY KEY (`user_id`,`origin`)
+);
+
+CREATE INDEX group_membership_member_origin ON group_membership (member_id, origin);
@@ -63,6 +63,17 @@ public class JdbcFailedLoginCountingAuditServiceTests extends JdbcTestBase {
         assertThat(jdbcTemplate.queryForObject("select count(*) from sec_audit where principal_id='1'", Integer.class), is(1));
     }
 
+    @Test
+    public void userAuthenticationFailureKeepsOldDataWhenPurgeIsDisabled() throws Exception {
+        auditService.setPurgeExpired(false);
+        long now = System.currentTimeMillis();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        jdbcTemplate.update("update sec_audit set created=?", new Timestamp(now - 3 * 3600 * 1000));
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from sec_audit where principal_id='1'", Integer.class), is(2));
+        assertEquals(1, auditService.find("1", now - 120 * 1000).size());
+    }
+
     @Test
     public void userAuthenticationSuccessResetsData() throws Exception {
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"));
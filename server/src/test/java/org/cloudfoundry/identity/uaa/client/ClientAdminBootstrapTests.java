@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.client;
 
 import org.cloudfoundry.identity.uaa.client.ClientAdminBootstrap;
 import org.cloudfoundry.identity.uaa.oauth.client.ClientConstants;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
 import org.cloudfoundry.identity.uaa.zone.MultitenantJdbcClientDetailsService;
 import org.junit.After;
@@ -45,7 +46,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -271,6 +274,37 @@ public class ClientAdminBootstrapTests extends JdbcTestBase {
         assertEquals("Password hash must not change on an update:", hash, details.getClientSecret());
     }
 
+    @Test
+    public void testUnchangedClientIsSkippedWithFingerprints() throws Exception {
+        JdbcBootstrapFingerprintStore fingerprintStore = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        fingerprintStore.setKey("fingerprint-key");
+        bootstrap.setFingerprintStore(fingerprintStore);
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", "foo");
+        map.put("secret", "bar");
+        map.put("scope", "openid");
+        map.put("authorized-grant-types", "authorization_code");
+        map.put("authorities", "uaa.none");
+        doSimpleTest(map);
+        assertEquals(1, fingerprintStore.getFingerprints(ClientAdminBootstrap.FINGERPRINT_SECTION).size());
+
+        ClientRegistrationService clientRegistrationService = mock(ClientRegistrationService.class);
+        bootstrap.setClientRegistrationService(clientRegistrationService);
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, never()).addClientDetails(any(ClientDetails.class));
+        verify(clientRegistrationService, never()).updateClientSecret(anyString(), anyString());
+
+        map.put("secret", "bar1");
+        bootstrap.afterPropertiesSet();
+        verify(clientRegistrationService, times(1)).addClientDetails(any(ClientDetails.class));
+
+        bootstrap.setClientRegistrationService(this.clientRegistrationService);
+        bootstrap.setDefaultOverride(false);
+        map.put("secret", "bar");
+        bootstrap.afterPropertiesSet();
+        assertEquals(1, fingerprintStore.getFingerprints(ClientAdminBootstrap.FINGERPRINT_SECTION).size());
+    }
+
     private ClientDetails doSimpleTest(Map<String, Object> map) throws Exception {
         bootstrap.setClients(Collections.singletonMap((String) map.get("id"), map));
         bootstrap.afterPropertiesSet();
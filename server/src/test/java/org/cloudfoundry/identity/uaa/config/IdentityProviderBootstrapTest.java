@@ -16,6 +16,7 @@ package org.cloudfoundry.identity.uaa.config;
 
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.impl.config.IdentityProviderBootstrap;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.provider.KeystoneIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.provider.LdapIdentityProviderDefinition;
 import org.cloudfoundry.identity.uaa.provider.saml.SamlIdentityProviderConfigurator;
@@ -178,6 +179,31 @@ public class IdentityProviderBootstrapTest extends JdbcTestBase {
         assertEquals(KEYSTONE, keystoneProvider.getType());
     }
 
+    @Test
+    public void testUnchangedKeystoneBootstrapIsSkippedWithFingerprints() throws Exception {
+        IdentityProviderProvisioning provisioning = new JdbcIdentityProviderProvisioning(jdbcTemplate);
+        IdentityProviderBootstrap bootstrap = new IdentityProviderBootstrap(provisioning, new MockEnvironment());
+        JdbcBootstrapFingerprintStore fingerprintStore = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        fingerprintStore.setKey("fingerprint-key");
+        bootstrap.setFingerprintStore(fingerprintStore);
+        HashMap<String, Object> keystoneConfig = new HashMap<>();
+        keystoneConfig.put("testkey", "testvalue");
+        bootstrap.setKeystoneConfig(keystoneConfig);
+        bootstrap.afterPropertiesSet();
+        assertEquals(2, fingerprintStore.getFingerprints(IdentityProviderBootstrap.FINGERPRINT_SECTION).size());
+
+        jdbcTemplate.update("update identity_provider set name='Changed' where origin_key=?", KEYSTONE);
+        bootstrap.afterPropertiesSet();
+        assertEquals("Changed", provisioning.retrieveByOrigin(KEYSTONE, IdentityZoneHolder.get().getId()).getName());
+
+        keystoneConfig.put("testkey", "othervalue");
+        bootstrap.setKeystoneConfig(keystoneConfig);
+        bootstrap.afterPropertiesSet();
+        IdentityProvider keystoneProvider = provisioning.retrieveByOrigin(KEYSTONE, IdentityZoneHolder.get().getId());
+        assertEquals("UAA Keystone Provider", keystoneProvider.getName());
+        assertEquals(new KeystoneIdentityProviderDefinition(keystoneConfig), keystoneProvider.getConfig());
+    }
+
     @Test
     public void testRemovedKeystoneBootstrapIsInactive() throws Exception {
         MockEnvironment env = new MockEnvironment();
@@ -0,0 +1,148 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.config;
+
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JdbcBootstrapFingerprintStoreTests extends JdbcTestBase {
+
+    private JdbcBootstrapFingerprintStore store;
+
+    @Before
+    public void setUpStore() {
+        store = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        store.setKey("fingerprint-key");
+    }
+
+    @Test
+    public void fingerprintIgnoresMapAndSetOrder() {
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("scope", new HashSet<>(Arrays.asList("openid", "uaa.user", "scim.read")));
+        first.put("secret", "bar");
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("secret", "bar");
+        second.put("scope", new HashSet<>(Arrays.asList("scim.read", "openid", "uaa.user")));
+        String fingerprint = store.fingerprint("clients", "foo", first);
+        assertEquals(64, fingerprint.length());
+        assertEquals(fingerprint, store.fingerprint("clients", "foo", second));
+    }
+
+    @Test
+    public void fingerprintDependsOnValueAndItem() {
+        Map<String, Object> config = new HashMap<>();
+        config.put("secret", "bar");
+        String fingerprint = store.fingerprint("clients", "foo", config);
+        assertNotEquals(fingerprint, store.fingerprint("clients", "other", config));
+        config.put("secret", "bar1");
+        assertNotEquals(fingerprint, store.fingerprint("clients", "foo", config));
+        assertFalse(fingerprint.contains("bar"));
+    }
+
+    @Test
+    public void fingerprintDependsOnKey() {
+        Map<String, Object> config = Collections.<String, Object>singletonMap("secret", "bar");
+        String fingerprint = store.fingerprint("clients", "foo", config);
+        JdbcBootstrapFingerprintStore other = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        other.setKey("other-key");
+        assertNotEquals(fingerprint, other.fingerprint("clients", "foo", config));
+    }
+
+    @Test
+    public void storeWithoutKeyIsDisabled() {
+        JdbcBootstrapFingerprintStore other = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        assertFalse(other.isEnabled());
+        other.setKey("");
+        assertFalse(other.isEnabled());
+        other.updateFingerprints("clients", new HashMap<String, String>(), Collections.singletonMap("a", "1"));
+        assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from bootstrap_fingerprint", Integer.class));
+    }
+
+    @Test
+    public void onlyChangedFingerprintsAreWritten() {
+        Map<String, String> first = new HashMap<>();
+        first.put("a", "1");
+        first.put("b", "2");
+        first.put("c", "3");
+        store.updateFingerprints("clients", new HashMap<String, String>(), first);
+        assertEquals(first, store.getFingerprints("clients"));
+        assertTrue(store.getFingerprints("users").isEmpty());
+
+        jdbcTemplate.update("update bootstrap_fingerprint set lastmodified=? where item='a'", new Timestamp(0));
+        Map<String, String> second = new HashMap<>();
+        second.put("a", "1");
+        second.put("b", "4");
+        second.put("d", "5");
+        store.updateFingerprints("clients", store.getFingerprints("clients"), second);
+        assertEquals(second, store.getFingerprints("clients"));
+        assertEquals(0, (long) jdbcTemplate.queryForObject("select lastmodified from bootstrap_fingerprint where item='a'", Timestamp.class).getTime());
+    }
+
+    @Test
+    public void concurrentUpdatesWithTheSamePreviousFingerprints() {
+        Map<String, String> previous = new HashMap<>();
+        Map<String, String> first = new HashMap<>();
+        first.put("a", "1");
+        first.put("b", "2");
+        store.updateFingerprints("clients", previous, first);
+
+        Map<String, String> second = new HashMap<>();
+        second.put("a", "1");
+        second.put("b", "3");
+        second.put("c", "4");
+        store.updateFingerprints("clients", previous, second);
+        assertEquals(second, store.getFingerprints("clients"));
+    }
+
+    @Test
+    public void failuresToRecordFingerprintsAreIgnored() {
+        JdbcBootstrapFingerprintStore failing = new JdbcBootstrapFingerprintStore(new JdbcTemplate(dataSource) {
+            @Override
+            public int[] batchUpdate(String sql, List<Object[]> batchArgs) throws DataAccessException {
+                throw new DataAccessResourceFailureException("Connection lost");
+            }
+        });
+        failing.setKey("fingerprint-key");
+        failing.updateFingerprints("clients", new HashMap<String, String>(), Collections.singletonMap("a", "1"));
+        assertTrue(store.getFingerprints("clients").isEmpty());
+    }
+
+    @Test
+    public void disabledStoreRecordsNothing() {
+        store.setEnabled(false);
+        store.updateFingerprints("clients", new HashMap<String, String>(), Collections.singletonMap("a", "1"));
+        assertTrue(store.getFingerprints("clients").isEmpty());
+        assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from bootstrap_fingerprint", Integer.class));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiredDataReaperTests extends JdbcTestBase {
+
+    private ExpiredDataReaper reaper;
+
+    @Before
+    public void setUpReaper() {
+        reaper = new ExpiredDataReaper(
+            jdbcTemplate,
+            limitSqlAdapter,
+            Collections.singletonList(new ExpiringTable("expiring_code_store", "expiresat", true)),
+            new DatabaseLease(jdbcTemplate, ExpiredDataReaper.LEASE_NAME, "node1"));
+        reaper.setChunkSize(10);
+        reaper.setPauseBetweenChunks(0);
+    }
+
+    private void addCodes(String prefix, int count, long expiresAt) {
+        for (int i = 0; i < count; i++) {
+            jdbcTemplate.update("insert into expiring_code_store (code, expiresat, data, intent) values (?,?,?,?)", prefix + i, expiresAt + i, "data", null);
+        }
+    }
+
+    private int countCodes() {
+        return jdbcTemplate.queryForObject("select count(*) from expiring_code_store", Integer.class);
+    }
+
+    @Test
+    public void testExpiredRowsAreDeletedInChunks() throws Exception {
+        long now = System.currentTimeMillis();
+        addCodes("expired", 25, now - 100000);
+        addCodes("live", 5, now + 100000);
+
+        assertEquals(25, reaper.reap());
+        assertEquals(5, countCodes());
+        assertEquals(25, reaper.getRowsReapedCount());
+        assertEquals(Long.valueOf(25), reaper.getRowsReaped().get("expiring_code_store.expiresat"));
+        assertEquals(25, reaper.getLastRunRows());
+        assertEquals(0, reaper.reap());
+    }
+
+    @Test
+    public void testRunStopsAfterMaxChunks() throws Exception {
+        addCodes("expired", 25, System.currentTimeMillis() - 100000);
+        reaper.setMaxChunksPerRun(2);
+
+        assertEquals(20, reaper.reap());
+        assertEquals(5, countCodes());
+        assertEquals(5, reaper.reap());
+        assertEquals(0, countCodes());
+    }
+
+    @Test
+    public void testOnlyTheLeaseHolderReaps() throws Exception {
+        ExpiredDataReaper other = new ExpiredDataReaper(
+            jdbcTemplate,
+            limitSqlAdapter,
+            reaper.getTables(),
+            new DatabaseLease(jdbcTemplate, ExpiredDataReaper.LEASE_NAME, "node2"));
+        addCodes("expired", 5, System.currentTimeMillis() - 100000);
+
+        assertEquals(5, reaper.reap());
+        addCodes("expired", 5, System.currentTimeMillis() - 100000);
+        assertEquals(0, other.reap());
+        assertEquals(1, other.getRunCount());
+        assertEquals(0, other.getLeaderRunCount());
+        assertEquals(5, countCodes());
+
+        reaper.start();
+        reaper.stop();
+        assertEquals(5, other.reap());
+        assertEquals(1, other.getLeaderRunCount());
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOver() throws Exception {
+        DatabaseLease node1 = new DatabaseLease(jdbcTemplate, "test", "node1");
+        DatabaseLease node2 = new DatabaseLease(jdbcTemplate, "test", "node2");
+        assertTrue(node1.acquire(60000));
+        assertTrue(node1.acquire(60000));
+        assertFalse(node2.acquire(60000));
+        assertTrue(node1.acquire(-1));
+        assertTrue(node2.acquire(60000));
+        assertFalse(node1.acquire(60000));
+    }
+
+    @Test
+    public void testConfiguredTables() throws Exception {
+        ExpiredDataReaper configured = webApplicationContext.getBean(ExpiredDataReaper.class);
+        configured.setPauseBetweenChunks(0);
+        long now = System.currentTimeMillis();
+        Timestamp past = new Timestamp(now - 3 * 3600 * 1000);
+        Timestamp future = new Timestamp(now + 3600 * 1000);
+
+        addCodes("expired", 3, now - 100000);
+        addCodes("live", 2, now + 100000);
+        jdbcTemplate.update("insert into oauth_code (code, user_id, client_id, expiresat, authentication) values (?,?,?,?,?)", "expired", "user", "client", now - 1000, new byte[0]);
+        jdbcTemplate.update("insert into oauth_code (code, user_id, client_id, expiresat, authentication) values (?,?,?,?,?)", "live", "user", "client", now + 100000, new byte[0]);
+        jdbcTemplate.update("insert into oauth_code (code, user_id, client_id, expiresat, created, authentication) values (?,?,?,?,?,?)", "legacy", "user", "client", 0, new Timestamp(now - 4 * 24 * 3600 * 1000l), new byte[0]);
+        for (Timestamp expiresAt : Arrays.asList(past, future)) {
+            jdbcTemplate.update("insert into authz_approvals (user_id, client_id, scope, expiresAt, status, lastModifiedAt) values (?,?,?,?,?,?)", "user", "client", "scope" + expiresAt.getTime(), expiresAt, "APPROVED", past);
+            jdbcTemplate.update("insert into sec_audit (principal_id, event_type, origin, event_data, created, identity_zone_id) values (?,?,?,?,?,?)", "user", 1, "origin", "data", expiresAt, "uaa");
+        }
+
+        assertEquals(6, configured.reap());
+        assertEquals(2, countCodes());
+        assertEquals("live", jdbcTemplate.queryForObject("select code from oauth_code", String.class));
+        //approvals are kept until the user or client is deleted
+        assertEquals(2, (int) jdbcTemplate.queryForObject("select count(*) from authz_approvals", Integer.class));
+        assertEquals(1, (int) jdbcTemplate.queryForObject("select count(*) from sec_audit", Integer.class));
+        assertEquals(Long.valueOf(1), configured.getRowsReaped().get("oauth_code.created"));
+    }
+}
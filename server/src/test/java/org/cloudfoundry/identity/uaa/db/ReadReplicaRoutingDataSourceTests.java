@@ -0,0 +1,153 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReadReplicaRoutingDataSourceTests {
+
+    private static final String SOURCE_SQL = "select source from replica_routing where id=?";
+
+    private DriverManagerDataSource primary;
+    private DriverManagerDataSource replica;
+    private AtomicBoolean replicaDown = new AtomicBoolean();
+    private AtomicBoolean replicaBroken = new AtomicBoolean();
+    private ReadReplicaRoutingDataSource routing;
+    private ReadReplicaJdbcTemplate template;
+
+    @Before
+    public void setUp() {
+        primary = new DriverManagerDataSource("jdbc:hsqldb:mem:routing_primary", "sa", "");
+        replica = new DriverManagerDataSource("jdbc:hsqldb:mem:routing_replica", "sa", "");
+        initialize(primary, "primary");
+        initialize(replica, "replica");
+        DataSource failingReplica = new DelegatingDataSource(replica) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                if (replicaDown.get()) {
+                    throw new SQLException("Connection refused");
+                }
+                Connection connection = super.getConnection();
+                if (replicaBroken.get()) {
+                    connection.close();
+                }
+                return connection;
+            }
+        };
+        routing = new ReadReplicaRoutingDataSource(primary, failingReplica);
+        routing.setEnabled(true);
+        template = new ReadReplicaJdbcTemplate(routing);
+    }
+
+    @After
+    public void tearDown() {
+        new JdbcTemplate(primary).execute("drop table replica_routing");
+        new JdbcTemplate(replica).execute("drop table replica_routing");
+        IdentityZoneHolder.clear();
+    }
+
+    private void initialize(DataSource dataSource, String source) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("create table replica_routing (id varchar(36) primary key, source varchar(36))");
+        jdbcTemplate.update("insert into replica_routing (id, source) values (?,?)", "1", source);
+    }
+
+    private String getSource() {
+        return template.queryForObject(SOURCE_SQL, String.class, "1");
+    }
+
+    @Test
+    public void testReadsUseReplica() {
+        assertEquals("replica", getSource());
+        assertEquals(1, template.queryForList("select * from replica_routing").size());
+    }
+
+    @Test
+    public void testDisabledUsesPrimary() {
+        routing.setEnabled(false);
+        assertEquals("primary", getSource());
+    }
+
+    @Test
+    public void testWritesUsePrimary() {
+        template.update("insert into replica_routing (id, source) values (?,?)", "2", "primary");
+        assertEquals(1, (int) new JdbcTemplate(primary).queryForObject("select count(*) from replica_routing where id='2'", Integer.class));
+        assertEquals(0, (int) new JdbcTemplate(replica).queryForObject("select count(*) from replica_routing where id='2'", Integer.class));
+    }
+
+    @Test
+    public void testReadYourWritesWithinZone() throws Exception {
+        routing.setReadYourWritesWindow(200);
+        template.update("update replica_routing set source=? where id=?", "primary", "1");
+        assertEquals("primary", getSource());
+
+        IdentityZoneHolder.set(MultitenancyFixture.identityZone("other", "other"));
+        assertEquals("replica", getSource());
+
+        IdentityZoneHolder.clear();
+        Thread.sleep(250);
+        assertEquals("replica", getSource());
+    }
+
+    @Test
+    public void testFallbackToPrimaryWhenReplicaFails() {
+        routing.setRetryInterval(60000);
+        replicaDown.set(true);
+        assertEquals("primary", getSource());
+        assertFalse(routing.isReplicaAvailable());
+
+        replicaDown.set(false);
+        assertEquals("primary", getSource());
+
+        routing.setRetryInterval(0);
+        assertTrue(routing.isReplicaAvailable());
+        assertEquals("replica", getSource());
+    }
+
+    @Test
+    public void testFallbackToPrimaryWhenReplicaReadFails() {
+        replicaBroken.set(true);
+        assertEquals("primary", getSource());
+        assertFalse(routing.isReplicaAvailable());
+    }
+
+    @Test
+    public void testTransactionsUsePrimary() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(primary));
+        String source = transactionTemplate.execute(status -> {
+            template.update("update replica_routing set source=? where id=?", "updated", "1");
+            return getSource();
+        });
+        assertEquals("updated", source);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.db;
+
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SqlStatisticsTests {
+
+    private SqlStatistics statistics = SqlStatistics.getInstance();
+    private DataSource dataSource;
+    private JdbcTemplate template;
+
+    @Before
+    public void setUp() {
+        statistics.setEnabled(true);
+        dataSource = new DataSource();
+        dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+        dataSource.setUrl("jdbc:hsqldb:mem:sql_statistics");
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setJdbcInterceptors(SqlStatisticsInterceptor.class.getName());
+        template = new JdbcTemplate(dataSource);
+        template.execute("create table sql_statistics (id integer primary key, name varchar(255))");
+        statistics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        template.execute("drop table sql_statistics");
+        dataSource.close();
+        statistics.setEnabled(false);
+        statistics.setSlowQueryThreshold(SqlStatistics.DEFAULT_SLOW_QUERY_THRESHOLD);
+        statistics.reset();
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("select * from users where id=? and origin = ?", statistics.normalize("select *\n  from users where id=1 and origin = 'it''s'"));
+        assertEquals("select id from users where id in (?) and version > ?", statistics.normalize("select id from users where id IN (?, ?,?) and version > -2.5"));
+        assertEquals("select id from users where id in (?)", statistics.normalize("select id from users where id in (1, 2, 3)"));
+        assertEquals("select col1 from table2", statistics.normalize("select col1 from table2"));
+    }
+
+    @Test
+    public void testExecutionsAreRecordedPerStatement() {
+        template.update("insert into sql_statistics (id, name) values (?, ?)", 1, "one");
+        template.update("insert into sql_statistics (id, name) values (?, ?)", 2, "two");
+        template.update("insert into sql_statistics (id, name) values (3, 'three')");
+        assertEquals(3, template.queryForList("select name from sql_statistics where id in (1, 2, 3)").size());
+        assertEquals(2, template.queryForList("select name from sql_statistics where id in (?, ?)", 1, 2).size());
+        assertEquals(3, template.update("update sql_statistics set name = ?", "updated"));
+
+        Map<String, Object> insert = getStatement("insert into sql_statistics (id, name) values (?, ?)");
+        assertEquals(3L, insert.get("count"));
+        assertEquals(3L, insert.get("rows"));
+        assertEquals(0L, insert.get("errors"));
+        Map<String, Object> select = getStatement("select name from sql_statistics where id in (?)");
+        assertEquals(2L, select.get("count"));
+        assertEquals(5L, select.get("rows"));
+        assertEquals(3L, getStatement("update sql_statistics set name = ?").get("rows"));
+    }
+
+    @Test
+    public void testBatchUpdatesAreRecorded() {
+        template.batchUpdate("insert into sql_statistics (id, name) values (?, ?)", Arrays.asList(new Object[] {1, "one"}, new Object[] {2, "two"}));
+        Map<String, Object> insert = getStatement("insert into sql_statistics (id, name) values (?, ?)");
+        assertEquals(1L, insert.get("count"));
+        assertEquals(2L, insert.get("rows"));
+    }
+
+    @Test
+    public void testErrorsAreRecorded() {
+        template.update("insert into sql_statistics (id, name) values (?, ?)", 1, "one");
+        try {
+            template.update("insert into sql_statistics (id, name) values (?, ?)", 1, "one");
+            fail();
+        } catch (DataAccessException expected) {
+        }
+        Map<String, Object> insert = getStatement("insert into sql_statistics (id, name) values (?, ?)");
+        assertEquals(2L, insert.get("count"));
+        assertEquals(1L, insert.get("errors"));
+    }
+
+    @Test
+    public void testNothingIsRecordedWhenDisabled() {
+        statistics.setEnabled(false);
+        template.update("insert into sql_statistics (id, name) values (?, ?)", 1, "one");
+        template.queryForList("select name from sql_statistics");
+        assertEquals(0, statistics.getStatementCount());
+    }
+
+    @Test
+    public void testSlowQueriesAndLatencyHistogram() {
+        statistics.setSlowQueryThreshold(100);
+        statistics.recordExecution("select 1", TimeUnit.MILLISECONDS.toNanos(2), 1, false, null);
+        statistics.recordExecution("select 1", TimeUnit.MILLISECONDS.toNanos(200), 1, false, null);
+        statistics.recordExecution("select 1", TimeUnit.SECONDS.toNanos(10), 1, false, null);
+        assertEquals(2, statistics.getSlowQueryCount());
+        Map<String, Object> select = getStatement("select ?");
+        assertEquals(10000L, select.get("maxMillis"));
+        @SuppressWarnings("unchecked")
+        Map<String, Long> latency = (Map<String, Long>) select.get("latency");
+        assertEquals(Long.valueOf(1), latency.get("<5ms"));
+        assertEquals(Long.valueOf(1), latency.get("<500ms"));
+        assertEquals(Long.valueOf(1), latency.get(">=5000ms"));
+        assertEquals(Long.valueOf(0), latency.get("<1ms"));
+    }
+
+    @Test
+    public void testStatementsBeyondTheLimitAreGrouped() {
+        statistics.setMaxStatements(2);
+        try {
+            statistics.recordExecution("select a from t", 1, 0, false, null);
+            statistics.recordExecution("select b from t", 1, 0, false, null);
+            statistics.recordExecution("select c from t", 1, 0, false, null);
+            statistics.recordExecution("select d from t", 1, 0, false, null);
+            assertEquals(3, statistics.getStatementCount());
+            assertEquals(2L, getStatement(SqlStatistics.OTHER_STATEMENTS).get("count"));
+        } finally {
+            statistics.setMaxStatements(SqlStatistics.DEFAULT_MAX_STATEMENTS);
+        }
+    }
+
+    @Test
+    public void testParametersAreMasked() {
+        String masked = SqlStatistics.maskParameters(Arrays.asList("secret", null, 42, new byte[] {1, 2, 3}));
+        assertEquals("[String(6), null, Integer, byte[3]]", masked);
+        assertTrue(!masked.contains("secret"));
+    }
+
+    private Map<String, Object> getStatement(String statement) {
+        for (Map<String, Object> statistics : this.statistics.getStatementStatistics()) {
+            if (statement.equals(statistics.get("statement"))) {
+                return statistics;
+            }
+        }
+        fail("No statistics for " + statement + " in " + statistics.getStatementStatistics());
+        return null;
+    }
+}
@@ -2,6 +2,7 @@ package org.cloudfoundry.identity.uaa.login;
 
 import org.cloudfoundry.identity.uaa.message.util.FakeJavaMailSender;
 import org.cloudfoundry.identity.uaa.message.EmailService;
+import org.cloudfoundry.identity.uaa.message.MailDeliveryQueue;
 import org.cloudfoundry.identity.uaa.message.MessageType;
 import org.junit.Before;
 import org.junit.Test;
@@ -52,4 +53,20 @@ public class EmailServiceTests {
         assertThat(fromAddress.getAddress(), equalTo("admin@login.example.com"));
         assertThat(fromAddress.getPersonal(), equalTo("Pivotal"));
     }
+
+    @Test
+    public void testSendMessageThroughDeliveryQueue() throws Exception {
+        EmailService emailService = new EmailService(mailSender, "http://login.example.com/login", "oss");
+        MailDeliveryQueue queue = new MailDeliveryQueue();
+        queue.setEnabled(true);
+        emailService.setDeliveryQueue(queue);
+        try {
+            emailService.sendMessage("user@example.com", MessageType.CHANGE_EMAIL, "Test Message", "<html><body>hi</body></html>");
+        } finally {
+            queue.destroy();
+        }
+
+        assertThat(mailSender.getSentMessages(), hasSize(1));
+        assertThat(mailSender.getSentMessages().get(0).getRecipients(Message.RecipientType.TO).get(0), equalTo((Address) new InternetAddress("user@example.com")));
+    }
 }
@@ -38,12 +38,15 @@ import java.util.Map;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -446,6 +449,36 @@ public class LoginInfoEndpointTests {
         verify(mockIDPConfigurator).getIdentityProviderDefinitions(null, zone);
     }
 
+    @Test
+    public void testLoginModelIsReusedUntilProvidersChange() throws Exception {
+        LoginInfoEndpoint endpoint = getEndpoint();
+        when(mockIDPConfigurator.getIdentityProviderDefinitions(anyObject(), anyObject())).thenReturn(idps);
+        when(mockIDPConfigurator.getRevision()).thenReturn(1l);
+        endpoint.setIdpDefinitions(mockIDPConfigurator);
+
+        endpoint.loginForHtml(model, null, new MockHttpServletRequest());
+        Object links = model.get("links");
+        Object definitions = model.get(LoginInfoEndpoint.IDP_DEFINITIONS);
+        ExtendedModelMap secondModel = new ExtendedModelMap();
+        endpoint.loginForHtml(secondModel, null, new MockHttpServletRequest());
+        assertSame(links, secondModel.get("links"));
+        assertSame(definitions, secondModel.get(LoginInfoEndpoint.IDP_DEFINITIONS));
+        verify(mockIDPConfigurator, times(1)).getIdentityProviderDefinitions(anyObject(), anyObject());
+
+        when(mockIDPConfigurator.getIdentityProviderDefinitions(anyObject(), anyObject())).thenReturn(idps.subList(0, 1));
+        when(mockIDPConfigurator.getRevision()).thenReturn(2l);
+        ExtendedModelMap thirdModel = new ExtendedModelMap();
+        endpoint.loginForHtml(thirdModel, null, new MockHttpServletRequest());
+        assertEquals(1, ((List) thirdModel.get(LoginInfoEndpoint.IDP_DEFINITIONS)).size());
+
+        IdentityZone zone = MultitenancyFixture.identityZone("other-zone-id", "other-zone");
+        IdentityZoneHolder.set(zone);
+        ExtendedModelMap zoneModel = new ExtendedModelMap();
+        endpoint.loginForHtml(zoneModel, null, new MockHttpServletRequest());
+        assertEquals(zone.getName(), zoneModel.get("zone_name"));
+        assertNotSame(links, zoneModel.get("links"));
+    }
+
     private MockHttpServletRequest getMockHttpServletRequest() {
         MockHttpServletRequest request = new MockHttpServletRequest();
         MockHttpSession session = new MockHttpSession();
@@ -0,0 +1,192 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.login;
+
+import org.cloudfoundry.identity.uaa.message.MailDeliveryQueue;
+import org.cloudfoundry.identity.uaa.message.util.FakeJavaMailSender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+
+import javax.mail.internet.MimeMessage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MailDeliveryQueueTests {
+
+    private MailDeliveryQueue queue;
+
+    @Before
+    public void setUp() {
+        queue = new MailDeliveryQueue();
+        queue.setEnabled(true);
+        queue.setWorkers(1);
+        queue.setRetryBackoff(10);
+    }
+
+    @After
+    public void tearDown() {
+        queue.destroy();
+    }
+
+    @Test
+    public void testDisabledQueueSendsOnCallingThread() {
+        queue.setEnabled(false);
+        FakeJavaMailSender sender = new FakeJavaMailSender();
+        queue.submit(sender, sender.createMimeMessage());
+        assertEquals(1, sender.getSentMessages().size());
+        assertEquals(0, queue.getSentCount());
+    }
+
+    @Test
+    public void testMessagesAreSentInBatches() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger batches = new AtomicInteger();
+        FakeJavaMailSender sender = new FakeJavaMailSender() {
+            @Override
+            public void send(MimeMessage[] mimeMessages) throws MailException {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                batches.incrementAndGet();
+                super.send(mimeMessages);
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            queue.submit(sender, sender.createMimeMessage());
+        }
+        release.countDown();
+        waitFor(() -> queue.getSentCount() == 10);
+
+        assertEquals(10, sender.getSentMessages().size());
+        assertTrue("expected batched sends but got " + batches.get(), batches.get() < 10);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(0, queue.getFailedCount());
+    }
+
+    @Test
+    public void testFailedMessagesAreRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        FakeJavaMailSender sender = new FakeJavaMailSender() {
+            @Override
+            public void send(MimeMessage[] mimeMessages) throws MailException {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new MailSendException("Connection refused");
+                }
+                super.send(mimeMessages);
+            }
+        };
+        queue.submit(sender, sender.createMimeMessage());
+        waitFor(() -> queue.getSentCount() == 1);
+
+        assertEquals(1, sender.getSentMessages().size());
+        assertEquals(2, attempts.get());
+        assertEquals(1, queue.getRetryCount());
+        assertEquals(0, queue.getFailedCount());
+    }
+
+    @Test
+    public void testMessagesAreDroppedAfterMaxAttempts() throws Exception {
+        queue.setMaxAttempts(2);
+        AtomicInteger attempts = new AtomicInteger();
+        FakeJavaMailSender sender = new FakeJavaMailSender() {
+            @Override
+            public void send(MimeMessage[] mimeMessages) throws MailException {
+                attempts.incrementAndGet();
+                throw new MailSendException("Connection refused");
+            }
+        };
+        queue.submit(sender, sender.createMimeMessage());
+        waitFor(() -> queue.getFailedCount() == 1);
+
+        assertEquals(2, attempts.get());
+        assertEquals(1, queue.getRetryCount());
+        assertEquals(0, queue.getSentCount());
+    }
+
+    @Test
+    public void testFullQueueSendsOnCallingThread() throws Exception {
+        queue.setCapacity(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch sending = new CountDownLatch(1);
+        FakeJavaMailSender sender = new FakeJavaMailSender() {
+            @Override
+            public void send(MimeMessage[] mimeMessages) throws MailException {
+                sending.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.send(mimeMessages);
+            }
+        };
+        queue.submit(sender, sender.createMimeMessage());
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        queue.submit(sender, sender.createMimeMessage());
+        assertEquals(1, queue.getQueueDepth());
+
+        queue.submit(sender, sender.createMimeMessage());
+        assertEquals(1, queue.getOverflowCount());
+        assertEquals(1, sender.getSentMessages().size());
+
+        release.countDown();
+        waitFor(() -> queue.getSentCount() == 3);
+        assertEquals(3, sender.getSentMessages().size());
+    }
+
+    @Test
+    public void testQueuedMessagesAreDeliveredOnDestroy() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        FakeJavaMailSender sender = new FakeJavaMailSender() {
+            @Override
+            public void send(MimeMessage[] mimeMessages) throws MailException {
+                if (sending.getCount() > 0) {
+                    sending.countDown();
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.send(mimeMessages);
+            }
+        };
+        queue.submit(sender, sender.createMimeMessage());
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        queue.submit(sender, sender.createMimeMessage());
+        queue.submit(sender, sender.createMimeMessage());
+
+        queue.destroy();
+        waitFor(() -> sender.getSentMessages().size() == 3);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the mail delivery queue", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
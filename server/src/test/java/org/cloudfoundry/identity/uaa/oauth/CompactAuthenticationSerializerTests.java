@@ -0,0 +1,152 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.util.LinkedMultiValueMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactAuthenticationSerializerTests {
+
+    private CompactAuthenticationSerializer serializer = new CompactAuthenticationSerializer();
+    private UaaTokenStore jsonStore = new UaaTokenStore(null);
+    private UaaPrincipal principal = new UaaPrincipal("userid","username","username@test.org", OriginKeys.UAA, null, IdentityZone.getUaa().getId());
+    private OAuth2Authentication clientAuthentication;
+    private OAuth2Authentication usernamePasswordAuthentication;
+    private OAuth2Authentication uaaAuthentication;
+
+    @Before
+    public void setUp() throws Exception {
+        jsonStore.setCompactSerialization(false);
+        List<GrantedAuthority> userAuthorities = Arrays.<GrantedAuthority>asList(new SimpleGrantedAuthority("openid"), new SimpleGrantedAuthority("uaa.user"));
+        BaseClientDetails client = new BaseClientDetails("clientid", "uaa,cloud_controller", "openid,cloud_controller.read","authorization_code", "oauth.login", "http://localhost/callback");
+        Map<String,String> parameters = new HashMap<>();
+        parameters.put(OAuth2Utils.CLIENT_ID, client.getClientId());
+        TokenRequest request = new TokenRequest(new HashMap<>(parameters), client.getClientId(), UaaStringUtils.getStringsFromAuthorities(client.getAuthorities()), "client_credentials");
+        clientAuthentication = new OAuth2Authentication(request.createOAuth2Request(client), null);
+
+        parameters.put("scope","openid cloud_controller.read");
+        parameters.put("state","xyz");
+        parameters.put("redirect_uri","http://localhost/callback");
+        OAuth2Request oauth2Request = new OAuth2Request(parameters, client.getClientId(), client.getAuthorities(), true, client.getScope(),
+            client.getResourceIds(), "http://localhost/callback", new HashSet<>(Arrays.asList("code")), null);
+        usernamePasswordAuthentication = new OAuth2Authentication(oauth2Request, new UsernamePasswordAuthenticationToken(principal, null, userAuthorities));
+
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+        servletRequest.setRemoteAddr("127.0.0.1");
+        servletRequest.addParameter("client_id", "clientid");
+        UaaAuthentication authentication = new UaaAuthentication(principal, userAuthorities, new UaaAuthenticationDetails(servletRequest));
+        LinkedMultiValueMap<String, String> attributes = new LinkedMultiValueMap<>();
+        attributes.put("cost_center", Arrays.asList("1", "2"));
+        authentication.setUserAttributes(attributes);
+        authentication.setExternalGroups(new HashSet<>(Arrays.asList("admins", "users")));
+        uaaAuthentication = new OAuth2Authentication(oauth2Request, authentication);
+    }
+
+    @Test
+    public void testRoundTripMatchesJsonFormat() throws Exception {
+        for (OAuth2Authentication authentication : Arrays.asList(clientAuthentication, usernamePasswordAuthentication, uaaAuthentication)) {
+            byte[] compact = serializer.serialize(authentication);
+            assertTrue(CompactAuthenticationSerializer.isCompact(compact));
+            byte[] json = jsonStore.serializeOauth2Authentication(authentication);
+            assertFalse(CompactAuthenticationSerializer.isCompact(json));
+            assertTrue("compact " + compact.length + " bytes, json " + json.length + " bytes", compact.length < json.length / 2);
+            assertSameAuthentication(jsonStore.deserializeOauth2Authentication(json), serializer.deserialize(compact));
+        }
+    }
+
+    @Test
+    public void testUaaAuthenticationIsPreserved() throws Exception {
+        OAuth2Authentication result = serializer.deserialize(serializer.serialize(uaaAuthentication));
+        UaaAuthentication expected = (UaaAuthentication) uaaAuthentication.getUserAuthentication();
+        UaaAuthentication actual = (UaaAuthentication) result.getUserAuthentication();
+        assertEquals(expected.getPrincipal(), actual.getPrincipal());
+        assertEquals(expected.getDetails(), actual.getDetails());
+        assertEquals(expected.getAuthenticatedTime(), actual.getAuthenticatedTime());
+        assertEquals(expected.getExpiresAt(), actual.getExpiresAt());
+        assertEquals(expected.getExternalGroups(), actual.getExternalGroups());
+        assertEquals(expected.getUserAttributes(), actual.getUserAttributes());
+        assertEquals(uaaAuthentication.getOAuth2Request().getRequestParameters(), result.getOAuth2Request().getRequestParameters());
+        assertEquals("http://localhost/callback", result.getOAuth2Request().getRedirectUri());
+    }
+
+    @Test
+    public void testStoreReadsBothFormats() throws Exception {
+        UaaTokenStore compactStore = new UaaTokenStore(null);
+        byte[] json = jsonStore.serializeOauth2Authentication(uaaAuthentication);
+        byte[] compact = compactStore.serializeOauth2Authentication(uaaAuthentication);
+        assertTrue(CompactAuthenticationSerializer.isCompact(compact));
+        assertSameAuthentication(compactStore.deserializeOauth2Authentication(json), jsonStore.deserializeOauth2Authentication(compact));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVersionIsRejected() throws Exception {
+        byte[] data = serializer.serialize(clientAuthentication);
+        data[2] = 99;
+        serializer.deserialize(data);
+    }
+
+    @Test
+    public void testClientOnlyAuthentication() throws Exception {
+        OAuth2Authentication result = serializer.deserialize(serializer.serialize(clientAuthentication));
+        assertTrue(result.isClientOnly());
+        assertNull(result.getUserAuthentication());
+    }
+
+    private void assertSameAuthentication(OAuth2Authentication expected, OAuth2Authentication actual) {
+        assertEquals(expected.getOAuth2Request(), actual.getOAuth2Request());
+        assertEquals(expected.getAuthorities(), actual.getAuthorities());
+        if (expected.getUserAuthentication() == null) {
+            assertNull(actual.getUserAuthentication());
+        } else {
+            UaaAuthentication expectedUser = (UaaAuthentication) expected.getUserAuthentication();
+            UaaAuthentication actualUser = (UaaAuthentication) actual.getUserAuthentication();
+            assertEquals(expectedUser.getPrincipal(), actualUser.getPrincipal());
+            assertEquals(new HashSet<>(expectedUser.getAuthorities()), new HashSet<>(actualUser.getAuthorities()));
+            assertEquals(expectedUser.getDetails(), actualUser.getDetails());
+            assertEquals(expectedUser.isAuthenticated(), actualUser.isAuthenticated());
+            assertEquals(expectedUser.getAuthenticatedTime(), actualUser.getAuthenticatedTime());
+            assertEquals(expectedUser.getExpiresAt(), actualUser.getExpiresAt());
+            assertEquals(expectedUser.getExternalGroups(), actualUser.getExternalGroups());
+            assertEquals(expectedUser.getUserAttributes(), actualUser.getUserAttributes());
+        }
+    }
+}
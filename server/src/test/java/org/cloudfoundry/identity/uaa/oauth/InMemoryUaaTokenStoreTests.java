@@ -0,0 +1,134 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class InMemoryUaaTokenStoreTests {
+
+    private InMemoryUaaTokenStore store;
+    private OAuth2Authentication uaaAuthentication;
+    private UaaPrincipal principal = new UaaPrincipal("userid","username","username@test.org", OriginKeys.UAA, null, IdentityZone.getUaa().getId());
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryUaaTokenStore(1000, 10, 8);
+        List<GrantedAuthority> userAuthorities = Arrays.<GrantedAuthority>asList(new SimpleGrantedAuthority("openid"));
+        BaseClientDetails client = new BaseClientDetails("clientid", null, "openid","authorization_code", "oauth.login", null);
+        Map<String,String> parameters = new HashMap<>();
+        parameters.put(OAuth2Utils.CLIENT_ID, client.getClientId());
+        parameters.put("scope","openid");
+        TokenRequest request = new TokenRequest(parameters, client.getClientId(), client.getScope(), "authorization_code");
+        MockHttpServletRequest servletRequest = new MockHttpServletRequest();
+        servletRequest.setRemoteAddr("127.0.0.1");
+        UaaAuthentication authentication = new UaaAuthentication(principal, userAuthorities, new UaaAuthenticationDetails(servletRequest));
+        uaaAuthentication = new OAuth2Authentication(request.createOAuth2Request(client), authentication);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.stopExpirationSweep();
+    }
+
+    @Test
+    public void testCodeCanBeConsumedOnce() throws Exception {
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        assertEquals(1, store.size());
+        OAuth2Authentication authentication = store.consumeAuthorizationCode(code);
+        assertNotNull(authentication);
+        assertEquals(principal, authentication.getUserAuthentication().getPrincipal());
+        assertEquals(uaaAuthentication.getOAuth2Request().getScope(), authentication.getOAuth2Request().getScope());
+        assertEquals(0, store.size());
+        try {
+            store.consumeAuthorizationCode(code);
+            fail();
+        } catch (InvalidGrantException e) {
+        }
+    }
+
+    @Test(expected = InvalidGrantException.class)
+    public void testExpiredCodeIsRejected() throws Exception {
+        store = new InMemoryUaaTokenStore(-1000, 10, 8);
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        store.consumeAuthorizationCode(code);
+    }
+
+    @Test
+    public void testSweepRemovesOnlyExpiredCodes() throws Exception {
+        InMemoryUaaTokenStore shortLived = new InMemoryUaaTokenStore(20, 10, 8);
+        for (int i = 0; i < 5; i++) {
+            shortLived.createAuthorizationCode(uaaAuthentication);
+        }
+        store.createAuthorizationCode(uaaAuthentication);
+        assertEquals(0, store.removeExpiredCodes());
+        assertEquals(1, store.size());
+
+        Thread.sleep(50);
+        assertEquals(5, shortLived.removeExpiredCodes());
+        assertEquals(0, shortLived.size());
+        assertEquals(0, store.removeExpiredCodes());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testCodesLongerThanOneRotationSurviveTheSweep() throws Exception {
+        //the wheel spans 80ms, the codes live for one second
+        String code = store.createAuthorizationCode(uaaAuthentication);
+        Thread.sleep(200);
+        assertEquals(0, store.removeExpiredCodes());
+        assertNotNull(store.consumeAuthorizationCode(code));
+    }
+
+    @Test
+    public void testBackgroundSweep() throws Exception {
+        InMemoryUaaTokenStore shortLived = new InMemoryUaaTokenStore(20, 10, 8);
+        shortLived.setExpirationSweepInterval(20);
+        shortLived.startExpirationSweep();
+        try {
+            shortLived.createAuthorizationCode(uaaAuthentication);
+            assertEquals(1, shortLived.size());
+            for (int i = 0; i < 100 && shortLived.size() > 0; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(0, shortLived.size());
+        } finally {
+            shortLived.stopExpirationSweep();
+        }
+    }
+}
@@ -15,10 +15,24 @@ package org.cloudfoundry.identity.uaa.oauth;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
@@ -28,6 +42,13 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.crypto.codec.Base64;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.codec.Codecs;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.jwt.crypto.sign.Signer;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -46,7 +67,18 @@ public class RemoteTokenServicesTests {
 
     private HttpStatus status = HttpStatus.OK;
 
+    private Map<String, Object> keys = new HashMap<String, Object>();
+
+    private AtomicInteger checkTokenCalls = new AtomicInteger();
+
+    private AtomicInteger tokenKeysCalls = new AtomicInteger();
+
+    private CountDownLatch checkTokenLatch = new CountDownLatch(0);
+
+    private RestClientException tokenKeysFailure;
+
     public RemoteTokenServicesTests() {
+        services.setCheckTokenEndpointUrl("http://localhost:8080/uaa/check_token");
         services.setClientId("client");
         services.setClientSecret("secret");
         body.put(ClaimConstants.CLIENT_ID, "remote");
@@ -59,7 +91,20 @@ public class RemoteTokenServicesTests {
             @Override
             public <T> ResponseEntity<T> exchange(String url, HttpMethod method, HttpEntity<?> requestEntity,
                             Class<T> responseType, Object... uriVariables) throws RestClientException {
-                return new ResponseEntity<T>((T) body, headers, status);
+                if (url.endsWith("/token_keys")) {
+                    tokenKeysCalls.incrementAndGet();
+                    if (tokenKeysFailure != null) {
+                        throw tokenKeysFailure;
+                    }
+                    return new ResponseEntity<T>((T) new HashMap<String, Object>(keys), headers, status);
+                }
+                checkTokenCalls.incrementAndGet();
+                try {
+                    checkTokenLatch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new ResponseEntity<T>((T) new HashMap<String, Object>(body), headers, status);
             }
         });
     }
@@ -114,4 +159,216 @@ public class RemoteTokenServicesTests {
         assertEquals(JsonUtils.writeValueAsString(additionalAuthorizationAttributesMap), result.getOAuth2Request()
                         .getRequestParameters().get(ClaimConstants.ADDITIONAL_AZ_ATTR));
     }
+
+    @Test
+    public void testLocalVerificationDoesNotCallCheckToken() throws Exception {
+        useKeys(key(null, "tokenkey"));
+        services.setLocalVerification(true);
+        String token = JwtHelper.encode(JsonUtils.writeValueAsString(claims()), new MacSigner("tokenkey")).getEncoded();
+        for (int i = 0; i < 3; i++) {
+            OAuth2Authentication result = services.loadAuthentication(token);
+            assertEquals("remote", result.getOAuth2Request().getClientId());
+            assertEquals("olds", result.getUserAuthentication().getName());
+            assertEquals("HDGFJSHGDF", ((RemoteUserAuthentication) result.getUserAuthentication()).getId());
+        }
+        assertEquals(1, tokenKeysCalls.get());
+        assertEquals(0, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testLocalVerificationRejectsInvalidTokens() throws Exception {
+        useKeys(key(null, "tokenkey"));
+        services.setLocalVerification(true);
+        services.setIssuer("http://some.issuer.com");
+        services.setAudience("cloud_controller");
+        services.setTokenKeysMinRefreshInterval(0);
+
+        Map<String, Object> claims = claims();
+        assertInvalid(JwtHelper.encode(JsonUtils.writeValueAsString(claims), new MacSigner("otherkey")).getEncoded());
+        claims.put(ClaimConstants.EXP, System.currentTimeMillis() / 1000 - 1);
+        assertInvalid(JwtHelper.encode(JsonUtils.writeValueAsString(claims), new MacSigner("tokenkey")).getEncoded());
+        claims = claims();
+        claims.put(ClaimConstants.ISS, "http://other.issuer.com");
+        assertInvalid(JwtHelper.encode(JsonUtils.writeValueAsString(claims), new MacSigner("tokenkey")).getEncoded());
+        claims = claims();
+        claims.put(ClaimConstants.AUD, Arrays.asList("scim"));
+        assertInvalid(JwtHelper.encode(JsonUtils.writeValueAsString(claims), new MacSigner("tokenkey")).getEncoded());
+        assertInvalid("FOO");
+        assertEquals(0, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testUnknownKeyIdRefreshesTokenKeys() throws Exception {
+        KeyPair first = generateKeyPair();
+        KeyPair second = generateKeyPair();
+        useKeys(key("first", pem(first)));
+        services.setLocalVerification(true);
+        services.setTokenKeysMinRefreshInterval(0);
+        services.loadAuthentication(encode("first", claims(), new RsaSigner((RSAPrivateKey) first.getPrivate())));
+        assertEquals(1, tokenKeysCalls.get());
+
+        String token = encode("second", claims(), new RsaSigner((RSAPrivateKey) second.getPrivate()));
+        assertInvalid(token);
+        assertEquals(2, tokenKeysCalls.get());
+
+        useKeys(key("first", pem(first)), key("second", pem(second)));
+        assertEquals("remote", services.loadAuthentication(token).getOAuth2Request().getClientId());
+        assertEquals(3, tokenKeysCalls.get());
+        assertEquals(0, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testUnknownKeyIdRefreshIsRateLimited() throws Exception {
+        KeyPair first = generateKeyPair();
+        useKeys(key("first", pem(first)));
+        services.setLocalVerification(true);
+        String token = encode("second", claims(), new RsaSigner((RSAPrivateKey) first.getPrivate()));
+        assertInvalid(token);
+        assertInvalid(token);
+        assertEquals(1, tokenKeysCalls.get());
+    }
+
+    @Test
+    public void testUnavailableTokenKeysRejectTokensWithBackoff() throws Exception {
+        tokenKeysFailure = new RestClientException("Connection refused");
+        services.setLocalVerification(true);
+        String token = JwtHelper.encode(JsonUtils.writeValueAsString(claims()), new MacSigner("tokenkey")).getEncoded();
+        assertInvalid(token);
+        assertInvalid(token);
+        assertEquals(1, tokenKeysCalls.get());
+
+        tokenKeysFailure = null;
+        useKeys(key(null, "tokenkey"));
+        services.setTokenKeysFailureBackoff(0);
+        assertEquals("remote", services.loadAuthentication(token).getOAuth2Request().getClientId());
+        assertEquals(2, tokenKeysCalls.get());
+        assertEquals(0, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testRevocableTokensAreCheckedRemotely() throws Exception {
+        useKeys(key(null, "tokenkey"));
+        services.setLocalVerification(true);
+        Map<String, Object> claims = claims();
+        claims.put(ClaimConstants.REVOCATION_SIGNATURE, "abcdef");
+        String token = JwtHelper.encode(JsonUtils.writeValueAsString(claims), new MacSigner("tokenkey")).getEncoded();
+        services.loadAuthentication(token);
+        assertEquals(0, checkTokenCalls.get());
+
+        services.setCheckRevocableTokens(true);
+        services.loadAuthentication(token);
+        assertEquals(1, checkTokenCalls.get());
+    }
+
+    private void assertInvalid(String token) {
+        try {
+            services.loadAuthentication(token);
+            fail("Token should be rejected");
+        } catch (InvalidTokenException e) {
+            //expected
+        }
+    }
+
+    private Map<String, Object> claims() {
+        Map<String, Object> claims = new HashMap<String, Object>(body);
+        claims.put(ClaimConstants.EXP, System.currentTimeMillis() / 1000 + 600);
+        claims.put(ClaimConstants.AUD, Arrays.asList("cloud_controller", "openid"));
+        claims.put(ClaimConstants.SCOPE, Arrays.asList("openid"));
+        return claims;
+    }
+
+    private Map<String, Object> key(String kid, String value) {
+        Map<String, Object> key = new LinkedHashMap<String, Object>();
+        if (kid != null) {
+            key.put("kid", kid);
+        }
+        key.put("value", value);
+        return key;
+    }
+
+    private void useKeys(Map<?, ?>... values) {
+        keys.put("keys", Arrays.asList(values));
+    }
+
+    private static String encode(String kid, Map<String, Object> claims, Signer signer) {
+        String header = Codecs.utf8Decode(Codecs.b64UrlEncode("{\"alg\":\"RS256\",\"kid\":\"" + kid + "\"}"));
+        String content = header + "." + Codecs.utf8Decode(Codecs.b64UrlEncode(JsonUtils.writeValueAsString(claims)));
+        return content + "." + Codecs.utf8Decode(Codecs.b64UrlEncode(signer.sign(Codecs.utf8Encode(content))));
+    }
+
+    private static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return generator.generateKeyPair();
+    }
+
+    private static String pem(KeyPair keyPair) {
+        return "-----BEGIN PUBLIC KEY-----\n" + new String(Base64.encode(keyPair.getPublic().getEncoded())) + "\n-----END PUBLIC KEY-----";
+    }
+
+    @Test
+    public void testCheckTokenResultsAreCached() throws Exception {
+        services.setCacheExpiration(60000);
+        body.put(ClaimConstants.EXP, System.currentTimeMillis() / 1000 + 600);
+        assertEquals("olds", services.loadAuthentication("FOO").getUserAuthentication().getName());
+        assertEquals("olds", services.loadAuthentication("FOO").getUserAuthentication().getName());
+        assertEquals(1, checkTokenCalls.get());
+        services.loadAuthentication("BAR");
+        assertEquals(2, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testCheckTokenResultsAreNotCachedByDefault() throws Exception {
+        services.loadAuthentication("FOO");
+        services.loadAuthentication("FOO");
+        assertEquals(2, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testCheckTokenResultsAreNotCachedBeyondExpiry() throws Exception {
+        services.setCacheExpiration(60000);
+        body.put(ClaimConstants.EXP, System.currentTimeMillis() / 1000);
+        services.loadAuthentication("FOO");
+        services.loadAuthentication("FOO");
+        assertEquals(2, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testCheckTokenErrorsAreNotCached() throws Exception {
+        services.setCacheExpiration(60000);
+        body.put("error", "invalid_token");
+        status = HttpStatus.BAD_REQUEST;
+        for (int i = 0; i < 2; i++) {
+            try {
+                services.loadAuthentication("FOO");
+                fail("Token should be rejected");
+            } catch (InvalidTokenException e) {
+                //expected
+            }
+        }
+        assertEquals(2, checkTokenCalls.get());
+    }
+
+    @Test
+    public void testConcurrentCheckTokenCallsAreCoalesced() throws Exception {
+        checkTokenLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<OAuth2Authentication>> results = new ArrayList<Future<OAuth2Authentication>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> services.loadAuthentication("FOO")));
+            }
+            while (checkTokenCalls.get() == 0) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            checkTokenLatch.countDown();
+            for (Future<OAuth2Authentication> result : results) {
+                assertEquals("olds", result.get(5, TimeUnit.SECONDS).getUserAuthentication().getName());
+            }
+            assertEquals(1, checkTokenCalls.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -250,6 +250,23 @@ public class UaaTokenStoreTests extends JdbcTestBase {
         assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM oauth_code", Integer.class), is(0));
     }
 
+    @Test
+    public void testExpiredCodesAreNotRemovedInlineWhenSweepIntervalIsSet() throws Exception {
+        store.setExpirationSweepInterval(60000);
+        int count = 10;
+        for (int i=0; i<count; i++) {
+            store.createAuthorizationCode(clientAuthentication);
+        }
+        jdbcTemplate.update("UPDATE oauth_code SET expiresat = ?", System.currentTimeMillis() - 60000);
+        try {
+            store.consumeAuthorizationCode("non-existent");
+            fail();
+        } catch (InvalidGrantException e) {}
+        assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM oauth_code", Integer.class), is(count));
+        assertEquals(count, store.removeExpiredCodes());
+        assertThat(jdbcTemplate.queryForObject("SELECT count(*) FROM oauth_code", Integer.class), is(0));
+    }
+
     @Test
     public void testExpiresAtOnCode() {
         UaaTokenStore.TokenCode code = store.createTokenCode("code", "userid", "clientid", System.currentTimeMillis() - 1000, new Timestamp(System.currentTimeMillis()), new byte[0]);
@@ -0,0 +1,138 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.oauth.approval;
+
+import org.cloudfoundry.identity.uaa.approval.Approval;
+import org.cloudfoundry.identity.uaa.approval.JdbcApprovalStore;
+import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
+import org.cloudfoundry.identity.uaa.resources.jdbc.SimpleSearchQueryConverter;
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.cloudfoundry.identity.uaa.test.MockAuthentication;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+import static org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus.APPROVED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class JdbcApprovalStoreCacheTests extends JdbcTestBase {
+
+    private JdbcApprovalStore store;
+
+    @Before
+    public void initStore() {
+        store = new JdbcApprovalStore(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter), new SimpleSearchQueryConverter());
+        store.setCacheExpiration(60000);
+        store.addApproval(approval("u1", "c1", "uaa.user"));
+        store.addApproval(approval("u1", "c2", "uaa.admin"));
+    }
+
+    private Approval approval(String userId, String clientId, String scope) {
+        return new Approval()
+            .setUserId(userId)
+            .setClientId(clientId)
+            .setScope(scope)
+            .setExpiresAt(new Timestamp(new Date().getTime() + 60000))
+            .setStatus(APPROVED)
+            .setLastUpdatedAt(new Date());
+    }
+
+    private void insertApproval(String userId, String clientId, String scope) {
+        jdbcTemplate.update("insert into authz_approvals (user_id, client_id, scope, expiresAt, status, lastModifiedAt) values (?,?,?,?,?,?)",
+            userId, clientId, scope, new Timestamp(new Date().getTime() + 60000), "APPROVED", new Timestamp(new Date().getTime()));
+    }
+
+    @Test
+    public void testApprovalsAreLookedUpByUserAndClient() {
+        List<Approval> approvals = store.getApprovals("u1", "c1");
+        assertEquals(1, approvals.size());
+        assertEquals("uaa.user", approvals.get(0).getScope());
+        assertEquals(0, store.getApprovals("u1", "c3").size());
+        store.setCacheExpiration(0);
+        assertEquals(1, store.getApprovals("u1", "c2").size());
+    }
+
+    @Test
+    public void testApprovalsAreCached() {
+        List<Approval> approvals = store.getApprovals("u1", "c1");
+        insertApproval("u1", "c1", "openid");
+        assertSame(approvals, store.getApprovals("u1", "c1"));
+        assertEquals(1, store.getApprovals("u1", "c1").size());
+    }
+
+    @Test
+    public void testChangesThroughTheStoreEvictTheCache() {
+        List<Approval> approvals = store.getApprovals("u1", "c1");
+        store.addApproval(approval("u1", "c1", "openid"));
+        assertEquals(2, store.getApprovals("u1", "c1").size());
+
+        store.revokeApproval(approval("u1", "c1", "openid"));
+        assertEquals(1, store.getApprovals("u1", "c1").size());
+
+        store.getApprovals("u1", "c2");
+        store.revokeApprovals("client_id eq \"c2\"");
+        assertEquals(0, store.getApprovals("u1", "c2").size());
+        assertNotSame(approvals, store.getApprovals("u1", "c1"));
+    }
+
+    @Test
+    public void testApprovalsLoadedDuringRevocationAreNotCached() {
+        store = new JdbcApprovalStore(new JdbcTemplate(dataSource) {
+            @Override
+            public int update(PreparedStatementCreator psc) throws DataAccessException {
+                //another request loads the approvals before the revocation is written
+                store.getApprovals("u1", "c1");
+                return super.update(psc);
+            }
+        }, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter), new SimpleSearchQueryConverter());
+        store.setCacheExpiration(60000);
+        store.getApprovals("u1", "c1");
+
+        store.revokeApproval(approval("u1", "c1", "uaa.user"));
+        assertEquals(0, store.getApprovals("u1", "c1").size());
+    }
+
+    @Test
+    public void testEventsEvictTheCache() {
+        store.getApprovals("u1", "c1");
+        insertApproval("u1", "c1", "openid");
+        store.onApplicationEvent(new ApprovalModifiedEvent(approval("u1", "c1", "openid"), new MockAuthentication()));
+        assertEquals(2, store.getApprovals("u1", "c1").size());
+
+        store.getApprovals("u1", "c2");
+        insertApproval("u1", "c2", "openid");
+        store.onApplicationEvent(new EntityDeletedEvent<>(IdentityZone.getUaa()));
+        assertEquals(2, store.getApprovals("u1", "c2").size());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        store.setCacheMaxEntries(1);
+        List<Approval> approvals = store.getApprovals("u1", "c1");
+        store.getApprovals("u1", "c2");
+        assertNotSame(approvals, store.getApprovals("u1", "c1"));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.performance;
+
+import org.cloudfoundry.identity.uaa.resources.jdbc.SearchQueryConverter.ProcessedFilter;
+import org.cloudfoundry.identity.uaa.resources.jdbc.SimpleSearchQueryConverter;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+public class TestSearchQueryConverterPerformance {
+
+    @BeforeClass
+    public static void ignorePerformanceTest() throws Exception {
+        //comment out this line to run the tests.
+        assumeTrue(false);
+    }
+
+    static final int WARMUP = 20000;
+    static final int ITERATIONS = 200000;
+
+    //the shapes generated by the bootstrap, approval and group mapping code
+    static final String[] TEMPLATES = {
+        "displayName eq \"%s\"",
+        "user_id eq \"%s\" and client_id eq \"%s\"",
+        "userName eq \"%s\" and origin eq \"%s\"",
+        "externalGroup eq \"%s\" and origin eq \"%s\"",
+    };
+
+    @Test
+    public void parseCostWithoutCache() {
+        SimpleSearchQueryConverter converter = new SimpleSearchQueryConverter();
+        converter.setFilterCacheSize(0);
+        run("parsed", converter);
+    }
+
+    @Test
+    public void parseCostWithCache() {
+        run("cached", new SimpleSearchQueryConverter());
+    }
+
+    protected void run(String name, SimpleSearchQueryConverter converter) {
+        convert(converter, WARMUP);
+        long start = System.nanoTime();
+        convert(converter, ITERATIONS);
+        long nanos = System.nanoTime() - start;
+        System.err.println(name + ": " + (nanos / ITERATIONS) + " ns per conversion, " + ITERATIONS + " conversions.");
+    }
+
+    protected void convert(SimpleSearchQueryConverter converter, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            String template = TEMPLATES[i % TEMPLATES.length];
+            ProcessedFilter filter = converter.convert(String.format(template, "value" + i, "other" + i), null, true);
+            assertNotNull(filter.getSql());
+        }
+    }
+}
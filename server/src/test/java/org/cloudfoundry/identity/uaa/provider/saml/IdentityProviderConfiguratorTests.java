@@ -44,6 +44,7 @@ import java.util.UUID;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
@@ -235,6 +236,57 @@ public class IdentityProviderConfiguratorTests {
         testGetIdentityProviderDefinitions(4, false);
     }
 
+    @Test
+    public void testIdenticalMetadataIsSharedAcrossZones() throws Exception {
+        SamlIdentityProviderDefinition zone1 = singleAdd.clone();
+        zone1.setZoneId("zone1");
+        SamlIdentityProviderDefinition zone2 = singleAdd.clone();
+        zone2.setZoneId("zone2");
+        ConfigMetadataProvider provider1 = (ConfigMetadataProvider) conf.addSamlIdentityProviderDefinition(zone1)[0].getDelegate();
+        ConfigMetadataProvider provider2 = (ConfigMetadataProvider) conf.addSamlIdentityProviderDefinition(zone2)[0].getDelegate();
+
+        assertSame(provider1.getSharedMetadata(), provider2.getSharedMetadata());
+        assertSame(provider1.doGetMetadata(), provider2.doGetMetadata());
+        assertEquals(1, conf.getMetadataRegistry().size());
+        assertEquals(2, provider1.getSharedMetadata().getReferences());
+
+        //replacing a provider releases the metadata it used
+        conf.addSamlIdentityProviderDefinition(zone2);
+        assertEquals(2, provider1.getSharedMetadata().getReferences());
+
+        conf.removeIdentityProviderDefinition(zone1);
+        assertEquals(1, provider1.getSharedMetadata().getReferences());
+        assertEquals(1, conf.getMetadataRegistry().size());
+        conf.removeIdentityProviderDefinition(zone2);
+        assertEquals(0, conf.getMetadataRegistry().size());
+    }
+
+    @Test
+    public void testRejectedUpdateKeepsTheReplacedProvider() throws Exception {
+        SamlIdentityProviderDefinition other = singleAdd.clone();
+        other.setIdpEntityAlias("other-alias");
+        other.setMetaDataLocation(String.format(xmlWithoutID, new RandomValueStringGenerator().generate()));
+        conf.addSamlIdentityProviderDefinition(singleAdd);
+        ConfigMetadataProvider otherProvider = (ConfigMetadataProvider) conf.addSamlIdentityProviderDefinition(other)[0].getDelegate();
+        assertEquals(2, conf.getMetadataRegistry().size());
+
+        //updating other to the entity ID of singleAdd is rejected
+        SamlIdentityProviderDefinition update = other.clone();
+        update.setMetaDataLocation(singleAdd.getMetaDataLocation());
+        try {
+            conf.addSamlIdentityProviderDefinition(update);
+            fail("Duplicate entity ID should not succeed");
+        } catch (MetadataProviderException x) {
+        }
+        assertEquals(2, conf.getMetadataRegistry().size());
+        assertEquals(1, otherProvider.getSharedMetadata().getReferences());
+        assertEquals(2, conf.getIdentityProviderDefinitions().size());
+
+        assertNotNull(conf.removeIdentityProviderDefinition(other));
+        assertEquals(0, otherProvider.getSharedMetadata().getReferences());
+        assertEquals(1, conf.getMetadataRegistry().size());
+    }
+
     @Test
     public void testSingleAddProviderWithoutXMLHeader() throws Exception {
         conf.setIdentityProviders(sampleData);
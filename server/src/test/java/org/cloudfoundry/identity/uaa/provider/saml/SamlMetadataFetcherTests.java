@@ -0,0 +1,243 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.httpclient.protocol.DefaultProtocolSocketFactory;
+import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.opensaml.xml.parse.BasicParserPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SamlMetadataFetcherTests {
+
+    private HttpServer server;
+    private SamlMetadataFetcher fetcher;
+    private String url;
+    private volatile String document;
+    private volatile String etag;
+    private volatile int status;
+    private volatile long delay;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @BeforeClass
+    public static void initializeOpenSAML() throws Exception {
+        IdentityProviderConfiguratorTests.initializeOpenSAML();
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        document = String.format(IdentityProviderConfiguratorTests.xmlWithoutID, "http://stub.idp/1");
+        etag = "\"1\"";
+        status = 200;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/metadata", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (status != 200) {
+                    exchange.sendResponseHeaders(status, -1);
+                } else if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte[] body = document.getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().add("ETag", etag);
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/metadata";
+        fetcher = new SamlMetadataFetcher(2, 10);
+        fetcher.setMinBackoff(60000);
+    }
+
+    @After
+    public void stopServer() {
+        fetcher.destroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void testDocumentIsDownloadedOnce() throws Exception {
+        byte[] first = fetcher.fetch(url, DefaultProtocolSocketFactory.class);
+        assertEquals(document, new String(first, StandardCharsets.UTF_8));
+        assertSame(first, fetcher.fetch(url, DefaultProtocolSocketFactory.class));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testStaleDocumentIsServedWhileRevalidating() throws Exception {
+        byte[] first = fetcher.fetch(url, DefaultProtocolSocketFactory.class);
+        fetcher.setMaxAge(0);
+        Thread.sleep(5);
+
+        assertSame(first, fetcher.fetch(url, DefaultProtocolSocketFactory.class));
+        waitFor(notModified, 1);
+        assertSame(first, fetcher.fetch(url, DefaultProtocolSocketFactory.class));
+
+        String rotated = String.format(IdentityProviderConfiguratorTests.xmlWithoutID, "http://stub.idp/2");
+        document = rotated;
+        etag = "\"2\"";
+        waitForDocument(rotated);
+    }
+
+    @Test
+    public void testFailedDownloadBacksOff() throws Exception {
+        status = 500;
+        try {
+            fetcher.fetch(url, DefaultProtocolSocketFactory.class);
+            fail("Expected the download to fail");
+        } catch (MetadataProviderException x) {
+            //expected
+        }
+        status = 200;
+        try {
+            fetcher.fetch(url, DefaultProtocolSocketFactory.class);
+            fail("Expected the URL to be in backoff");
+        } catch (MetadataProviderException x) {
+            //expected
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testConfiguratorDetectsRotatedMetadata() throws Exception {
+        SamlIdentityProviderConfigurator configurator = new SamlIdentityProviderConfigurator();
+        configurator.setParserPool(new BasicParserPool());
+        configurator.setMetadataFetcher(fetcher);
+        SamlIdentityProviderDefinition zone1 = definition("zone1");
+        SamlIdentityProviderDefinition zone2 = definition("zone2");
+        configurator.addSamlIdentityProviderDefinition(zone1);
+        configurator.addSamlIdentityProviderDefinition(zone2);
+        assertEquals(1, requests.get());
+        assertEquals(0, configurator.getDefinitionsWithChangedMetadata().size());
+
+        String rotated = String.format(IdentityProviderConfiguratorTests.xmlWithoutID, "http://stub.idp/2");
+        document = rotated;
+        etag = "\"2\"";
+        fetcher.setMaxAge(0);
+        Thread.sleep(5);
+        waitForDocument(rotated);
+
+        List<SamlIdentityProviderDefinition> changed = configurator.getDefinitionsWithChangedMetadata();
+        assertEquals(2, changed.size());
+        for (SamlIdentityProviderDefinition definition : changed) {
+            configurator.addSamlIdentityProviderDefinition(definition);
+        }
+        fetcher.setMaxAge(600000);
+        assertEquals(0, configurator.getDefinitionsWithChangedMetadata().size());
+    }
+
+    @Test
+    public void testFetchDoesNotFailWhenQueueIsFull() throws Exception {
+        fetcher.destroy();
+        fetcher = new SamlMetadataFetcher(1, 1);
+        delay = 100;
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            urls.add(url + "?provider=" + i);
+        }
+        fetcher.prefetch(urls, DefaultProtocolSocketFactory.class);
+        for (String providerUrl : urls) {
+            assertEquals(document, new String(fetcher.fetch(providerUrl, DefaultProtocolSocketFactory.class), StandardCharsets.UTF_8));
+        }
+        assertEquals(10, requests.get());
+    }
+
+    @Test
+    public void testRemovedProviderIsEvicted() throws Exception {
+        SamlIdentityProviderConfigurator configurator = new SamlIdentityProviderConfigurator();
+        configurator.setParserPool(new BasicParserPool());
+        configurator.setMetadataFetcher(fetcher);
+        SamlIdentityProviderDefinition zone1 = definition("zone1");
+        SamlIdentityProviderDefinition zone2 = definition("zone2");
+        configurator.addSamlIdentityProviderDefinition(zone1);
+        configurator.addSamlIdentityProviderDefinition(zone2);
+        assertEquals(1, requests.get());
+
+        //still used by zone2
+        configurator.removeIdentityProviderDefinition(zone1);
+        fetcher.fetch(url, DefaultProtocolSocketFactory.class);
+        assertEquals(1, requests.get());
+
+        configurator.removeIdentityProviderDefinition(zone2);
+        fetcher.fetch(url, DefaultProtocolSocketFactory.class);
+        assertEquals(2, requests.get());
+    }
+
+    private SamlIdentityProviderDefinition definition(String zoneId) {
+        return SamlIdentityProviderDefinition.Builder.get()
+            .setMetaDataLocation(url)
+            .setIdpEntityAlias("stub-idp")
+            .setNameID("sample-nameID")
+            .setLinkText("stub")
+            .setZoneId(zoneId)
+            .build();
+    }
+
+    private void waitForDocument(String expected) throws Exception {
+        byte[] bytes = expected.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 100; i++) {
+            if (Arrays.equals(bytes, fetcher.fetch(url, DefaultProtocolSocketFactory.class))) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        assertArrayEquals(bytes, fetcher.fetch(url, DefaultProtocolSocketFactory.class));
+    }
+
+    private void waitFor(AtomicInteger counter, int expected) throws Exception {
+        for (int i = 0; i < 100 && counter.get() < expected; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(counter.get() >= expected);
+    }
+}
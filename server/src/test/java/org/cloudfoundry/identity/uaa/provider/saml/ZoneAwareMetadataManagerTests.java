@@ -0,0 +1,147 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
+import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneProvisioning;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensaml.saml2.metadata.provider.MetadataProviderException;
+import org.springframework.security.saml.key.KeyManager;
+import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ZoneAwareMetadataManagerTests {
+
+    private IdentityProviderProvisioning providerDao = mock(IdentityProviderProvisioning.class);
+    private IdentityZoneProvisioning zoneDao = mock(IdentityZoneProvisioning.class);
+    private SamlIdentityProviderConfigurator configurator = mock(SamlIdentityProviderConfigurator.class);
+    private IdentityZone zone = IdentityZone.getUaa();
+    private IdentityZone otherZone = new IdentityZone();
+    private List<IdentityProvider> zoneProviders = new ArrayList<>();
+    private List<IdentityProvider> otherZoneProviders = new ArrayList<>();
+    private ZoneAwareMetadataManager manager;
+
+    @Before
+    public void setUpManager() throws Exception {
+        otherZone.setId("other");
+        otherZone.setSubdomain("other");
+        when(zoneDao.retrieveAll()).thenReturn(Arrays.asList(zone, otherZone));
+        when(providerDao.retrieveAll(false, zone.getId())).thenReturn(zoneProviders);
+        when(providerDao.retrieveAll(false, otherZone.getId())).thenReturn(otherZoneProviders);
+        when(configurator.getIdentityProviderDefinitionsForZone(any(IdentityZone.class))).thenReturn(Collections.<SamlIdentityProviderDefinition>emptyList());
+        when(configurator.getDefinitionsWithChangedMetadata()).thenReturn(Collections.<SamlIdentityProviderDefinition>emptyList());
+        ExtendedMetadataDelegate delegate = mock(ExtendedMetadataDelegate.class);
+        when(configurator.addSamlIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class)))
+            .thenReturn(new ExtendedMetadataDelegate[] {delegate, null});
+        manager = new ZoneAwareMetadataManager(providerDao, zoneDao, configurator, mock(KeyManager.class), mock(ProviderChangedListener.class)) {
+            @Override
+            protected Set<ComparableProvider> refreshZoneManager(ExtensionMetadataManager manager) {
+                return new HashSet<>();
+            }
+        };
+    }
+
+    private IdentityProvider samlProvider(IdentityZone zone, String alias) {
+        SamlIdentityProviderDefinition definition = new SamlIdentityProviderDefinition();
+        definition.setIdpEntityAlias(alias);
+        definition.setZoneId(zone.getId());
+        IdentityProvider<SamlIdentityProviderDefinition> provider = new IdentityProvider<>();
+        provider.setId(alias + "-id");
+        provider.setOriginKey(alias);
+        provider.setType(OriginKeys.SAML);
+        provider.setIdentityZoneId(zone.getId());
+        provider.setActive(true);
+        provider.setConfig(definition);
+        return provider;
+    }
+
+    private void updateCount() {
+        when(providerDao.countByType(OriginKeys.SAML)).thenReturn(zoneProviders.size() + otherZoneProviders.size());
+    }
+
+    @Test
+    public void creatingAProviderOnlyAppliesTheNewProvider() throws Exception {
+        IdentityProvider existing = samlProvider(zone, "existing");
+        IdentityProvider other = samlProvider(otherZone, "other");
+        zoneProviders.add(existing);
+        otherZoneProviders.add(other);
+        updateCount();
+        manager.refreshAllProviders(true);
+        verify(configurator).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) existing.getConfig());
+        verify(configurator).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) other.getConfig());
+
+        IdentityProvider created = samlProvider(zone, "created");
+        zoneProviders.add(created);
+        updateCount();
+        manager.refreshAllProviders(false);
+
+        verify(configurator).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) created.getConfig());
+        verify(configurator, times(1)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) existing.getConfig());
+        verify(configurator, times(1)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) other.getConfig());
+        verify(configurator, never()).removeIdentityProviderDefinition(any(SamlIdentityProviderDefinition.class));
+    }
+
+    @Test
+    public void providerIsAddedOnceItsFirstDownloadCompletes() throws Exception {
+        IdentityProvider slow = samlProvider(zone, "slow");
+        IdentityProvider other = samlProvider(otherZone, "other");
+        zoneProviders.add(slow);
+        otherZoneProviders.add(other);
+        updateCount();
+        ExtendedMetadataDelegate delegate = mock(ExtendedMetadataDelegate.class);
+        when(configurator.addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) slow.getConfig()))
+            .thenThrow(new MetadataProviderException("Timed out fetching metadata:http://slow.example.com/metadata"))
+            .thenReturn(new ExtendedMetadataDelegate[] {delegate, null});
+
+        manager.refreshAllProviders(true);
+        verify(configurator, times(1)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) slow.getConfig());
+
+        //the download finished in the background, the next periodic refresh picks it up
+        manager.refreshAllProviders(false);
+        verify(configurator, times(2)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) slow.getConfig());
+        verify(configurator, times(1)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) other.getConfig());
+
+        manager.refreshAllProviders(false);
+        verify(configurator, times(2)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) slow.getConfig());
+    }
+
+    @Test
+    public void explicitRefreshAppliesAllProviders() throws Exception {
+        IdentityProvider existing = samlProvider(zone, "existing");
+        zoneProviders.add(existing);
+        updateCount();
+        manager.refreshAllProviders(true);
+        manager.refreshAllProviders(true);
+        verify(configurator, times(2)).addSamlIdentityProviderDefinition((SamlIdentityProviderDefinition) existing.getConfig());
+    }
+}
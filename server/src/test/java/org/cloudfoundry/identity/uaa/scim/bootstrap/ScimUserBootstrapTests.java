@@ -14,6 +14,7 @@ package org.cloudfoundry.identity.uaa.scim.bootstrap;
 
 import org.cloudfoundry.identity.uaa.authentication.manager.ExternalGroupAuthorizationEvent;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.impl.config.JdbcBootstrapFingerprintStore;
 import org.cloudfoundry.identity.uaa.resources.jdbc.DefaultLimitSqlAdapter;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -247,6 +248,37 @@ public class ScimUserBootstrapTests {
         assertEquals(passwordHash, jdbcTemplate.queryForObject("select password from users where username='joe'", new Object[0], String.class));
     }
 
+    @Test
+    public void unchangedUsersAreSkippedWithFingerprints() throws Exception {
+        JdbcBootstrapFingerprintStore fingerprintStore = new JdbcBootstrapFingerprintStore(jdbcTemplate);
+        fingerprintStore.setKey("fingerprint-key");
+        UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
+        joe = joe.modifyOrigin(OriginKeys.UAA).authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read"));
+        ScimUserBootstrap bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe));
+        bootstrap.setOverride(true);
+        bootstrap.setFingerprintStore(fingerprintStore);
+        bootstrap.afterPropertiesSet();
+        assertEquals(1, fingerprintStore.getFingerprints(ScimUserBootstrap.FINGERPRINT_SECTION).size());
+
+        jdbcTemplate.update("update users set familyname='Changed' where username='joe'");
+        bootstrap.afterPropertiesSet();
+        assertEquals("Changed", db.retrieveAll().get(0).getFamilyName());
+
+        joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "Bloggs");
+        joe = joe.modifyOrigin(OriginKeys.UAA).authorities(AuthorityUtils.commaSeparatedStringToAuthorityList("openid,read"));
+        bootstrap = new ScimUserBootstrap(db, gdb, mdb, Arrays.asList(joe));
+        bootstrap.setOverride(true);
+        bootstrap.setFingerprintStore(fingerprintStore);
+        bootstrap.afterPropertiesSet();
+        assertEquals("Bloggs", db.retrieveAll().get(0).getFamilyName());
+        List<String> groups = new ArrayList<>();
+        for (ScimGroup group : mdb.getGroupsWithMember(db.retrieveAll().get(0).getId(), false)) {
+            groups.add(group.getDisplayName());
+        }
+        assertTrue(groups.containsAll(Arrays.asList("openid", "read")));
+        assertEquals(1, fingerprintStore.getFingerprints(ScimUserBootstrap.FINGERPRINT_SECTION).size());
+    }
+
     @Test
     public void failedAttemptToUpdateUsersNotFatal() throws Exception {
         UaaUser joe = new UaaUser("joe", "password", "joe@test.org", "Joe", "User");
@@ -15,15 +15,26 @@ package org.cloudfoundry.identity.uaa.scim.endpoints;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 import static org.hamcrest.Matchers.containsString;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.cloudfoundry.identity.uaa.resources.SearchResults;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimException;
+import org.cloudfoundry.identity.uaa.scim.jdbc.JdbcScimUserIdLookup;
 import org.cloudfoundry.identity.uaa.security.SecurityContextAccessor;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
 
@@ -32,6 +43,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.Mockito;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.core.authority.AuthorityUtils;
 
 /**
@@ -52,6 +64,8 @@ public class UserIdConversionEndpointsTests {
 
     private ScimUserEndpoints scimUserEndpoints = Mockito.mock(ScimUserEndpoints.class);
 
+    private JdbcScimUserIdLookup userIdLookup = Mockito.mock(JdbcScimUserIdLookup.class);
+
     @SuppressWarnings("rawtypes")
     private Collection authorities = AuthorityUtils
                     .commaSeparatedStringToAuthorityList("orgs.foo,uaa.user");
@@ -165,4 +179,64 @@ public class UserIdConversionEndpointsTests {
         SearchResults<?> searchResults = endpoints.findUsers("username eq \"foo\"", "ascending", 0, 100, false);
         assertTrue(searchResults.getResources().isEmpty());
     }
+
+    @Test
+    public void testBulkLookupDisabled() throws Exception {
+        endpoints.setEnabled(false);
+        endpoints.setUserIdLookup(userIdLookup);
+        expected.expect(ScimException.class);
+        expected.expectMessage(containsString("Illegal operation."));
+        endpoints.findUsersBulk(Collections.singletonMap("ids", Collections.singletonList("foo")), false, new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testBulkLookupOverLimit() throws Exception {
+        endpoints.setUserIdLookup(userIdLookup);
+        endpoints.setBulkLimit(1);
+        Map<String, List<String>> body = new HashMap<>();
+        body.put("ids", Collections.singletonList("foo"));
+        body.put("userNames", Collections.singletonList("bar"));
+        expected.expect(ScimException.class);
+        expected.expectMessage(containsString("limited to 1"));
+        endpoints.findUsersBulk(body, false, new MockHttpServletResponse());
+    }
+
+    @Test
+    public void testBulkLookupWithoutValues() throws Exception {
+        endpoints.setUserIdLookup(userIdLookup);
+        expected.expect(ScimException.class);
+        expected.expectMessage(containsString("are required"));
+        endpoints.findUsersBulk(Collections.emptyMap(), false, new MockHttpServletResponse());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBulkLookupWritesEachUserOnce() throws Exception {
+        endpoints.setUserIdLookup(userIdLookup);
+        JdbcScimUserIdLookup.UserId marissa = new JdbcScimUserIdLookup.UserId("id1", "marissa", "test-origin", "uaa");
+        doAnswer(invocation -> {
+            ((Consumer<JdbcScimUserIdLookup.UserId>) invocation.getArguments()[3]).accept(marissa);
+            return null;
+        }).when(userIdLookup).findByIds(any(), anyString(), any(), any());
+        doAnswer(invocation -> {
+            ((Consumer<JdbcScimUserIdLookup.UserId>) invocation.getArguments()[3]).accept(marissa);
+            return null;
+        }).when(userIdLookup).findByUserNames(any(), anyString(), any(), any());
+        Map<String, List<String>> body = new HashMap<>();
+        body.put("ids", Collections.singletonList("id1"));
+        body.put("userNames", Collections.singletonList("marissa"));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        endpoints.findUsersBulk(body, false, response);
+
+        verify(userIdLookup).findByIds(eq(Collections.singletonList("id1")), eq("uaa"), eq(Collections.singletonList("test-origin")), any());
+        Map<String, Object> result = JsonUtils.readValue(response.getContentAsString(), Map.class);
+        assertEquals(1, result.get("totalResults"));
+        List<Map<String, Object>> resources = (List<Map<String, Object>>) result.get("resources");
+        assertEquals(1, resources.size());
+        assertEquals("id1", resources.get(0).get("id"));
+        assertEquals("marissa", resources.get(0).get("userName"));
+        assertEquals("test-origin", resources.get(0).get("origin"));
+        assertEquals("uaa", resources.get(0).get("zoneId"));
+    }
 }
@@ -160,6 +160,7 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
     public void cleanupDataSource() throws Exception {
         IdentityZoneHolder.clear();
         TestUtils.deleteFrom(dataSource, "group_membership");
+        TestUtils.deleteFrom(dataSource, "external_group_fingerprint");
         TestUtils.deleteFrom(dataSource, "groups");
         TestUtils.deleteFrom(dataSource, "users");
         validateCount(0);
@@ -552,4 +553,77 @@ public class JdbcScimGroupMembershipManagerTests extends JdbcTestBase {
         validateUserGroups("m2", "test2");
 
     }
+
+    @Test
+    public void canSynchronizeExternalMemberships() {
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "test2"), false));
+        validateCount(2);
+        validateUserGroups("m1", "test1", "test2");
+        assertEquals(OriginKeys.LDAP, dao.getMemberById("g1", "m1").getOrigin());
+
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test2", "test3"), false));
+        validateCount(2);
+        validateUserGroups("m1", "test2", "test3");
+    }
+
+    @Test
+    public void synchronizeExternalMembershipsKeepsOtherOrigins() {
+        addMember("g1", "m1", "USER", "READER");
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "test2"), false));
+        validateCount(2);
+        assertEquals(UAA, dao.getMemberById("g1", "m1").getOrigin());
+
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Collections.<String>emptyList(), false));
+        validateCount(1);
+        validateUserGroups("m1", "test1");
+    }
+
+    @Test
+    public void synchronizeExternalMembershipsSkipsUnchangedGroups() {
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "test2"), false));
+        assertFalse(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test2", "test1"), false));
+        validateCount(2);
+
+        //removed outside of the synchronization
+        dao.removeMemberById("g1", "m1");
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "test2"), false));
+        validateCount(2);
+        validateUserGroups("m1", "test1", "test2");
+    }
+
+    @Test
+    public void synchronizeExternalMembershipsPicksUpLateGroups() {
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "late"), false));
+        validateCount(1);
+        addGroup("g4", "late", IdentityZone.getUaa().getId());
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "late"), false));
+        validateCount(2);
+        validateUserGroups("m1", "test1", "late");
+    }
+
+    @Test
+    public void synchronizeExternalMembershipsIgnoresConcurrentlyAddedMembers() {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        JdbcScimGroupMembershipManager concurrentDao = new JdbcScimGroupMembershipManager(template, new JdbcPagingListFactory(template, limitSqlAdapter)) {
+            @Override
+            protected void addExternalMemberships(List<Object[]> inserts) {
+                //another login of the same user got there first
+                JdbcScimGroupMembershipManagerTests.this.addMember("g1", "m1", "USER", "READER", OriginKeys.LDAP);
+                super.addExternalMemberships(inserts);
+            }
+        };
+        concurrentDao.setScimGroupProvisioning(gdao);
+        concurrentDao.setScimUserProvisioning(udao);
+        concurrentDao.setDefaultUserGroups(Collections.singleton("uaa.user"));
+        assertTrue(concurrentDao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "test2"), false));
+        validateCount(2);
+        validateUserGroups("m1", "test1", "test2");
+    }
+
+    @Test
+    public void synchronizeExternalMembershipsCanCreateGroups() {
+        assertTrue(dao.synchronizeExternalMemberships("m1", OriginKeys.LDAP, Arrays.asList("test1", "new.group"), true));
+        validateCount(2);
+        validateUserGroups("m1", "test1", "new.group");
+    }
 }
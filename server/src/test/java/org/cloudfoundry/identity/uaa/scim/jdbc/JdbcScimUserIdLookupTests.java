@@ -0,0 +1,104 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.scim.jdbc;
+
+import org.cloudfoundry.identity.uaa.test.JdbcTestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JdbcScimUserIdLookupTests extends JdbcTestBase {
+
+    private static final String ADD_USER_SQL = "insert into users (id, username, password, email, origin, identity_zone_id) values (?,?,?,?,?,?)";
+
+    private JdbcScimUserIdLookup lookup;
+
+    private List<String> ids = new ArrayList<>();
+
+    @Before
+    public void initJdbcScimUserIdLookupTests() {
+        lookup = new JdbcScimUserIdLookup(jdbcTemplate);
+        lookup.setChunkSize(2);
+        addUser("Lookup1", "uaa", "uaa");
+        addUser("lookup2", "uaa", "uaa");
+        addUser("lookup3", "ldap", "uaa");
+        addUser("lookup4", "uaa", "uaa");
+        addUser("lookup5", "uaa", "other-zone");
+    }
+
+    @After
+    public void clear() {
+        for (String id : ids) {
+            jdbcTemplate.update("delete from users where id=?", id);
+        }
+    }
+
+    private void addUser(String userName, String origin, String zoneId) {
+        String id = UUID.randomUUID().toString();
+        jdbcTemplate.update(ADD_USER_SQL, id, userName, "password", userName + "@test.org", origin, zoneId);
+        ids.add(id);
+    }
+
+    @Test
+    public void testFindByIdsAcrossChunks() {
+        List<JdbcScimUserIdLookup.UserId> result = new ArrayList<>();
+        lookup.findByIds(Arrays.asList(ids.get(0), ids.get(1), ids.get(2), ids.get(3), ids.get(4), "unknown"), "uaa", null, result::add);
+
+        assertEquals(4, result.size());
+        for (JdbcScimUserIdLookup.UserId userId : result) {
+            assertEquals("uaa", userId.getZoneId());
+            assertTrue(ids.contains(userId.getId()));
+        }
+    }
+
+    @Test
+    public void testFindByUserNamesIsCaseInsensitive() {
+        List<JdbcScimUserIdLookup.UserId> result = new ArrayList<>();
+        lookup.findByUserNames(Arrays.asList("LOOKUP1", "lookup2", "Lookup2"), "uaa", null, result::add);
+
+        assertEquals(2, result.size());
+        assertEquals(ids.get(0), result.get(0).getId());
+        assertEquals("Lookup1", result.get(0).getUserName());
+        assertEquals("uaa", result.get(0).getOrigin());
+        assertEquals(ids.get(1), result.get(1).getId());
+    }
+
+    @Test
+    public void testFindRestrictedToOrigins() {
+        List<JdbcScimUserIdLookup.UserId> result = new ArrayList<>();
+        lookup.findByUserNames(Arrays.asList("lookup1", "lookup3", "lookup4"), "uaa", Collections.singletonList("ldap"), result::add);
+
+        assertEquals(1, result.size());
+        assertEquals("lookup3", result.get(0).getUserName());
+        assertEquals("ldap", result.get(0).getOrigin());
+    }
+
+    @Test
+    public void testFindWithoutOrigins() {
+        List<JdbcScimUserIdLookup.UserId> result = new ArrayList<>();
+        lookup.findByIds(ids, "uaa", Collections.emptyList(), result::add);
+
+        assertEquals(0, result.size());
+    }
+}
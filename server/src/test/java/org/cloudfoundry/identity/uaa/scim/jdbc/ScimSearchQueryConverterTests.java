@@ -17,11 +17,13 @@ import org.cloudfoundry.identity.uaa.resources.jdbc.SearchQueryConverter.Process
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotEquals;
 
 public class ScimSearchQueryConverterTests {
 
@@ -141,6 +143,74 @@ public class ScimSearchQueryConverterTests {
         validate(filterProcessor.convert("username pr", "emails.value", true), "username IS NOT NULL ORDER BY email ASC", 0);
     }
 
+    @Test
+    public void cachedFiltersAgreeWithParsedFilters() {
+        ScimSearchQueryConverter parser = new ScimSearchQueryConverter();
+        parser.setAttributeNameMapper(new SimpleAttributeNameMapper(new HashMap<String, String>()));
+        parser.setFilterCacheSize(0);
+        ScimSearchQueryConverter cached = new ScimSearchQueryConverter();
+        cached.setAttributeNameMapper(new SimpleAttributeNameMapper(new HashMap<String, String>()));
+        String[] filters = {
+            "username eq \"joe\"",
+            "username eq \"marissa\"",
+            "username eq \"\"",
+            "displayName co \"write\" or displayName sw \"scim.\"",
+            "userName eq \"joe\" and meta.version eq 0",
+            "userName eq \"joe\" and meta.version eq 1",
+            "user_id eq \"u1\" and client_id eq \"c1\"",
+            "user_id eq \"u2\" and client_id eq \"c2\"",
+            "username eq \"a \\\"quoted\\\" name\"",
+            "username eq \"marissa'@test.org\"",
+            "username eq 'joe'",
+            "meta.created gt \"1970-01-01T00:00:00.000Z\"",
+            "username eq \"and or (\" or emails.value co \".com\"",
+            "active eq true",
+            "username pr",
+        };
+        for (int i = 0; i < 2; i++) {
+            for (String filter : filters) {
+                for (String sortBy : new String[] {null, "username"}) {
+                    ProcessedFilter expected = parser.convert(filter, sortBy, i == 0);
+                    ProcessedFilter actual = cached.convert(filter, sortBy, i == 0);
+                    assertEquals(filter, normalize(expected), normalize(actual));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void changedAttributeNameMapperIsApplied() {
+        ScimSearchQueryConverter converter = new ScimSearchQueryConverter();
+        converter.setAttributeNameMapper(new SimpleAttributeNameMapper(Collections.singletonMap("username", "user_name")));
+        validate(converter.convert("username eq \"joe\"", null, false), "LOWER(user_name) = LOWER(:__value_0)", 1);
+        converter.setAttributeNameMapper(new SimpleAttributeNameMapper(Collections.singletonMap("username", "login")));
+        validate(converter.convert("username eq \"joe\"", null, false), "LOWER(login) = LOWER(:__value_0)", 1);
+    }
+
+    @Test
+    public void cachedFiltersBindNewValuesAndPrefixes() {
+        ProcessedFilter joe = filterProcessor.convert("username eq \"joe\" or emails.value co \".com\"", null, false);
+        ProcessedFilter bob = filterProcessor.convert("username eq \"bob\" or emails.value co \".org\"", null, false);
+        validate(bob, "(LOWER(username) = LOWER(:__value_0) OR LOWER(email) LIKE LOWER(:__value_1))", 2);
+        assertEquals("bob", bob.getParams().get(bob.getParamPrefix() + "0"));
+        assertEquals("%.org%", bob.getParams().get(bob.getParamPrefix() + "1"));
+        assertEquals("%.com%", joe.getParams().get(joe.getParamPrefix() + "1"));
+        assertNotEquals(joe.getParamPrefix(), bob.getParamPrefix());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCachedShapeIsRejected() throws Exception {
+        filterProcessor.convert("username eq \"joe\" and", null, false);
+    }
+
+    private String normalize(ProcessedFilter filter) {
+        Map<String, Object> params = new HashMap<>();
+        for (Map.Entry<String, Object> entry : filter.getParams().entrySet()) {
+            params.put(entry.getKey().replace(filter.getParamPrefix(), "__value_"), entry.getValue());
+        }
+        return filter.getSql().replace(filter.getParamPrefix(), "__value_") + " " + params;
+    }
+
     private void validate(ProcessedFilter filter, String expectedSql, int expectedParamCount, Class... types) {
         assertNotNull(filter);
         expectedSql = expectedSql.replaceAll("__value_", filter.getParamPrefix());
@@ -399,6 +399,47 @@ public class CorsFilterTests {
         assertStandardCorsPreFlightResponse(response, "GET, OPTIONS, POST, PUT, DELETE", AUTHORIZATION, ACCEPT, CONTENT_TYPE, ACCEPT_LANGUAGE, CONTENT_LANGUAGE);
     }
 
+    @Test
+    public void testDecisionsAreCachedUntilConfigurationChanges() throws ServletException, IOException {
+        CorsFilter corsFilter = createConfiguredCorsFilter();
+
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletRequest request = new MockHttpServletRequest("OPTIONS", "/uaa/userinfo");
+            request.addHeader("Access-Control-Request-Method", "GET");
+            request.addHeader("Access-Control-Request-Headers", "Authorization");
+            request.addHeader("Origin", "example.com");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            corsFilter.doFilter(request, response, newMockFilterChain());
+            assertEquals(200, response.getStatus());
+            assertEquals("GET, OPTIONS, POST, PUT, DELETE", response.getHeaderValue("Access-Control-Allow-Methods"));
+        }
+        CorsFilter.CorsConfiguration configuration = corsFilter.getDefaultConfiguration();
+        assertEquals(1, configuration.getOriginDecisions().size());
+        assertEquals(1, configuration.getUriDecisions().size());
+        assertEquals(1, configuration.getRequestHeaderDecisions().size());
+
+        configuration.setAllowedOrigins(Arrays.asList("other.com$"));
+        corsFilter.initialize();
+        assertEquals(0, configuration.getOriginDecisions().size());
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/uaa/userinfo");
+        request.addHeader("Origin", "example.com");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        corsFilter.doFilter(request, response, newMockFilterChain());
+        assertEquals(403, response.getStatus());
+    }
+
+    @Test
+    public void testDecisionCacheIsBounded() {
+        CorsFilter.DecisionCache cache = new CorsFilter.DecisionCache(2);
+        cache.put("a", true);
+        cache.put("b", false);
+        assertEquals(Boolean.FALSE, cache.get("b"));
+        cache.put("c", true);
+        assertEquals(1, cache.size());
+        assertEquals(Boolean.TRUE, cache.get("c"));
+    }
+
     @Test
     public void doInitializeWithInvalidUriRegex() {
 
@@ -0,0 +1,174 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.security.web;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.web.DefaultSecurityFilterChain;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+import org.springframework.security.web.util.matcher.AnyRequestMatcher;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SecurityFilterChainIndexTests {
+
+    private List<SecurityFilterChain> chains;
+    private List<String> invoked;
+
+    @Before
+    public void setUp() {
+        invoked = new LinkedList<>();
+        chains = new ArrayList<>();
+        chains.add(chain("resources", new AntPathRequestMatcher("/resources/**")));
+        chains.add(chain("info", new AntPathRequestMatcher("/info")));
+        chains.add(chain("healthz", new AntPathRequestMatcher("/healthz/**")));
+        chains.add(chain("create_account", new AntPathRequestMatcher("/create_account*")));
+        chains.add(chain("user_password", new AntPathRequestMatcher("/User*/*/password")));
+        UaaRequestMatcher tokenWithBearer = new UaaRequestMatcher("/oauth/token");
+        tokenWithBearer.setMethod(HttpMethod.POST);
+        tokenWithBearer.setHeaders(Collections.singletonMap("Authorization", Arrays.asList("bearer ")));
+        chains.add(chain("token_bearer", tokenWithBearer));
+        UaaRequestMatcher passcode = new UaaRequestMatcher("/oauth/token");
+        passcode.setParameters(Collections.singletonMap("passcode", ""));
+        chains.add(chain("token_passcode", passcode));
+        chains.add(chain("token", new AntPathRequestMatcher("/oauth/token/**")));
+        UaaRequestMatcher authorizeJson = new UaaRequestMatcher("/oauth/authorize");
+        authorizeJson.setAccept(Arrays.asList("application/json"));
+        chains.add(chain("authorize_json", authorizeJson));
+        chains.add(chain("custom", new RequestMatcher() {
+            @Override
+            public boolean matches(HttpServletRequest request) {
+                return "custom".equals(request.getParameter("chain"));
+            }
+        }));
+        chains.add(chain("users", new AntPathRequestMatcher("/Users/**")));
+        chains.add(chain("ui", AnyRequestMatcher.INSTANCE));
+    }
+
+    @Test
+    public void testIndexAgreesWithLinearScan() throws Exception {
+        SecurityFilterChainIndex index = new SecurityFilterChainIndex(chains);
+        String[] paths = {"/", "/resources", "/resources/", "/resources/css/app.css", "/resourcesX", "/info", "/info/x", "/INFO",
+            "/healthz", "/healthz/", "/create_account", "/create_account.do", "/Users", "/Users/id", "/users/id",
+            "/Users/id/password", "/Userx/id/password", "/oauth/token", "/oauth/token/revoke", "/oauth/tokens",
+            "/oauth/authorize", "/oauth/authorizex", "/login", "/ info", "/oauth"};
+        String[] methods = {"GET", "POST", "post"};
+        for (String path : paths) {
+            for (String method : methods) {
+                for (int variant = 0; variant < 6; variant++) {
+                    MockHttpServletRequest request = request(method, path);
+                    switch (variant) {
+                        case 1: request.addHeader("Authorization", "Bearer abc"); break;
+                        case 2: request.addHeader("Authorization", "Basic abc"); break;
+                        case 3: request.addParameter("passcode", "123"); break;
+                        case 4: request.addHeader("Accept", "application/json"); break;
+                        case 5: request.addParameter("chain", "custom"); break;
+                        default: break;
+                    }
+                    assertEquals(method + " " + path + " variant " + variant, index.scan(request), index.lookup(request));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRequestWithoutContextPathPrefixMatchesOnlyAntChains() throws Exception {
+        SecurityFilterChainIndex index = new SecurityFilterChainIndex(chains);
+        MockHttpServletRequest request = request("POST", "/oauth/token");
+        request.setRequestURI("/other/oauth/token");
+        request.addHeader("Authorization", "bearer abc");
+        assertEquals(index.scan(request), index.lookup(request));
+        assertEquals(7, index.lookup(request));
+    }
+
+    @Test
+    public void testVerificationModeFallsBackToLinearScan() throws Exception {
+        SecurityFilterChainIndex index = new SecurityFilterChainIndex(chains) {
+            @Override
+            protected int lookup(HttpServletRequest request) {
+                return -1;
+            }
+        };
+        MockHttpServletRequest request = request("GET", "/info");
+        assertEquals(-1, index.getMatchingChain(request));
+        index.setVerify(true);
+        assertEquals(1, index.getMatchingChain(request));
+    }
+
+    @Test
+    public void testProxyInvokesFiltersOfSelectedChain() throws Exception {
+        IndexedFilterChainProxy proxy = new IndexedFilterChainProxy(chains);
+        proxy.afterPropertiesSet();
+        assertSame(chains.get(0), proxy.getFilterChains().get(0));
+
+        MockFilterChain filterChain = new MockFilterChain();
+        proxy.doFilter(request("POST", "/oauth/token"), new MockHttpServletResponse(), filterChain);
+        assertEquals(Arrays.asList("token"), invoked);
+        assertNull(filterChain.getRequest());
+
+        invoked.clear();
+        MockHttpServletRequest request = request("POST", "/oauth/token");
+        request.addHeader("Authorization", "Bearer abc");
+        proxy.doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+        assertEquals(Arrays.asList("token_bearer"), invoked);
+    }
+
+    private MockHttpServletRequest request(String method, String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/uaa" + path);
+        request.setContextPath("/uaa");
+        request.setServletPath(path);
+        return request;
+    }
+
+    private SecurityFilterChain chain(final String name, RequestMatcher matcher) {
+        Filter filter = new Filter() {
+            @Override
+            public void init(FilterConfig filterConfig) throws ServletException {
+            }
+
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+                invoked.add(name);
+            }
+
+            @Override
+            public void destroy() {
+            }
+        };
+        return new DefaultSecurityFilterChain(matcher, filter);
+    }
+}
@@ -3,7 +3,10 @@ package org.cloudfoundry.identity.uaa.util;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
 import java.util.regex.Matcher;
@@ -11,6 +14,8 @@ import java.util.regex.Pattern;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class UaaStringUtilsTest {
@@ -213,6 +218,60 @@ public class UaaStringUtilsTest {
         }
     }
 
+    @Test
+    public void testWildcardMatcherAgreesWithPatterns() throws Exception {
+        String[] wildcards = new String[] {
+            "space.*.developer",
+            "*.*.developer",
+            "*.*.*",
+            "http://*.example.com/**",
+            "http://localhost:8080/app",
+            "uaa.*",
+            "*",
+            "^[a-z]+$",
+            "weird\\*thing",
+            "caf\u00e9.*",
+        };
+        String[] values = new String[] {
+            "space.1.developer",
+            "space..developer",
+            "space.1.2.developer",
+            "space.1",
+            "uaa.admin",
+            "uaa.",
+            "uaa",
+            "uaa.admin.x",
+            "http://foo.example.com/path",
+            "http://example.com/path",
+            "http://localhost:8080/app",
+            "http://localhost:8080/app/",
+            "abc",
+            "^[a-z]+$",
+            "weird\\xthing",
+            "caf\u00e9.x",
+            "",
+        };
+        for (String wildcard : wildcards) {
+            WildcardMatcher matcher = new WildcardMatcher(Arrays.asList(wildcard));
+            String pattern = UaaStringUtils.constructSimpleWildcardPattern(wildcard);
+            for (String value : values) {
+                assertEquals("Testing [" + value + "] against [" + wildcard + "]", matches(pattern, value), matcher.matches(value));
+            }
+        }
+    }
+
+    @Test
+    public void testWildcardMatcherIsCached() throws Exception {
+        WildcardMatcher matcher = UaaStringUtils.getWildcardMatcher(Arrays.asList("uaa.*", "openid"));
+        assertSame(matcher, UaaStringUtils.getWildcardMatcher(new HashSet<>(Arrays.asList("openid", "uaa.*"))));
+        assertNotSame(matcher, UaaStringUtils.getWildcardMatcher(Arrays.asList("uaa.*")));
+        assertTrue(matcher.matches("uaa.user"));
+        assertTrue(matcher.matches("openid"));
+        assertFalse(matcher.matches("scim.read"));
+        assertFalse(matcher.matches(null));
+        assertTrue(UaaStringUtils.getWildcardMatcher(Collections.<String>emptySet()).isEmpty());
+    }
+
     private boolean matches(String pattern, String value) {
         Pattern p = Pattern.compile(pattern);
         Matcher m = p.matcher(value);
@@ -282,4 +282,77 @@ public class JdbcIdentityProviderProvisioningTests extends JdbcTestBase {
         IdentityProvider idp1 = db.create(idp);
         db.retrieveByOrigin(idp1.getOriginKey(), identityZone2.getId());
     }
+
+    @Test
+    public void testRetrieveModifiedSinceAcrossZones() {
+        String type = RandomStringUtils.randomAlphabetic(6);
+        String zoneId1 = RandomStringUtils.randomAlphabetic(6);
+        String zoneId2 = RandomStringUtils.randomAlphabetic(6);
+        assertEquals(0, db.countByType(type));
+
+        IdentityProvider idp1 = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId1);
+        idp1.setType(type);
+        idp1 = db.create(idp1);
+        IdentityProvider idp2 = MultitenancyFixture.identityProvider(RandomStringUtils.randomAlphabetic(6), zoneId2);
+        idp2.setType(type);
+        idp2 = db.create(idp2);
+        assertEquals(2, db.countByType(type));
+
+        Timestamp watermark = new Timestamp(System.currentTimeMillis() - 60000);
+        jdbcTemplate.update("update identity_provider set lastmodified=? where id=?", watermark, idp1.getId());
+
+        List<IdentityProvider> modified = db.retrieveModifiedSince(type, watermark);
+        assertEquals(1, modified.size());
+        assertEquals(idp2.getId(), modified.get(0).getId());
+        assertEquals(zoneId2, modified.get(0).getIdentityZoneId());
+
+        modified = db.retrieveModifiedSince(type, new Timestamp(watermark.getTime() - 1000));
+        assertEquals(2, modified.size());
+        assertEquals(0, db.retrieveModifiedSince(type + "-other", watermark).size());
+    }
+
+    @Test
+    public void testRetrieveByOriginServedFromZoneSnapshot() throws Exception {
+        String zoneId = RandomStringUtils.randomAlphabetic(6);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider created = db.create(MultitenancyFixture.identityProvider(originKey, zoneId));
+        db.setCacheExpiration(60000);
+
+        IdentityProvider cached = db.retrieveByOrigin(originKey, zoneId);
+        assertEquals(created.getId(), cached.getId());
+        //changes that bypass the provisioning are not visible until the snapshot is reloaded
+        jdbcTemplate.update("update identity_provider set name=? where id=?", "changed-outside", created.getId());
+        assertEquals(created.getName(), db.retrieveByOrigin(originKey, zoneId).getName());
+
+        //callers get their own copy
+        cached.setName("changed-by-caller");
+        assertEquals(created.getName(), db.retrieveByOrigin(originKey, zoneId).getName());
+
+        //writes through the provisioning invalidate the zone
+        cached.setName("updated");
+        db.update(cached);
+        assertEquals("updated", db.retrieveByOrigin(originKey, zoneId).getName());
+
+        db.deleteByOrigin(originKey, zoneId);
+        try {
+            db.retrieveByOrigin(originKey, zoneId);
+            fail("Provider should have been removed from the snapshot");
+        } catch (EmptyResultDataAccessException x) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testExpiredSnapshotIsReloadedWhenWatermarkMoves() throws Exception {
+        String zoneId = RandomStringUtils.randomAlphabetic(6);
+        String originKey = RandomStringUtils.randomAlphabetic(6);
+        IdentityProvider created = db.create(MultitenancyFixture.identityProvider(originKey, zoneId));
+        db.setCacheExpiration(1);
+        assertEquals(created.getName(), db.retrieveByOrigin(originKey, zoneId).getName());
+
+        //simulates an update made by another server
+        jdbcTemplate.update("update identity_provider set name=?, version=version+1 where id=?", "remote-update", created.getId());
+        Thread.sleep(5);
+        assertEquals("remote-update", db.retrieveByOrigin(originKey, zoneId).getName());
+    }
 }
@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.authentication.manager;
 
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.authentication.AccountNotVerifiedException;
 import org.cloudfoundry.identity.uaa.authentication.AuthenticationPolicyRejectionException;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
@@ -11,6 +12,7 @@ import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,6 +20,8 @@ import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.Authentication;
 
+import java.util.concurrent.ExecutorService;
+
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
@@ -190,6 +194,102 @@ public class DynamicZoneAwareAuthenticationManagerTest {
         verifyZeroInteractions(mockManager);
     }
 
+    @Test
+    public void testChainIsCachedPerZone() throws Exception {
+        IdentityZoneHolder.set(ZONE);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaActive);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, ZONE.getId())).thenReturn(ldapInactive);
+        when(uaaAuthenticationMgr.authenticate(any(Authentication.class))).thenReturn(success);
+        DynamicZoneAwareAuthenticationManager manager = getDynamicZoneAwareAuthenticationManager(true);
+        assertSame(success, manager.authenticate(success));
+        assertSame(success, manager.authenticate(success));
+        verify(providerProvisioning, times(1)).retrieveByOrigin(OriginKeys.UAA, ZONE.getId());
+        verify(providerProvisioning, times(1)).retrieveByOrigin(OriginKeys.LDAP, ZONE.getId());
+    }
+
+    @Test
+    public void testUnchangedProviderEventKeepsChain() throws Exception {
+        IdentityZoneHolder.set(ZONE);
+        when(uaaActive.getIdentityZoneId()).thenReturn(ZONE.getId());
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaActive);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, ZONE.getId())).thenReturn(ldapInactive);
+        when(uaaAuthenticationMgr.authenticate(any(Authentication.class))).thenReturn(success);
+        DynamicZoneAwareAuthenticationManager manager = getDynamicZoneAwareAuthenticationManager(true);
+        assertSame(success, manager.authenticate(success));
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(uaaActive));
+        assertSame(success, manager.authenticate(success));
+        verify(providerProvisioning, times(1)).retrieveByOrigin(OriginKeys.UAA, ZONE.getId());
+    }
+
+    @Test
+    public void testModifiedProviderEventRebuildsChain() throws Exception {
+        IdentityZoneHolder.set(ZONE);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaActive);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, ZONE.getId())).thenReturn(ldapInactive);
+        when(uaaAuthenticationMgr.authenticate(any(Authentication.class))).thenReturn(success);
+        DynamicZoneAwareAuthenticationManager manager = getDynamicZoneAwareAuthenticationManager(true);
+        assertSame(success, manager.authenticate(success));
+
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaInactive);
+        IdentityProvider modified = new IdentityProvider()
+            .setOriginKey(OriginKeys.UAA)
+            .setIdentityZoneId(ZONE.getId())
+            .setVersion(1)
+            .setActive(false);
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(modified));
+        assertNull(manager.authenticate(success));
+        verify(providerProvisioning, times(2)).retrieveByOrigin(OriginKeys.UAA, ZONE.getId());
+    }
+
+    @Test
+    public void testDeletedZoneIsEvicted() throws Exception {
+        IdentityZoneHolder.set(ZONE);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaActive);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, ZONE.getId())).thenReturn(ldapInactive);
+        when(uaaAuthenticationMgr.authenticate(any(Authentication.class))).thenReturn(success);
+        DynamicZoneAwareAuthenticationManager manager = getDynamicZoneAwareAuthenticationManager(true);
+        assertSame(success, manager.authenticate(success));
+        manager.onApplicationEvent(new EntityDeletedEvent<>(ZONE));
+        assertSame(success, manager.authenticate(success));
+        verify(providerProvisioning, times(2)).retrieveByOrigin(OriginKeys.UAA, ZONE.getId());
+    }
+
+    @Test
+    public void testExpiredChainIsRebuilt() throws Exception {
+        IdentityZoneHolder.set(ZONE);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaActive);
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.LDAP, ZONE.getId())).thenReturn(ldapInactive);
+        when(uaaAuthenticationMgr.authenticate(any(Authentication.class))).thenReturn(success);
+        DynamicZoneAwareAuthenticationManager manager = getDynamicZoneAwareAuthenticationManager(true);
+        manager.setCacheExpiration(0);
+        assertSame(success, manager.authenticate(success));
+        //the provider was changed through another instance
+        when(providerProvisioning.retrieveByOrigin(OriginKeys.UAA, ZONE.getId())).thenReturn(uaaInactive);
+        assertNull(manager.authenticate(success));
+        verify(providerProvisioning, times(2)).retrieveByOrigin(OriginKeys.UAA, ZONE.getId());
+    }
+
+    @Test
+    public void testModifiedLdapProviderIsInitializedInBackground() throws Exception {
+        ExecutorService executor = mock(ExecutorService.class);
+        DynamicZoneAwareAuthenticationManager manager = getDynamicZoneAwareAuthenticationManager();
+        manager.setLdapWarmupExecutor(executor);
+        IdentityProvider provider = new IdentityProvider()
+            .setOriginKey(OriginKeys.LDAP)
+            .setType(OriginKeys.LDAP)
+            .setIdentityZoneId(ZONE.getId())
+            .setConfig(ldapIdentityProviderDefinition)
+            .setActive(true);
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(provider));
+        verify(executor, times(1)).submit(any(Runnable.class));
+        assertSame(ldapIdentityProviderDefinition, manager.getLdapAuthenticationManager(ZONE, provider).getDefinition());
+
+        //same definition again, nothing to reload
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(provider.setVersion(1)));
+        verify(executor, times(1)).submit(any(Runnable.class));
+        manager.destroy();
+    }
+
     protected DynamicZoneAwareAuthenticationManager getDynamicZoneAwareAuthenticationManager() {
         return getDynamicZoneAwareAuthenticationManager(false);
     }
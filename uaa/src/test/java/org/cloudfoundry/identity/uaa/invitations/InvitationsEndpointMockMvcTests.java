@@ -24,8 +24,10 @@ import org.springframework.security.oauth2.provider.ClientDetails;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.ORIGIN;
@@ -150,6 +152,35 @@ public class InvitationsEndpointMockMvcTests extends InjectedMockContextTest {
         assertEquals("user.ambiguous", response.getFailedInvites().get(0).getErrorCode());
     }
 
+    @Test
+    public void invite_Users_Spanning_Several_Query_Batches() throws Exception {
+        String clientAdminToken = utils().getClientOAuthAccessToken(getMockMvc(), "admin", "adminsecret","");
+        String existingEmail = generator.generate().toLowerCase()+"@"+domain;
+        ScimUser existing = new ScimUser(null, generator.generate(), "givenName", "familyName");
+        existing.setPrimaryEmail(existingEmail);
+        existing.setOrigin(UAA);
+        existing = utils().createUser(getMockMvc(), clientAdminToken, existing);
+
+        List<String> emails = new ArrayList<>();
+        for (int i = 0; i < InvitationsEndpoint.DEFAULT_QUERY_BATCH_SIZE + 10; i++) {
+            emails.add("user" + i + "." + generator.generate().toLowerCase() + "@" + domain);
+        }
+        emails.add(existingEmail);
+        emails.add(emails.get(0));
+        emails.add("user@" + generator.generate().toLowerCase() + ".org");
+
+        InvitationsResponse response = sendRequestWithTokenAndReturnResponse(scimInviteToken, null, clientId, "example.com", emails.toArray(new String[0]));
+        assertEquals(emails.size() - 1, response.getNewInvites().size());
+        for (int i = 0; i < emails.size() - 1; i++) {
+            assertEquals(emails.get(i), response.getNewInvites().get(i).getEmail());
+            assertNotNull(response.getNewInvites().get(i).getUserId());
+        }
+        assertEquals(existing.getId(), response.getNewInvites().get(emails.size() - 3).getUserId());
+        assertEquals(response.getNewInvites().get(0).getUserId(), response.getNewInvites().get(emails.size() - 2).getUserId());
+        assertEquals(1, response.getFailedInvites().size());
+        assertEquals("provider.non-existent", response.getFailedInvites().get(0).getErrorCode());
+    }
+
     @Test
     public void accept_Invitation_Email_With_Oss_Brand() throws Exception {
         ((MockEnvironment) getWebApplicationContext().getEnvironment()).setProperty("login.brand", "oss");
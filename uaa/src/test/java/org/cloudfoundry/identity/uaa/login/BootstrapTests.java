@@ -23,6 +23,7 @@ import org.cloudfoundry.identity.uaa.message.EmailService;
 import org.cloudfoundry.identity.uaa.message.NotificationsService;
 import org.cloudfoundry.identity.uaa.message.util.FakeJavaMailSender;
 import org.cloudfoundry.identity.uaa.oauth.UaaTokenServices;
+import org.cloudfoundry.identity.uaa.oauth.InMemoryUaaTokenStore;
 import org.cloudfoundry.identity.uaa.oauth.UaaTokenStore;
 import org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
@@ -489,6 +490,14 @@ public class BootstrapTests {
         assertThat(key.getVerificationKey(), containsString("test-verification-key"));
     }
 
+    @Test
+    public void testInMemoryAuthorizationCodesProfile() throws Exception {
+        context = getServletContext("default,inMemoryAuthorizationCodes", "login.yml","uaa.yml", "file:./src/main/webapp/WEB-INF/spring-servlet.xml");
+        InMemoryUaaTokenStore store = context.getBean(InMemoryUaaTokenStore.class);
+        assertSame(store, context.getBean(AuthorizationCodeServices.class));
+        assertEquals(10000, store.getExpirationSweepInterval());
+    }
+
     @Test
     public void testSamlProfileNoData() throws Exception {
         System.setProperty("login.saml.maxAuthenticationAge", "3600");
@@ -17,6 +17,7 @@ import org.cloudfoundry.identity.uaa.codestore.JdbcExpiringCodeStore;
 import org.cloudfoundry.identity.uaa.mock.InjectedMockContextTest;
 import org.cloudfoundry.identity.uaa.test.TestClient;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.http.MediaType;
@@ -47,6 +48,12 @@ public class ExpiringCodeStoreMockMvcTests extends InjectedMockContextTest {
         getWebApplicationContext().getBean(JdbcTemplate.class).update("DELETE FROM expiring_code_store ");
     }
 
+    @After
+    public void tearDown() throws Exception {
+        //expired codes are removed by the expired data reaper
+        getWebApplicationContext().getBean(JdbcExpiringCodeStore.class).setPurgeExpired(false);
+    }
+
     @Test
     public void testGenerateCode() throws Exception {
         Timestamp ts = new Timestamp(System.currentTimeMillis() + 60000);
@@ -205,6 +212,7 @@ public class ExpiringCodeStoreMockMvcTests extends InjectedMockContextTest {
 
     @Test
     public void testCodeThatIsExpiredIsDeletedOnCreateOfNewCode() throws Exception {
+        getWebApplicationContext().getBean(JdbcExpiringCodeStore.class).setPurgeExpired(true);
         Timestamp ts = new Timestamp(System.currentTimeMillis() + 1000);
         ExpiringCode code = new ExpiringCode(null, ts, "{}", null);
         String requestBody = JsonUtils.writeValueAsString(code);
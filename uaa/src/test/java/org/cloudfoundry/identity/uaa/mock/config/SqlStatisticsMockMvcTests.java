@@ -0,0 +1,136 @@
+/*
+ * *****************************************************************************
+ *      Cloud Foundry
+ *      Copyright (c) [2009-2015] Pivotal Software, Inc. All Rights Reserved.
+ *      This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *      You may not use this product except in compliance with the License.
+ *
+ *      This product includes a number of subcomponents with
+ *      separate copyright notices and license terms. Your use of these
+ *      subcomponents is subject to the terms and conditions of the
+ *      subcomponent's license, as noted in the LICENSE file.
+ * *****************************************************************************
+ */
+
+package org.cloudfoundry.identity.uaa.mock.config;
+
+import org.cloudfoundry.identity.uaa.db.SqlStatistics;
+import org.cloudfoundry.identity.uaa.mock.InjectedMockContextTest;
+import org.cloudfoundry.identity.uaa.mock.util.MockMvcUtils.IdentityZoneCreationResult;
+import org.cloudfoundry.identity.uaa.test.TestClient;
+import org.cloudfoundry.identity.uaa.util.SetServerNameRequestPostProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+import java.util.Arrays;
+
+import static org.cloudfoundry.identity.uaa.mock.util.MockMvcUtils.utils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.securityContext;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class SqlStatisticsMockMvcTests extends InjectedMockContextTest {
+
+    private SqlStatistics statistics;
+    private TestClient testClient;
+
+    @Before
+    public void enableStatistics() throws Exception {
+        testClient = new TestClient(getMockMvc());
+        statistics = getWebApplicationContext().getBean(SqlStatistics.class);
+        statistics.reset();
+        statistics.setEnabled(true);
+    }
+
+    @After
+    public void disableStatistics() {
+        statistics.setEnabled(false);
+        statistics.reset();
+    }
+
+    @Test
+    public void testStatisticsAreReturnedToAdmins() throws Exception {
+        getWebApplicationContext().getBean(JdbcTemplate.class).queryForObject("select count(*) from users where id = 'not-a-user-id'", Integer.class);
+        String token = testClient.getClientCredentialsOAuthAccessToken("admin", "adminsecret", "uaa.admin");
+
+        getMockMvc().perform(get("/sql_statistics")
+                .header("Authorization", "Bearer " + token)
+                .accept(APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.enabled").value(true))
+            .andExpect(jsonPath("$.statements[?(@.statement == 'select count(*) from users where id = ?')].count").value(1));
+
+        getMockMvc().perform(delete("/sql_statistics")
+                .header("Authorization", "Bearer " + token))
+            .andExpect(status().isNoContent());
+        assertEquals(0, statistics.getStatementCount());
+    }
+
+    @Test
+    public void testStatisticsRequireAdminScope() throws Exception {
+        String token = testClient.getClientCredentialsOAuthAccessToken("admin", "adminsecret", "scim.read");
+        getMockMvc().perform(get("/sql_statistics")
+                .header("Authorization", "Bearer " + token)
+                .accept(APPLICATION_JSON))
+            .andExpect(status().isForbidden());
+
+        getMockMvc().perform(get("/sql_statistics")
+                .accept(APPLICATION_JSON))
+            .andExpect(status().isUnauthorized());
+    }
+
+    @Test
+    public void testStatisticsAreNotReturnedToAdminsOfOtherZones() throws Exception {
+        String subdomain = new RandomValueStringGenerator().generate().toLowerCase();
+        IdentityZoneCreationResult zone = utils().createOtherIdentityZoneAndReturnResult(subdomain, getMockMvc(), getWebApplicationContext(), null);
+        BaseClientDetails client = new BaseClientDetails("zone-admin-" + subdomain, null, null, "client_credentials", "uaa.admin");
+        client.setClientSecret("secret");
+        utils().createClient(getMockMvc(), zone.getZoneAdminToken(), client, zone.getIdentityZone());
+        String token = utils().getClientCredentialsOAuthAccessToken(getMockMvc(), client.getClientId(), "secret", "uaa.admin", subdomain);
+
+        getMockMvc().perform(get("/sql_statistics")
+                .with(new SetServerNameRequestPostProcessor(subdomain + ".localhost"))
+                .header("Authorization", "Bearer " + token)
+                .accept(APPLICATION_JSON))
+            .andExpect(status().isForbidden());
+        getMockMvc().perform(delete("/sql_statistics")
+                .with(new SetServerNameRequestPostProcessor(subdomain + ".localhost"))
+                .header("Authorization", "Bearer " + token))
+            .andExpect(status().isForbidden());
+    }
+
+    @Test
+    public void testStatisticsPathVariantsRequireAdminScope() throws Exception {
+        getWebApplicationContext().getBean(JdbcTemplate.class).queryForObject("select count(*) from users where id = 'not-a-user-id'", Integer.class);
+        String token = testClient.getClientCredentialsOAuthAccessToken("admin", "adminsecret", "scim.read");
+        SecurityContext session = utils().getMarissaSecurityContext(getWebApplicationContext());
+        for (String path : Arrays.asList("/sql_statistics", "/sql_statistics/", "/sql_statistics.json")) {
+            getMockMvc().perform(get(path)
+                    .header("Authorization", "Bearer " + token)
+                    .accept(APPLICATION_JSON))
+                .andExpect(status().isForbidden());
+            getMockMvc().perform(delete(path)
+                    .header("Authorization", "Bearer " + token))
+                .andExpect(status().isForbidden());
+
+            getMockMvc().perform(get(path)
+                    .with(securityContext(session))
+                    .accept(APPLICATION_JSON))
+                .andExpect(status().isUnauthorized());
+            getMockMvc().perform(delete(path)
+                    .with(securityContext(session)))
+                .andExpect(status().isUnauthorized());
+        }
+        assertTrue(statistics.getStatementCount() > 0);
+    }
+}
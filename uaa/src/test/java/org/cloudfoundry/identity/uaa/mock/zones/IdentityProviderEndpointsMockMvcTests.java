@@ -26,6 +26,7 @@ import org.cloudfoundry.identity.uaa.test.TestApplicationEventListener;
 import org.cloudfoundry.identity.uaa.test.TestClient;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.JdbcIdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneSwitchingFilter;
@@ -90,6 +91,7 @@ public class IdentityProviderEndpointsMockMvcTests extends InjectedMockContextTe
     @After
     public void clearUaaConfig() throws Exception {
         getWebApplicationContext().getBean(JdbcTemplate.class).update("UPDATE identity_provider SET config=null WHERE origin_key='uaa'");
+        getWebApplicationContext().getBean(JdbcIdentityProviderProvisioning.class).clearCache();
         mockMvcUtils.removeEventListener(getWebApplicationContext(), eventListener);
     }
 
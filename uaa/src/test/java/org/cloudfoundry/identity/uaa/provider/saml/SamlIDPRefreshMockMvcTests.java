@@ -22,6 +22,7 @@ import org.cloudfoundry.identity.uaa.mock.util.MockMvcUtils;
 import org.cloudfoundry.identity.uaa.test.UaaTestAccounts;
 import org.cloudfoundry.identity.uaa.util.SetServerNameRequestPostProcessor;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.JdbcIdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -149,6 +150,7 @@ public class SamlIDPRefreshMockMvcTests extends InjectedMockContextTest {
             assertEquals(1, zoneAwareMetadataManager.getManager(zone).getAvailableProviders().size());
         }
         jdbcTemplate.update("delete from identity_provider where type=?", OriginKeys.SAML);
+        getWebApplicationContext().getBean(JdbcIdentityProviderProvisioning.class).clearCache();
         SecurityContextHolder.clearContext();
         IdentityZoneHolder.clear();
     }
@@ -191,6 +193,31 @@ public class SamlIDPRefreshMockMvcTests extends InjectedMockContextTest {
     }
 
 
+    @Test
+    public void testTimerRefreshOnlyAppliesModifiedAndDetectsDeletedProviders() throws Exception {
+        zoneAwareMetadataManager.refreshAllProviders();
+        assertEquals(1, zoneAwareMetadataManager.getAvailableProviders().size());
+        IdentityProvider<SamlIdentityProviderDefinition> provider = createSamlProvider(DEFAULT_SIMPLE_SAML_METADATA, "simplesamlphp", "Log in with Simple Saml PHP Config");
+        //this is what the timer does
+        zoneAwareMetadataManager.refreshAllProviders(false);
+        assertEquals(2, zoneAwareMetadataManager.getAvailableProviders().size());
+
+        provider.setActive(false);
+        provider = providerProvisioning.update(provider);
+        zoneAwareMetadataManager.refreshAllProviders(false);
+        assertEquals(1, zoneAwareMetadataManager.getAvailableProviders().size());
+
+        provider.setActive(true);
+        provider = providerProvisioning.update(provider);
+        zoneAwareMetadataManager.refreshAllProviders(false);
+        assertEquals(2, zoneAwareMetadataManager.getAvailableProviders().size());
+
+        //deletes are not visible to the modified query, they are detected by count
+        jdbcTemplate.update("delete from identity_provider where id=?", provider.getId());
+        zoneAwareMetadataManager.refreshAllProviders(false);
+        assertEquals(1, zoneAwareMetadataManager.getAvailableProviders().size());
+    }
+
     protected IdentityProvider<SamlIdentityProviderDefinition> addXmlProviderToDatabase() throws Exception {
         assertEquals(1, zoneAwareMetadataManager.getAvailableProviders().size());
         IdentityProvider<SamlIdentityProviderDefinition> provider = createSamlProvider(DEFAULT_SIMPLE_SAML_METADATA, "simplesamlphp", "Log in with Simple Saml PHP Config");
@@ -25,11 +25,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -38,6 +41,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.securityContext;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
@@ -243,6 +247,76 @@ public class ScimUserLookupMockMvcTests extends InjectedMockContextTest {
 
     }
 
+    @Test
+    public void testBulkLookup() throws Exception {
+        List<String> ids = new ArrayList<>();
+        List<String> usernames = new ArrayList<>();
+        for (int i=0; i<testUserCount; i++) {
+            if (i % 2 == 0) {
+                ids.add(testUsers[i][0]);
+            } else {
+                usernames.add(testUsers[i][1].toUpperCase());
+            }
+        }
+        Map<String, List<String>> request = new HashMap<>();
+        request.put("ids", ids);
+        request.put("userNames", usernames);
+
+        String body = getMockMvc().perform(getBulkLookupRequest(scimLookupIdUserToken, request))
+            .andExpect(status().isOk())
+            .andReturn().getResponse().getContentAsString();
+
+        Map<String, Object> map = JsonUtils.readValue(body, Map.class);
+        assertEquals(testUserCount, map.get("totalResults"));
+        List<Map<String, Object>> resources = (List<Map<String, Object>>) map.get("resources");
+        assertEquals(testUserCount, resources.size());
+        for (Map<String, Object> resource : resources) {
+            assertEquals(OriginKeys.UAA, resource.get(OriginKeys.ORIGIN));
+            assertEquals("uaa", resource.get("zoneId"));
+        }
+    }
+
+    @Test
+    public void testBulkLookupWithIncorrectScope() throws Exception {
+        String token = testClient.getUserOAuthAccessToken(clientId, clientSecret, user.getUserName(), "secr3T", "scim.me");
+
+        getMockMvc().perform(getBulkLookupRequest(token, Collections.singletonMap("ids", Collections.singletonList(user.getId()))))
+            .andExpect(status().isForbidden());
+    }
+
+    @Test
+    public void testAllLookupPathsRequireUserIdsScope() throws Exception {
+        String token = testClient.getUserOAuthAccessToken(clientId, clientSecret, user.getUserName(), "secr3T", "scim.me");
+        SecurityContext session = utils().getUaaSecurityContext(user.getUserName(), getWebApplicationContext());
+        for (String path : Arrays.asList("/ids/Users.json", "/ids/Users/", "/ids/Users/bulk")) {
+            getMockMvc().perform(post(path)
+                    .header("Authorization", "Bearer " + token)
+                    .accept(APPLICATION_JSON)
+                    .param("filter", "id eq \"" + user.getId() + "\""))
+                .andExpect(status().isForbidden());
+
+            getMockMvc().perform(post(path)
+                    .with(securityContext(session))
+                    .accept(APPLICATION_JSON)
+                    .param("filter", "id eq \"" + user.getId() + "\""))
+                .andExpect(status().isUnauthorized());
+        }
+    }
+
+    @Test
+    public void testBulkLookupWithoutValues() throws Exception {
+        getMockMvc().perform(getBulkLookupRequest(scimLookupIdUserToken, Collections.emptyMap()))
+            .andExpect(status().isBadRequest());
+    }
+
+    private MockHttpServletRequestBuilder getBulkLookupRequest(String token, Map<String, ?> request) {
+        return post("/ids/Users/bulk")
+            .header("Authorization", "Bearer " + token)
+            .accept(APPLICATION_JSON)
+            .contentType(APPLICATION_JSON)
+            .content(JsonUtils.writeValueAsString(request));
+    }
+
     private MockHttpServletRequestBuilder getIdLookupRequest(String token, String username, String operator) {
         if (operator==null) {
             operator = "eq";